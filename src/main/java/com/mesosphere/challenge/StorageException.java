@@ -20,7 +20,7 @@ public class StorageException extends Exception {
 	 * @param message
 	 * @param exception
 	 */
-	public StorageException(String message, Exception exception) {
+	public StorageException(String message, Throwable exception) {
 		super(message, exception);
 	}
 
@@ -0,0 +1,128 @@
+package com.mesosphere.challenge.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+/**
+ * 
+ * @author john
+ *
+ *         This class provides a model definition for the metadata of a storage
+ *         blob. DAOs keep these fields next to the contents, so they can be
+ *         looked up without reading the contents.
+ *
+ */
+/*
+ * Clean up JSON
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class StorageMetadata extends StorageModel {
+
+	/*
+	 * Field holding the location of this file
+	 */
+	String location = null;
+
+	/*
+	 * Field holding the length of the contents in bytes, as stored
+	 */
+	Long length = null;
+
+	/*
+	 * Field holding the SHA-256 checksum of the contents as stored, in lower
+	 * case hex. May be null for contents written outside of the service.
+	 */
+	String checksum = null;
+
+	/*
+	 * Field holding the time the contents were last written, in milliseconds
+	 * since the epoch
+	 */
+	Long modified = null;
+
+	/**
+	 * 
+	 */
+	public StorageMetadata() {
+
+	}
+
+	/**
+	 * 
+	 * @param location
+	 * @param length
+	 * @param checksum
+	 * @param modified
+	 */
+	public StorageMetadata(String location, Long length, String checksum, Long modified) {
+		this.setLocation(location);
+		this.length = length;
+		this.checksum = checksum;
+		this.modified = modified;
+	}
+
+	/**
+	 * 
+	 * @return
+	 */
+	public String getLocation() {
+		return this.location;
+	}
+
+	/**
+	 * 
+	 * @param location
+	 */
+	public void setLocation(String location) {
+		this.location = location;
+		this.URI = (location != null) ? "/store/" + location : null;
+	}
+
+	/**
+	 * 
+	 * @return
+	 */
+	public Long getLength() {
+		return this.length;
+	}
+
+	/**
+	 * 
+	 * @param length
+	 */
+	public void setLength(Long length) {
+		this.length = length;
+	}
+
+	/**
+	 * 
+	 * @return
+	 */
+	public String getChecksum() {
+		return this.checksum;
+	}
+
+	/**
+	 * 
+	 * @param checksum
+	 */
+	public void setChecksum(String checksum) {
+		this.checksum = checksum;
+	}
+
+	/**
+	 * 
+	 * @return
+	 */
+	public Long getModified() {
+		return this.modified;
+	}
+
+	/**
+	 * 
+	 * @param modified
+	 */
+	public void setModified(Long modified) {
+		this.modified = modified;
+	}
+
+}
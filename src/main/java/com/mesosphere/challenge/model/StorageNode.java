@@ -28,7 +28,7 @@ public class StorageNode extends StorageModel {
 
 	/*
 	 * Field holding the content length of the contents of this file., i.e.
-	 * number of UTF-8 characters.
+	 * number of bytes in UTF-8.
 	 */
 	Integer length = null;
 
@@ -46,7 +46,7 @@ public class StorageNode extends StorageModel {
 	public StorageNode(String contents) {
 		if (contents != null) {
 			this.contents = contents;
-			this.length = new Integer(contents.length());
+			this.length = byteLength(contents);
 		}
 	}
 
@@ -69,7 +69,7 @@ public class StorageNode extends StorageModel {
 		this.URI = "/store/" + location;
 		if (contents != null) {
 			this.contents = contents;
-			this.length = new Integer(contents.length());
+			this.length = byteLength(contents);
 		}
 	}
 
@@ -87,6 +87,36 @@ public class StorageNode extends StorageModel {
 		}
 	}
 
+	/**
+	 * 
+	 * Number of bytes the contents take in UTF-8, counted without encoding
+	 * them. A lone surrogate is encoded as one replacement byte, as
+	 * String.getBytes() does.
+	 * 
+	 * @param contents
+	 * @return
+	 */
+	protected static Integer byteLength(String contents) {
+		int ret = 0;
+		for (int i = 0; i < contents.length(); i++) {
+			char c = contents.charAt(i);
+			if (c < 0x80) {
+				ret += 1;
+			} else if (c < 0x800) {
+				ret += 2;
+			} else if (Character.isHighSurrogate(c) && (i + 1 < contents.length())
+					&& Character.isLowSurrogate(contents.charAt(i + 1))) {
+				ret += 4;
+				i++;
+			} else if (Character.isSurrogate(c)) {
+				ret += 1;
+			} else {
+				ret += 3;
+			}
+		}
+		return ret;
+	}
+
 	/**
 	 * 
 	 * @return
@@ -119,7 +149,7 @@ public class StorageNode extends StorageModel {
 	public void setContents(String contents) {
 		if (contents != null) {
 			this.contents = contents;
-			this.length = new Integer(contents.length());
+			this.length = byteLength(contents);
 		} else {
 			this.contents = null;
 		}
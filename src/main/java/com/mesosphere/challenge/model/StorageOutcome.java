@@ -0,0 +1,42 @@
+package com.mesosphere.challenge.model;
+
+/**
+ * 
+ * @author john
+ *
+ *         This enum lists the possible outcomes of a single write to storage.
+ *
+ */
+public enum StorageOutcome {
+
+	/*
+	 * A new node was stored
+	 */
+	CREATED,
+
+	/*
+	 * An existing node was replaced
+	 */
+	UPDATED,
+
+	/*
+	 * An existing node was removed
+	 */
+	DELETED,
+
+	/*
+	 * Nothing was written, there already is a node at this location
+	 */
+	EXISTS,
+
+	/*
+	 * Nothing was written, there is no node at this location
+	 */
+	NOT_FOUND,
+
+	/*
+	 * Nothing was written, the request was not valid (e.g. missing location)
+	 */
+	INVALID
+
+}
@@ -0,0 +1,118 @@
+package com.mesosphere.challenge.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+/**
+ * 
+ * @author john
+ *
+ *         This class provides a model definition for the result of a single
+ *         write to storage, such as one item of a batch write. It carries the
+ *         location and outcome, and the stored node for callers that need it.
+ *         The node is not serialized, to keep batch responses small.
+ *
+ */
+/*
+ * Clean up JSON
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class StorageResult extends StorageModel {
+
+	/*
+	 * Field holding the location that was written
+	 */
+	String location = null;
+
+	/*
+	 * Field holding the outcome of the write
+	 */
+	StorageOutcome outcome = null;
+
+	/*
+	 * The node as stored, if the write succeeded
+	 */
+	@JsonIgnore
+	StorageNode node = null;
+
+	/**
+	 * 
+	 */
+	public StorageResult() {
+
+	}
+
+	/**
+	 * 
+	 * @param location
+	 * @param outcome
+	 */
+	public StorageResult(String location, StorageOutcome outcome) {
+		this.setLocation(location);
+		this.outcome = outcome;
+	}
+
+	/**
+	 * 
+	 * @param location
+	 * @param outcome
+	 * @param node
+	 */
+	public StorageResult(String location, StorageOutcome outcome, StorageNode node) {
+		this.setLocation(location);
+		this.outcome = outcome;
+		this.node = node;
+	}
+
+	/**
+	 * 
+	 * @return
+	 */
+	public String getLocation() {
+		return this.location;
+	}
+
+	/**
+	 * 
+	 * @param location
+	 */
+	public void setLocation(String location) {
+		this.location = location;
+		this.URI = (location != null) ? "/store/" + location : null;
+	}
+
+	/**
+	 * 
+	 * @return
+	 */
+	public StorageOutcome getOutcome() {
+		return this.outcome;
+	}
+
+	/**
+	 * 
+	 * @param outcome
+	 */
+	public void setOutcome(StorageOutcome outcome) {
+		this.outcome = outcome;
+	}
+
+	/**
+	 * 
+	 * @return
+	 */
+	@JsonIgnore
+	public StorageNode getNode() {
+		return this.node;
+	}
+
+	/**
+	 * 
+	 * @param node
+	 */
+	@JsonIgnore
+	public void setNode(StorageNode node) {
+		this.node = node;
+	}
+
+}
@@ -5,8 +5,22 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
 import com.mesosphere.challenge.StorageException;
+import com.mesosphere.challenge.service.dao.BoundedMemoryStorageDAO;
+import com.mesosphere.challenge.service.dao.CachingStorageDAO;
+import com.mesosphere.challenge.service.dao.CoalescingStorageDAO;
 import com.mesosphere.challenge.service.dao.EmbeddedStorageDAO;
+import com.mesosphere.challenge.service.dao.FileStorageDAO;
+import com.mesosphere.challenge.service.dao.IEvictionPolicy;
 import com.mesosphere.challenge.service.dao.IStorageDAO;
+import com.mesosphere.challenge.service.dao.MVStoreStorageDAO;
+import com.mesosphere.challenge.service.dao.MemoryStorageDAO;
+import com.mesosphere.challenge.service.dao.MemoryStorageJournal;
+import com.mesosphere.challenge.service.dao.NegativeLookupStorageDAO;
+import com.mesosphere.challenge.service.dao.LogStructuredStorageDAO;
+import com.mesosphere.challenge.service.dao.OffHeapStorageDAO;
+import com.mesosphere.challenge.service.dao.PersistentMemoryStorageDAO;
+import com.mesosphere.challenge.service.dao.StorageCodecs;
+import com.mesosphere.challenge.service.dao.StorageCompression;
 
 /**
  * 
@@ -33,6 +47,15 @@ import com.mesosphere.challenge.service.dao.IStorageDAO;
 @Configuration
 public class StorageServiceConfig {
 
+	/*
+	 * Which DAO to use: embedded (SQL on the embedded H2 DB), mvstore (H2
+	 * MVStore key-value map, without SQL), file (one file per node), memory
+	 * (not persisted), offheap (not persisted, kept outside of the heap) or
+	 * log (append only segment files)
+	 */
+	@Value("${com.mesosphere.challenge.service.storage.type:embedded}")
+	private String storageType;
+
 	@Value("${com.mesosphere.challenge.service.storage.path}")
 	private String storagePath;
 
@@ -45,6 +68,190 @@ public class StorageServiceConfig {
 	@Value("${com.mesosphere.challenge.service.storage.password}")
 	private String storagePassword;
 
+	/*
+	 * Connection pool settings for the embedded DB. The timeout is the number
+	 * of milliseconds a request waits for a free connection.
+	 */
+	@Value("${com.mesosphere.challenge.service.storage.pool.minSize:1}")
+	private int storagePoolMinSize;
+
+	@Value("${com.mesosphere.challenge.service.storage.pool.maxSize:16}")
+	private int storagePoolMaxSize;
+
+	@Value("${com.mesosphere.challenge.service.storage.pool.acquireTimeout:5000}")
+	private long storagePoolAcquireTimeout;
+
+	@Value("${com.mesosphere.challenge.service.storage.pool.validate:true}")
+	private boolean storagePoolValidate;
+
+	/*
+	 * Group commit settings for the embedded DB. When enabled, concurrent
+	 * writes are committed together in groups of up to maxBatchSize writes,
+	 * waiting at most maxDelay milliseconds for a group to fill up.
+	 */
+	@Value("${com.mesosphere.challenge.service.storage.groupCommit.enabled:false}")
+	private boolean storageGroupCommitEnabled;
+
+	@Value("${com.mesosphere.challenge.service.storage.groupCommit.maxBatchSize:256}")
+	private int storageGroupCommitMaxBatchSize;
+
+	@Value("${com.mesosphere.challenge.service.storage.groupCommit.maxDelay:2}")
+	private long storageGroupCommitMaxDelay;
+
+	/*
+	 * Deduplication settings. When enabled, the embedded DB and file storage
+	 * store each distinct contents once. Unreferenced contents are collected
+	 * every collectInterval milliseconds.
+	 */
+	@Value("${com.mesosphere.challenge.service.storage.dedup.enabled:false}")
+	private boolean storageDedupEnabled;
+
+	@Value("${com.mesosphere.challenge.service.storage.dedup.collectInterval:60000}")
+	private long storageDedupCollectInterval;
+
+	/*
+	 * File storage layout. Node files are fanned out over shardDepth levels
+	 * of 256 folders, zero keeps them all in one folder. Node files left in
+	 * one folder are moved into the shards in the background.
+	 */
+	@Value("${com.mesosphere.challenge.service.storage.shard.depth:2}")
+	private int storageShardDepth;
+
+	/*
+	 * When file storage forces writes to disk, always (each write), interval
+	 * (each file before it is renamed into place, the folders renamed into
+	 * every fsyncInterval milliseconds) or never.
+	 */
+	@Value("${com.mesosphere.challenge.service.storage.files.fsync:interval}")
+	private String storageFilesFsync;
+
+	@Value("${com.mesosphere.challenge.service.storage.files.fsyncInterval:1000}")
+	private long storageFilesFsyncInterval;
+
+	/*
+	 * Serve file storage listings from memory, kept current by our own writes
+	 * and by watching the node folders
+	 */
+	@Value("${com.mesosphere.challenge.service.storage.files.index.enabled:false}")
+	private boolean storageFilesIndexEnabled;
+
+	/*
+	 * Threads the asynchronous file storage calls read and write node files
+	 * on, while the request threads are free for other requests
+	 */
+	@Value("${com.mesosphere.challenge.service.storage.files.ioThreads:16}")
+	private int storageFilesIoThreads;
+
+	/*
+	 * Compression settings for the embedded DB and file storage. The codec is
+	 * one of identity, deflate, gzip or lzf. Contents shorter than threshold
+	 * bytes are stored as they are.
+	 */
+	@Value("${com.mesosphere.challenge.service.storage.compression.codec:identity}")
+	private String storageCompressionCodec;
+
+	@Value("${com.mesosphere.challenge.service.storage.compression.threshold:512}")
+	private int storageCompressionThreshold;
+
+	/*
+	 * Memory storage settings. With maxBytes above zero the store is bounded,
+	 * and nodes picked by the eviction policy, lru or tinylfu, are dropped to
+	 * stay within maxBytes.
+	 */
+	@Value("${com.mesosphere.challenge.service.storage.memory.maxBytes:0}")
+	private long storageMemoryMaxBytes;
+
+	@Value("${com.mesosphere.challenge.service.storage.memory.eviction:tinylfu}")
+	private String storageMemoryEviction;
+
+	/*
+	 * Persistence of the memory store, as a snapshot plus a write-ahead log
+	 * under the storage path. The fsync policy is always, interval or never,
+	 * intervals are in milliseconds.
+	 */
+	@Value("${com.mesosphere.challenge.service.storage.memory.persistence.enabled:false}")
+	private boolean storageMemoryPersistenceEnabled;
+
+	@Value("${com.mesosphere.challenge.service.storage.memory.persistence.fsync:interval}")
+	private String storageMemoryPersistenceFsync;
+
+	@Value("${com.mesosphere.challenge.service.storage.memory.persistence.fsyncInterval:1000}")
+	private long storageMemoryPersistenceFsyncInterval;
+
+	@Value("${com.mesosphere.challenge.service.storage.memory.persistence.snapshotInterval:300000}")
+	private long storageMemoryPersistenceSnapshotInterval;
+
+	/*
+	 * Off-heap storage settings. Capacity is the most direct memory in bytes
+	 * the store takes, in slabs of slabSize bytes. The JVM must allow that
+	 * much direct memory, see -XX:MaxDirectMemorySize.
+	 */
+	@Value("${com.mesosphere.challenge.service.storage.offheap.capacity:268435456}")
+	private long storageOffHeapCapacity;
+
+	@Value("${com.mesosphere.challenge.service.storage.offheap.slabSize:4194304}")
+	private int storageOffHeapSlabSize;
+
+	/*
+	 * Log storage settings. Segments are sealed at segmentSize bytes, and
+	 * sealed segments with more than compactThreshold of dead bytes are
+	 * rewritten every compactInterval milliseconds.
+	 */
+	@Value("${com.mesosphere.challenge.service.storage.log.segmentSize:67108864}")
+	private long storageLogSegmentSize;
+
+	@Value("${com.mesosphere.challenge.service.storage.log.fsync:interval}")
+	private String storageLogFsync;
+
+	@Value("${com.mesosphere.challenge.service.storage.log.fsyncInterval:1000}")
+	private long storageLogFsyncInterval;
+
+	@Value("${com.mesosphere.challenge.service.storage.log.compactThreshold:0.5}")
+	private double storageLogCompactThreshold;
+
+	@Value("${com.mesosphere.challenge.service.storage.log.compactInterval:60000}")
+	private long storageLogCompactInterval;
+
+	/*
+	 * Fold concurrent reads of the same location into one storage call
+	 */
+	@Value("${com.mesosphere.challenge.service.storage.coalescing.enabled:false}")
+	private boolean storageCoalescingEnabled;
+
+	/*
+	 * Negative lookups in front of whichever storage type is configured. The
+	 * Bloom filter is sized for expectedLocations at the given false positive
+	 * rate and grows with the store, missCacheSize recent misses are kept.
+	 */
+	@Value("${com.mesosphere.challenge.service.storage.negative.enabled:false}")
+	private boolean storageNegativeEnabled;
+
+	@Value("${com.mesosphere.challenge.service.storage.negative.expectedLocations:1000000}")
+	private long storageNegativeExpectedLocations;
+
+	@Value("${com.mesosphere.challenge.service.storage.negative.falsePositiveRate:0.01}")
+	private double storageNegativeFalsePositiveRate;
+
+	@Value("${com.mesosphere.challenge.service.storage.negative.missCacheSize:10000}")
+	private int storageNegativeMissCacheSize;
+
+	/*
+	 * Read-through cache in front of whichever storage type is configured.
+	 * The budget is in bytes, the ttl in milliseconds with zero for none, the
+	 * eviction policy is lru or tinylfu.
+	 */
+	@Value("${com.mesosphere.challenge.service.storage.cache.enabled:false}")
+	private boolean storageCacheEnabled;
+
+	@Value("${com.mesosphere.challenge.service.storage.cache.maxBytes:67108864}")
+	private long storageCacheMaxBytes;
+
+	@Value("${com.mesosphere.challenge.service.storage.cache.ttl:0}")
+	private long storageCacheTtl;
+
+	@Value("${com.mesosphere.challenge.service.storage.cache.eviction:tinylfu}")
+	private String storageCacheEviction;
+
 	/**
 	 * 
 	 * Bean declaration. This defines the DAO to use in production. There is a
@@ -55,11 +262,87 @@ public class StorageServiceConfig {
 	 */
 	@Bean
 	public IStorageDAO storageDAO() throws StorageException {
+		IStorageDAO dao = this.backend();
+		if (storageCoalescingEnabled) {
+			dao = new CoalescingStorageDAO(dao);
+		}
+		if (storageNegativeEnabled) {
+			dao = new NegativeLookupStorageDAO(dao, storageNegativeExpectedLocations,
+					storageNegativeFalsePositiveRate, storageNegativeMissCacheSize);
+		}
+		if (storageCacheEnabled) {
+			dao = new CachingStorageDAO(dao, storageCacheMaxBytes, storageCacheTtl,
+					IEvictionPolicy.forName(storageCacheEviction, storageCacheMaxBytes));
+		}
+		return dao;
+	}
+
+	/**
+	 * 
+	 * @return the DAO of the configured storage type
+	 * @throws StorageException
+	 */
+	protected IStorageDAO backend() throws StorageException {
+		/*
+		 * Return an MVStoreStorageDAO if configured, also file backed.
+		 */
+		if ("mvstore".equals(storageType)) {
+			return new MVStoreStorageDAO(storagePath, storageFile);
+		} else if ("memory".equals(storageType)) {
+			if ((storageMemoryPersistenceEnabled) && (storageMemoryMaxBytes > 0)) {
+				throw new StorageException("A bounded memory store cannot be persisted");
+			} else if (storageMemoryPersistenceEnabled) {
+				return new PersistentMemoryStorageDAO(storagePath + "/" + storageFile + ".memory",
+						MemoryStorageJournal.FsyncPolicy.forName(storageMemoryPersistenceFsync),
+						storageMemoryPersistenceFsyncInterval, storageMemoryPersistenceSnapshotInterval);
+			} else if (storageMemoryMaxBytes > 0) {
+				return new BoundedMemoryStorageDAO(storageMemoryMaxBytes,
+						IEvictionPolicy.forName(storageMemoryEviction, storageMemoryMaxBytes));
+			}
+			return new MemoryStorageDAO();
+		} else if ("offheap".equals(storageType)) {
+			return new OffHeapStorageDAO(storageOffHeapCapacity, storageOffHeapSlabSize);
+		} else if ("log".equals(storageType)) {
+			return new LogStructuredStorageDAO(storagePath + "/" + storageFile + ".log", storageLogSegmentSize,
+					MemoryStorageJournal.FsyncPolicy.forName(storageLogFsync), storageLogFsyncInterval,
+					storageLogCompactThreshold, storageLogCompactInterval);
+		} else if ("file".equals(storageType)) {
+			FileStorageDAO dao = new FileStorageDAO(storagePath, storageDedupEnabled, storageShardDepth);
+			dao.scheduleContentCollection(storageDedupCollectInterval);
+			dao.setCompression(this.compression());
+			dao.setFsync(MemoryStorageJournal.FsyncPolicy.forName(storageFilesFsync), storageFilesFsyncInterval);
+			if (storageFilesIndexEnabled) {
+				dao.enableListingIndex();
+			}
+			dao.setIoThreads(storageFilesIoThreads);
+			dao.startMigration();
+			return dao;
+		} else if ("embedded".equals(storageType) == false) {
+			throw new StorageException("Unknown storage type: " + storageType);
+		}
+
 		/*
 		 * Return an EmbeddedStorageDAO configured to use file backed storage,
 		 * so that we can restart the app without losing data.
 		 */
-		return new EmbeddedStorageDAO(storagePath, storageFile, storageUsername, storagePassword);
+		EmbeddedStorageDAO dao = new EmbeddedStorageDAO(storagePath, storageFile, storageUsername, storagePassword,
+				storagePoolMinSize, storagePoolMaxSize, storagePoolAcquireTimeout, storagePoolValidate);
+		if (storageGroupCommitEnabled) {
+			dao.enableGroupCommit(storageGroupCommitMaxBatchSize, storageGroupCommitMaxDelay);
+		}
+		dao.setDeduplication(storageDedupEnabled);
+		dao.scheduleContentCollection(storageDedupCollectInterval);
+		dao.setCompression(this.compression());
+		return dao;
+	}
+
+	/**
+	 * 
+	 * @return the configured compression
+	 * @throws StorageException
+	 */
+	protected StorageCompression compression() throws StorageException {
+		return new StorageCompression(StorageCodecs.forName(storageCompressionCodec), storageCompressionThreshold);
 	}
 
 }
@@ -1,24 +1,41 @@
 package com.mesosphere.challenge.service.controller;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.servlet.config.annotation.EnableWebMvc;
+import org.springframework.web.util.UriComponentsBuilder;
 
 import com.mesosphere.challenge.StorageException;
+import com.mesosphere.challenge.model.StorageMetadata;
 import com.mesosphere.challenge.model.StorageNode;
+import com.mesosphere.challenge.model.StorageOutcome;
+import com.mesosphere.challenge.model.StorageResult;
+import com.mesosphere.challenge.service.dao.IStorageContents;
 import com.mesosphere.challenge.service.dao.IStorageDAO;
+import com.mesosphere.challenge.service.dao.StorageChecksums;
+import com.mesosphere.challenge.service.dao.StorageCodecs;
 
 /**
  * 
@@ -28,6 +45,12 @@ import com.mesosphere.challenge.service.dao.IStorageDAO;
  *         /store and several REST handler endpoints, with and without extra
  *         path arguments.
  *
+ *         The handlers that read or write nodes return futures of the
+ *         asynchronous DAO calls, so the request thread goes back to the
+ *         container while the DAO waits for its storage, and the response is
+ *         written once the future completes. Contents are streamed and
+ *         statistics gathered on the request thread as before.
+ *
  */
 @EnableWebMvc
 @RestController
@@ -49,22 +72,56 @@ public class StorageController {
 	 * and returns a collection of nodes. This is the list, or index,
 	 * controller.
 	 * 
+	 * The listing can be paged with the optional limit and after query
+	 * params. Nodes are ordered by location, and only nodes after the given
+	 * location are returned, so the next page is requested with the location
+	 * of the last node on this page. When a page is full a Link header with
+	 * rel="next" points at the next page. With metadata=true the nodes carry
+	 * location, URI and length only, and the contents are never read.
+	 * 
 	 * 404 is returned if the storage DAO doesn't return an array. However no
 	 * items found is usually handled by an empty arary, which would not result
 	 * in a 404.
 	 * 
+	 * @param limit
+	 * @param after
+	 * @param metadata
 	 * @param request
 	 * @return
-	 * @throws StorageException
 	 */
 	@RequestMapping(value = "/store", method = RequestMethod.GET)
-	public ResponseEntity<Collection<StorageNode>> getBlobs(HttpServletRequest request) throws StorageException {
+	public CompletableFuture<ResponseEntity<Collection<StorageNode>>> getBlobs(
+			@RequestParam(value = "limit", required = false) Integer limit,
+			@RequestParam(value = "after", required = false) String after,
+			@RequestParam(value = "metadata", defaultValue = "false") boolean metadata, HttpServletRequest request) {
 		logger.info("getBlobs");
-		Collection<StorageNode> ret = this.storageConnection().getStorageNodes();
-		if (ret == null) {
-			return new ResponseEntity<Collection<StorageNode>>(HttpStatus.NOT_FOUND);
+		if ((limit != null) && (limit < 1)) {
+			return CompletableFuture
+					.completedFuture(new ResponseEntity<Collection<StorageNode>>(HttpStatus.BAD_REQUEST));
+		}
+		CompletableFuture<Collection<StorageNode>> nodes = null;
+		if ((limit == null) && (after == null) && (metadata == false)) {
+			nodes = this.storageConnection().getStorageNodesAsync();
+		} else {
+			nodes = this.storageConnection().getStorageNodesAsync(after, (limit != null) ? limit : 0, metadata);
 		}
-		return new ResponseEntity<Collection<StorageNode>>(ret, HttpStatus.OK);
+		return nodes.thenApply(ret -> {
+			if (ret == null) {
+				return new ResponseEntity<Collection<StorageNode>>(HttpStatus.NOT_FOUND);
+			}
+			HttpHeaders headers = new HttpHeaders();
+			if ((limit != null) && (ret.size() >= limit)) {
+				String last = null;
+				for (StorageNode node : ret) {
+					last = node.getLocation();
+				}
+				headers.add(HttpHeaders.LINK,
+						"<" + UriComponentsBuilder.fromPath("/store").queryParam("limit", limit)
+								.queryParam("after", last).queryParam("metadata", metadata).build().encode()
+								.toUriString() + ">; rel=\"next\"");
+			}
+			return new ResponseEntity<Collection<StorageNode>>(ret, headers, HttpStatus.OK);
+		});
 	}
 
 	/*
@@ -76,29 +133,159 @@ public class StorageController {
 	 * This method handles GET calls to /store/location and returns the node
 	 * with that particular location.
 	 * 
+	 * The response carries a strong ETag made of the checksum of the
+	 * contents. If the If-None-Match header lists it, 304 is returned without
+	 * a body. The checksum is taken of the node that was read, so the ETag
+	 * always belongs to the body sent with it, whatever was written since.
+	 * 
 	 * 404 is returned if there is no node found with this location.
 	 * 
 	 * @param location
 	 * @param request
 	 * @return
-	 * @throws StorageException
 	 */
 	@RequestMapping(value = "/store/{location}", method = RequestMethod.GET)
-	public ResponseEntity<StorageNode> getBlobWithLocation(@PathVariable String location, HttpServletRequest request)
-			throws StorageException {
+	public CompletableFuture<ResponseEntity<StorageNode>> getBlobWithLocation(@PathVariable String location,
+			HttpServletRequest request) {
 		logger.info("getBlobWithLocation: " + location);
-		StorageNode ret = this.storageConnection().getStorageNode(this.path(location));
-		if (ret == null) {
-			return new ResponseEntity<StorageNode>(HttpStatus.NOT_FOUND);
-		}
-		return new ResponseEntity<StorageNode>(ret, HttpStatus.OK);
+		/*
+		 * Read the header now, the request may be gone by the time the node
+		 * is back
+		 */
+		Collection<String> ifNoneMatch = this.headers(request, HttpHeaders.IF_NONE_MATCH);
+		return this.storageConnection().getStorageNodeAsync(this.path(location)).thenApply(ret -> {
+			if (ret == null) {
+				return new ResponseEntity<StorageNode>(HttpStatus.NOT_FOUND);
+			}
+			String checksum = StorageChecksums.checksum(StorageChecksums.bytes(ret));
+			HttpHeaders headers = new HttpHeaders();
+			headers.setETag(this.etag(checksum));
+			if (this.matchingETag(ifNoneMatch, checksum) != null) {
+				return new ResponseEntity<StorageNode>(headers, HttpStatus.NOT_MODIFIED);
+			}
+			return new ResponseEntity<StorageNode>(ret, headers, HttpStatus.OK);
+		});
+
+	}
 
+	/**
+	 * 
+	 * This method handles GET calls to /store/location/metadata and returns
+	 * the length, checksum and last modified time of the node with that
+	 * particular location. The contents are not read.
+	 * 
+	 * 404 is returned if there is no node found with this location.
+	 * 
+	 * @param location
+	 * @param request
+	 * @return
+	 */
+	@RequestMapping(value = "/store/{location}/metadata", method = RequestMethod.GET)
+	public CompletableFuture<ResponseEntity<StorageMetadata>> getBlobMetadataWithLocation(
+			@PathVariable String location, HttpServletRequest request) {
+		logger.info("getBlobMetadataWithLocation: " + location);
+		return this.storageConnection().getStorageMetadataAsync(this.path(location)).thenApply(ret -> {
+			if (ret == null) {
+				return new ResponseEntity<StorageMetadata>(HttpStatus.NOT_FOUND);
+			}
+			return new ResponseEntity<StorageMetadata>(ret, HttpStatus.OK);
+		});
+	}
+
+	/**
+	 * 
+	 * This method handles GET calls to /store/location/contents and streams
+	 * the raw bytes of the node with that particular location, exactly as
+	 * stored, as application/octet-stream. The bytes are copied from storage
+	 * to the response through a fixed size buffer, so large blobs are never
+	 * held on the heap in full.
+	 * 
+	 * Contents stored compressed with a codec listed in the Accept-Encoding
+	 * header are sent without decoding, with a matching Content-Encoding.
+	 * 
+	 * As with GET calls to /store/location, the response carries a strong
+	 * ETag and If-None-Match is honored before the contents are opened. The
+	 * ETag of encoded contents has the codec appended, since the bytes sent
+	 * differ.
+	 * 
+	 * Contents the DAO serves straight from a file are copied from the file
+	 * it had open when they were looked up, so a node replaced meanwhile is
+	 * still sent whole, as it was.
+	 * 
+	 * 404 is returned if there is no node found with this location.
+	 * 
+	 * @param location
+	 * @param request
+	 * @param response
+	 * @throws StorageException
+	 * @throws IOException
+	 */
+	@RequestMapping(value = "/store/{location}/contents", method = RequestMethod.GET)
+	public void getBlobContentsWithLocation(@PathVariable String location, HttpServletRequest request,
+			HttpServletResponse response) throws StorageException, IOException {
+		logger.info("getBlobContentsWithLocation: " + location);
+		StorageMetadata metadata = this.storageConnection().getStorageMetadata(this.path(location));
+		if (metadata == null) {
+			response.setStatus(HttpStatus.NOT_FOUND.value());
+			return;
+		}
+		String match = (metadata.getChecksum() != null) ? this.matchingETag(request, metadata.getChecksum()) : null;
+		if (match != null) {
+			response.setStatus(HttpStatus.NOT_MODIFIED.value());
+			response.setHeader(HttpHeaders.ETAG, match);
+			response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+			return;
+		}
+		try (IStorageContents contents = this.storageConnection().getStorageContents(this.path(location),
+				this.encodings(request))) {
+			if (contents == null) {
+				response.setStatus(HttpStatus.NOT_FOUND.value());
+				return;
+			}
+			response.setStatus(HttpStatus.OK.value());
+			response.setContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE);
+			response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+			if (StorageCodecs.IDENTITY.getName().equals(contents.getEncoding()) == false) {
+				response.setHeader(HttpHeaders.CONTENT_ENCODING, contents.getEncoding());
+			}
+			if (metadata.getChecksum() != null) {
+				response.setHeader(HttpHeaders.ETAG, this.etag(metadata.getChecksum(), contents.getEncoding()));
+			}
+			response.setContentLengthLong(contents.getLength());
+			contents.transferTo(response.getOutputStream());
+		}
 	}
 
 	/*
 	 * Create either by location or by path
 	 */
 
+	/**
+	 * 
+	 * This call handles POST calls to /store with a JSON array of nodes, each
+	 * with its own location, and creates them all in one go. As with POSTs to
+	 * /store/location, a node is only created if there is no node at its
+	 * location yet.
+	 * 
+	 * Returns 200 with one result per node, in request order, carrying the
+	 * location and an outcome of CREATED, EXISTS or INVALID.
+	 * 
+	 * @param nodes
+	 * @param request
+	 * @return
+	 */
+	@RequestMapping(value = "/store", method = RequestMethod.POST)
+	public CompletableFuture<ResponseEntity<Collection<StorageResult>>> createBlobs(
+			@RequestBody Collection<StorageNode> nodes, HttpServletRequest request) {
+		logger.info("createBlobs: " + nodes.size());
+		return this.storageConnection().createStorageNodesAsync(nodes).thenApply(ret -> {
+			if (ret == null) {
+				return new ResponseEntity<Collection<StorageResult>>(HttpStatus.NOT_FOUND);
+			}
+			return new ResponseEntity<Collection<StorageResult>>(ret, HttpStatus.OK);
+		});
+	}
+
 	/**
 	 * 
 	 * This call handles POST calls to /store/location. The call only allows
@@ -112,27 +299,30 @@ public class StorageController {
 	 * the DAO fails to store the node with this location (one could argue that
 	 * this is the wrong code for this case).
 	 * 
+	 * The check and the create are a single DAO call, so of two concurrent
+	 * POSTs to a new location exactly one gets 200.
+	 * 
 	 * @param location
 	 * @param node
 	 * @param request
 	 * @return
-	 * @throws StorageException
 	 */
 	@RequestMapping(value = "/store/{location}", method = RequestMethod.POST)
-	public ResponseEntity<StorageNode> createBlobWithLocation(@PathVariable String location,
-			@RequestBody StorageNode node, HttpServletRequest request) throws StorageException {
+	public CompletableFuture<ResponseEntity<StorageNode>> createBlobWithLocation(@PathVariable String location,
+			@RequestBody StorageNode node, HttpServletRequest request) {
 		logger.info("createBlobWithLocation");
 		/*
 		 * If node already exists, throw error
 		 */
-		if (this.storageConnection().getStorageNode(this.path(location)) != null) {
-			return new ResponseEntity<StorageNode>(HttpStatus.BAD_REQUEST);
-		}
-		StorageNode ret = this.storageConnection().createStorageNode(node, this.path(location));
-		if (ret == null) {
-			return new ResponseEntity<StorageNode>(HttpStatus.NOT_FOUND);
-		}
-		return new ResponseEntity<StorageNode>(ret, HttpStatus.OK);
+		return this.storageConnection().createStorageNodeIfAbsentAsync(node, this.path(location)).thenApply(ret -> {
+			if (ret.getOutcome() == StorageOutcome.EXISTS) {
+				return new ResponseEntity<StorageNode>(HttpStatus.BAD_REQUEST);
+			}
+			if (ret.getOutcome() != StorageOutcome.CREATED) {
+				return new ResponseEntity<StorageNode>(HttpStatus.NOT_FOUND);
+			}
+			return new ResponseEntity<StorageNode>(ret.getNode(), HttpStatus.OK);
+		});
 	}
 
 	/*
@@ -147,29 +337,27 @@ public class StorageController {
 	 * 
 	 * Returns 404 if there is no node with this location already. Returns 404
 	 * if the DAO fails to store the node with this location (one could argue
-	 * that this is the wrong code for this case).
+	 * that this is the wrong code for this case). The DAO checks and writes
+	 * in a single call.
 	 * 
 	 * @param location
 	 * @param node
 	 * @param request
 	 * @return
-	 * @throws StorageException
 	 */
 	@RequestMapping(value = "/store/{location}", method = RequestMethod.PUT)
-	public ResponseEntity<StorageNode> updateBlobWithLocation(@PathVariable String location,
-			@RequestBody StorageNode node, HttpServletRequest request) throws StorageException {
+	public CompletableFuture<ResponseEntity<StorageNode>> updateBlobWithLocation(@PathVariable String location,
+			@RequestBody StorageNode node, HttpServletRequest request) {
 		logger.info("updateBlobWithLocation");
 		/*
 		 * If node does not exist, throw 404
 		 */
-		if (this.storageConnection().getStorageNode(this.path(location)) == null) {
-			return new ResponseEntity<StorageNode>(HttpStatus.NOT_FOUND);
-		}
-		StorageNode ret = this.storageConnection().updateStorageNode(node, this.path(location));
-		if (ret == null) {
-			return new ResponseEntity<StorageNode>(HttpStatus.NOT_FOUND);
-		}
-		return new ResponseEntity<StorageNode>(ret, HttpStatus.OK);
+		return this.storageConnection().updateStorageNodeIfPresentAsync(node, this.path(location)).thenApply(ret -> {
+			if (ret.getOutcome() != StorageOutcome.UPDATED) {
+				return new ResponseEntity<StorageNode>(HttpStatus.NOT_FOUND);
+			}
+			return new ResponseEntity<StorageNode>(ret.getNode(), HttpStatus.OK);
+		});
 	}
 
 	/*
@@ -182,25 +370,45 @@ public class StorageController {
 	 * existing node, and requires that a node exists with the location given to
 	 * succeed.
 	 * 
-	 * Returns 404 if there is no node with this location already.
+	 * Returns 404 if there is no node with this location already. The DAO
+	 * checks and deletes in a single call.
 	 * 
 	 * @param location
 	 * @param request
 	 * @return
-	 * @throws StorageException
 	 */
 	@RequestMapping(value = "/store/{location}", method = RequestMethod.DELETE)
-	public ResponseEntity<StorageNode> deleteBlobWithLocation(@PathVariable String location, HttpServletRequest request)
-			throws StorageException {
+	public CompletableFuture<ResponseEntity<StorageNode>> deleteBlobWithLocation(@PathVariable String location,
+			HttpServletRequest request) {
 		logger.info("deleteBlobWithLocation");
 		/*
 		 * If node does not exist, throw 404
 		 */
-		if (this.storageConnection().getStorageNode(this.path(location)) == null) {
-			return new ResponseEntity<StorageNode>(HttpStatus.NOT_FOUND);
-		}
-		this.storageConnection().deleteStorageNode(this.path(location));
-		return new ResponseEntity<StorageNode>(HttpStatus.OK);
+		return this.storageConnection().deleteStorageNodeIfPresentAsync(this.path(location)).thenApply(ret -> {
+			if (ret.getOutcome() != StorageOutcome.DELETED) {
+				return new ResponseEntity<StorageNode>(HttpStatus.NOT_FOUND);
+			}
+			return new ResponseEntity<StorageNode>(HttpStatus.OK);
+		});
+	}
+
+	/*
+	 * Statistics
+	 */
+
+	/**
+	 * 
+	 * This method handles GET calls to /stats and returns the runtime
+	 * statistics reported by the storage DAO, such as connection pool usage.
+	 * 
+	 * @param request
+	 * @return
+	 * @throws StorageException
+	 */
+	@RequestMapping(value = "/stats", method = RequestMethod.GET)
+	public ResponseEntity<Map<String, Object>> getStatistics(HttpServletRequest request) throws StorageException {
+		logger.info("getStatistics");
+		return new ResponseEntity<Map<String, Object>>(this.storageConnection().getStorageStatistics(), HttpStatus.OK);
 	}
 
 	/*
@@ -218,6 +426,124 @@ public class StorageController {
 		return Arrays.asList(location);
 	}
 
+	/**
+	 * 
+	 * Codecs listed in the Accept-Encoding header, without the ones refused
+	 * with q=0
+	 * 
+	 * @param request
+	 * @return
+	 */
+	protected Collection<String> encodings(HttpServletRequest request) {
+		Collection<String> ret = new HashSet<String>();
+		Enumeration<String> headers = request.getHeaders(HttpHeaders.ACCEPT_ENCODING);
+		while ((headers != null) && (headers.hasMoreElements())) {
+			for (String coding : headers.nextElement().split(",")) {
+				String[] parameters = coding.split(";");
+				boolean refused = false;
+				for (int i = 1; i < parameters.length; i++) {
+					String parameter = parameters[i].replace(" ", "");
+					refused |= parameter.matches("q=0(\\.0*)?");
+				}
+				if (refused == false) {
+					ret.add(parameters[0].trim().toLowerCase());
+				}
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * 
+	 * Values of a request header, in the order sent
+	 * 
+	 * @param request
+	 * @param name
+	 * @return
+	 */
+	protected Collection<String> headers(HttpServletRequest request, String name) {
+		Collection<String> ret = new ArrayList<String>();
+		Enumeration<String> headers = request.getHeaders(name);
+		while ((headers != null) && (headers.hasMoreElements())) {
+			ret.add(headers.nextElement());
+		}
+		return ret;
+	}
+
+	/**
+	 * 
+	 * Strong ETag of contents with this checksum
+	 * 
+	 * @param checksum
+	 * @return
+	 */
+	protected String etag(String checksum) {
+		return "\"" + checksum + "\"";
+	}
+
+	/**
+	 * 
+	 * Strong ETag of contents with this checksum, sent with this encoding
+	 * 
+	 * @param checksum
+	 * @param encoding
+	 * @return
+	 */
+	protected String etag(String checksum, String encoding) {
+		if ((encoding == null) || (StorageCodecs.IDENTITY.getName().equals(encoding))) {
+			return this.etag(checksum);
+		}
+		return "\"" + checksum + "-" + encoding + "\"";
+	}
+
+	/**
+	 * 
+	 * Find an ETag of contents with this checksum, in any encoding, in the
+	 * If-None-Match header. All encodings decode to the same contents, so
+	 * whichever the client holds is still current.
+	 * 
+	 * @param request
+	 * @param checksum
+	 * @return the matching ETag, as it should be sent with a 304, or null
+	 */
+	protected String matchingETag(HttpServletRequest request, String checksum) {
+		return this.matchingETag(this.headers(request, HttpHeaders.IF_NONE_MATCH), checksum);
+	}
+
+	/**
+	 * 
+	 * Like matchingETag(request, checksum), with the If-None-Match header
+	 * values already read
+	 * 
+	 * @param ifNoneMatch
+	 * @param checksum
+	 * @return
+	 */
+	protected String matchingETag(Collection<String> ifNoneMatch, String checksum) {
+		for (String header : ifNoneMatch) {
+			for (String tag : header.split(",")) {
+				tag = tag.trim();
+				if ("*".equals(tag)) {
+					return this.etag(checksum);
+				}
+				/*
+				 * If-None-Match compares weakly, a W/ prefix is ignored
+				 */
+				if (tag.startsWith("W/")) {
+					tag = tag.substring(2);
+				}
+				if ((tag.length() < 2) || (tag.startsWith("\"") == false) || (tag.endsWith("\"") == false)) {
+					continue;
+				}
+				int dash = tag.indexOf('-');
+				if (checksum.equals(tag.substring(1, (dash < 0) ? tag.length() - 1 : dash))) {
+					return tag;
+				}
+			}
+		}
+		return null;
+	}
+
 	/**
 	 * 
 	 * Convenience method
@@ -0,0 +1,260 @@
+package com.mesosphere.challenge.service.dao;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+import com.mesosphere.challenge.StorageException;
+import com.mesosphere.challenge.model.StorageMetadata;
+import com.mesosphere.challenge.model.StorageNode;
+import com.mesosphere.challenge.model.StorageOutcome;
+import com.mesosphere.challenge.model.StorageResult;
+
+/**
+ * 
+ * @author john
+ *
+ *         This is a DAO implementation class that stores nodes in memory, like
+ *         MemoryStorageDAO, within a budget of bytes. Each node weighs the
+ *         length of its location plus its contents as stored. Once a write
+ *         takes the total over budget, nodes picked by the eviction policy are
+ *         dropped until it fits again. This suits cache style use, where a
+ *         missing node can be written again by the client.
+ *
+ *         Writes and the policy bookkeeping run under one lock, so the policy
+ *         always agrees with the map. Reads never wait for it, a read only
+ *         tells the policy if the lock happens to be free, and is otherwise
+ *         left out of the access order. Under heavy write load the policy
+ *         sees a sample of the reads, which is what it needs anyway.
+ *
+ */
+public class BoundedMemoryStorageDAO extends MemoryStorageDAO {
+
+	protected static final Logger logger = Logger.getLogger(BoundedMemoryStorageDAO.class);
+
+	private final long maxBytes;
+	private final IEvictionPolicy policy;
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/*
+	 * Statistics
+	 */
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong evictedBytes = new AtomicLong();
+	private final AtomicLong droppedAccesses = new AtomicLong();
+
+	/**
+	 * 
+	 * W-TinyLFU eviction
+	 * 
+	 * @param maxBytes
+	 * @throws StorageException
+	 */
+	public BoundedMemoryStorageDAO(long maxBytes) throws StorageException {
+		this(maxBytes, new TinyLfuEvictionPolicy(maxBytes));
+	}
+
+	/**
+	 * 
+	 * @param maxBytes
+	 * @param policy
+	 * @throws StorageException
+	 */
+	public BoundedMemoryStorageDAO(long maxBytes, IEvictionPolicy policy) throws StorageException {
+		if (maxBytes <= 0) {
+			throw new StorageException("Byte budget must be positive");
+		}
+		if (policy == null) {
+			throw new StorageException("Eviction policy is null");
+		}
+		logger.info("BoundedMemoryStorageDAO init with budget " + maxBytes + ", policy " + policy.getName());
+		this.maxBytes = maxBytes;
+		this.policy = policy;
+	}
+
+	protected long weight(MemoryEntry entry) {
+		return entry.metadata.getLocation().length() + entry.metadata.getLength();
+	}
+
+	/**
+	 * 
+	 * Count a read, and tell the policy if nobody is holding it
+	 * 
+	 * @param location
+	 * @param hit
+	 */
+	protected void accessed(String location, boolean hit) {
+		(hit ? this.hits : this.misses).incrementAndGet();
+		if (this.lock.tryLock()) {
+			try {
+				this.policy.recordAccess(location);
+			} finally {
+				this.lock.unlock();
+			}
+		} else {
+			this.droppedAccesses.incrementAndGet();
+		}
+	}
+
+	/**
+	 * 
+	 * Tell the policy about a write and evict until the budget fits, callers
+	 * hold the lock
+	 * 
+	 * @param location
+	 */
+	protected void written(String location) {
+		MemoryEntry entry = this.entry(location);
+		if (entry != null) {
+			this.policy.recordWrite(location, this.weight(entry));
+		}
+		while (this.policy.getWeight() > this.maxBytes) {
+			String victim = this.policy.evict();
+			if (victim == null) {
+				break;
+			}
+			MemoryEntry evicted = this.remove(victim);
+			if (evicted != null) {
+				this.evictions.incrementAndGet();
+				this.evictedBytes.addAndGet(this.weight(evicted));
+			}
+		}
+	}
+
+	@Override
+	public StorageNode getStorageNode(Collection<String> path) throws StorageException {
+		StorageNode node = super.getStorageNode(path);
+		this.accessed(this.path(path), node != null);
+		return node;
+	}
+
+	@Override
+	public StorageMetadata getStorageMetadata(Collection<String> path) throws StorageException {
+		StorageMetadata metadata = super.getStorageMetadata(path);
+		this.accessed(this.path(path), metadata != null);
+		return metadata;
+	}
+
+	@Override
+	public StorageNode createStorageNode(StorageNode node, Collection<String> path) throws StorageException {
+		this.lock.lock();
+		try {
+			StorageNode ret = super.createStorageNode(node, path);
+			this.written(this.path(path));
+			return ret;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	@Override
+	public Collection<StorageResult> createStorageNodes(Collection<StorageNode> nodes) throws StorageException {
+		this.lock.lock();
+		try {
+			Collection<StorageResult> ret = super.createStorageNodes(nodes);
+			for (StorageResult result : ret) {
+				if (result.getOutcome() == StorageOutcome.CREATED) {
+					this.written(result.getLocation());
+				}
+			}
+			return ret;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	@Override
+	public StorageNode updateStorageNode(StorageNode node, Collection<String> path) throws StorageException {
+		this.lock.lock();
+		try {
+			StorageNode ret = super.updateStorageNode(node, path);
+			if (ret != null) {
+				this.written(this.path(path));
+			}
+			return ret;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	@Override
+	public void deleteStorageNode(Collection<String> path) throws StorageException {
+		this.lock.lock();
+		try {
+			super.deleteStorageNode(path);
+			this.policy.recordRemove(this.path(path));
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	@Override
+	public StorageResult createStorageNodeIfAbsent(StorageNode node, Collection<String> path) throws StorageException {
+		this.lock.lock();
+		try {
+			StorageResult ret = super.createStorageNodeIfAbsent(node, path);
+			if (ret.getOutcome() == StorageOutcome.CREATED) {
+				this.written(ret.getLocation());
+			}
+			return ret;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	@Override
+	public StorageResult updateStorageNodeIfPresent(StorageNode node, Collection<String> path) throws StorageException {
+		this.lock.lock();
+		try {
+			StorageResult ret = super.updateStorageNodeIfPresent(node, path);
+			if (ret.getOutcome() == StorageOutcome.UPDATED) {
+				this.written(ret.getLocation());
+			}
+			return ret;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	@Override
+	public StorageResult deleteStorageNodeIfPresent(Collection<String> path) throws StorageException {
+		this.lock.lock();
+		try {
+			StorageResult ret = super.deleteStorageNodeIfPresent(path);
+			if (ret.getOutcome() == StorageOutcome.DELETED) {
+				this.policy.recordRemove(ret.getLocation());
+			}
+			return ret;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	@Override
+	public Map<String, Object> getStorageStatistics() {
+		Map<String, Object> ret = new LinkedHashMap<String, Object>(super.getStorageStatistics());
+		ret.put("bounded.policy", this.policy.getName());
+		ret.put("bounded.maxBytes", this.maxBytes);
+		this.lock.lock();
+		try {
+			ret.put("bounded.weightedBytes", this.policy.getWeight());
+			ret.put("bounded.entries", this.policy.size());
+		} finally {
+			this.lock.unlock();
+		}
+		ret.put("bounded.hits", this.hits.get());
+		ret.put("bounded.misses", this.misses.get());
+		ret.put("bounded.evictions", this.evictions.get());
+		ret.put("bounded.evictedBytes", this.evictedBytes.get());
+		ret.put("bounded.droppedAccesses", this.droppedAccesses.get());
+		return ret;
+	}
+
+}
@@ -0,0 +1,57 @@
+package com.mesosphere.challenge.service.dao;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * 
+ * @author john
+ *
+ *         Contents of a node that is already held in memory as a byte array.
+ *
+ */
+public class ByteArrayStorageContents implements IStorageContents {
+
+	private byte[] contents = null;
+	private int offset = 0;
+	private int length = 0;
+
+	/**
+	 * 
+	 * @param contents
+	 */
+	public ByteArrayStorageContents(byte[] contents) {
+		this.contents = (contents != null) ? contents : new byte[0];
+		this.length = this.contents.length;
+	}
+
+	/**
+	 * 
+	 * Contents that are only part of an array
+	 * 
+	 * @param contents
+	 * @param offset
+	 * @param length
+	 */
+	public ByteArrayStorageContents(byte[] contents, int offset, int length) {
+		this.contents = contents;
+		this.offset = offset;
+		this.length = length;
+	}
+
+	@Override
+	public long getLength() {
+		return this.length;
+	}
+
+	@Override
+	public void transferTo(OutputStream out) throws IOException {
+		out.write(this.contents, this.offset, this.length);
+	}
+
+	@Override
+	public void close() {
+		// Nothing to release
+	}
+
+}
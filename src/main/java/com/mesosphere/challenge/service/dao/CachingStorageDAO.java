@@ -0,0 +1,368 @@
+package com.mesosphere.challenge.service.dao;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+import com.mesosphere.challenge.StorageException;
+import com.mesosphere.challenge.model.StorageMetadata;
+import com.mesosphere.challenge.model.StorageNode;
+
+/**
+ * 
+ * @author john
+ *
+ *         This is a read-through cache in front of any other DAO. Nodes and
+ *         metadata read from the wrapped DAO are kept in memory within a
+ *         budget of bytes, and served from there until they are written,
+ *         evicted or, with a ttl, expire. Each entry weighs the length of its
+ *         location plus its contents, plus a fixed amount for metadata. The
+ *         eviction policy picks what to drop once the budget is exceeded, as
+ *         in BoundedMemoryStorageDAO.
+ *
+ *         Writes go to the wrapped DAO first and then invalidate the location
+ *         in the cache. A read that missed could still put back what it read
+ *         before the write finished, so every write also bumps a version on
+ *         the stripe of its location, and a read only fills the cache if the
+ *         version it saw before reading the wrapped DAO is still the same.
+ *         Once a write has returned, no read can see the node it replaced.
+ *
+ *         Listings and streamed contents of nodes not in the cache are not
+ *         cached, they go straight to the wrapped DAO.
+ *
+ */
+public class CachingStorageDAO extends ForwardingStorageDAO {
+
+	protected static final Logger logger = Logger.getLogger(CachingStorageDAO.class);
+
+	/*
+	 * Rough weight of cached metadata, location aside
+	 */
+	protected static final long METADATA_WEIGHT = 128;
+
+	/*
+	 * A cached node, its metadata or both, never changed once cached
+	 */
+	protected static class CacheEntry {
+		final StorageNode node;
+		final StorageMetadata metadata;
+		final long expires;
+
+		protected CacheEntry(StorageNode node, StorageMetadata metadata, long expires) {
+			this.node = node;
+			this.metadata = metadata;
+			this.expires = expires;
+		}
+	}
+
+	private final ConcurrentHashMap<String, CacheEntry> entries = new ConcurrentHashMap<String, CacheEntry>();
+
+	private final long maxBytes;
+	private final long ttl;
+	private final IEvictionPolicy policy;
+
+	/*
+	 * Fills, invalidations and the policy bookkeeping run under this lock
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/*
+	 * Write counts per stripe, read before a load and checked before its fill
+	 */
+	private final AtomicLongArray versions = new AtomicLongArray(STRIPES);
+
+	/*
+	 * Statistics
+	 */
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong expired = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong invalidations = new AtomicLong();
+	private final AtomicLong rejectedLoads = new AtomicLong();
+
+	/**
+	 * 
+	 * W-TinyLFU eviction, no expiry
+	 * 
+	 * @param delegate
+	 * @param maxBytes
+	 * @throws StorageException
+	 */
+	public CachingStorageDAO(IStorageDAO delegate, long maxBytes) throws StorageException {
+		this(delegate, maxBytes, 0, new TinyLfuEvictionPolicy(maxBytes));
+	}
+
+	/**
+	 * 
+	 * @param delegate
+	 * @param maxBytes
+	 * @param ttl
+	 *            milliseconds an entry is served for, zero or less for ever
+	 * @param policy
+	 * @throws StorageException
+	 */
+	public CachingStorageDAO(IStorageDAO delegate, long maxBytes, long ttl, IEvictionPolicy policy)
+			throws StorageException {
+		super(delegate);
+		if (maxBytes <= 0) {
+			throw new StorageException("Byte budget must be positive");
+		}
+		if (policy == null) {
+			throw new StorageException("Eviction policy is null");
+		}
+		logger.info("CachingStorageDAO init with budget " + maxBytes + ", ttl " + ttl + ", policy "
+				+ policy.getName());
+		this.maxBytes = maxBytes;
+		this.ttl = ttl;
+		this.policy = policy;
+	}
+
+	protected long weight(String location, StorageNode node, StorageMetadata metadata) {
+		long ret = location.length();
+		if (node != null) {
+			ret += StorageChecksums.bytes(node).length;
+		}
+		if (metadata != null) {
+			ret += METADATA_WEIGHT;
+		}
+		return ret;
+	}
+
+	/**
+	 * 
+	 * Find the live entry of a location, dropping it if it expired, and tell
+	 * the policy if nobody is holding it
+	 * 
+	 * @param location
+	 * @return the entry, or null
+	 */
+	protected CacheEntry lookup(String location) {
+		CacheEntry entry = this.entries.get(location);
+		if (entry == null) {
+			return null;
+		}
+		if ((this.ttl > 0) && (entry.expires <= System.currentTimeMillis())) {
+			this.lock.lock();
+			try {
+				if (this.entries.remove(location, entry)) {
+					this.policy.recordRemove(location);
+					this.expired.incrementAndGet();
+				}
+			} finally {
+				this.lock.unlock();
+			}
+			return null;
+		}
+		if (this.lock.tryLock()) {
+			try {
+				this.policy.recordAccess(location);
+			} finally {
+				this.lock.unlock();
+			}
+		}
+		return entry;
+	}
+
+	/**
+	 * 
+	 * Cache what was loaded from the wrapped DAO, unless a write of the same
+	 * stripe happened since the load started. A node or metadata already
+	 * cached for the location is kept alongside.
+	 * 
+	 * @param location
+	 * @param version
+	 *            the stripe version read before the load
+	 * @param node
+	 * @param metadata
+	 */
+	protected void fill(String location, long version, StorageNode node, StorageMetadata metadata) {
+		int stripe = this.stripe(location);
+		this.lock.lock();
+		try {
+			if (this.versions.get(stripe) != version) {
+				this.rejectedLoads.incrementAndGet();
+				return;
+			}
+			long now = System.currentTimeMillis();
+			CacheEntry cached = this.entries.get(location);
+			if ((cached != null) && ((this.ttl <= 0) || (cached.expires > now))) {
+				node = (node != null) ? node : cached.node;
+				metadata = (metadata != null) ? metadata : cached.metadata;
+			}
+			long weight = this.weight(location, node, metadata);
+			long expires = (this.ttl > 0) ? now + this.ttl : Long.MAX_VALUE;
+			this.entries.put(location, new CacheEntry(node, metadata, expires));
+			this.policy.recordWrite(location, weight);
+			while (this.policy.getWeight() > this.maxBytes) {
+				String victim = this.policy.evict();
+				if (victim == null) {
+					break;
+				}
+				if (this.entries.remove(victim) != null) {
+					this.evictions.incrementAndGet();
+				}
+			}
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * 
+	 * Drop a location after it was written, and fail loads of its stripe
+	 * that started before
+	 * 
+	 * @param location
+	 */
+	protected void invalidate(String location) {
+		this.lock.lock();
+		try {
+			this.versions.incrementAndGet(this.stripe(location));
+			if (this.entries.remove(location) != null) {
+				this.policy.recordRemove(location);
+				this.invalidations.incrementAndGet();
+			}
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	@Override
+	public StorageNode getStorageNode(Collection<String> path) throws StorageException {
+		String location = this.path(path);
+		CacheEntry entry = this.lookup(location);
+		if ((entry != null) && (entry.node != null)) {
+			this.hits.incrementAndGet();
+			return entry.node;
+		}
+		this.misses.incrementAndGet();
+		long version = this.versions.get(this.stripe(location));
+		StorageNode node = super.getStorageNode(path);
+		if (node != null) {
+			this.fill(location, version, node, null);
+		}
+		return node;
+	}
+
+	@Override
+	public StorageMetadata getStorageMetadata(Collection<String> path) throws StorageException {
+		String location = this.path(path);
+		CacheEntry entry = this.lookup(location);
+		if ((entry != null) && (entry.metadata != null)) {
+			this.hits.incrementAndGet();
+			return entry.metadata;
+		}
+		this.misses.incrementAndGet();
+		long version = this.versions.get(this.stripe(location));
+		StorageMetadata metadata = super.getStorageMetadata(path);
+		if (metadata != null) {
+			this.fill(location, version, null, metadata);
+		}
+		return metadata;
+	}
+
+	@Override
+	public CompletableFuture<StorageNode> getStorageNodeAsync(Collection<String> path) {
+		String location = null;
+		try {
+			location = this.path(path);
+		} catch (StorageException e) {
+			return StorageFutures.failed(e);
+		}
+		CacheEntry entry = this.lookup(location);
+		if ((entry != null) && (entry.node != null)) {
+			this.hits.incrementAndGet();
+			return CompletableFuture.completedFuture(entry.node);
+		}
+		this.misses.incrementAndGet();
+		String loaded = location;
+		long version = this.versions.get(this.stripe(location));
+		return super.getStorageNodeAsync(path).thenApply(node -> {
+			if (node != null) {
+				this.fill(loaded, version, node, null);
+			}
+			return node;
+		});
+	}
+
+	@Override
+	public CompletableFuture<StorageMetadata> getStorageMetadataAsync(Collection<String> path) {
+		String location = null;
+		try {
+			location = this.path(path);
+		} catch (StorageException e) {
+			return StorageFutures.failed(e);
+		}
+		CacheEntry entry = this.lookup(location);
+		if ((entry != null) && (entry.metadata != null)) {
+			this.hits.incrementAndGet();
+			return CompletableFuture.completedFuture(entry.metadata);
+		}
+		this.misses.incrementAndGet();
+		String loaded = location;
+		long version = this.versions.get(this.stripe(location));
+		return super.getStorageMetadataAsync(path).thenApply(metadata -> {
+			if (metadata != null) {
+				this.fill(loaded, version, null, metadata);
+			}
+			return metadata;
+		});
+	}
+
+	@Override
+	public IStorageContents getStorageContents(Collection<String> path) throws StorageException {
+		CacheEntry entry = this.lookup(this.path(path));
+		if ((entry != null) && (entry.node != null)) {
+			this.hits.incrementAndGet();
+			return new ByteArrayStorageContents(StorageChecksums.bytes(entry.node));
+		}
+		return super.getStorageContents(path);
+	}
+
+	@Override
+	public IStorageContents getStorageContents(Collection<String> path, Collection<String> encodings)
+			throws StorageException {
+		CacheEntry entry = this.lookup(this.path(path));
+		if ((entry != null) && (entry.node != null)) {
+			this.hits.incrementAndGet();
+			return new ByteArrayStorageContents(StorageChecksums.bytes(entry.node));
+		}
+		return super.getStorageContents(path, encodings);
+	}
+
+	@Override
+	protected void written(String location, boolean stored) {
+		this.invalidate(location);
+	}
+
+	@Override
+	public Map<String, Object> getStorageStatistics() {
+		Map<String, Object> ret = new LinkedHashMap<String, Object>(super.getStorageStatistics());
+		ret.put("cache.policy", this.policy.getName());
+		ret.put("cache.maxBytes", this.maxBytes);
+		ret.put("cache.ttl", this.ttl);
+		this.lock.lock();
+		try {
+			ret.put("cache.weightedBytes", this.policy.getWeight());
+			ret.put("cache.entries", this.policy.size());
+		} finally {
+			this.lock.unlock();
+		}
+		ret.put("cache.hits", this.hits.get());
+		ret.put("cache.misses", this.misses.get());
+		ret.put("cache.expired", this.expired.get());
+		ret.put("cache.evictions", this.evictions.get());
+		ret.put("cache.invalidations", this.invalidations.get());
+		ret.put("cache.rejectedLoads", this.rejectedLoads.get());
+		return ret;
+	}
+
+}
@@ -0,0 +1,225 @@
+package com.mesosphere.challenge.service.dao;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import org.apache.log4j.Logger;
+
+import com.mesosphere.challenge.StorageException;
+import com.mesosphere.challenge.model.StorageMetadata;
+import com.mesosphere.challenge.model.StorageNode;
+
+/**
+ * 
+ * @author john
+ *
+ *         This is a DAO that folds concurrent reads of the same location into
+ *         one call to the wrapped DAO. The first reader of a location makes
+ *         the call, readers arriving while it runs wait for it and get the
+ *         same node or metadata. Nothing is kept once the call returns.
+ *         Asynchronous reads join the same calls without waiting for them.
+ *
+ *         A write drops the calls in flight for its location once the wrapped
+ *         DAO has it, so a read that starts after a write returned never
+ *         joins a call that started before it. Readers already waiting still
+ *         get the result of their call, which is as old as their read.
+ *
+ *         Contents are streams that can only be read once, they are not
+ *         shared.
+ *
+ */
+public class CoalescingStorageDAO extends ForwardingStorageDAO {
+
+	protected static final Logger logger = Logger.getLogger(CoalescingStorageDAO.class);
+
+	/**
+	 * 
+	 * A read of the wrapped DAO
+	 * 
+	 * @param <T>
+	 */
+	public interface Read<T> {
+		T apply() throws StorageException;
+	}
+
+	/*
+	 * Calls in flight, by location
+	 */
+	private final ConcurrentHashMap<String, CompletableFuture<StorageNode>> nodes =
+			new ConcurrentHashMap<String, CompletableFuture<StorageNode>>();
+	private final ConcurrentHashMap<String, CompletableFuture<StorageMetadata>> metadata =
+			new ConcurrentHashMap<String, CompletableFuture<StorageMetadata>>();
+
+	/*
+	 * Statistics
+	 */
+	private final AtomicLong calls = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+	private final AtomicLong invalidations = new AtomicLong();
+
+	/**
+	 * 
+	 * @param delegate
+	 * @throws StorageException
+	 */
+	public CoalescingStorageDAO(IStorageDAO delegate) throws StorageException {
+		super(delegate);
+		logger.info("CoalescingStorageDAO init");
+	}
+
+	/**
+	 * 
+	 * Join the call in flight for a location, or make it
+	 * 
+	 * @param flights
+	 * @param location
+	 * @param read
+	 * @return
+	 * @throws StorageException
+	 */
+	protected <T> T coalesce(ConcurrentHashMap<String, CompletableFuture<T>> flights, String location, Read<T> read)
+			throws StorageException {
+		CompletableFuture<T> flight = flights.get(location);
+		if (flight == null) {
+			CompletableFuture<T> mine = new CompletableFuture<T>();
+			flight = flights.putIfAbsent(location, mine);
+			if (flight == null) {
+				this.calls.incrementAndGet();
+				try {
+					T ret = read.apply();
+					mine.complete(ret);
+					return ret;
+				} catch (Throwable e) {
+					/*
+					 * Errors too, or the callers waiting on this read never
+					 * wake up
+					 */
+					mine.completeExceptionally(e);
+					throw e;
+				} finally {
+					flights.remove(location, mine);
+				}
+			}
+		}
+
+		this.coalesced.incrementAndGet();
+		try {
+			return flight.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new StorageException("Interrupted while waiting for a read of " + location, e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof StorageException) {
+				throw (StorageException) e.getCause();
+			} else if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new StorageException("Read of " + location + " failed", e.getCause());
+		}
+	}
+
+	/**
+	 * 
+	 * Join the call in flight for a location, or make it, without waiting.
+	 * The call in flight may be a blocking one and the other way round.
+	 * Callers joining get a future of their own, so the one in flight can
+	 * not be completed or cancelled by them.
+	 * 
+	 * @param flights
+	 * @param location
+	 * @param read
+	 * @return
+	 */
+	protected <T> CompletableFuture<T> coalesceAsync(ConcurrentHashMap<String, CompletableFuture<T>> flights,
+			String location, Supplier<CompletableFuture<T>> read) {
+		CompletableFuture<T> flight = flights.get(location);
+		if (flight == null) {
+			CompletableFuture<T> mine = new CompletableFuture<T>();
+			flight = flights.putIfAbsent(location, mine);
+			if (flight == null) {
+				this.calls.incrementAndGet();
+				CompletableFuture<T> call = null;
+				try {
+					call = read.get();
+				} catch (Throwable e) {
+					call = StorageFutures.failed(e);
+				}
+				return call.whenComplete((value, failure) -> {
+					if (failure == null) {
+						mine.complete(value);
+					} else {
+						mine.completeExceptionally(StorageFutures.cause(failure));
+					}
+					flights.remove(location, mine);
+				});
+			}
+		}
+
+		this.coalesced.incrementAndGet();
+		return flight.thenApply(value -> value);
+	}
+
+	/**
+	 * 
+	 * Drop the calls in flight for a location after it was written
+	 * 
+	 * @param location
+	 */
+	protected void invalidate(String location) {
+		boolean dropped = this.nodes.remove(location) != null;
+		dropped |= this.metadata.remove(location) != null;
+		if (dropped) {
+			this.invalidations.incrementAndGet();
+		}
+	}
+
+	@Override
+	public StorageNode getStorageNode(Collection<String> path) throws StorageException {
+		return this.coalesce(this.nodes, this.path(path), () -> super.getStorageNode(path));
+	}
+
+	@Override
+	public StorageMetadata getStorageMetadata(Collection<String> path) throws StorageException {
+		return this.coalesce(this.metadata, this.path(path), () -> super.getStorageMetadata(path));
+	}
+
+	@Override
+	public CompletableFuture<StorageNode> getStorageNodeAsync(Collection<String> path) {
+		try {
+			return this.coalesceAsync(this.nodes, this.path(path), () -> super.getStorageNodeAsync(path));
+		} catch (StorageException e) {
+			return StorageFutures.failed(e);
+		}
+	}
+
+	@Override
+	public CompletableFuture<StorageMetadata> getStorageMetadataAsync(Collection<String> path) {
+		try {
+			return this.coalesceAsync(this.metadata, this.path(path), () -> super.getStorageMetadataAsync(path));
+		} catch (StorageException e) {
+			return StorageFutures.failed(e);
+		}
+	}
+
+	@Override
+	protected void written(String location, boolean stored) {
+		this.invalidate(location);
+	}
+
+	@Override
+	public Map<String, Object> getStorageStatistics() {
+		Map<String, Object> ret = new LinkedHashMap<String, Object>(super.getStorageStatistics());
+		ret.put("coalescing.calls", this.calls.get());
+		ret.put("coalescing.coalesced", this.coalesced.get());
+		ret.put("coalescing.invalidations", this.invalidations.get());
+		ret.put("coalescing.inFlight", this.nodes.size() + this.metadata.size());
+		return ret;
+	}
+
+}
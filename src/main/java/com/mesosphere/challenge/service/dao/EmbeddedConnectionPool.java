@@ -0,0 +1,310 @@
+package com.mesosphere.challenge.service.dao;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+import org.apache.log4j.Logger;
+
+import com.mesosphere.challenge.StorageException;
+
+/**
+ * 
+ * @author john
+ *
+ *         This is a small JDBC connection pool used by the EmbeddedStorageDAO.
+ *         Each DAO call borrows its own connection, so concurrent request
+ *         threads no longer serialize on a single H2 session.
+ *
+ *         A connection borrowed by a thread is reused if the same thread asks
+ *         for a connection again before releasing it, so nested DAO calls
+ *         share a session (and a transaction).
+ *
+ *         The number of open connections is bounded by maxSize. If all
+ *         connections are busy, acquire() waits up to acquireTimeout
+ *         milliseconds before giving up with a StorageException.
+ *
+ */
+public class EmbeddedConnectionPool {
+
+	protected static final Logger logger = Logger.getLogger(EmbeddedConnectionPool.class);
+
+	public static final int DEFAULT_MIN_SIZE = 1;
+	public static final int DEFAULT_MAX_SIZE = 16;
+	public static final long DEFAULT_ACQUIRE_TIMEOUT = 5000;
+
+	/*
+	 * Connection currently held by a thread, and how many times that thread
+	 * has acquired it without releasing it.
+	 */
+	private static class Lease {
+		Connection connection = null;
+		int depth = 0;
+	}
+
+	private DataSource dataSource = null;
+	private int minSize = DEFAULT_MIN_SIZE;
+	private int maxSize = DEFAULT_MAX_SIZE;
+	private long acquireTimeout = DEFAULT_ACQUIRE_TIMEOUT;
+	private boolean validate = true;
+
+	/*
+	 * Idle connections, most recently used first so that hot connections stay
+	 * hot. The semaphore holds one permit per connection we may still hand out.
+	 */
+	private final ConcurrentLinkedDeque<Connection> idle = new ConcurrentLinkedDeque<Connection>();
+	private Semaphore permits = null;
+	private final ThreadLocal<Lease> leases = new ThreadLocal<Lease>();
+
+	private volatile boolean closed = false;
+
+	/*
+	 * Statistics
+	 */
+	private final AtomicInteger open = new AtomicInteger();
+	private final AtomicInteger active = new AtomicInteger();
+	private final AtomicLong acquired = new AtomicLong();
+	private final AtomicLong saturated = new AtomicLong();
+	private final AtomicLong timeouts = new AtomicLong();
+	private final AtomicLong invalidated = new AtomicLong();
+	private final AtomicLong waitTime = new AtomicLong();
+	private final AtomicLong maxWaitTime = new AtomicLong();
+
+	/**
+	 * 
+	 * @param dataSource
+	 * @param minSize
+	 * @param maxSize
+	 * @param acquireTimeout
+	 * @param validate
+	 * @throws StorageException
+	 */
+	public EmbeddedConnectionPool(DataSource dataSource, int minSize, int maxSize, long acquireTimeout,
+			boolean validate) throws StorageException {
+		if (dataSource == null) {
+			throw new StorageException("Data source is null");
+		}
+		if ((maxSize < 1) || (minSize < 0) || (minSize > maxSize)) {
+			throw new StorageException("Invalid pool size, min: " + minSize + ", max: " + maxSize);
+		}
+		this.dataSource = dataSource;
+		this.minSize = minSize;
+		this.maxSize = maxSize;
+		this.acquireTimeout = acquireTimeout;
+		this.validate = validate;
+		this.permits = new Semaphore(maxSize, true);
+		this.init();
+	}
+
+	/**
+	 * 
+	 * Open the minimum number of connections up front.
+	 * 
+	 * @throws StorageException
+	 */
+	protected void init() throws StorageException {
+		logger.info("EmbeddedConnectionPool init with min: " + this.minSize + ", max: " + this.maxSize + ", timeout: "
+				+ this.acquireTimeout);
+		try {
+			for (int i = 0; i < this.minSize; i++) {
+				this.idle.push(this.open());
+			}
+		} catch (SQLException e) {
+			this.close();
+			throw new StorageException("EmbeddedConnectionPool failed to initialize", e);
+		}
+	}
+
+	/**
+	 * 
+	 * Borrow a connection. The caller must hand it back with release(), in a
+	 * finally block.
+	 * 
+	 * @return
+	 * @throws StorageException
+	 */
+	public Connection acquire() throws StorageException {
+		if (this.closed) {
+			throw new StorageException("Embedded DB connection pool is closed");
+		}
+
+		/*
+		 * Reuse the connection this thread already holds
+		 */
+		Lease lease = this.leases.get();
+		if (lease != null) {
+			lease.depth++;
+			return lease.connection;
+		}
+
+		long start = System.nanoTime();
+		try {
+			if (this.permits.tryAcquire() == false) {
+				this.saturated.incrementAndGet();
+				if (this.permits.tryAcquire(this.acquireTimeout, TimeUnit.MILLISECONDS) == false) {
+					this.timeouts.incrementAndGet();
+					throw new StorageException("Timed out after " + this.acquireTimeout
+							+ " ms waiting for an embedded DB connection, pool size is " + this.maxSize);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new StorageException("Interrupted while waiting for an embedded DB connection", e);
+		}
+		long waited = System.nanoTime() - start;
+		this.waitTime.addAndGet(waited);
+		this.maxWaitTime.accumulateAndGet(waited, Math::max);
+
+		Connection connection = null;
+		try {
+			connection = this.borrow();
+		} catch (SQLException e) {
+			this.permits.release();
+			throw new StorageException("Failed to open embedded DB connection", e);
+		}
+
+		lease = new Lease();
+		lease.connection = connection;
+		lease.depth = 1;
+		this.leases.set(lease);
+		this.active.incrementAndGet();
+		this.acquired.incrementAndGet();
+		return connection;
+	}
+
+	/**
+	 * 
+	 * Hand a connection back to the pool. Any transaction left open by the
+	 * caller is rolled back.
+	 * 
+	 * @param connection
+	 */
+	public void release(Connection connection) {
+		if (connection == null) {
+			return;
+		}
+		Lease lease = this.leases.get();
+		if ((lease == null) || (lease.connection != connection)) {
+			logger.warn("Releasing a connection not held by this thread");
+			return;
+		}
+		if (--lease.depth > 0) {
+			return;
+		}
+		this.leases.remove();
+		this.active.decrementAndGet();
+
+		try {
+			if (connection.isClosed() == false) {
+				if (connection.getAutoCommit() == false) {
+					connection.rollback();
+					connection.setAutoCommit(true);
+				}
+				if (this.closed == false) {
+					this.idle.push(connection);
+					connection = null;
+				}
+			}
+		} catch (SQLException e) {
+			logger.warn("Discarding broken embedded DB connection", e);
+		} finally {
+			if (connection != null) {
+				this.discard(connection);
+			}
+			this.permits.release();
+		}
+	}
+
+	/**
+	 * 
+	 * Close all idle connections. Connections still in use are closed when
+	 * they are released.
+	 * 
+	 */
+	public void close() {
+		this.closed = true;
+		Connection connection = null;
+		while ((connection = this.idle.poll()) != null) {
+			this.discard(connection);
+		}
+	}
+
+	/**
+	 * 
+	 * Pool statistics, used to observe wait time and saturation.
+	 * 
+	 * @return
+	 */
+	public Map<String, Object> getStatistics() {
+		Map<String, Object> ret = new LinkedHashMap<String, Object>();
+		long acquired = this.acquired.get();
+		ret.put("pool.minSize", this.minSize);
+		ret.put("pool.maxSize", this.maxSize);
+		ret.put("pool.open", this.open.get());
+		ret.put("pool.active", this.active.get());
+		ret.put("pool.idle", this.idle.size());
+		ret.put("pool.waiting", this.permits.getQueueLength());
+		ret.put("pool.acquired", acquired);
+		ret.put("pool.saturated", this.saturated.get());
+		ret.put("pool.timeouts", this.timeouts.get());
+		ret.put("pool.invalidated", this.invalidated.get());
+		ret.put("pool.waitTimeMillis", TimeUnit.NANOSECONDS.toMillis(this.waitTime.get()));
+		ret.put("pool.averageWaitMicros",
+				acquired == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(this.waitTime.get() / acquired));
+		ret.put("pool.maxWaitMillis", TimeUnit.NANOSECONDS.toMillis(this.maxWaitTime.get()));
+		return ret;
+	}
+
+	public int getActive() {
+		return this.active.get();
+	}
+
+	public int getMaxSize() {
+		return this.maxSize;
+	}
+
+	/**
+	 * 
+	 * Take an idle connection, validating it if configured to, or open a new
+	 * one. Must only be called while holding a permit.
+	 * 
+	 * @return
+	 * @throws SQLException
+	 */
+	protected Connection borrow() throws SQLException {
+		Connection connection = null;
+		while ((connection = this.idle.poll()) != null) {
+			if ((this.validate == false) || (connection.isValid(1))) {
+				return connection;
+			}
+			this.invalidated.incrementAndGet();
+			this.discard(connection);
+		}
+		return this.open();
+	}
+
+	protected Connection open() throws SQLException {
+		Connection connection = this.dataSource.getConnection();
+		this.open.incrementAndGet();
+		return connection;
+	}
+
+	protected void discard(Connection connection) {
+		try {
+			connection.close();
+		} catch (SQLException e) {
+			logger.warn("Failed to close embedded DB connection", e);
+		} finally {
+			this.open.decrementAndGet();
+		}
+	}
+
+}
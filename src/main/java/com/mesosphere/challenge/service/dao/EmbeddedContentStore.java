@@ -0,0 +1,291 @@
+package com.mesosphere.challenge.service.dao;
+
+import java.io.ByteArrayInputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.log4j.Logger;
+
+import com.mesosphere.challenge.StorageException;
+
+/**
+ * 
+ * @author john
+ *
+ *         This class manages the content addressed STORAGE_CONTENT table of
+ *         the EmbeddedStorageDAO. Contents are stored once per SHA-256
+ *         checksum, and STORAGE_NODE rows point at them by checksum. Every
+ *         content row counts the nodes that point at it, so writing contents
+ *         that are already stored costs an increment instead of a second copy.
+ *
+ *         Contents no longer referenced by any node are deleted by a background
+ *         collector. Writers hold the shared side of a lock for the length of
+ *         their transaction and the collector takes the exclusive side, so a
+ *         content row can never be collected between a writer finding it and
+ *         that writer's reference being committed.
+ *
+ */
+public class EmbeddedContentStore {
+
+	protected static final Logger logger = Logger.getLogger(EmbeddedContentStore.class);
+
+	public static final long DEFAULT_COLLECT_INTERVAL = 60000;
+
+	/*
+	 * The collector gives up on a run rather than wait longer than this for
+	 * writers to get out of the way
+	 */
+	protected static final long COLLECT_LOCK_TIMEOUT = 1000;
+	protected static final long COLLECT_LOCK_POLL = 5;
+
+	private EmbeddedConnectionPool pool = null;
+
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private volatile StorageCompression compression = new StorageCompression();
+
+	private ScheduledExecutorService collector = null;
+	private ScheduledFuture<?> scheduled = null;
+
+	/*
+	 * Statistics
+	 */
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong collections = new AtomicLong();
+	private final AtomicLong collected = new AtomicLong();
+
+	/**
+	 * 
+	 * @param pool
+	 * @throws StorageException
+	 */
+	public EmbeddedContentStore(EmbeddedConnectionPool pool) throws StorageException {
+		if (pool == null) {
+			throw new StorageException("Pool is null");
+		}
+		this.pool = pool;
+	}
+
+	/**
+	 * 
+	 * @return how new contents are encoded
+	 */
+	public StorageCompression getCompression() {
+		return this.compression;
+	}
+
+	/**
+	 * 
+	 * @param compression
+	 */
+	public void setCompression(StorageCompression compression) {
+		this.compression = compression;
+	}
+
+	/**
+	 * 
+	 * The lock writers hold while they change references. Lock it before the
+	 * transaction starts and unlock it after it has been committed or rolled
+	 * back.
+	 * 
+	 * @return
+	 */
+	public Lock writers() {
+		return this.lock.readLock();
+	}
+
+	/**
+	 * 
+	 * Apply reference count changes, keyed by checksum. A positive change for
+	 * a checksum that is not stored yet inserts its contents, which must then
+	 * be in the contents map. They are encoded on insert, so contents that are
+	 * already stored are never encoded again. Rows are touched in checksum
+	 * order, so that two writers never wait on each other in opposite order.
+	 * 
+	 * Must be called by a writer, on the writer's own transaction.
+	 * 
+	 * @param connection
+	 * @param deltas
+	 * @param contents
+	 * @throws SQLException
+	 * @throws StorageException
+	 */
+	public void reference(Connection connection, SortedMap<String, Integer> deltas, Map<String, byte[]> contents)
+			throws SQLException, StorageException {
+		String update = "UPDATE STORAGE_CONTENT SET REFS = REFS + ? WHERE CHECKSUM = ?;";
+		String insert = "INSERT INTO STORAGE_CONTENT (CHECKSUM, CONTENTS, CODEC, REFS) VALUES ( ?, ?, ?, ? );";
+		try (PreparedStatement updateStatement = connection.prepareStatement(update);
+				PreparedStatement insertStatement = connection.prepareStatement(insert)) {
+			for (Map.Entry<String, Integer> delta : deltas.entrySet()) {
+				if (delta.getValue() == 0) {
+					continue;
+				}
+				updateStatement.setInt(1, delta.getValue());
+				updateStatement.setString(2, delta.getKey());
+				if (updateStatement.executeUpdate() > 0) {
+					if (delta.getValue() > 0) {
+						this.hits.addAndGet(delta.getValue());
+					}
+					continue;
+				}
+				if (delta.getValue() < 0) {
+					throw new StorageException("Content " + delta.getKey() + " is referenced but not stored");
+				}
+				byte[] bytes = contents.get(delta.getKey());
+				if (bytes == null) {
+					throw new StorageException("Content " + delta.getKey() + " is not stored and was not given");
+				}
+				StorageCompression.Encoded encoded = this.compression.encode(bytes);
+				insertStatement.setString(1, delta.getKey());
+				insertStatement.setBinaryStream(2, new ByteArrayInputStream(encoded.getBytes()));
+				insertStatement.setString(3, encoded.getCodec().getName());
+				insertStatement.setInt(4, delta.getValue());
+				insertStatement.executeUpdate();
+				this.misses.incrementAndGet();
+				this.hits.addAndGet(delta.getValue() - 1);
+			}
+		}
+	}
+
+	/**
+	 * 
+	 * Run the collector every interval milliseconds, replacing any earlier
+	 * schedule. An interval of zero or less stops it.
+	 * 
+	 * @param interval
+	 */
+	public synchronized void schedule(long interval) {
+		if (this.scheduled != null) {
+			this.scheduled.cancel(false);
+			this.scheduled = null;
+		}
+		if (interval <= 0) {
+			return;
+		}
+		if (this.collector == null) {
+			this.collector = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "embedded-content-collector");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		this.scheduled = this.collector.scheduleWithFixedDelay(() -> {
+			try {
+				this.collect();
+			} catch (StorageException | RuntimeException e) {
+				logger.warn("Content collection failed", e);
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+		logger.info("EmbeddedContentStore collecting every " + interval + " ms");
+	}
+
+	/**
+	 * 
+	 * Delete all contents no node points at any more.
+	 * 
+	 * @return the number of contents deleted, or -1 if writers kept the
+	 *         collector out
+	 * @throws StorageException
+	 */
+	public int collect() throws StorageException {
+		/*
+		 * Poll with tryLock() rather than queue for the lock, a queued
+		 * exclusive waiter would hold up new writers until it gets in
+		 */
+		Lock exclusive = this.lock.writeLock();
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(COLLECT_LOCK_TIMEOUT);
+		while (exclusive.tryLock() == false) {
+			if (System.nanoTime() > deadline) {
+				logger.info("Content collection skipped, writers busy");
+				return -1;
+			}
+			try {
+				Thread.sleep(COLLECT_LOCK_POLL);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return -1;
+			}
+		}
+		try {
+			Connection connection = this.pool.acquire();
+			try (Statement s = connection.createStatement()) {
+				int count = s.executeUpdate("DELETE FROM STORAGE_CONTENT WHERE REFS <= 0;");
+				this.collections.incrementAndGet();
+				this.collected.addAndGet(count);
+				if (count > 0) {
+					logger.info("Collected " + count + " unreferenced contents");
+				}
+				return count;
+			} catch (SQLException e) {
+				throw new StorageException("Embedded DB content collection failed", e);
+			} finally {
+				this.pool.release(connection);
+			}
+		} finally {
+			exclusive.unlock();
+		}
+	}
+
+	/**
+	 * 
+	 * Stop the collector
+	 * 
+	 */
+	public synchronized void close() {
+		if (this.collector != null) {
+			this.collector.shutdownNow();
+			this.collector = null;
+			this.scheduled = null;
+		}
+	}
+
+	/**
+	 * 
+	 * Deduplication statistics. Stored bytes against logical bytes shows what
+	 * deduplication saves.
+	 * 
+	 * @return
+	 */
+	public Map<String, Object> getStatistics() {
+		Map<String, Object> ret = new LinkedHashMap<String, Object>();
+		ret.put("dedup.hits", this.hits.get());
+		ret.put("dedup.misses", this.misses.get());
+		ret.put("dedup.collections", this.collections.get());
+		ret.put("dedup.collected", this.collected.get());
+		Connection connection = null;
+		try {
+			connection = this.pool.acquire();
+			try (Statement s = connection.createStatement()) {
+				ResultSet result = s.executeQuery("SELECT COUNT(*), COALESCE(SUM(REFS), 0), "
+						+ "COALESCE(SUM(LENGTH(CONTENTS)), 0) FROM STORAGE_CONTENT;");
+				result.next();
+				ret.put("dedup.contents", result.getLong(1));
+				ret.put("dedup.references", result.getLong(2));
+				ret.put("dedup.storedBytes", result.getLong(3));
+				result = s.executeQuery("SELECT COALESCE(SUM(CONTENT_LENGTH), 0) FROM STORAGE_NODE;");
+				result.next();
+				ret.put("dedup.logicalBytes", result.getLong(1));
+			}
+		} catch (StorageException | SQLException e) {
+			logger.warn("Failed to read deduplication statistics", e);
+		} finally {
+			this.pool.release(connection);
+		}
+		return ret;
+	}
+
+}
@@ -0,0 +1,312 @@
+package com.mesosphere.challenge.service.dao;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.mesosphere.challenge.StorageException;
+
+/**
+ * 
+ * @author john
+ *
+ *         This class implements group commit for the EmbeddedStorageDAO.
+ *         Writers put their operation on a queue and wait. A single committer
+ *         thread takes whatever has queued up, at most maxBatchSize operations
+ *         or whatever arrived within maxDelay milliseconds of the first one,
+ *         applies them in one transaction and commits once. Only then is each
+ *         waiting writer released, so a writer still returns only after its
+ *         write has been committed.
+ *
+ *         Every operation runs under its own savepoint, so an operation that
+ *         fails is rolled back and reported to its own caller without
+ *         affecting the rest of the group.
+ *
+ */
+public class EmbeddedGroupCommitter {
+
+	protected static final Logger logger = Logger.getLogger(EmbeddedGroupCommitter.class);
+
+	public static final int DEFAULT_MAX_BATCH_SIZE = 256;
+	public static final long DEFAULT_MAX_DELAY = 2;
+
+	/**
+	 * 
+	 * A write to apply on the committer's connection
+	 * 
+	 * @param <T>
+	 */
+	public interface Write<T> {
+		T apply(Connection connection) throws SQLException, StorageException;
+	}
+
+	/*
+	 * A queued write and the future its caller is waiting on
+	 */
+	private static class Pending<T> {
+		Write<T> write = null;
+		CompletableFuture<T> future = new CompletableFuture<T>();
+		T result = null;
+	}
+
+	private EmbeddedConnectionPool pool = null;
+	private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+	private long maxDelay = DEFAULT_MAX_DELAY;
+
+	private final LinkedBlockingQueue<Pending<?>> queue = new LinkedBlockingQueue<Pending<?>>();
+	private Thread committer = null;
+	private volatile boolean running = true;
+
+	/*
+	 * Statistics
+	 */
+	private final AtomicLong operations = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong commitTime = new AtomicLong();
+	private volatile int lastBatchSize = 0;
+	private volatile int maxObservedBatchSize = 0;
+
+	/**
+	 * 
+	 * @param pool
+	 * @param maxBatchSize
+	 * @param maxDelay
+	 * @throws StorageException
+	 */
+	public EmbeddedGroupCommitter(EmbeddedConnectionPool pool, int maxBatchSize, long maxDelay)
+			throws StorageException {
+		if (pool == null) {
+			throw new StorageException("Pool is null");
+		}
+		if ((maxBatchSize < 1) || (maxDelay < 0)) {
+			throw new StorageException(
+					"Invalid group commit settings, batch size: " + maxBatchSize + ", delay: " + maxDelay);
+		}
+		this.pool = pool;
+		this.maxBatchSize = maxBatchSize;
+		this.maxDelay = maxDelay;
+		this.committer = new Thread(this::run, "embedded-group-commit");
+		this.committer.setDaemon(true);
+		this.committer.start();
+		logger.info("EmbeddedGroupCommitter started with batch size: " + maxBatchSize + ", delay: " + maxDelay);
+	}
+
+	/**
+	 * 
+	 * Queue a write and wait until the group it ends up in has been committed.
+	 * 
+	 * @param write
+	 * @return whatever the write returned
+	 * @throws StorageException
+	 */
+	public <T> T submit(Write<T> write) throws StorageException {
+		if (this.running == false) {
+			throw new StorageException("Group committer is closed");
+		}
+		Pending<T> pending = new Pending<T>();
+		pending.write = write;
+		this.queue.add(pending);
+
+		/*
+		 * close() may have drained the queue between the check above and the
+		 * add. If nobody took the write since, nobody ever will.
+		 */
+		if ((this.running == false) && (this.queue.remove(pending))) {
+			throw new StorageException("Group committer is closed");
+		}
+		try {
+			return pending.future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new StorageException("Interrupted while waiting for group commit", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof StorageException) {
+				throw (StorageException) e.getCause();
+			}
+			throw new StorageException("Group commit failed", e.getCause());
+		}
+	}
+
+	/**
+	 * 
+	 * Stop the committer thread. Writes already queued are still committed,
+	 * writes queued after that are failed.
+	 * 
+	 */
+	public void close() {
+		this.running = false;
+		try {
+			this.committer.join(TimeUnit.SECONDS.toMillis(10));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		/*
+		 * Anything that raced in after the committer stopped is failed
+		 */
+		this.failQueued();
+	}
+
+	/*
+	 * Fail every write still queued, so that no caller waits for ever
+	 */
+	protected void failQueued() {
+		Pending<?> pending = null;
+		while ((pending = this.queue.poll()) != null) {
+			pending.future.completeExceptionally(new StorageException("Group committer is closed"));
+		}
+	}
+
+	/**
+	 * 
+	 * Queue depth and batch size statistics, used to tune batch size and
+	 * delay against tail latency.
+	 * 
+	 * @return
+	 */
+	public Map<String, Object> getStatistics() {
+		Map<String, Object> ret = new LinkedHashMap<String, Object>();
+		long batches = this.batches.get();
+		ret.put("groupCommit.maxBatchSize", this.maxBatchSize);
+		ret.put("groupCommit.maxDelayMillis", this.maxDelay);
+		ret.put("groupCommit.queueDepth", this.queue.size());
+		ret.put("groupCommit.operations", this.operations.get());
+		ret.put("groupCommit.failed", this.failed.get());
+		ret.put("groupCommit.batches", batches);
+		ret.put("groupCommit.lastBatchSize", this.lastBatchSize);
+		ret.put("groupCommit.maxObservedBatchSize", this.maxObservedBatchSize);
+		ret.put("groupCommit.averageBatchSize", batches == 0 ? 0.0 : (double) this.operations.get() / batches);
+		ret.put("groupCommit.averageCommitMicros",
+				batches == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(this.commitTime.get() / batches));
+		return ret;
+	}
+
+	/*
+	 * Committer thread main loop. commit() never throws, if the thread ends
+	 * anyway every write it leaves behind is failed.
+	 */
+	protected void run() {
+		List<Pending<?>> group = new ArrayList<Pending<?>>(this.maxBatchSize);
+		try {
+			this.gather(group);
+		} finally {
+			this.running = false;
+			for (Pending<?> pending : group) {
+				pending.future.completeExceptionally(new StorageException("Group committer stopped"));
+			}
+			this.failQueued();
+			logger.info("EmbeddedGroupCommitter stopped");
+		}
+	}
+
+	/*
+	 * Gather groups of writes and commit them until closed
+	 */
+	private void gather(List<Pending<?>> group) {
+		while ((this.running) || (this.queue.isEmpty() == false)) {
+			try {
+				Pending<?> first = this.queue.poll(100, TimeUnit.MILLISECONDS);
+				if (first == null) {
+					continue;
+				}
+				group.add(first);
+
+				/*
+				 * Gather more writes until the group is full or the delay since
+				 * the first write has passed
+				 */
+				long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.maxDelay);
+				while (group.size() < this.maxBatchSize) {
+					if (this.queue.drainTo(group, this.maxBatchSize - group.size()) > 0) {
+						continue;
+					}
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0) {
+						break;
+					}
+					Pending<?> next = this.queue.poll(remaining, TimeUnit.NANOSECONDS);
+					if (next == null) {
+						break;
+					}
+					group.add(next);
+				}
+			} catch (InterruptedException e) {
+				logger.warn("EmbeddedGroupCommitter interrupted, stopping");
+				this.running = false;
+			}
+
+			if (group.isEmpty() == false) {
+				this.commit(group);
+				group.clear();
+			}
+		}
+	}
+
+	/**
+	 * 
+	 * Apply one group of writes in a single transaction. Every failure, Errors
+	 * included, ends up on the futures of the writes it hit.
+	 * 
+	 * @param group
+	 */
+	protected void commit(List<Pending<?>> group) {
+		long start = System.nanoTime();
+		List<Pending<?>> applied = new ArrayList<Pending<?>>(group.size());
+		Connection connection = null;
+		try {
+			connection = this.pool.acquire();
+			connection.setAutoCommit(false);
+			for (Pending<?> pending : group) {
+				Savepoint savepoint = connection.setSavepoint();
+				try {
+					this.apply(pending, connection);
+					applied.add(pending);
+				} catch (Throwable e) {
+					connection.rollback(savepoint);
+					this.failed.incrementAndGet();
+					pending.future.completeExceptionally(e);
+				}
+			}
+			connection.commit();
+			for (Pending<?> pending : applied) {
+				this.complete(pending);
+			}
+		} catch (Throwable e) {
+			logger.error("Group commit of " + group.size() + " writes failed", e);
+			for (Pending<?> pending : group) {
+				pending.future.completeExceptionally(e);
+			}
+		} finally {
+			this.pool.release(connection);
+		}
+
+		int size = group.size();
+		this.operations.addAndGet(size);
+		this.batches.incrementAndGet();
+		this.commitTime.addAndGet(System.nanoTime() - start);
+		this.lastBatchSize = size;
+		if (size > this.maxObservedBatchSize) {
+			this.maxObservedBatchSize = size;
+		}
+	}
+
+	private <T> void apply(Pending<T> pending, Connection connection) throws SQLException, StorageException {
+		pending.result = pending.write.apply(connection);
+	}
+
+	private <T> void complete(Pending<T> pending) {
+		pending.future.complete(pending.result);
+	}
+
+}
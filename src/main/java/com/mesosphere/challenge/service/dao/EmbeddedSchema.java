@@ -0,0 +1,142 @@
+package com.mesosphere.challenge.service.dao;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.apache.log4j.Logger;
+
+import com.mesosphere.challenge.StorageException;
+
+/**
+ * 
+ * @author john
+ *
+ *         This class keeps the embedded DB schema up to date. Every schema
+ *         change is a numbered migration, and the SCHEMA_VERSION table records
+ *         which migrations a DB file has already been through. On startup any
+ *         missing migrations are applied in order, so DB files written by older
+ *         versions of the service are upgraded in place.
+ *
+ *         H2 commits DDL statements implicitly, so a migration cannot be rolled
+ *         back as a whole. Every statement is therefore written so that it can
+ *         safely be run again if the service stops half way through.
+ *
+ */
+public class EmbeddedSchema {
+
+	protected static final Logger logger = Logger.getLogger(EmbeddedSchema.class);
+
+	/*
+	 * Migrations, index 0 is version 1 and so on. Never edit a migration that
+	 * has been released, add a new one instead.
+	 */
+	private static final String[][] MIGRATIONS = {
+			/*
+			 * Version 1: the original table, no keys or indexes.
+			 */
+			{ "CREATE TABLE IF NOT EXISTS STORAGE_NODE (LOCATION VARCHAR(1024), CONTENTS BLOB)" },
+			/*
+			 * Version 2: unique index on LOCATION. Older files may hold
+			 * duplicate rows, keep the most recently inserted one.
+			 */
+			{ "DELETE FROM STORAGE_NODE WHERE LOCATION IS NULL",
+					"DELETE FROM STORAGE_NODE WHERE _ROWID_ NOT IN "
+							+ "(SELECT MAX(_ROWID_) FROM STORAGE_NODE GROUP BY LOCATION)",
+					"ALTER TABLE STORAGE_NODE ALTER COLUMN LOCATION SET NOT NULL",
+					"CREATE UNIQUE INDEX IF NOT EXISTS STORAGE_NODE_LOCATION ON STORAGE_NODE (LOCATION)" },
+			/*
+			 * Version 3: length, checksum and last modified columns, so
+			 * metadata reads do not touch the blob. Existing rows are filled in
+			 * from their contents once, here.
+			 */
+			{ "ALTER TABLE STORAGE_NODE ADD COLUMN IF NOT EXISTS CONTENT_LENGTH BIGINT",
+					"ALTER TABLE STORAGE_NODE ADD COLUMN IF NOT EXISTS CONTENT_CHECKSUM VARCHAR(64)",
+					"ALTER TABLE STORAGE_NODE ADD COLUMN IF NOT EXISTS MODIFIED TIMESTAMP",
+					"UPDATE STORAGE_NODE SET CONTENT_LENGTH = COALESCE(LENGTH(CONTENTS), 0), "
+							+ "CONTENT_CHECKSUM = LOWER(CAST(HASH('SHA256', COALESCE(CONTENTS, X''), 1) AS VARCHAR)), "
+							+ "MODIFIED = CURRENT_TIMESTAMP() WHERE CONTENT_LENGTH IS NULL" },
+			/*
+			 * Version 4: STORAGE_CONTENT, where deduplicating stores keep
+			 * contents once per checksum with a reference count. Nodes keep
+			 * their own contents until a deduplicating store rewrites them.
+			 * Nodes without contents keep no checksum.
+			 */
+			{ "CREATE TABLE IF NOT EXISTS STORAGE_CONTENT (CHECKSUM VARCHAR(64) PRIMARY KEY, CONTENTS BLOB, "
+					+ "REFS BIGINT NOT NULL)",
+					"UPDATE STORAGE_NODE SET CONTENT_CHECKSUM = NULL WHERE CONTENTS IS NULL",
+					"CREATE INDEX IF NOT EXISTS STORAGE_NODE_CHECKSUM ON STORAGE_NODE (CONTENT_CHECKSUM)" },
+			/*
+			 * Version 5: codec marker on stored contents, shared or kept in
+			 * the node row. Contents stored before this have none, and are
+			 * read as they are.
+			 */
+			{ "ALTER TABLE STORAGE_CONTENT ADD COLUMN IF NOT EXISTS CODEC VARCHAR(16)",
+					"ALTER TABLE STORAGE_NODE ADD COLUMN IF NOT EXISTS CODEC VARCHAR(16)" } };
+
+	/**
+	 * 
+	 * Latest schema version known to this build
+	 * 
+	 * @return
+	 */
+	public static int latestVersion() {
+		return MIGRATIONS.length;
+	}
+
+	/**
+	 * 
+	 * Bring the schema up to the latest version.
+	 * 
+	 * @param connection
+	 * @return the schema version after migrating
+	 * @throws StorageException
+	 */
+	public static int migrate(Connection connection) throws StorageException {
+		try (Statement s = connection.createStatement()) {
+			s.execute("CREATE TABLE IF NOT EXISTS SCHEMA_VERSION (VERSION INT PRIMARY KEY, "
+					+ "APPLIED TIMESTAMP DEFAULT CURRENT_TIMESTAMP())");
+
+			int version = currentVersion(connection);
+			if (version > MIGRATIONS.length) {
+				throw new StorageException("Embedded DB schema version " + version
+						+ " is newer than this service supports (" + MIGRATIONS.length + ")");
+			}
+
+			while (version < MIGRATIONS.length) {
+				logger.info("Migrating embedded DB schema from version " + version + " to " + (version + 1));
+				for (String sql : MIGRATIONS[version]) {
+					s.execute(sql);
+				}
+				version++;
+				try (PreparedStatement statement = connection
+						.prepareStatement("INSERT INTO SCHEMA_VERSION (VERSION) VALUES ( ? );")) {
+					statement.setInt(1, version);
+					statement.executeUpdate();
+				}
+			}
+			return version;
+		} catch (SQLException e) {
+			throw new StorageException("Embedded DB schema migration failed", e);
+		}
+	}
+
+	/**
+	 * 
+	 * Version recorded in the DB, 0 for a new or pre-versioning DB file.
+	 * 
+	 * @param connection
+	 * @return
+	 * @throws SQLException
+	 */
+	public static int currentVersion(Connection connection) throws SQLException {
+		try (Statement s = connection.createStatement()) {
+			ResultSet result = s.executeQuery("SELECT COALESCE(MAX(VERSION), 0) FROM SCHEMA_VERSION");
+			result.next();
+			return result.getInt(1);
+		}
+	}
+
+}
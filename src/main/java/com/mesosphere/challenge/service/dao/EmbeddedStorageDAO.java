@@ -1,26 +1,35 @@
 package com.mesosphere.challenge.service.dao;
 
-import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.nio.charset.StandardCharsets;
+import java.io.OutputStream;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
+import java.sql.Timestamp;
 import java.sql.Types;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Lock;
 
 import org.apache.log4j.Logger;
+import org.h2.api.ErrorCode;
 import org.h2.jdbcx.JdbcDataSource;
 import org.springframework.util.StringUtils;
 
 import com.mesosphere.challenge.StorageException;
+import com.mesosphere.challenge.model.StorageMetadata;
 import com.mesosphere.challenge.model.StorageNode;
+import com.mesosphere.challenge.model.StorageOutcome;
+import com.mesosphere.challenge.model.StorageResult;
 
 /**
  * 
@@ -29,6 +38,13 @@ import com.mesosphere.challenge.model.StorageNode;
  *         This is a DAO implementation class that stores nodes in an embedded
  *         DB.
  *
+ *         Contents are kept in the STORAGE_NODE row. With deduplication on,
+ *         each distinct contents is stored once in STORAGE_CONTENT instead,
+ *         keyed by its SHA-256 checksum, and STORAGE_NODE rows point at it. See
+ *         EmbeddedContentStore. A row with no contents of its own and a
+ *         checksum is shared, so rows of both kinds are read whichever way the
+ *         store was last configured.
+ *
  */
 public class EmbeddedStorageDAO implements IStorageDAO {
 
@@ -39,7 +55,46 @@ public class EmbeddedStorageDAO implements IStorageDAO {
 	private String storageUsername = null;
 	private String storagePassword = null;
 
-	Connection connection = null;
+	private int poolMinSize = EmbeddedConnectionPool.DEFAULT_MIN_SIZE;
+	private int poolMaxSize = EmbeddedConnectionPool.DEFAULT_MAX_SIZE;
+	private long poolAcquireTimeout = EmbeddedConnectionPool.DEFAULT_ACQUIRE_TIMEOUT;
+	private boolean poolValidate = true;
+
+	/*
+	 * Batch writes look up existing locations and send inserts in chunks of
+	 * this many nodes.
+	 */
+	protected static final int BATCH_CHUNK_SIZE = 500;
+
+	/*
+	 * Times a single node write is tried before a conflict is reported
+	 */
+	protected static final int WRITE_ATTEMPTS = 5;
+
+	/*
+	 * Contents and codec of a node, from its own row or from the shared
+	 * contents it points at
+	 */
+	protected static final String CONTENTS_COLUMNS = "COALESCE(N.CONTENTS, C.CONTENTS), "
+			+ "CASE WHEN N.CONTENTS IS NULL THEN C.CODEC ELSE N.CODEC END";
+	protected static final String CONTENTS_JOIN = "LEFT JOIN STORAGE_CONTENT C "
+			+ "ON N.CONTENTS IS NULL AND C.CHECKSUM = N.CONTENT_CHECKSUM";
+
+	protected static final String NODE_COLUMNS = "LOCATION, CONTENT_LENGTH, CONTENT_CHECKSUM, MODIFIED, CONTENTS, CODEC";
+
+	EmbeddedConnectionPool pool = null;
+
+	/*
+	 * Content addressed storage of the node contents, written to only with
+	 * deduplication on
+	 */
+	EmbeddedContentStore contents = null;
+	private volatile boolean deduplicate = false;
+
+	/*
+	 * Only set when group commit is enabled
+	 */
+	private volatile EmbeddedGroupCommitter committer = null;
 
 	/**
 	 * 
@@ -74,6 +129,31 @@ public class EmbeddedStorageDAO implements IStorageDAO {
 		this.init();
 	}
 
+	/**
+	 * 
+	 * @param storagePath
+	 * @param storageFile
+	 * @param storageUsername
+	 * @param storagePassword
+	 * @param poolMinSize
+	 * @param poolMaxSize
+	 * @param poolAcquireTimeout
+	 * @param poolValidate
+	 * @throws StorageException
+	 */
+	public EmbeddedStorageDAO(String storagePath, String storageFile, String storageUsername, String storagePassword,
+			int poolMinSize, int poolMaxSize, long poolAcquireTimeout, boolean poolValidate) throws StorageException {
+		this.storagePath = storagePath;
+		this.storageFile = storageFile;
+		this.storageUsername = storageUsername;
+		this.storagePassword = storagePassword;
+		this.poolMinSize = poolMinSize;
+		this.poolMaxSize = poolMaxSize;
+		this.poolAcquireTimeout = poolAcquireTimeout;
+		this.poolValidate = poolValidate;
+		this.init();
+	}
+
 	/**
 	 * 
 	 * @throws StorageException
@@ -88,43 +168,194 @@ public class EmbeddedStorageDAO implements IStorageDAO {
 
 		/*
 		 * 
-		 * Create the connection to the H2 DB. This connection is open as long
-		 * as the instance (object) is kept. When the object is deleted upon API
-		 * shutdown, the connection is closed.
+		 * Create the connection pool for the H2 DB. The pool is open as long
+		 * as the instance (object) is kept, and is closed by close() upon API
+		 * shutdown.
 		 * 
 		 * If there is a storagePath defined, then the DB will use file backed
-		 * storage, othewise we configure an in memory SQL database.
+		 * storage, othewise we configure an in memory SQL database. Either way
+		 * we turn on MVCC, so that readers do not queue behind writers on other
+		 * pooled connections.
 		 * 
 		 */
+		JdbcDataSource ds = new JdbcDataSource();
+		if (this.storagePath == null) {
+			// jdbc:h2:mem:test;DB_CLOSE_DELAY=-1
+			ds.setURL("jdbc:h2:mem:challengedb;DB_CLOSE_DELAY=-1;MVCC=TRUE");
+		} else {
+			// jdbc:h2:file:~/test;DB_CLOSE_ON_EXIT=FALSE
+			ds.setURL("jdbc:h2:file:" + this.storagePath + "/" + this.storageFile
+					+ ";DB_CLOSE_ON_EXIT=FALSE;MVCC=TRUE");
+			ds.setUser(this.storageUsername);
+			ds.setPassword(this.storagePassword);
+		}
+		this.pool = new EmbeddedConnectionPool(ds, this.poolMinSize, this.poolMaxSize, this.poolAcquireTimeout,
+				this.poolValidate);
+
+		/*
+		 * Make sure we have an up to date STORAGE_NODE table. This creates the
+		 * table in a new DB, and upgrades tables written by older versions.
+		 */
+		Connection connection = this.pool.acquire();
 		try {
-			JdbcDataSource ds = new JdbcDataSource();
-			if (this.storagePath == null) {
-				// jdbc:h2:mem:test;DB_CLOSE_DELAY=-1
-				ds.setURL("jdbc:h2:mem:challengedb;DB_CLOSE_DELAY=-1");
-				Connection conn = ds.getConnection();
-				this.connection = conn;
-			} else {
-				// jdbc:h2:file:~/test;DB_CLOSE_ON_EXIT=FALSE
-				ds.setURL("jdbc:h2:file:" + this.storagePath + "/" + this.storageFile + ";DB_CLOSE_ON_EXIT=FALSE");
-				ds.setUser(this.storageUsername);
-				ds.setPassword(this.storagePassword);
-				Connection conn = ds.getConnection();
-				this.connection = conn;
-			}
+			int version = EmbeddedSchema.migrate(connection);
+			logger.info("EmbeddedStorageDAO schema version: " + version);
+		} finally {
+			this.pool.release(connection);
+		}
 
-			/*
-			 * Make sure we have a STORAGE_NODE table. Create with IF NOT EXISTS
-			 * so that we don't accidentally try to create the table again.
-			 */
-			Statement s = this.connection.createStatement();
-			s.execute("CREATE TABLE IF NOT EXISTS STORAGE_NODE (LOCATION VARCHAR(1024), CONTENTS BLOB)");
+		this.contents = new EmbeddedContentStore(this.pool);
+		this.contents.schedule(EmbeddedContentStore.DEFAULT_COLLECT_INTERVAL);
 
-		} catch (SQLException e) {
-			throw new StorageException("EmbeddedStorageDAO failed to initialize", e);
+	}
+
+	/**
+	 * 
+	 * Stop the group committer, if any, and the content collector, and close
+	 * the connection pool. Spring calls this on shutdown.
+	 * 
+	 */
+	@Override
+	public void close() {
+		logger.info("EmbeddedStorageDAO close");
+		if (this.committer != null) {
+			this.committer.close();
+		}
+		if (this.contents != null) {
+			this.contents.close();
+		}
+		if (this.pool != null) {
+			this.pool.close();
+		}
+	}
+
+	/**
+	 * 
+	 * Turn on group commit. From now on single node writes are queued and
+	 * committed together by one committer thread, in groups of at most
+	 * maxBatchSize writes or whatever arrived within maxDelay milliseconds.
+	 * 
+	 * @param maxBatchSize
+	 * @param maxDelay
+	 * @throws StorageException
+	 */
+	public synchronized void enableGroupCommit(int maxBatchSize, long maxDelay) throws StorageException {
+		if (this.committer != null) {
+			throw new StorageException("Group commit is already enabled");
+		}
+		this.committer = new EmbeddedGroupCommitter(this.pool, maxBatchSize, maxDelay);
+	}
+
+	/**
+	 * 
+	 * Compress contents stored from now on. Contents already stored keep
+	 * their codec, each row carries its own marker.
+	 * 
+	 * @param compression
+	 * @throws StorageException
+	 */
+	public void setCompression(StorageCompression compression) throws StorageException {
+		if (compression == null) {
+			throw new StorageException("Compression is null");
+		}
+		this.contents.setCompression(compression);
+	}
+
+	/**
+	 * 
+	 * Store contents written from now on once per checksum, or in their own
+	 * row. Rows already written keep their contents where they are.
+	 * 
+	 * @param deduplicate
+	 */
+	public void setDeduplication(boolean deduplicate) {
+		this.deduplicate = deduplicate;
+	}
+
+	/**
+	 * 
+	 * Run the content collector every interval milliseconds, zero or less
+	 * turns it off. Shared contents are still released by nodes rewritten
+	 * with deduplication off, so it runs either way.
+	 * 
+	 * @param interval
+	 */
+	public void scheduleContentCollection(long interval) {
+		this.contents.schedule(interval);
+	}
+
+	/**
+	 * 
+	 * Delete unreferenced contents now, rather than wait for the collector.
+	 * 
+	 * @return the number of contents deleted, or -1 if writers kept the
+	 *         collector out
+	 * @throws StorageException
+	 */
+	public int collectContents() throws StorageException {
+		return this.contents.collect();
+	}
+
+	/**
+	 * 
+	 * Run a write, of a single node or a batch, either in its own transaction
+	 * on its own pooled connection, or through the group committer if
+	 * enabled. Either way this returns only after the write has been
+	 * committed.
+	 * 
+	 * Two writers adding the same new contents or the same new location at
+	 * the same time race on the STORAGE_CONTENT row or the unique LOCATION
+	 * index. The loser's transaction is rolled back and retried, and then
+	 * finds the row stored.
+	 * 
+	 * @param write
+	 * @return
+	 * @throws StorageException
+	 */
+	protected <T> T write(EmbeddedGroupCommitter.Write<T> write) throws StorageException {
+		Lock writers = this.contents.writers();
+		writers.lock();
+		try {
+			if (this.committer != null) {
+				return this.committer.submit(write);
+			}
+
+			for (int attempt = 1;; attempt++) {
+				/*
+				 * Borrow a connection from the pool, it is handed back in the
+				 * finally block below. Anything not committed is rolled back
+				 * on release.
+				 */
+				Connection connection = this.pool.acquire();
+				try {
+					connection.setAutoCommit(false);
+					T ret = write.apply(connection);
+					connection.commit();
+					return ret;
+				} catch (SQLException e) {
+					if ((attempt >= WRITE_ATTEMPTS) || (this.retryable(e) == false)) {
+						throw new StorageException("Embedded DB query failed", e);
+					}
+					logger.info("Retrying write after conflict: " + e.getMessage());
+				} finally {
+					this.pool.release(connection);
+				}
+			}
 		} finally {
-			//
+			writers.unlock();
 		}
+	}
 
+	/**
+	 * 
+	 * Conflicts with a concurrent transaction, that go away on a retry
+	 * 
+	 * @param e
+	 * @return
+	 */
+	protected boolean retryable(SQLException e) {
+		return (e.getErrorCode() == ErrorCode.DUPLICATE_KEY_1) || (e.getErrorCode() == ErrorCode.CONCURRENT_UPDATE_1)
+				|| (e.getErrorCode() == ErrorCode.LOCK_TIMEOUT_1);
 	}
 
 	/**
@@ -143,36 +374,41 @@ public class EmbeddedStorageDAO implements IStorageDAO {
 		return StringUtils.arrayToDelimitedString(path.toArray(), "/");
 	}
 
+	@Override
+	public Map<String, Object> getStorageStatistics() {
+		Map<String, Object> ret = this.pool.getStatistics();
+		if (this.deduplicate) {
+			ret.putAll(this.contents.getStatistics());
+		}
+		ret.putAll(this.contents.getCompression().getStatistics());
+		if (this.committer != null) {
+			ret.putAll(this.committer.getStatistics());
+		}
+		return ret;
+	}
+
 	@Override
 	public Collection<StorageNode> getStorageNodes() throws StorageException {
 		logger.info("getStorageNodes");
 
 		/*
-		 * Error handling, make sure we have an active and working DB
-		 * connection.
+		 * Borrow a connection from the pool, it is handed back in the finally
+		 * block below.
 		 */
-		try {
-			if ((this.connection == null) || (this.connection.isClosed())) {
-				throw new StorageException("Embedded DB connection is closed");
-			}
-		} catch (SQLException e) {
-			throw new StorageException("Embedded DB connection is closed", e);
-		}
-
-		try {
+		Connection connection = this.pool.acquire();
 
-			/*
-			 * !! The below is vulnerable to SQL injection hacks !!
-			 */
-			// Statement statement = this.connection.createStatement();
-			// ResultSet result = statement.executeQuery("SELECT * FROM
-			// STORAGE_NODE;");
+		/*
+		 * !! The below is vulnerable to SQL injection hacks !!
+		 */
+		// Statement statement = connection.createStatement();
+		// ResultSet result = statement.executeQuery("SELECT * FROM
+		// STORAGE_NODE;");
 
-			/*
-			 * The below is not vulnerable to SQL injection hacks
-			 */
-			String sql = "SELECT * FROM STORAGE_NODE;";
-			PreparedStatement statement = this.connection.prepareStatement(sql);
+		/*
+		 * The below is not vulnerable to SQL injection hacks
+		 */
+		String sql = "SELECT N.LOCATION, " + CONTENTS_COLUMNS + " FROM STORAGE_NODE N " + CONTENTS_JOIN + ";";
+		try (PreparedStatement statement = connection.prepareStatement(sql)) {
 			ResultSet result = statement.executeQuery();
 
 			Collection<StorageNode> ret = new ArrayList<StorageNode>();
@@ -180,17 +416,10 @@ public class EmbeddedStorageDAO implements IStorageDAO {
 				while (result.next()) {
 					StorageNode node = new StorageNode();
 					node.setLocation(result.getString(1));
-					StringBuilder inputStringBuilder = new StringBuilder();
-					InputStream stream = result.getBinaryStream(2);
-					if (stream != null) {
-						BufferedReader bufferedReader = new BufferedReader(
-								new InputStreamReader(stream, StandardCharsets.UTF_8));
-						String line = bufferedReader.readLine();
-						while (line != null) {
-							inputStringBuilder.append(line);
-							line = bufferedReader.readLine();
+					try (InputStream stream = this.decoded(result.getString(3), result.getBinaryStream(2))) {
+						if (stream != null) {
+							node.setContents(StorageStreams.readString(stream));
 						}
-						node.setContents(inputStringBuilder.toString());
 					}
 					ret.add(node);
 				}
@@ -200,6 +429,76 @@ public class EmbeddedStorageDAO implements IStorageDAO {
 			throw new StorageException("Embedded DB query failed", e);
 		} catch (IOException e) {
 			throw new StorageException("Embedded DB query failed", e);
+		} finally {
+			this.pool.release(connection);
+		}
+
+	}
+
+	@Override
+	public Collection<StorageNode> getStorageNodes(String after, int limit, boolean metadataOnly)
+			throws StorageException {
+		logger.info("getStorageNodes: after " + after + ", limit " + limit);
+
+		/*
+		 * Keyset pagination, the unique LOCATION index gives us both the
+		 * ordering and the starting point, so a page costs the same no matter
+		 * how deep into the table it is. In metadata mode we only read the
+		 * stored length column, and never touch the blob.
+		 */
+		StringBuilder sql = new StringBuilder();
+		if (metadataOnly) {
+			sql.append("SELECT N.LOCATION, N.CONTENT_LENGTH FROM STORAGE_NODE N");
+		} else {
+			sql.append("SELECT N.LOCATION, " + CONTENTS_COLUMNS + " FROM STORAGE_NODE N " + CONTENTS_JOIN);
+		}
+		if (after != null) {
+			sql.append(" WHERE N.LOCATION > ?");
+		}
+		sql.append(" ORDER BY N.LOCATION");
+		if (limit > 0) {
+			sql.append(" LIMIT ?");
+		}
+		sql.append(";");
+
+		/*
+		 * Borrow a connection from the pool, it is handed back in the finally
+		 * block below.
+		 */
+		Connection connection = this.pool.acquire();
+
+		try (PreparedStatement statement = connection.prepareStatement(sql.toString())) {
+			int index = 1;
+			if (after != null) {
+				statement.setString(index++, after);
+			}
+			if (limit > 0) {
+				statement.setInt(index++, limit);
+			}
+			ResultSet result = statement.executeQuery();
+
+			Collection<StorageNode> ret = new ArrayList<StorageNode>();
+			while (result.next()) {
+				StorageNode node = new StorageNode();
+				node.setLocation(result.getString(1));
+				if (metadataOnly) {
+					node.setLength((int) result.getLong(2));
+				} else {
+					try (InputStream stream = this.decoded(result.getString(3), result.getBinaryStream(2))) {
+						if (stream != null) {
+							node.setContents(StorageStreams.readString(stream));
+						}
+					}
+				}
+				ret.add(node);
+			}
+			return ret;
+		} catch (SQLException e) {
+			throw new StorageException("Embedded DB query failed", e);
+		} catch (IOException e) {
+			throw new StorageException("Embedded DB query failed", e);
+		} finally {
+			this.pool.release(connection);
 		}
 
 	}
@@ -216,49 +515,35 @@ public class EmbeddedStorageDAO implements IStorageDAO {
 		}
 
 		/*
-		 * Error handling, make sure we have an active and working DB
-		 * connection.
+		 * Borrow a connection from the pool, it is handed back in the finally
+		 * block below.
 		 */
-		try {
-			if ((this.connection == null) || (this.connection.isClosed())) {
-				throw new StorageException("Embedded DB connection is closed");
-			}
-		} catch (SQLException e) {
-			throw new StorageException("Embedded DB connection is closed", e);
-		}
+		Connection connection = this.pool.acquire();
 
-		try {
-
-			/*
-			 * !! The below is vulnerable to SQL injection hacks !!
-			 */
-			// Statement statement = this.connection.createStatement();
-			// ResultSet result = statement
-			// .executeQuery("SELECT * FROM STORAGE_NODE WHERE LOCATION = '" +
-			// this.path(path) + "';");
+		/*
+		 * !! The below is vulnerable to SQL injection hacks !!
+		 */
+		// Statement statement = connection.createStatement();
+		// ResultSet result = statement
+		// .executeQuery("SELECT * FROM STORAGE_NODE WHERE LOCATION = '" +
+		// this.path(path) + "';");
 
-			/*
-			 * The below is not vulnerable to SQL injection hacks
-			 */
-			String sql = "SELECT * FROM STORAGE_NODE WHERE LOCATION = ?;";
-			PreparedStatement statement = this.connection.prepareStatement(sql);
+		/*
+		 * The below is not vulnerable to SQL injection hacks
+		 */
+		String sql = "SELECT N.LOCATION, " + CONTENTS_COLUMNS + " FROM STORAGE_NODE N " + CONTENTS_JOIN
+				+ " WHERE N.LOCATION = ?;";
+		try (PreparedStatement statement = connection.prepareStatement(sql)) {
 			statement.setString(1, this.path(path));
 			ResultSet result = statement.executeQuery();
 
 			if ((result != null) && (result.first())) {
 				StorageNode node = new StorageNode();
 				node.setLocation(result.getString(1));
-				StringBuilder inputStringBuilder = new StringBuilder();
-				InputStream stream = result.getBinaryStream(2);
-				if (stream != null) {
-					BufferedReader bufferedReader = new BufferedReader(
-							new InputStreamReader(stream, StandardCharsets.UTF_8));
-					String line = bufferedReader.readLine();
-					while (line != null) {
-						inputStringBuilder.append(line);
-						line = bufferedReader.readLine();
+				try (InputStream stream = this.decoded(result.getString(3), result.getBinaryStream(2))) {
+					if (stream != null) {
+						node.setContents(StorageStreams.readString(stream));
 					}
-					node.setContents(inputStringBuilder.toString());
 				}
 				return node;
 			} else {
@@ -268,6 +553,196 @@ public class EmbeddedStorageDAO implements IStorageDAO {
 			throw new StorageException("Embedded DB query failed", e);
 		} catch (IOException e) {
 			throw new StorageException("Embedded DB query failed", e);
+		} finally {
+			this.pool.release(connection);
+		}
+
+	}
+
+	@Override
+	public StorageMetadata getStorageMetadata(Collection<String> path) throws StorageException {
+		logger.info("getStorageMetadata");
+
+		/*
+		 * Error handling
+		 */
+		if (path == null) {
+			throw new StorageException("Path is null");
+		}
+
+		/*
+		 * Borrow a connection from the pool, it is handed back in the finally
+		 * block below.
+		 */
+		Connection connection = this.pool.acquire();
+
+		/*
+		 * Only the metadata columns, the blob is never opened
+		 */
+		String sql = "SELECT LOCATION, CONTENT_LENGTH, CONTENT_CHECKSUM, MODIFIED FROM STORAGE_NODE "
+				+ "WHERE LOCATION = ?;";
+		try (PreparedStatement statement = connection.prepareStatement(sql)) {
+			statement.setString(1, this.path(path));
+			ResultSet result = statement.executeQuery();
+
+			if ((result != null) && (result.next())) {
+				Timestamp modified = result.getTimestamp(4);
+				return new StorageMetadata(result.getString(1), result.getLong(2), result.getString(3),
+						(modified != null) ? modified.getTime() : null);
+			} else {
+				return null;
+			}
+		} catch (SQLException e) {
+			throw new StorageException("Embedded DB query failed", e);
+		} finally {
+			this.pool.release(connection);
+		}
+
+	}
+
+	@Override
+	public IStorageContents getStorageContents(Collection<String> path) throws StorageException {
+		return this.getStorageContents(path, Collections.emptyList());
+	}
+
+	@Override
+	public IStorageContents getStorageContents(Collection<String> path, Collection<String> encodings)
+			throws StorageException {
+		logger.info("getStorageContents");
+
+		/*
+		 * Error handling
+		 */
+		if (path == null) {
+			throw new StorageException("Path is null");
+		}
+
+		/*
+		 * Borrow a connection from the pool. On success the connection is
+		 * handed back when the caller closes the returned contents, since the
+		 * blob stream is only readable while the result set is open.
+		 */
+		Connection connection = this.pool.acquire();
+		PreparedStatement statement = null;
+
+		/*
+		 * The below is not vulnerable to SQL injection hacks
+		 */
+		String sql = "SELECT N.CONTENT_LENGTH, " + CONTENTS_COLUMNS + ", LENGTH(COALESCE(N.CONTENTS, C.CONTENTS)) "
+				+ "FROM STORAGE_NODE N " + CONTENTS_JOIN + " WHERE N.LOCATION = ?;";
+		try {
+			statement = connection.prepareStatement(sql);
+			statement.setString(1, this.path(path));
+			ResultSet result = statement.executeQuery();
+
+			if ((result != null) && (result.next())) {
+				/*
+				 * Hand out the stored bytes as they are if the caller takes
+				 * their codec, otherwise decode them on the way out
+				 */
+				IStorageCodec codec = StorageCodecs.forName(result.getString(3));
+				IStorageContents ret = null;
+				if ((codec != StorageCodecs.IDENTITY) && (encodings.contains(codec.getName()))) {
+					ret = new EmbeddedStorageContents(connection, statement, result.getLong(4),
+							result.getBinaryStream(2), codec.getName());
+				} else {
+					ret = new EmbeddedStorageContents(connection, statement, result.getLong(1),
+							this.decoded(result.getString(3), result.getBinaryStream(2)),
+							StorageCodecs.IDENTITY.getName());
+				}
+				statement = null;
+				connection = null;
+				return ret;
+			} else {
+				return null;
+			}
+		} catch (SQLException e) {
+			throw new StorageException("Embedded DB query failed", e);
+		} catch (IOException e) {
+			throw new StorageException("Embedded DB query failed", e);
+		} finally {
+			if (statement != null) {
+				try {
+					statement.close();
+				} catch (SQLException e) {
+					logger.warn("Failed to close statement", e);
+				}
+			}
+			this.pool.release(connection);
+		}
+
+	}
+
+	/**
+	 * 
+	 * Decode a contents stream read with CONTENTS_COLUMNS. Contents stored
+	 * before compression existed have no codec, and are read as they are.
+	 * 
+	 * @param codec
+	 * @param stream
+	 * @return
+	 * @throws StorageException
+	 * @throws IOException
+	 */
+	protected InputStream decoded(String codec, InputStream stream) throws StorageException, IOException {
+		if (stream == null) {
+			return null;
+		}
+		return StorageCodecs.forName(codec).decoder(stream);
+	}
+
+	/**
+	 * 
+	 * Blob contents streamed straight from the result set. Holds on to the
+	 * pooled connection until closed.
+	 * 
+	 */
+	protected class EmbeddedStorageContents implements IStorageContents {
+
+		private Connection connection = null;
+		private PreparedStatement statement = null;
+		private long length = 0;
+		private InputStream stream = null;
+		private String encoding = null;
+
+		protected EmbeddedStorageContents(Connection connection, PreparedStatement statement, long length,
+				InputStream stream, String encoding) {
+			this.connection = connection;
+			this.statement = statement;
+			this.length = length;
+			this.stream = stream;
+			this.encoding = encoding;
+		}
+
+		@Override
+		public long getLength() {
+			return this.length;
+		}
+
+		@Override
+		public String getEncoding() {
+			return this.encoding;
+		}
+
+		@Override
+		public void transferTo(OutputStream out) throws IOException {
+			if (this.stream != null) {
+				StorageStreams.copy(this.stream, out);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				if (this.stream != null) {
+					this.stream.close();
+				}
+				this.statement.close();
+			} catch (SQLException e) {
+				throw new IOException("Failed to close embedded DB statement", e);
+			} finally {
+				EmbeddedStorageDAO.this.pool.release(this.connection);
+			}
 		}
 
 	}
@@ -287,44 +762,301 @@ public class EmbeddedStorageDAO implements IStorageDAO {
 			throw new StorageException("Path is null");
 		}
 
+		String location = this.path(path);
+		byte[] contents = StorageChecksums.bytes(node);
+		StorageMetadata metadata = this.metadata(location, node, contents);
+
 		/*
-		 * Error handling, make sure we have an active and working DB
-		 * connection.
+		 * The below is not vulnerable to SQL injection hacks. MERGE on the
+		 * unique LOCATION index writes the row in a single statement and can
+		 * never leave duplicate rows behind.
 		 */
-		try {
-			if ((this.connection == null) || (this.connection.isClosed())) {
-				throw new StorageException("Embedded DB connection is closed");
+		String sql = "MERGE INTO STORAGE_NODE (" + NODE_COLUMNS + ") KEY (LOCATION) VALUES ( ?, ?, ?, ?, ?, ? );";
+		return this.write(connection -> {
+			/*
+			 * Move the reference from the shared contents the node had, if
+			 * any, to the new contents. Known contents only get their count
+			 * bumped.
+			 */
+			TreeMap<String, Integer> deltas = new TreeMap<String, Integer>();
+			this.previous(connection, location, deltas);
+			if (this.shared(metadata)) {
+				deltas.merge(metadata.getChecksum(), 1, Integer::sum);
 			}
-		} catch (SQLException e) {
-			throw new StorageException("Embedded DB connection is closed", e);
+			this.contents.reference(connection, deltas, Collections.singletonMap(metadata.getChecksum(), contents));
+
+			try (PreparedStatement statement = connection.prepareStatement(sql)) {
+				statement.setString(1, location);
+				this.setMetadata(statement, 2, metadata);
+				this.setContents(statement, 5, metadata, contents);
+				statement.executeUpdate();
+				return node;
+			}
+		});
+
+	}
+
+	@Override
+	public StorageResult createStorageNodeIfAbsent(StorageNode node, Collection<String> path) throws StorageException {
+		logger.info("createStorageNodeIfAbsent");
+
+		if (node == null) {
+			throw new StorageException("Node is null");
 		}
 
-		try {
+		String location = this.path(path);
+		byte[] contents = StorageChecksums.bytes(node);
+		StorageMetadata metadata = this.metadata(location, node, contents);
+
+		/*
+		 * A plain INSERT, two writers creating the same location race on the
+		 * unique LOCATION index. The loser is rolled back, retried, and then
+		 * finds the row.
+		 */
+		String sql = "INSERT INTO STORAGE_NODE (" + NODE_COLUMNS + ") VALUES ( ?, ?, ?, ?, ?, ? );";
+		return this.write(connection -> {
+			TreeMap<String, Integer> deltas = new TreeMap<String, Integer>();
+			if (this.previous(connection, location, deltas) == true) {
+				return new StorageResult(location, StorageOutcome.EXISTS);
+			}
+			if (this.shared(metadata)) {
+				deltas.merge(metadata.getChecksum(), 1, Integer::sum);
+			}
+			this.contents.reference(connection, deltas, Collections.singletonMap(metadata.getChecksum(), contents));
+
+			try (PreparedStatement statement = connection.prepareStatement(sql)) {
+				statement.setString(1, location);
+				this.setMetadata(statement, 2, metadata);
+				this.setContents(statement, 5, metadata, contents);
+				statement.executeUpdate();
+				return new StorageResult(location, StorageOutcome.CREATED, node);
+			}
+		});
+	}
+
+	@Override
+	public Collection<StorageResult> createStorageNodes(Collection<StorageNode> nodes) throws StorageException {
+		logger.info("createStorageNodes");
+
+		/*
+		 * Error handling
+		 */
+		if (nodes == null) {
+			throw new StorageException("Nodes is null");
+		}
+
+		/*
+		 * The whole batch is written in one transaction. A single create of
+		 * one of the locations racing the batch makes the unique LOCATION
+		 * index fail it, the batch is then rolled back and retried, and finds
+		 * that location taken.
+		 */
+		String sql = "INSERT INTO STORAGE_NODE (" + NODE_COLUMNS + ") VALUES ( ?, ?, ?, ?, ?, ? );";
+		return this.write(connection -> {
 			/*
-			 * The below is not vulnerable to SQL injection hacks
+			 * Find out which locations are already taken, a chunk at a time
 			 */
-			String sql = "INSERT INTO STORAGE_NODE VALUES ( ?, ? );";
-			PreparedStatement statement = this.connection.prepareStatement(sql);
-			if (node.getContents() == null) {
-				statement.setString(1, this.path(path));
-				statement.setNull(2, Types.BLOB);
-			} else {
-				statement.setString(1, this.path(path));
-				InputStream stream = new ByteArrayInputStream(node.getContents().getBytes(StandardCharsets.UTF_8));
-				statement.setBinaryStream(2, stream);
+			List<String> locations = new ArrayList<String>(nodes.size());
+			for (StorageNode node : nodes) {
+				if ((node != null) && (node.getLocation() != null)) {
+					locations.add(node.getLocation());
+				}
+			}
+			HashSet<String> taken = this.existingLocations(connection, locations);
+
+			/*
+			 * Work out the nodes to insert, and how many of them point at each
+			 * distinct contents
+			 */
+			List<StorageResult> ret = new ArrayList<StorageResult>(nodes.size());
+			List<StorageMetadata> created = new ArrayList<StorageMetadata>(nodes.size());
+			List<byte[]> createdContents = new ArrayList<byte[]>(nodes.size());
+			TreeMap<String, Integer> deltas = new TreeMap<String, Integer>();
+			Map<String, byte[]> contents = new HashMap<String, byte[]>();
+			for (StorageNode node : nodes) {
+				if ((node == null) || (node.getLocation() == null)) {
+					ret.add(new StorageResult(null, StorageOutcome.INVALID));
+					continue;
+				}
+				if (taken.add(node.getLocation()) == false) {
+					ret.add(new StorageResult(node.getLocation(), StorageOutcome.EXISTS));
+					continue;
+				}
+				byte[] bytes = StorageChecksums.bytes(node);
+				StorageMetadata metadata = this.metadata(node.getLocation(), node, bytes);
+				if (this.shared(metadata)) {
+					deltas.merge(metadata.getChecksum(), 1, Integer::sum);
+					contents.putIfAbsent(metadata.getChecksum(), bytes);
+				}
+				created.add(metadata);
+				createdContents.add(bytes);
+				ret.add(new StorageResult(node.getLocation(), StorageOutcome.CREATED, node));
+			}
+			this.contents.reference(connection, deltas, contents);
+
+			/*
+			 * Queue up the inserts, and send them in chunks
+			 */
+			try (PreparedStatement statement = connection.prepareStatement(sql)) {
+				int batched = 0;
+				for (int i = 0; i < created.size(); i++) {
+					StorageMetadata metadata = created.get(i);
+					statement.setString(1, metadata.getLocation());
+					this.setMetadata(statement, 2, metadata);
+					this.setContents(statement, 5, metadata, createdContents.get(i));
+					statement.addBatch();
+					if (++batched % BATCH_CHUNK_SIZE == 0) {
+						statement.executeBatch();
+					}
+				}
+				if (batched % BATCH_CHUNK_SIZE != 0) {
+					statement.executeBatch();
+				}
+			}
+			return ret;
+		});
+
+	}
+
+	/**
+	 * 
+	 * Return the subset of the given locations that already have a node.
+	 * 
+	 * @param connection
+	 * @param locations
+	 * @return
+	 * @throws SQLException
+	 */
+	protected HashSet<String> existingLocations(Connection connection, List<String> locations) throws SQLException {
+		HashSet<String> ret = new HashSet<String>();
+		for (int start = 0; start < locations.size(); start += BATCH_CHUNK_SIZE) {
+			List<String> chunk = locations.subList(start, Math.min(start + BATCH_CHUNK_SIZE, locations.size()));
+			StringBuilder sql = new StringBuilder("SELECT LOCATION FROM STORAGE_NODE WHERE LOCATION IN (");
+			for (int i = 0; i < chunk.size(); i++) {
+				sql.append((i == 0) ? "?" : ", ?");
+			}
+			sql.append(");");
+			try (PreparedStatement statement = connection.prepareStatement(sql.toString())) {
+				for (int i = 0; i < chunk.size(); i++) {
+					statement.setString(i + 1, chunk.get(i));
+				}
+				ResultSet result = statement.executeQuery();
+				while (result.next()) {
+					ret.add(result.getString(1));
+				}
 			}
-			statement.executeUpdate();
-			return node;
-		} catch (SQLException e) {
-			throw new StorageException("Embedded DB query failed", e);
 		}
+		return ret;
+	}
 
+	/**
+	 * 
+	 * Lock the node row at location, if there is one, and release its
+	 * reference to its shared contents, if any, into deltas.
+	 * 
+	 * @param connection
+	 * @param location
+	 * @param deltas
+	 * @return whether there is a node at location
+	 * @throws SQLException
+	 */
+	protected boolean previous(Connection connection, String location, Map<String, Integer> deltas)
+			throws SQLException {
+		String sql = "SELECT CONTENT_CHECKSUM, CONTENTS IS NULL FROM STORAGE_NODE WHERE LOCATION = ? FOR UPDATE;";
+		try (PreparedStatement statement = connection.prepareStatement(sql)) {
+			statement.setString(1, location);
+			ResultSet result = statement.executeQuery();
+			if (result.next() == false) {
+				return false;
+			}
+			if ((result.getString(1) != null) && (result.getBoolean(2))) {
+				deltas.merge(result.getString(1), -1, Integer::sum);
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * 
+	 * Metadata for a node written now. A node without contents has no
+	 * checksum, and points at no stored contents.
+	 * 
+	 * @param location
+	 * @param node
+	 * @param contents
+	 * @return
+	 */
+	protected StorageMetadata metadata(String location, StorageNode node, byte[] contents) {
+		StorageMetadata ret = StorageChecksums.metadata(location, contents);
+		if (node.getContents() == null) {
+			ret.setChecksum(null);
+		}
+		return ret;
+	}
+
+	/**
+	 * 
+	 * @param metadata
+	 * @return whether contents written with this metadata go to
+	 *         STORAGE_CONTENT
+	 */
+	protected boolean shared(StorageMetadata metadata) {
+		return (this.deduplicate) && (metadata.getChecksum() != null);
+	}
+
+	/**
+	 * 
+	 * Bind the contents kept in the node row and their codec, in that order,
+	 * starting at the given parameter index. Both are null for shared
+	 * contents and for a node without contents.
+	 * 
+	 * @param statement
+	 * @param index
+	 * @param metadata
+	 * @param contents
+	 * @throws SQLException
+	 * @throws StorageException
+	 */
+	protected void setContents(PreparedStatement statement, int index, StorageMetadata metadata, byte[] contents)
+			throws SQLException, StorageException {
+		if ((this.shared(metadata)) || (metadata.getChecksum() == null)) {
+			statement.setNull(index, Types.BLOB);
+			statement.setNull(index + 1, Types.VARCHAR);
+			return;
+		}
+		StorageCompression.Encoded encoded = this.contents.getCompression().encode(contents);
+		statement.setBinaryStream(index, new ByteArrayInputStream(encoded.getBytes()));
+		statement.setString(index + 1, encoded.getCodec().getName());
+	}
+
+	/**
+	 * 
+	 * Bind length, checksum and last modified, in that order, starting at the
+	 * given parameter index.
+	 * 
+	 * @param statement
+	 * @param index
+	 * @param metadata
+	 * @throws SQLException
+	 */
+	protected void setMetadata(PreparedStatement statement, int index, StorageMetadata metadata)
+			throws SQLException {
+		statement.setLong(index, metadata.getLength());
+		statement.setString(index + 1, metadata.getChecksum());
+		statement.setTimestamp(index + 2, new Timestamp(metadata.getModified()));
 	}
 
 	@Override
 	public StorageNode updateStorageNode(StorageNode node, Collection<String> path) throws StorageException {
 		logger.info("updateStorageNode");
 
+		return this.updateStorageNodeIfPresent(node, path).getNode();
+	}
+
+	@Override
+	public StorageResult updateStorageNodeIfPresent(StorageNode node, Collection<String> path) throws StorageException {
+		logger.info("updateStorageNodeIfPresent");
+
 		/*
 		 * Error handling
 		 */
@@ -336,39 +1068,36 @@ public class EmbeddedStorageDAO implements IStorageDAO {
 			throw new StorageException("Path is null");
 		}
 
+		String location = this.path(path);
+		byte[] contents = StorageChecksums.bytes(node);
+		StorageMetadata metadata = this.metadata(location, node, contents);
+
 		/*
-		 * Error handling, make sure we have an active and working DB
-		 * connection.
+		 * The below is not vulnerable to SQL injection hacks
 		 */
-		try {
-			if ((this.connection == null) || (this.connection.isClosed())) {
-				throw new StorageException("Embedded DB connection is closed");
-			}
-		} catch (SQLException e) {
-			throw new StorageException("Embedded DB connection is closed", e);
-		}
-
-		try {
+		String sql = "UPDATE STORAGE_NODE SET CONTENT_LENGTH = ?, CONTENT_CHECKSUM = ?, MODIFIED = ?, CONTENTS = ?, "
+				+ "CODEC = ? WHERE LOCATION = ?;";
+		return this.write(connection -> {
 			/*
-			 * The below is not vulnerable to SQL injection hacks
+			 * No row means there was no node at this location
 			 */
-			String sql = "UPDATE STORAGE_NODE SET LOCATION = ?, CONTENTS = ? WHERE LOCATION = ?;";
-			PreparedStatement statement = this.connection.prepareStatement(sql);
-			if (node.getContents() == null) {
-				statement.setString(1, this.path(path));
-				statement.setNull(2, Types.BLOB);
-				statement.setString(3, this.path(path));
-			} else {
-				statement.setString(1, this.path(path));
-				InputStream stream = new ByteArrayInputStream(node.getContents().getBytes(StandardCharsets.UTF_8));
-				statement.setBinaryStream(2, stream);
-				statement.setString(3, this.path(path));
+			TreeMap<String, Integer> deltas = new TreeMap<String, Integer>();
+			if (this.previous(connection, location, deltas) == false) {
+				return new StorageResult(location, StorageOutcome.NOT_FOUND);
 			}
-			statement.executeUpdate();
-			return node;
-		} catch (SQLException e) {
-			throw new StorageException("Embedded DB query failed", e);
-		}
+			if (this.shared(metadata)) {
+				deltas.merge(metadata.getChecksum(), 1, Integer::sum);
+			}
+			this.contents.reference(connection, deltas, Collections.singletonMap(metadata.getChecksum(), contents));
+
+			try (PreparedStatement statement = connection.prepareStatement(sql)) {
+				this.setMetadata(statement, 1, metadata);
+				this.setContents(statement, 4, metadata, contents);
+				statement.setString(6, location);
+				statement.executeUpdate();
+				return new StorageResult(location, StorageOutcome.UPDATED, node);
+			}
+		});
 
 	}
 
@@ -376,6 +1105,13 @@ public class EmbeddedStorageDAO implements IStorageDAO {
 	public void deleteStorageNode(Collection<String> path) throws StorageException {
 		logger.info("deleteStorageNode");
 
+		this.deleteStorageNodeIfPresent(path);
+	}
+
+	@Override
+	public StorageResult deleteStorageNodeIfPresent(Collection<String> path) throws StorageException {
+		logger.info("deleteStorageNodeIfPresent");
+
 		/*
 		 * Error handling
 		 */
@@ -387,29 +1123,25 @@ public class EmbeddedStorageDAO implements IStorageDAO {
 			throw new StorageException("Path is longer than one element, currently not supported");
 		}
 
+		String location = this.path(path);
+
 		/*
-		 * Error handling, make sure we have an active and working DB
-		 * connection.
+		 * The below is not vulnerable to SQL injection hacks. Shared contents
+		 * stay until the collector finds them unreferenced.
 		 */
-		try {
-			if ((this.connection == null) || (this.connection.isClosed())) {
-				throw new StorageException("Embedded DB connection is closed");
+		String sql = "DELETE FROM STORAGE_NODE WHERE LOCATION = ?;";
+		return this.write(connection -> {
+			TreeMap<String, Integer> deltas = new TreeMap<String, Integer>();
+			if (this.previous(connection, location, deltas) == false) {
+				return new StorageResult(location, StorageOutcome.NOT_FOUND);
 			}
-		} catch (SQLException e) {
-			throw new StorageException("Embedded DB connection is closed", e);
-		}
-
-		try {
-			/*
-			 * The below is not vulnerable to SQL injection hacks
-			 */
-			String sql = "DELETE FROM STORAGE_NODE WHERE LOCATION = ?;";
-			PreparedStatement statement = this.connection.prepareStatement(sql);
-			statement.setString(1, this.path(path));
-			statement.execute();
-		} catch (SQLException e) {
-			throw new StorageException("Embedded DB query failed", e);
-		}
+			this.contents.reference(connection, deltas, Collections.emptyMap());
+			try (PreparedStatement statement = connection.prepareStatement(sql)) {
+				statement.setString(1, location);
+				statement.executeUpdate();
+				return new StorageResult(location, StorageOutcome.DELETED);
+			}
+		});
 
 	}
 
@@ -0,0 +1,76 @@
+package com.mesosphere.challenge.service.dao;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+
+/**
+ * 
+ * @author john
+ *
+ *         Contents of a node that are sent exactly as a file holds them, from
+ *         the end of its header on. The file is opened when the contents are
+ *         looked up, so a file replaced meanwhile is still read as it was.
+ *         Nothing opens it by name again later.
+ *
+ *         transferTo() reads the file at its own positions into the fixed
+ *         size buffer of StorageStreams and writes that to the stream. The
+ *         contents are never held in full, but they do pass through the heap,
+ *         this is not a zero-copy send. A servlet response is no channel to
+ *         transfer to, and sendfile would open the file again by name.
+ *
+ */
+public class FileStorageContents implements IStorageContents {
+
+	private final Path file;
+	private final long offset;
+	private final long length;
+	private final String encoding;
+	private final FileChannel channel;
+
+	/**
+	 * 
+	 * @param file
+	 * @param channel
+	 *            the file, opened for reading, closed by close()
+	 * @param offset
+	 *            where the contents start
+	 * @param encoding
+	 *            codec the contents are encoded with
+	 * @throws IOException
+	 */
+	public FileStorageContents(Path file, FileChannel channel, long offset, String encoding) throws IOException {
+		this.file = file;
+		this.offset = offset;
+		this.encoding = encoding;
+		this.channel = channel;
+		this.length = this.channel.size() - offset;
+	}
+
+	@Override
+	public long getLength() {
+		return this.length;
+	}
+
+	@Override
+	public String getEncoding() {
+		return this.encoding;
+	}
+
+	@Override
+	public void transferTo(OutputStream out) throws IOException {
+		try {
+			StorageStreams.copy(this.channel, this.offset, this.length, out);
+		} catch (EOFException e) {
+			throw new EOFException("File " + this.file + " is shorter than " + this.length + " bytes of contents");
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.channel.close();
+	}
+
+}
@@ -1,17 +1,63 @@
 package com.mesosphere.challenge.service.dao;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.Channels;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
 import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.log4j.Logger;
 
 import com.mesosphere.challenge.StorageException;
+import com.mesosphere.challenge.model.StorageMetadata;
 import com.mesosphere.challenge.model.StorageNode;
+import com.mesosphere.challenge.model.StorageOutcome;
+import com.mesosphere.challenge.model.StorageResult;
+import com.mesosphere.challenge.service.dao.MemoryStorageJournal.FsyncPolicy;
 
 /**
  * 
@@ -19,6 +65,61 @@ import com.mesosphere.challenge.model.StorageNode;
  *
  *         This is a DAO implementation class that stores nodes on disk.
  *
+ *         Node files written by the service start with a one line header: a
+ *         marker, the codec the rest of the file is encoded with, and the
+ *         length and SHA-256 checksum of the contents before encoding. A node
+ *         file describes itself, so its metadata is replaced with it, in the
+ *         same rename. Last modified time comes from the file system. Names
+ *         starting with a dot are reserved for our own files and are not
+ *         accepted as locations.
+ *
+ *         Files without the header were written outside of the service, or
+ *         by a version that kept checksum and codec in a sidecar file of the
+ *         same name in the .meta folder. They are read as they are, or with
+ *         the codec of a sidecar no older than the file. Without one there is
+ *         no checksum.
+ *
+ *         Node files are written to a temporary file next to them and renamed
+ *         into place, so they are never seen half written, not even after a
+ *         crash. The fsync policy sets when they are forced to disk.
+ *
+ *         With deduplication on, each distinct contents is written once to the
+ *         .content folder, named by its checksum, and node files are hard links
+ *         to it. The file system link count is the reference count: contents
+ *         whose only link left is the one in .content are deleted by a
+ *         background collector. Node files are then shared, and are always
+ *         replaced rather than written in place. Linked files share the time
+ *         their contents were first stored, so each node also gets a sidecar
+ *         with the checksum of its last write, whose time is the node's last
+ *         modified time while the checksums agree.
+ *
+ *         With a shard depth above zero, node files are fanned out under the
+ *         .shards folder by the SHA-256 of their name, one folder level of two
+ *         hex digits per depth, so no folder grows past a few hundred entries
+ *         at millions of nodes. Sidecars sit at the same relative path under
+ *         .meta. Listings walk the top level shards in parallel and merge
+ *         their names.
+ *
+ *         Node files left flat in the root folder by an earlier version are
+ *         still found there, and are moved into their shards by migrate()
+ *         while the store is in use. Until that has finished, every operation
+ *         takes a lock per stripe of names that the migration holds while it
+ *         moves a node.
+ *
+ *         With the listing index on, the names and lengths of all nodes are
+ *         kept in memory, so listings are served from a sorted map instead of
+ *         reading folders. It is built with a parallel scan at startup and kept
+ *         current by our own writes, and by a WatchService on the node folders
+ *         for changes made outside of the service.
+ *
+ *         The asynchronous calls read and write node files through an
+ *         AsynchronousFileChannel on a pool of I/O threads, so the caller's
+ *         thread is not held while a node is read or written. The steps
+ *         around the transfer, sidecars, renames and folder creation, run on
+ *         the same pool. Calls without an asynchronous path of their own, and
+ *         every call while flat files are left or with deduplication on, run
+ *         their blocking version on that pool.
+ *
  */
 public class FileStorageDAO implements IStorageDAO {
 
@@ -26,8 +127,139 @@ public class FileStorageDAO implements IStorageDAO {
 
 	protected static final String CHALLENGEROOT = "challengeroot";
 
+	protected static final String METADATA_FOLDER = ".meta";
+
+	protected static final String CONTENT_FOLDER = ".content";
+
+	protected static final String SHARD_FOLDER = ".shards";
+
+	/*
+	 * Start of the header of node files we wrote, and the most bytes the
+	 * whole header can take
+	 */
+	protected static final byte[] HEADER_MARKER = "\0challenge-node ".getBytes(StandardCharsets.US_ASCII);
+	protected static final int HEADER_LIMIT = 160;
+
+	public static final long DEFAULT_COLLECT_INTERVAL = 60000;
+
+	/*
+	 * Shard depths above this would only add empty folders
+	 */
+	public static final int MAX_SHARD_DEPTH = 3;
+
+	/*
+	 * Threads walking the shards of a listing
+	 */
+	protected static final int WALK_THREADS = 8;
+
+	/*
+	 * Stripes of names locked against a migration moving them
+	 */
+	protected static final int MIGRATION_STRIPES = 256;
+
+	/*
+	 * Times a link is retried when the collector removes its contents first
+	 */
+	protected static final int LINK_ATTEMPTS = 5;
+
+	/*
+	 * Threads running the asynchronous calls
+	 */
+	public static final int DEFAULT_IO_THREADS = 16;
+
+	/*
+	 * How long closing waits for a batch of folders being forced, in ms
+	 */
+	protected static final long SYNCER_TIMEOUT = 10000;
+
 	String root = null;
 	Path rootFolder = null;
+	Path metadataFolder = null;
+
+	/*
+	 * Only set when deduplication is on
+	 */
+	Path contentFolder = null;
+
+	/*
+	 * Folder levels of node files under the .shards folder, zero for flat
+	 */
+	int shardDepth = 0;
+	Path shardFolder = null;
+
+	/*
+	 * Set while node files may still be flat in the root folder
+	 */
+	private volatile boolean flatFiles = false;
+
+	private final ReentrantReadWriteLock[] migrationLocks = new ReentrantReadWriteLock[MIGRATION_STRIPES];
+
+	private ExecutorService walker = null;
+
+	private ExecutorService migrator = null;
+
+	private volatile StorageCompression compression = new StorageCompression();
+
+	private ScheduledExecutorService collector = null;
+
+	/*
+	 * Deduplication statistics
+	 */
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong collections = new AtomicLong();
+	private final AtomicLong collected = new AtomicLong();
+
+	/*
+	 * Node files moved into their shards
+	 */
+	private final AtomicLong migrated = new AtomicLong();
+
+	/*
+	 * When written files and folders are forced to disk
+	 */
+	private volatile FsyncPolicy fsync = FsyncPolicy.NEVER;
+
+	private final Set<Path> unsynced = ConcurrentHashMap.newKeySet();
+
+	private ScheduledExecutorService syncer = null;
+
+	private final AtomicLong fsyncs = new AtomicLong();
+
+	/*
+	 * Node name to length, null until the listing index is enabled. Listings
+	 * only use it once it has been built.
+	 */
+	private volatile ConcurrentSkipListMap<String, Long> index = null;
+	private volatile boolean indexReady = false;
+
+	/*
+	 * Stripes of names, an index entry is only changed under the lock of its
+	 * stripe, taken within enter() and exit()
+	 */
+	private final ReentrantLock[] indexLocks = new ReentrantLock[MIGRATION_STRIPES];
+
+	/*
+	 * Watched folders, with the shard levels below them, zero for node files
+	 */
+	private WatchService watchService = null;
+	private final Map<WatchKey, Integer> watched = new ConcurrentHashMap<WatchKey, Integer>();
+	private volatile boolean watchIncomplete = false;
+
+	private final AtomicLong watchEvents = new AtomicLong();
+	private final AtomicLong watchOverflows = new AtomicLong();
+	private final AtomicLong indexRebuilds = new AtomicLong();
+	private volatile long indexMillis = 0;
+
+	/*
+	 * Pool of the asynchronous calls, started on first use
+	 */
+	private int ioThreads = DEFAULT_IO_THREADS;
+	private ExecutorService io = null;
+
+	private final AtomicLong asyncReads = new AtomicLong();
+	private final AtomicLong asyncWrites = new AtomicLong();
+	private final AtomicLong asyncBlocking = new AtomicLong();
 
 	/*
 	 * Constructor
@@ -41,12 +273,32 @@ public class FileStorageDAO implements IStorageDAO {
 	 * Constructor
 	 */
 	public FileStorageDAO(String root) throws StorageException {
+		this(root, false);
+	}
+
+	/*
+	 * Constructor
+	 */
+	public FileStorageDAO(String root, boolean deduplicate) throws StorageException {
+		this(root, deduplicate, 0);
+	}
+
+	/*
+	 * Constructor
+	 */
+	public FileStorageDAO(String root, boolean deduplicate, int shardDepth) throws StorageException {
 		/*
 		 * Make sure we create a subfolder so that we don't accidentally delete
 		 * any preexisting content.
 		 */
 		this.root = root + "/" + CHALLENGEROOT;
 		this.init();
+		if (deduplicate) {
+			this.initContents();
+		}
+		if (shardDepth != 0) {
+			this.initShards(shardDepth);
+		}
 	}
 
 	protected void init() throws StorageException {
@@ -61,38 +313,1530 @@ public class FileStorageDAO implements IStorageDAO {
 			if ((Files.exists(rootFolder)) && (Files.isDirectory(rootFolder) == false)) {
 				throw new StorageException("FileStorageDAO failed to initialize, root folders is not a folder");
 			}
-			this.rootFolder = rootFolder;
-			logger.info("FileStorageDAO init at: " + this.root + ", initialization succeeded");
+			this.rootFolder = rootFolder;
+			this.metadataFolder = Files.createDirectories(rootFolder.resolve(METADATA_FOLDER));
+			logger.info("FileStorageDAO init at: " + this.root + ", initialization succeeded");
+		} catch (IOException e) {
+			throw new StorageException("FileStorageDAO failed to initialize", e);
+		} finally {
+			// Cleanup here
+		}
+
+	}
+
+	/**
+	 * 
+	 * Turn on deduplication. The link count is read through the unix file
+	 * attribute view, so file systems without it are refused here.
+	 * 
+	 * @throws StorageException
+	 */
+	protected void initContents() throws StorageException {
+		if (this.rootFolder.getFileSystem().supportedFileAttributeViews().contains("unix") == false) {
+			throw new StorageException("FileStorageDAO deduplication needs a file system with link counts");
+		}
+		try {
+			this.contentFolder = Files.createDirectories(this.rootFolder.resolve(CONTENT_FOLDER));
+		} catch (IOException e) {
+			throw new StorageException("FileStorageDAO failed to initialize", e);
+		}
+		this.scheduleContentCollection(DEFAULT_COLLECT_INTERVAL);
+		logger.info("FileStorageDAO deduplicating contents in: " + this.contentFolder);
+	}
+
+	/**
+	 * 
+	 * Turn on the sharded layout. Node files found flat in the root folder
+	 * stay readable there until migrate() has moved them.
+	 * 
+	 * @param shardDepth
+	 * @throws StorageException
+	 */
+	protected void initShards(int shardDepth) throws StorageException {
+		if ((shardDepth < 0) || (shardDepth > MAX_SHARD_DEPTH)) {
+			throw new StorageException("FileStorageDAO shard depth must be between 0 and " + MAX_SHARD_DEPTH);
+		}
+		for (int i = 0; i < MIGRATION_STRIPES; i++) {
+			this.migrationLocks[i] = new ReentrantReadWriteLock();
+		}
+		try {
+			this.shardFolder = Files.createDirectories(this.rootFolder.resolve(SHARD_FOLDER));
+			Files.createDirectories(this.metadataFolder.resolve(SHARD_FOLDER));
+			try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(this.rootFolder)) {
+				for (Path path : directoryStream) {
+					if (this.reserved(path.getFileName().toString()) == false) {
+						this.flatFiles = true;
+						break;
+					}
+				}
+			}
+		} catch (IOException e) {
+			throw new StorageException("FileStorageDAO failed to initialize", e);
+		}
+		this.shardDepth = shardDepth;
+		this.walker = Executors.newFixedThreadPool(WALK_THREADS, runnable -> {
+			Thread thread = new Thread(runnable, "file-storage-walker");
+			thread.setDaemon(true);
+			return thread;
+		});
+		logger.info("FileStorageDAO sharding " + shardDepth + " levels deep in: " + this.shardFolder
+				+ (this.flatFiles ? ", flat node files found" : ""));
+	}
+
+	/**
+	 * 
+	 * Run migrate() once in the background, if there are flat node files
+	 * 
+	 */
+	public synchronized void startMigration() {
+		if ((this.flatFiles == false) || (this.migrator != null)) {
+			return;
+		}
+		this.migrator = Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "file-storage-migrator");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.migrator.submit(() -> {
+			try {
+				this.migrate();
+			} catch (StorageException | RuntimeException e) {
+				logger.warn("Migration to sharded layout failed", e);
+			}
+		});
+	}
+
+	/**
+	 * 
+	 * Move the node files in the root folder, and their sidecars, into their
+	 * shards. Each node is moved under the write lock of its stripe, so
+	 * readers and writers see it either flat or sharded. The sidecar is
+	 * linked first and the flat one deleted last, so a node file always has
+	 * one next to it. A copy would not do, it can lose the sub-microsecond
+	 * part of the time the sidecar is compared on. Sidecars left flat by an
+	 * interrupted migration are deleted at the end.
+	 * 
+	 * Stops early, leaving the rest flat, if the thread is interrupted.
+	 * 
+	 * @return the number of node files moved
+	 * @throws StorageException
+	 */
+	public int migrate() throws StorageException {
+		if ((this.shardDepth == 0) || (this.flatFiles == false)) {
+			return 0;
+		}
+		logger.info("FileStorageDAO migrating flat node files into shards");
+
+		int count = 0;
+		try {
+			try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(this.rootFolder)) {
+				for (Path path : directoryStream) {
+					String name = path.getFileName().toString();
+					if (this.reserved(name)) {
+						continue;
+					}
+					if (Thread.currentThread().isInterrupted()) {
+						logger.info("FileStorageDAO migration interrupted after " + count + " node files");
+						return count;
+					}
+					Lock lock = this.migrationLocks[this.stripe(name)].writeLock();
+					lock.lock();
+					try {
+						this.migrate(path);
+						count++;
+					} finally {
+						lock.unlock();
+					}
+				}
+			}
+			this.flatFiles = false;
+
+			try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(this.metadataFolder)) {
+				for (Path path : directoryStream) {
+					if (this.reserved(path.getFileName().toString()) == false) {
+						Files.deleteIfExists(path);
+					}
+				}
+			}
+		} catch (IOException e) {
+			throw new StorageException("migrate failed with java IOException", e);
+		}
+		logger.info("FileStorageDAO migrated " + count + " node files into shards");
+		return count;
+	}
+
+	/**
+	 * 
+	 * Move one flat node file and its sidecar into its shard. A sharded file
+	 * of the same name can only be left from an earlier attempt, the flat
+	 * one is dropped then.
+	 * 
+	 * @param flat
+	 * @throws IOException
+	 */
+	protected void migrate(Path flat) throws IOException {
+		Path sharded = this.shard(flat.getFileName().toString());
+		Files.createDirectories(sharded.getParent());
+		Path flatSidecar = this.sidecar(flat);
+		Path shardedSidecar = this.sidecar(sharded);
+		if (Files.exists(sharded)) {
+			Files.delete(flat);
+		} else {
+			Files.createDirectories(shardedSidecar.getParent());
+			try {
+				Files.deleteIfExists(shardedSidecar);
+				Files.createLink(shardedSidecar, flatSidecar);
+			} catch (UnsupportedOperationException e) {
+				/*
+				 * No links on this file system, moving keeps the time too
+				 */
+				Files.move(flatSidecar, shardedSidecar, StandardCopyOption.ATOMIC_MOVE);
+			} catch (NoSuchFileException e) {
+				/*
+				 * Written outside of the service
+				 */
+			}
+			Files.move(flat, sharded, StandardCopyOption.ATOMIC_MOVE);
+			this.migrated.incrementAndGet();
+		}
+		Files.deleteIfExists(flatSidecar);
+	}
+
+	/**
+	 * 
+	 * @param name
+	 * @return the stripe of migration locks a name falls in
+	 */
+	protected int stripe(String name) {
+		int hash = name.hashCode();
+		return ((hash ^ (hash >>> 16)) & 0x7fffffff) % MIGRATION_STRIPES;
+	}
+
+	/**
+	 * 
+	 * Keep the migration away from a name until exit() is called. Nothing
+	 * is locked once there are no flat node files left.
+	 * 
+	 * @param name
+	 * @return the lock to pass to exit()
+	 */
+	protected Lock enter(String name) {
+		if (this.flatFiles == false) {
+			return null;
+		}
+		Lock ret = this.migrationLocks[this.stripe(name)].readLock();
+		ret.lock();
+		return ret;
+	}
+
+	protected void exit(Lock lock) {
+		if (lock != null) {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * 
+	 * Path of a node file in the sharded layout, or in the root folder
+	 * without it
+	 * 
+	 * @param name
+	 * @return
+	 */
+	protected Path shard(String name) {
+		if (this.shardDepth == 0) {
+			return this.rootFolder.resolve(name);
+		}
+		String hash = StorageChecksums.checksum(name.getBytes(StandardCharsets.UTF_8));
+		Path ret = this.shardFolder;
+		for (int i = 0; i < this.shardDepth; i++) {
+			ret = ret.resolve(hash.substring(2 * i, 2 * i + 2));
+		}
+		return ret.resolve(name);
+	}
+
+	/**
+	 * 
+	 * Path of a node file. That is its shard, unless the node has not been
+	 * migrated yet. Call within enter() and exit().
+	 * 
+	 * @param name
+	 * @return
+	 */
+	protected Path locate(String name) {
+		Path ret = this.shard(name);
+		if ((this.flatFiles) && (Files.notExists(ret))) {
+			Path flat = this.rootFolder.resolve(name);
+			if (Files.exists(flat)) {
+				return flat;
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * 
+	 * @param filePath
+	 * @return the path of the sidecar of a node file, under .meta at the same
+	 *         relative path
+	 */
+	protected Path sidecar(Path filePath) {
+		return this.metadataFolder.resolve(this.rootFolder.relativize(filePath));
+	}
+
+	/**
+	 * 
+	 * Set when writes are forced to disk. Every write goes to a temporary
+	 * file that is renamed into place, so node files are never torn whatever
+	 * the policy. With NEVER the OS decides when they reach the disk. With
+	 * INTERVAL each file is forced before its rename, and the folders renamed
+	 * into are forced every interval milliseconds, so a write may be lost but
+	 * never half kept. With ALWAYS the folder is forced too before the write
+	 * returns.
+	 * 
+	 * @param fsync
+	 * @param interval
+	 * @throws StorageException
+	 */
+	public synchronized void setFsync(FsyncPolicy fsync, long interval) throws StorageException {
+		if (fsync == null) {
+			throw new StorageException("Fsync policy is null");
+		}
+		this.stopSyncer();
+		this.fsync = fsync;
+		if ((fsync != FsyncPolicy.INTERVAL) || (interval <= 0)) {
+			return;
+		}
+		this.syncer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "file-storage-fsync");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.syncer.scheduleWithFixedDelay(() -> {
+			try {
+				this.forceFolders();
+			} catch (IOException | RuntimeException e) {
+				logger.warn("Forcing folders to disk failed", e);
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * 
+	 * Stop the folder fsync, if any. A batch already being forced is left to
+	 * finish, interrupting it would close its channel half way and leave the
+	 * folder not durable.
+	 * 
+	 */
+	protected synchronized void stopSyncer() {
+		if (this.syncer == null) {
+			return;
+		}
+		this.syncer.shutdown();
+		try {
+			if (this.syncer.awaitTermination(SYNCER_TIMEOUT, TimeUnit.MILLISECONDS) == false) {
+				logger.warn("Folder fsync still running after " + SYNCER_TIMEOUT + " ms");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		this.syncer = null;
+	}
+
+	/**
+	 * 
+	 * Run the content collector every interval milliseconds, replacing any
+	 * earlier schedule. An interval of zero or less stops it.
+	 * 
+	 * @param interval
+	 */
+	public synchronized void scheduleContentCollection(long interval) {
+		if (this.collector != null) {
+			this.collector.shutdownNow();
+			this.collector = null;
+		}
+		if ((this.contentFolder == null) || (interval <= 0)) {
+			return;
+		}
+		this.collector = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "file-content-collector");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.collector.scheduleWithFixedDelay(() -> {
+			try {
+				this.collectContents();
+			} catch (StorageException | RuntimeException e) {
+				logger.warn("Content collection failed", e);
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * 
+	 * Delete all contents no node file links to any more.
+	 * 
+	 * A writer may link to contents just after they were found unreferenced
+	 * and just before they are deleted. The node file keeps its data, the
+	 * next write of the same contents simply stores them again.
+	 * 
+	 * @return the number of contents deleted
+	 * @throws StorageException
+	 */
+	public int collectContents() throws StorageException {
+		if (this.contentFolder == null) {
+			return 0;
+		}
+		int count = 0;
+		try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(this.contentFolder)) {
+			for (Path path : directoryStream) {
+				/*
+				 * Leave half written temporary files alone
+				 */
+				if (path.getFileName().toString().contains(".")) {
+					continue;
+				}
+				try {
+					if (((Integer) Files.getAttribute(path, "unix:nlink")) <= 1) {
+						Files.delete(path);
+						count++;
+					}
+				} catch (NoSuchFileException e) {
+					/*
+					 * Replaced or deleted since we listed the folder
+					 */
+				}
+			}
+		} catch (IOException e) {
+			throw new StorageException("collectContents failed with java IOException", e);
+		}
+		this.collections.incrementAndGet();
+		this.collected.addAndGet(count);
+		if (count > 0) {
+			logger.info("Collected " + count + " unreferenced contents");
+		}
+		return count;
+	}
+
+	/**
+	 * 
+	 * Stop the content collector, the walkers, the migration, the watcher,
+	 * the I/O threads and the folder fsync, if any, forcing the last folders
+	 * to disk.
+	 * Spring calls this on shutdown.
+	 * 
+	 */
+	@Override
+	public void close() {
+		logger.info("FileStorageDAO close");
+		this.scheduleContentCollection(0);
+		synchronized (this) {
+			if (this.migrator != null) {
+				this.migrator.shutdownNow();
+			}
+			this.stopSyncer();
+			if (this.watchService != null) {
+				try {
+					this.watchService.close();
+				} catch (IOException e) {
+					logger.warn("Closing the watch service failed", e);
+				}
+			}
+		}
+		try {
+			this.forceFolders();
+		} catch (IOException e) {
+			logger.warn("Forcing folders to disk failed", e);
+		}
+		if (this.walker != null) {
+			this.walker.shutdownNow();
+		}
+		synchronized (this) {
+			if (this.io != null) {
+				this.io.shutdownNow();
+				this.io = null;
+			}
+		}
+	}
+
+	/**
+	 * 
+	 * Compress node files written from now on. Files already written keep
+	 * their codec, each sidecar carries its own marker.
+	 * 
+	 * @param compression
+	 * @throws StorageException
+	 */
+	public void setCompression(StorageCompression compression) throws StorageException {
+		if (compression == null) {
+			throw new StorageException("Compression is null");
+		}
+		this.compression = compression;
+	}
+
+	@Override
+	public Map<String, Object> getStorageStatistics() {
+		Map<String, Object> ret = this.compression.getStatistics();
+		ret.put("file.shardDepth", this.shardDepth);
+		ret.put("file.flatFiles", this.flatFiles);
+		ret.put("file.migrated", this.migrated.get());
+		ret.put("file.fsync", this.fsync.name().toLowerCase());
+		ret.put("file.fsyncs", this.fsyncs.get());
+		ConcurrentSkipListMap<String, Long> index = this.index;
+		if (index != null) {
+			ret.put("file.index.ready", this.indexReady);
+			ret.put("file.index.nodes", index.size());
+			ret.put("file.index.rebuilds", this.indexRebuilds.get());
+			ret.put("file.index.millis", this.indexMillis);
+			ret.put("file.index.watchedFolders", this.watched.size());
+			ret.put("file.index.watchIncomplete", this.watchIncomplete);
+			ret.put("file.index.watchEvents", this.watchEvents.get());
+			ret.put("file.index.watchOverflows", this.watchOverflows.get());
+		}
+		ret.put("file.async.ioThreads", this.ioThreads);
+		ret.put("file.async.reads", this.asyncReads.get());
+		ret.put("file.async.writes", this.asyncWrites.get());
+		ret.put("file.async.blocking", this.asyncBlocking.get());
+		if (this.contentFolder == null) {
+			return ret;
+		}
+		ret.put("dedup.hits", this.hits.get());
+		ret.put("dedup.misses", this.misses.get());
+		ret.put("dedup.collections", this.collections.get());
+		ret.put("dedup.collected", this.collected.get());
+		long contents = 0;
+		long storedBytes = 0;
+		try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(this.contentFolder)) {
+			for (Path path : directoryStream) {
+				if (path.getFileName().toString().contains(".") == false) {
+					contents++;
+					storedBytes += Files.size(path);
+				}
+			}
+		} catch (IOException e) {
+			logger.warn("Failed to read deduplication statistics", e);
+		}
+		ret.put("dedup.contents", contents);
+		ret.put("dedup.storedBytes", storedBytes);
+		return ret;
+	}
+
+	/**
+	 * 
+	 * Names starting with a dot hold our own metadata, they are not nodes
+	 * 
+	 * @param name
+	 * @return
+	 */
+	protected boolean reserved(String name) {
+		return name.startsWith(".");
+	}
+
+	/**
+	 * 
+	 * Temporary file next to a node file, so it can be renamed into place.
+	 * Its name is reserved, listings skip it.
+	 * 
+	 * @param filePath
+	 * @return
+	 */
+	protected Path temporary(Path filePath) {
+		return filePath.resolveSibling("." + UUID.randomUUID());
+	}
+
+	/**
+	 * 
+	 * Write a new file in full, and force it to disk unless fsync is off, so
+	 * that it is never renamed into place half written.
+	 * 
+	 * @param path
+	 * @param contents
+	 * @throws IOException
+	 */
+	protected void write(Path path, byte[] contents) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+			ByteBuffer buffer = ByteBuffer.wrap(contents);
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			if (this.fsync != FsyncPolicy.NEVER) {
+				channel.force(true);
+				this.fsyncs.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * 
+	 * Make a rename into a folder durable, now or with the next batch
+	 * 
+	 * @param folder
+	 * @throws IOException
+	 */
+	protected void renamed(Path folder) throws IOException {
+		if (this.fsync == FsyncPolicy.ALWAYS) {
+			this.force(folder);
+		} else if (this.fsync == FsyncPolicy.INTERVAL) {
+			this.unsynced.add(folder);
+		}
+	}
+
+	/**
+	 * 
+	 * Force the entries of a folder to disk
+	 * 
+	 * @param folder
+	 * @throws IOException
+	 */
+	protected void force(Path folder) throws IOException {
+		try (FileChannel channel = FileChannel.open(folder, StandardOpenOption.READ)) {
+			channel.force(true);
+		}
+		this.fsyncs.incrementAndGet();
+	}
+
+	/**
+	 * 
+	 * Force the folders renamed into since the last batch. A folder is taken
+	 * off before it is forced, so a rename into it meanwhile puts it back for
+	 * the next batch. A folder that fails to force is put back as well, and
+	 * the first failure is thrown once the others are done.
+	 * 
+	 * @throws IOException
+	 */
+	public void forceFolders() throws IOException {
+		List<Path> failed = new ArrayList<Path>();
+		IOException failure = null;
+		for (Iterator<Path> iterator = this.unsynced.iterator(); iterator.hasNext();) {
+			Path folder = iterator.next();
+			iterator.remove();
+			try {
+				this.force(folder);
+			} catch (NoSuchFileException e) {
+				/*
+				 * Nothing left to make durable
+				 */
+			} catch (IOException e) {
+				failed.add(folder);
+				if (failure == null) {
+					failure = e;
+				} else {
+					failure.addSuppressed(e);
+				}
+			}
+		}
+		this.unsynced.addAll(failed);
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * 
+	 * Write the contents of a node file. Without deduplication they are
+	 * written to a temporary file that is then put in place, so the node
+	 * file is always complete. With it, the file is linked to the stored
+	 * contents, storing them first if they are new. Either way, a new file
+	 * is linked in, which fails if it exists already, and an existing one is
+	 * swapped in a single rename.
+	 * 
+	 * @param filePath
+	 * @param contents
+	 * @param replace
+	 * @throws IOException
+	 */
+	protected void writeContents(Path filePath, byte[] contents, boolean replace) throws IOException {
+		if (this.shardDepth != 0) {
+			Files.createDirectories(filePath.getParent());
+		}
+		if (this.contentFolder == null) {
+			Path temporary = this.temporary(filePath);
+			try {
+				this.write(temporary, contents);
+				this.place(temporary, filePath, replace);
+			} finally {
+				Files.deleteIfExists(temporary);
+			}
+			this.renamed(filePath.getParent());
+			return;
+		}
+
+		Path stored = this.contentFolder.resolve(StorageChecksums.checksum(contents));
+		for (int attempt = 1;; attempt++) {
+			if (Files.exists(stored)) {
+				this.hits.incrementAndGet();
+			} else {
+				/*
+				 * Contents appear under their checksum fully written or not at
+				 * all. Two writers storing the same contents both succeed.
+				 */
+				Path temporary = this.temporary(stored);
+				try {
+					this.write(temporary, contents);
+					Files.move(temporary, stored, StandardCopyOption.ATOMIC_MOVE);
+				} finally {
+					Files.deleteIfExists(temporary);
+				}
+				this.renamed(this.contentFolder);
+				this.misses.incrementAndGet();
+			}
+			try {
+				if (replace == false) {
+					Files.createLink(filePath, stored);
+				} else {
+					Path temporary = this.temporary(filePath);
+					Files.createLink(temporary, stored);
+					try {
+						Files.move(temporary, filePath, StandardCopyOption.REPLACE_EXISTING,
+								StandardCopyOption.ATOMIC_MOVE);
+					} finally {
+						Files.deleteIfExists(temporary);
+					}
+				}
+				this.renamed(filePath.getParent());
+				return;
+			} catch (NoSuchFileException e) {
+				/*
+				 * The collector removed the contents before we linked them
+				 */
+				if (attempt >= LINK_ATTEMPTS) {
+					throw e;
+				}
+			}
+		}
+	}
+
+	/**
+	 * 
+	 * Put a written temporary file in place of a node file. A new file is
+	 * linked, so a file created meanwhile is never overwritten. File systems
+	 * without links get a move that checks first.
+	 * 
+	 * @param temporary
+	 * @param filePath
+	 * @param replace
+	 * @throws IOException
+	 */
+	protected void place(Path temporary, Path filePath, boolean replace) throws IOException {
+		if (replace) {
+			Files.move(temporary, filePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			return;
+		}
+		try {
+			Files.createLink(filePath, temporary);
+		} catch (UnsupportedOperationException e) {
+			Files.move(temporary, filePath);
+		}
+	}
+
+	/**
+	 * 
+	 * Contents of a node file: the header, then the contents as encoded
+	 * 
+	 * @param contents
+	 * @param checksum
+	 *            of the contents before encoding
+	 * @param encoded
+	 * @return
+	 */
+	protected byte[] stored(byte[] contents, String checksum, StorageCompression.Encoded encoded) {
+		byte[] fields = (encoded.getCodec().getName() + " " + contents.length + " " + checksum + "\n")
+				.getBytes(StandardCharsets.US_ASCII);
+		byte[] bytes = encoded.getBytes();
+		byte[] ret = new byte[HEADER_MARKER.length + fields.length + bytes.length];
+		System.arraycopy(HEADER_MARKER, 0, ret, 0, HEADER_MARKER.length);
+		System.arraycopy(fields, 0, ret, HEADER_MARKER.length, fields.length);
+		System.arraycopy(bytes, 0, ret, HEADER_MARKER.length + fields.length, bytes.length);
+		return ret;
+	}
+
+	/**
+	 * 
+	 * Header of a node file
+	 * 
+	 */
+	protected static class Header {
+
+		IStorageCodec codec = null;
+		long length = 0;
+		String checksum = null;
+		int size = 0;
+
+	}
+
+	/**
+	 * 
+	 * Parse the header at the start of a node file
+	 * 
+	 * @param bytes
+	 * @param count
+	 *            number of bytes read into bytes
+	 * @return null if the file has none
+	 * @throws StorageException
+	 *             if the header names a codec we do not know
+	 */
+	protected static Header header(byte[] bytes, int count) throws StorageException {
+		if (count < HEADER_MARKER.length) {
+			return null;
+		}
+		for (int i = 0; i < HEADER_MARKER.length; i++) {
+			if (bytes[i] != HEADER_MARKER[i]) {
+				return null;
+			}
+		}
+		int end = HEADER_MARKER.length;
+		while ((end < count) && (bytes[end] != '\n')) {
+			end++;
+		}
+		if (end >= count) {
+			return null;
+		}
+		String[] fields = new String(bytes, HEADER_MARKER.length, end - HEADER_MARKER.length,
+				StandardCharsets.US_ASCII).split(" ");
+		if (fields.length != 3) {
+			return null;
+		}
+		Header ret = new Header();
+		try {
+			ret.length = Long.parseLong(fields[1]);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		ret.codec = StorageCodecs.forName(fields[0]);
+		ret.checksum = fields[2];
+		ret.size = end + 1;
+		return ret;
+	}
+
+	/**
+	 * 
+	 * Read the header of an open node file
+	 * 
+	 * @param channel
+	 * @return null if the file has none
+	 * @throws IOException
+	 * @throws StorageException
+	 */
+	protected Header readHeader(FileChannel channel) throws IOException, StorageException {
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_LIMIT);
+		while ((buffer.hasRemaining()) && (channel.read(buffer, buffer.position()) >= 0)) {
+			// keep reading until full or at the end
+		}
+		return header(buffer.array(), buffer.position());
+	}
+
+	/**
+	 * 
+	 * Read the header of a node file
+	 * 
+	 * @param filePath
+	 * @return null if the file has none
+	 * @throws IOException
+	 * @throws StorageException
+	 */
+	protected Header readHeader(Path filePath) throws IOException, StorageException {
+		try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+			return this.readHeader(channel);
+		}
+	}
+
+	/**
+	 * 
+	 * Write the sidecar of a deduplicated node, with the checksum of this
+	 * write, after the node file has been linked. Sidecars are replaced
+	 * whole, the same way node files are. Without deduplication node files
+	 * keep their own time, and no sidecar is written.
+	 * 
+	 * @param filePath
+	 * @param checksum
+	 * @throws IOException
+	 */
+	protected void writeMetadata(Path filePath, String checksum) throws IOException {
+		if (this.contentFolder == null) {
+			return;
+		}
+		Path path = this.sidecar(filePath);
+		if (this.shardDepth != 0) {
+			Files.createDirectories(path.getParent());
+		}
+		Path temporary = this.temporary(path);
+		try {
+			this.write(temporary, checksum.getBytes(StandardCharsets.UTF_8));
+			Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temporary);
+		}
+		this.renamed(path.getParent());
+	}
+
+	/**
+	 * 
+	 * Contents of a sidecar file. Sidecars written before node files had a
+	 * header also hold the codec and uncompressed length of encoded files.
+	 * 
+	 */
+	protected static class Sidecar {
+
+		String checksum = null;
+		IStorageCodec codec = StorageCodecs.IDENTITY;
+		Long length = null;
+		FileTime written = null;
+
+	}
+
+	/**
+	 * 
+	 * Read the sidecar of a node
+	 * 
+	 * @param filePath
+	 * @return null if there is none
+	 * @throws IOException
+	 * @throws StorageException
+	 */
+	protected Sidecar readSidecar(Path filePath) throws IOException, StorageException {
+		Path path = this.sidecar(filePath);
+		try {
+			Sidecar ret = new Sidecar();
+			ret.written = Files.getLastModifiedTime(path);
+			String[] fields = new String(Files.readAllBytes(path), StandardCharsets.UTF_8).split(" ");
+			ret.checksum = fields[0];
+			if (fields.length > 2) {
+				ret.codec = StorageCodecs.forName(fields[1]);
+				ret.length = Long.valueOf(fields[2]);
+			}
+			return ret;
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * 
+	 * Read the sidecar of a node file without a header, null if there is
+	 * none or if the node file has been written since the sidecar was.
+	 * 
+	 * @param filePath
+	 * @param modified
+	 *            last modified time of the node file
+	 * @return
+	 * @throws IOException
+	 * @throws StorageException
+	 */
+	protected Sidecar readMetadata(Path filePath, FileTime modified) throws IOException, StorageException {
+		Sidecar ret = this.readSidecar(filePath);
+		if ((ret == null) || (ret.written.compareTo(modified) < 0)) {
+			return null;
+		}
+		return ret;
+	}
+
+	/**
+	 * 
+	 * Decode the bytes read from a node file. Files without a header are
+	 * decoded with the codec of their sidecar, if they have one.
+	 * 
+	 * @param filePath
+	 * @param bytes
+	 * @return
+	 * @throws IOException
+	 * @throws StorageException
+	 */
+	protected byte[] decode(Path filePath, byte[] bytes) throws IOException, StorageException {
+		Header header = header(bytes, bytes.length);
+		if (header != null) {
+			return StorageCodecs.decode(header.codec, Arrays.copyOfRange(bytes, header.size, bytes.length));
+		}
+		Sidecar sidecar = this.readMetadata(filePath, Files.getLastModifiedTime(filePath));
+		return StorageCodecs.decode((sidecar != null) ? sidecar.codec : StorageCodecs.IDENTITY, bytes);
+	}
+
+	/**
+	 * 
+	 * Read and decode a node file
+	 * 
+	 * @param filePath
+	 * @return
+	 * @throws IOException
+	 * @throws StorageException
+	 */
+	protected byte[] read(Path filePath) throws IOException, StorageException {
+		return this.decode(filePath, Files.readAllBytes(filePath));
+	}
+
+	/**
+	 * 
+	 * Add the node names in a folder, or in the shards levels deep under it,
+	 * that sort after the cursor. Only the smallest limit names are kept.
+	 * 
+	 * @param folder
+	 * @param levels
+	 * @param after
+	 * @param limit
+	 * @param names
+	 * @throws IOException
+	 */
+	protected void scan(Path folder, int levels, String after, int limit, TreeSet<String> names)
+			throws IOException {
+		try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(folder)) {
+			for (Path path : directoryStream) {
+				String name = path.getFileName().toString();
+				if (this.reserved(name)) {
+					continue;
+				}
+				if (levels > 0) {
+					this.scan(path, levels - 1, after, limit, names);
+					continue;
+				}
+				if ((after != null) && (name.compareTo(after) <= 0)) {
+					continue;
+				}
+				names.add(name);
+				if ((limit > 0) && (names.size() > limit)) {
+					names.pollLast();
+				}
+			}
+		}
+	}
+
+	/**
+	 * 
+	 * Names of the nodes that sort after the cursor, the smallest limit of
+	 * them, or all with a limit of zero.
+	 * 
+	 * Directory entries come back in no particular order, so each walk keeps
+	 * the smallest names in a set bounded by the page size. The top level
+	 * shards are walked in parallel and their sets merged. Flat node files
+	 * are listed before the shards are walked, so a node the migration moves
+	 * meanwhile is still found in its shard.
+	 * 
+	 * @param after
+	 * @param limit
+	 * @return
+	 * @throws StorageException
+	 */
+	protected TreeSet<String> names(String after, int limit) throws StorageException {
+		TreeSet<String> ret = new TreeSet<String>();
+		try {
+			if ((this.shardDepth == 0) || (this.flatFiles)) {
+				this.scan(this.rootFolder, 0, after, limit, ret);
+			}
+			if (this.shardDepth == 0) {
+				return ret;
+			}
+
+			List<Future<TreeSet<String>>> walks = new ArrayList<Future<TreeSet<String>>>();
+			try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(this.shardFolder)) {
+				for (Path path : directoryStream) {
+					walks.add(this.walker.submit(() -> {
+						TreeSet<String> names = new TreeSet<String>();
+						this.scan(path, this.shardDepth - 1, after, limit, names);
+						return names;
+					}));
+				}
+			}
+			try {
+				for (Future<TreeSet<String>> walk : walks) {
+					ret.addAll(walk.get());
+					while ((limit > 0) && (ret.size() > limit)) {
+						ret.pollLast();
+					}
+				}
+			} finally {
+				for (Future<TreeSet<String>> walk : walks) {
+					walk.cancel(true);
+				}
+			}
+			return ret;
+		} catch (IOException e) {
+			throw new StorageException("getStorageNodes failed with java IOException", e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new StorageException("Interrupted while listing nodes", e);
+		} catch (ExecutionException e) {
+			throw new StorageException("Listing a shard folder failed", e.getCause());
+		}
+	}
+
+	/**
+	 * 
+	 * Turn on the listing index. The node folders are watched first, then
+	 * scanned, so nothing changed during the scan is missed. An overflow of
+	 * the watch queue rebuilds the index. Folders the system refuses to watch,
+	 * past the inotify limit for instance, are logged, changes made outside of
+	 * the service in them are only seen by rebuildIndex(). Network file
+	 * systems may not report changes made from other hosts at all.
+	 * 
+	 * @throws StorageException
+	 */
+	public synchronized void enableListingIndex() throws StorageException {
+		if (this.index != null) {
+			return;
+		}
+		for (int i = 0; i < MIGRATION_STRIPES; i++) {
+			this.indexLocks[i] = new ReentrantLock();
+		}
+		try {
+			this.watchService = this.rootFolder.getFileSystem().newWatchService();
+			this.watch(this.rootFolder, 0);
+			if (this.shardDepth != 0) {
+				this.watch(this.shardFolder, this.shardDepth);
+			}
+		} catch (IOException e) {
+			throw new StorageException("FileStorageDAO failed to watch " + this.root, e);
+		}
+		this.index = new ConcurrentSkipListMap<String, Long>();
+		this.rebuildIndex();
+		this.indexReady = true;
+
+		Thread watcher = new Thread(this::watchFolders, "file-storage-watcher");
+		watcher.setDaemon(true);
+		watcher.start();
+	}
+
+	/**
+	 * 
+	 * Watch a folder, and the shard folders levels deep under it
+	 * 
+	 * @param folder
+	 * @param levels
+	 * @throws IOException
+	 */
+	protected void watch(Path folder, int levels) throws IOException {
+		try {
+			WatchKey key = folder.register(this.watchService, StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+			this.watched.put(key, levels);
+		} catch (NoSuchFileException e) {
+			return;
+		} catch (IOException e) {
+			if (this.watchIncomplete == false) {
+				logger.warn("Failed to watch " + folder + ", changes made outside of the service are not all seen", e);
+			}
+			this.watchIncomplete = true;
+		}
+		if (levels == 0) {
+			return;
+		}
+		try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(folder)) {
+			for (Path path : directoryStream) {
+				if ((this.reserved(path.getFileName().toString()) == false) && (Files.isDirectory(path))) {
+					this.watch(path, levels - 1);
+				}
+			}
+		}
+	}
+
+	/**
+	 * 
+	 * Body of the watcher thread. Runs until the watch service is closed.
+	 * 
+	 */
+	protected void watchFolders() {
+		while (true) {
+			WatchKey key = null;
+			try {
+				key = this.watchService.take();
+			} catch (InterruptedException | ClosedWatchServiceException e) {
+				return;
+			}
+			Integer levels = this.watched.get(key);
+			Path folder = (Path) key.watchable();
+			for (WatchEvent<?> event : key.pollEvents()) {
+				this.watchEvents.incrementAndGet();
+				try {
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+						this.watchOverflows.incrementAndGet();
+						this.rebuildIndex();
+						continue;
+					}
+					String name = event.context().toString();
+					if ((levels == null) || (this.reserved(name))) {
+						continue;
+					}
+					Path path = folder.resolve(name);
+					if (levels == 0) {
+						this.refresh(name);
+					} else if ((event.kind() == StandardWatchEventKinds.ENTRY_CREATE) && (Files.isDirectory(path))) {
+						/*
+						 * Files may have landed in it before it was watched
+						 */
+						this.watch(path, levels - 1);
+						this.indexFolder(path, levels - 1, null);
+					}
+				} catch (IOException | StorageException | RuntimeException e) {
+					logger.warn("Failed to update the listing index from " + folder, e);
+				}
+			}
+			if (key.reset() == false) {
+				this.watched.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * 
+	 * Scan every node folder into the index, the top level shards in
+	 * parallel, then drop the names that were not found. Safe while the store
+	 * is in use, entries are only changed under their lock.
+	 * 
+	 * @throws StorageException
+	 */
+	public void rebuildIndex() throws StorageException {
+		ConcurrentSkipListMap<String, Long> index = this.index;
+		if (index == null) {
+			return;
+		}
+		long start = System.currentTimeMillis();
+		Set<String> seen = ConcurrentHashMap.newKeySet();
+		try {
+			if ((this.shardDepth == 0) || (this.flatFiles)) {
+				this.indexFolder(this.rootFolder, 0, seen);
+			}
+			if (this.shardDepth != 0) {
+				List<Future<Void>> walks = new ArrayList<Future<Void>>();
+				try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(this.shardFolder)) {
+					for (Path path : directoryStream) {
+						walks.add(this.walker.submit(() -> {
+							this.indexFolder(path, this.shardDepth - 1, seen);
+							return null;
+						}));
+					}
+				}
+				try {
+					for (Future<Void> walk : walks) {
+						walk.get();
+					}
+				} finally {
+					for (Future<Void> walk : walks) {
+						walk.cancel(true);
+					}
+				}
+			}
+			for (String name : index.keySet()) {
+				if (seen.contains(name) == false) {
+					this.refresh(name);
+				}
+			}
+		} catch (IOException e) {
+			throw new StorageException("rebuildIndex failed with java IOException", e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new StorageException("Interrupted while indexing nodes", e);
+		} catch (ExecutionException e) {
+			throw new StorageException("Indexing a shard folder failed", e.getCause());
+		}
+		this.indexRebuilds.incrementAndGet();
+		this.indexMillis = System.currentTimeMillis() - start;
+		logger.info("FileStorageDAO indexed " + index.size() + " nodes in " + this.indexMillis + " ms");
+	}
+
+	/**
+	 * 
+	 * Refresh the index entries of the node files in a folder, or in the
+	 * shards levels deep under it
+	 * 
+	 * @param folder
+	 * @param levels
+	 * @param seen
+	 *            names found are added here, if not null
+	 * @throws IOException
+	 * @throws StorageException
+	 */
+	protected void indexFolder(Path folder, int levels, Set<String> seen) throws IOException, StorageException {
+		try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(folder)) {
+			for (Path path : directoryStream) {
+				String name = path.getFileName().toString();
+				if (this.reserved(name)) {
+					continue;
+				}
+				if (levels > 0) {
+					this.indexFolder(path, levels - 1, seen);
+					continue;
+				}
+				if (seen != null) {
+					seen.add(name);
+				}
+				this.refresh(name);
+			}
+		}
+	}
+
+	/**
+	 * 
+	 * Set the index entry of a node from its file, or drop it if there is no
+	 * such node
+	 * 
+	 * @param name
+	 * @throws IOException
+	 * @throws StorageException
+	 */
+	protected void refresh(String name) throws IOException, StorageException {
+		Lock lock = this.enter(name);
+		Lock indexLock = this.indexLocks[this.stripe(name)];
+		indexLock.lock();
+		try {
+			Path filePath = this.locate(name);
+			try {
+				BasicFileAttributes attributes = Files.readAttributes(filePath, BasicFileAttributes.class);
+				if (attributes.isRegularFile() == false) {
+					this.index.remove(name);
+					return;
+				}
+				Header header = this.readHeader(filePath);
+				if (header != null) {
+					this.index.put(name, header.length);
+					return;
+				}
+				Sidecar sidecar = this.readMetadata(filePath, attributes.lastModifiedTime());
+				boolean encoded = (sidecar != null) && (sidecar.length != null);
+				this.index.put(name, encoded ? sidecar.length : attributes.size());
+			} catch (NoSuchFileException e) {
+				this.index.remove(name);
+			}
+		} finally {
+			indexLock.unlock();
+			this.exit(lock);
+		}
+	}
+
+	/**
+	 * 
+	 * Record our own write of a node in the index, if there is one. Call
+	 * within enter() and exit().
+	 * 
+	 * @param name
+	 * @param length
+	 *            null for a delete
+	 */
+	protected void indexed(String name, Long length) {
+		ConcurrentSkipListMap<String, Long> index = this.index;
+		if (index == null) {
+			return;
+		}
+		Lock indexLock = this.indexLocks[this.stripe(name)];
+		indexLock.lock();
+		try {
+			if (length == null) {
+				index.remove(name);
+			} else {
+				index.put(name, length);
+			}
+		} finally {
+			indexLock.unlock();
+		}
+	}
+
+	/**
+	 * 
+	 * Read a node, null if it does not exist
+	 * 
+	 * @param name
+	 * @return
+	 * @throws IOException
+	 * @throws StorageException
+	 */
+	protected StorageNode readNode(String name) throws IOException, StorageException {
+		Lock lock = this.enter(name);
+		try {
+			Path filePath = this.locate(name);
+			return new StorageNode(name, this.read(filePath));
+		} catch (NoSuchFileException e) {
+			return null;
+		} finally {
+			this.exit(lock);
+		}
+	}
+
+	@Override
+	public Collection<StorageNode> getStorageNodes() throws StorageException {
+		logger.info("getStorageNodes");
+
+		Collection<StorageNode> ret = new ArrayList<StorageNode>();
+		for (String name : this.indexReady ? this.index.keySet() : this.names(null, 0)) {
+			ret.add(new StorageNode(name, (String) null));
+		}
+		return ret;
+
+	}
+
+	@Override
+	public Collection<StorageNode> getStorageNodes(String after, int limit, boolean metadataOnly)
+			throws StorageException {
+		logger.info("getStorageNodes: after " + after + ", limit " + limit);
+
+		/*
+		 * Only the files on the page are opened, nodes deleted since they were
+		 * listed are left out. The index has the lengths, so a metadata page
+		 * opens none.
+		 */
+		Collection<StorageNode> ret = new ArrayList<StorageNode>();
+		if (this.indexReady) {
+			Map<String, Long> page = (after == null) ? this.index : this.index.tailMap(after, false);
+			try {
+				for (Map.Entry<String, Long> entry : page.entrySet()) {
+					if ((limit > 0) && (ret.size() >= limit)) {
+						break;
+					}
+					StorageNode node = null;
+					if (metadataOnly) {
+						node = new StorageNode(entry.getKey(), (String) null);
+						node.setLength(entry.getValue().intValue());
+					} else {
+						node = this.readNode(entry.getKey());
+					}
+					if (node != null) {
+						ret.add(node);
+					}
+				}
+				return ret;
+			} catch (IOException e) {
+				throw new StorageException("getStorageNodes failed with java IOException", e);
+			}
+		}
+		try {
+			for (String name : this.names(after, limit)) {
+				if (metadataOnly) {
+					StorageMetadata metadata = this.getStorageMetadata(Arrays.asList(name));
+					if (metadata == null) {
+						continue;
+					}
+					StorageNode node = new StorageNode(name, (String) null);
+					node.setLength(metadata.getLength().intValue());
+					ret.add(node);
+				} else {
+					StorageNode node = this.readNode(name);
+					if (node != null) {
+						ret.add(node);
+					}
+				}
+			}
+			return ret;
+		} catch (IOException e) {
+			throw new StorageException("getStorageNodes failed with java IOException", e);
+		} finally {
+			// clean up if needed
+		}
+
+	}
+
+	@Override
+	public StorageNode getStorageNode(Collection<String> path) throws StorageException {
+		logger.info("getStorageNode");
+
+		if (path == null) {
+			throw new StorageException("Path is null");
+		}
+
+		if (path.size() != 1) {
+			throw new StorageException("Path is longer than one element, currently not supported");
+		}
+
+		/*
+		 * Get filename, we only support single filenames for now
+		 */
+		String name = path.iterator().next();
+
+		try {
+			/*
+			 * Make sure file is not one of ours
+			 */
+			if (this.reserved(name)) {
+				return null;
+			}
+			return this.readNode(name);
 		} catch (IOException e) {
-			throw new StorageException("FileStorageDAO failed to initialize", e);
+			throw new StorageException("getStorageNode failed with java IOException", e);
 		} finally {
-			// Cleanup here
+			// clean up if needed
 		}
 
 	}
 
 	@Override
-	public Collection<StorageNode> getStorageNodes() throws StorageException {
-		logger.info("getStorageNodes");
+	public StorageMetadata getStorageMetadata(Collection<String> path) throws StorageException {
+		logger.info("getStorageMetadata");
 
-		Path filePath = Paths.get(this.root);
-		try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(filePath)) {
-			Collection<StorageNode> ret = new ArrayList<StorageNode>();
-			for (Path path : directoryStream) {
-				ret.add(new StorageNode(path.getFileName().toString(), (String) null));
+		if (path == null) {
+			throw new StorageException("Path is null");
+		}
+
+		if (path.size() != 1) {
+			throw new StorageException("Path is longer than one element, currently not supported");
+		}
+
+		/*
+		 * Get filename, we only support single filenames for now
+		 */
+		String name = path.iterator().next();
+		if (this.reserved(name)) {
+			return null;
+		}
+
+		Lock lock = this.enter(name);
+		try {
+			Path filePath = this.locate(name);
+			BasicFileAttributes attributes = null;
+			try {
+				attributes = Files.readAttributes(filePath, BasicFileAttributes.class);
+			} catch (NoSuchFileException e) {
+				return null;
+			}
+			StorageMetadata ret = new StorageMetadata(name, attributes.size(), null,
+					attributes.lastModifiedTime().toMillis());
+			Header header = null;
+			try {
+				header = this.readHeader(filePath);
+			} catch (NoSuchFileException e) {
+				return null;
+			}
+			if (header != null) {
+				ret.setLength(header.length);
+				ret.setChecksum(header.checksum);
+
+				/*
+				 * Linked node files share the time their contents were first
+				 * stored, the sidecar has the time of the write, unless it is
+				 * left from another one
+				 */
+				if (this.contentFolder != null) {
+					Sidecar sidecar = this.readSidecar(filePath);
+					if ((sidecar != null) && (header.checksum.equals(sidecar.checksum))) {
+						ret.setModified(sidecar.written.toMillis());
+					}
+				}
+				return ret;
+			}
+
+			/*
+			 * The sidecar of a file without a header is only good if the file
+			 * has not been written since the sidecar was. Without it there is
+			 * no checksum.
+			 */
+			Sidecar sidecar = this.readMetadata(filePath, attributes.lastModifiedTime());
+			if (sidecar != null) {
+				ret.setChecksum(sidecar.checksum);
+				if (sidecar.length != null) {
+					ret.setLength(sidecar.length);
+				}
 			}
 			return ret;
 		} catch (IOException e) {
-			throw new StorageException("getStorageNodes failed with java IOException", e);
+			throw new StorageException("getStorageMetadata failed with java IOException", e);
 		} finally {
-			// clean up if needed
+			this.exit(lock);
 		}
 
 	}
 
 	@Override
-	public StorageNode getStorageNode(Collection<String> path) throws StorageException {
-		logger.info("getStorageNode");
+	public IStorageContents getStorageContents(Collection<String> path) throws StorageException {
+		return this.getStorageContents(path, Collections.emptyList());
+	}
+
+	@Override
+	public IStorageContents getStorageContents(Collection<String> path, Collection<String> encodings)
+			throws StorageException {
+		logger.info("getStorageContents");
 
 		if (path == null) {
 			throw new StorageException("Path is null");
@@ -107,28 +1851,111 @@ public class FileStorageDAO implements IStorageDAO {
 		 */
 		String name = path.iterator().next();
 
+		if (this.reserved(name)) {
+			return null;
+		}
+
+		Lock lock = this.enter(name);
 		try {
-			Path filePath = Paths.get(this.root + "/" + name);
-			/*
-			 * Make sure file exists
-			 */
-			if (Files.exists(filePath) == false) {
+			Path filePath = this.locate(name);
+			FileChannel channel = null;
+			try {
+				channel = FileChannel.open(filePath, StandardOpenOption.READ);
+			} catch (NoSuchFileException e) {
 				return null;
 			}
-			byte[] read = Files.readAllBytes(filePath);
-			return new StorageNode(name, read);
+			boolean opened = false;
+			try {
+				IStorageContents ret = this.contents(filePath, channel, encodings);
+				opened = true;
+				return ret;
+			} finally {
+				if (opened == false) {
+					channel.close();
+				}
+			}
 		} catch (IOException e) {
-			throw new StorageException("getStorageNode failed with java IOException", e);
+			throw new StorageException("getStorageContents failed with java IOException", e);
 		} finally {
-			// clean up if needed
+			this.exit(lock);
+		}
+
+	}
+
+	/**
+	 * 
+	 * Contents of an open node file. The file is handed out as it is if the
+	 * caller takes its codec, so it can be sent without copying, otherwise
+	 * it is decoded on the way out. Everything is read from the channel, so
+	 * a node replaced meanwhile is read as it was when it was opened.
+	 * 
+	 * @param filePath
+	 * @param channel
+	 * @param encodings
+	 * @return
+	 * @throws IOException
+	 * @throws StorageException
+	 */
+	protected IStorageContents contents(Path filePath, FileChannel channel, Collection<String> encodings)
+			throws IOException, StorageException {
+		Header header = this.readHeader(channel);
+		IStorageCodec codec = StorageCodecs.IDENTITY;
+		long offset = 0;
+		Long decoded = null;
+		if (header != null) {
+			codec = header.codec;
+			offset = header.size;
+			decoded = header.length;
+		} else {
+			Sidecar sidecar = this.readMetadata(filePath, Files.getLastModifiedTime(filePath));
+			if (sidecar != null) {
+				codec = sidecar.codec;
+				decoded = sidecar.length;
+			}
 		}
+		boolean passthrough = (codec == StorageCodecs.IDENTITY) || (encodings.contains(codec.getName()));
+		if (passthrough) {
+			return new FileStorageContents(filePath, channel, offset, codec.getName());
+		}
+		long length = decoded;
+		String encoding = StorageCodecs.IDENTITY.getName();
+		InputStream stream = codec.decoder(Channels.newInputStream(channel.position(offset)));
+		return new IStorageContents() {
+
+			@Override
+			public long getLength() {
+				return length;
+			}
+
+			@Override
+			public String getEncoding() {
+				return encoding;
+			}
+
+			@Override
+			public void transferTo(OutputStream out) throws IOException {
+				StorageStreams.copy(stream, out);
+			}
+
+			@Override
+			public void close() throws IOException {
+				stream.close();
+			}
 
+		};
 	}
 
 	@Override
 	public StorageNode createStorageNode(StorageNode node, Collection<String> path) throws StorageException {
 		logger.info("createStorageNode");
 
+		return this.createStorageNodeIfAbsent(node, path).getNode();
+	}
+
+	@Override
+	public StorageResult createStorageNodeIfAbsent(StorageNode node, Collection<String> path) throws StorageException {
+		logger.info("createStorageNodeIfAbsent");
+
 		if (node == null) {
 			throw new StorageException("Node is null");
 		}
@@ -146,45 +1973,83 @@ public class FileStorageDAO implements IStorageDAO {
 		 */
 		String name = path.iterator().next();
 
-		try {
-
-			Path filePath = Paths.get(this.root + "/" + name);
+		if (this.reserved(name)) {
+			return new StorageResult(name, StorageOutcome.INVALID);
+		}
 
-			/*
-			 * Make sure file does not exist
-			 */
-			if (Files.exists(filePath) == true) {
-				return null;
-			}
+		Lock lock = this.enter(name);
+		try {
 
-			/*
-			 * 
-			 */
-			Files.createFile(filePath);
+			Path filePath = this.locate(name);
 
 			/*
-			 * Make sure we what we write is sane
+			 * Make sure we what we write is sane. Linking the file in fails if
+			 * it exists, which stands in for checking first.
 			 */
-			if (node.getContents() != null) {
-				Files.write(filePath, node.getContents().getBytes());
-			} else {
-				Files.write(filePath, "".getBytes());
+			byte[] contents = StorageChecksums.bytes(node);
+			String checksum = StorageChecksums.checksum(contents);
+			StorageCompression.Encoded encoded = this.compression.encode(contents);
+			try {
+				this.writeContents(filePath, this.stored(contents, checksum, encoded), false);
+			} catch (FileAlreadyExistsException e) {
+				return new StorageResult(name, StorageOutcome.EXISTS);
 			}
+			this.writeMetadata(filePath, checksum);
+			this.indexed(name, (long) contents.length);
 
 			/*
-			 * Make sure file exists
+			 * The file was put in place whole, there is no need to read it back
 			 */
-			if (Files.exists(filePath) == false) {
-				return null;
-			}
-			byte[] read = Files.readAllBytes(filePath);
-			return new StorageNode(name, read);
+			return new StorageResult(name, StorageOutcome.CREATED, new StorageNode(name, contents));
 
 		} catch (IOException e) {
 			throw new StorageException("createStorageNode failed with java IOException", e);
 		} finally {
-			// clean up if needed
+			this.exit(lock);
+		}
+
+	}
+
+	@Override
+	public Collection<StorageResult> createStorageNodes(Collection<StorageNode> nodes) throws StorageException {
+		logger.info("createStorageNodes");
+
+		if (nodes == null) {
+			throw new StorageException("Nodes is null");
+		}
+
+		/*
+		 * Each file is created and written in one go with CREATE_NEW, or
+		 * linked, which fails if the file already exists. That replaces the
+		 * separate exists check, create and read back of the single node path.
+		 */
+		Collection<StorageResult> ret = new ArrayList<StorageResult>(nodes.size());
+		for (StorageNode node : nodes) {
+			if ((node == null) || (node.getLocation() == null) || (node.getLocation().contains("/"))
+					|| (this.reserved(node.getLocation()))) {
+				ret.add(new StorageResult(null, StorageOutcome.INVALID));
+				continue;
+			}
+			String name = node.getLocation();
+			byte[] contents = StorageChecksums.bytes(node);
+			Lock lock = this.enter(name);
+			try {
+				Path filePath = this.locate(name);
+				String checksum = StorageChecksums.checksum(contents);
+				StorageCompression.Encoded encoded = this.compression.encode(contents);
+				this.writeContents(filePath, this.stored(contents, checksum, encoded), false);
+				this.writeMetadata(filePath, checksum);
+				this.indexed(name, (long) contents.length);
+				ret.add(new StorageResult(name, StorageOutcome.CREATED, node));
+			} catch (FileAlreadyExistsException e) {
+				ret.add(new StorageResult(name, StorageOutcome.EXISTS));
+			} catch (IOException e) {
+				throw new StorageException("createStorageNodes failed with java IOException", e);
+			} finally {
+				this.exit(lock);
+			}
 		}
+		return ret;
 
 	}
 
@@ -192,6 +2057,13 @@ public class FileStorageDAO implements IStorageDAO {
 	public StorageNode updateStorageNode(StorageNode node, Collection<String> path) throws StorageException {
 		logger.info("updateStorageNode");
 
+		return this.updateStorageNodeIfPresent(node, path).getNode();
+	}
+
+	@Override
+	public StorageResult updateStorageNodeIfPresent(StorageNode node, Collection<String> path) throws StorageException {
+		logger.info("updateStorageNodeIfPresent");
+
 		if (node == null) {
 			throw new StorageException("Node is null");
 		}
@@ -209,40 +2081,37 @@ public class FileStorageDAO implements IStorageDAO {
 		 */
 		String name = path.iterator().next();
 
+		if (this.reserved(name)) {
+			return new StorageResult(name, StorageOutcome.NOT_FOUND);
+		}
+
+		Lock lock = this.enter(name);
 		try {
 
-			Path filePath = Paths.get(this.root + "/" + name);
+			Path filePath = this.locate(name);
 
 			/*
-			 * Make sure file does not exist
+			 * Make sure file does exist
 			 */
 			if (Files.exists(filePath) != true) {
-				return null;
+				return new StorageResult(name, StorageOutcome.NOT_FOUND);
 			}
 
 			/*
 			 * Make sure we what we write is sane
 			 */
-			if (node.getContents() != null) {
-				Files.write(filePath, node.getContents().getBytes());
-			} else {
-				Files.write(filePath, "".getBytes());
-			}
-
-			/*
-			 * Make sure file exists
-			 */
-			if (Files.exists(filePath) == false) {
-				return null;
-			}
-
-			byte[] read = Files.readAllBytes(filePath);
-			return new StorageNode(name, read);
+			byte[] contents = StorageChecksums.bytes(node);
+			String checksum = StorageChecksums.checksum(contents);
+			StorageCompression.Encoded encoded = this.compression.encode(contents);
+			this.writeContents(filePath, this.stored(contents, checksum, encoded), true);
+			this.writeMetadata(filePath, checksum);
+			this.indexed(name, (long) contents.length);
+			return new StorageResult(name, StorageOutcome.UPDATED, new StorageNode(name, contents));
 
 		} catch (IOException e) {
 			throw new StorageException("updateStorageNode failed with java IOException", e);
 		} finally {
-			// clean up if needed
+			this.exit(lock);
 		}
 
 	}
@@ -251,6 +2120,13 @@ public class FileStorageDAO implements IStorageDAO {
 	public void deleteStorageNode(Collection<String> path) throws StorageException {
 		logger.info("deleteStorageNode");
 
+		this.deleteStorageNodeIfPresent(path);
+	}
+
+	@Override
+	public StorageResult deleteStorageNodeIfPresent(Collection<String> path) throws StorageException {
+		logger.info("deleteStorageNodeIfPresent");
+
 		if (path == null) {
 			throw new StorageException("Path is null");
 		}
@@ -264,26 +2140,446 @@ public class FileStorageDAO implements IStorageDAO {
 		 */
 		String name = path.iterator().next();
 
+		if (this.reserved(name)) {
+			return new StorageResult(name, StorageOutcome.NOT_FOUND);
+		}
+
+		Lock lock = this.enter(name);
 		try {
 
-			Path filePath = Paths.get(this.root + "/" + name);
+			Path filePath = this.locate(name);
 
 			/*
-			 * Make sure file does not exist
+			 * Removing the file tells whether it was there
 			 */
-			if (Files.exists(filePath) != true) {
-				return;
+			if (Files.deleteIfExists(filePath) == false) {
+				return new StorageResult(name, StorageOutcome.NOT_FOUND);
 			}
-
-			Files.delete(filePath);
-			return;
+			Files.deleteIfExists(this.sidecar(filePath));
+			this.indexed(name, null);
+			return new StorageResult(name, StorageOutcome.DELETED);
 
 		} catch (IOException e) {
 			throw new StorageException("deleteStorageNode failed with java IOException", e);
 		} finally {
-			// clean up if needed
+			this.exit(lock);
+		}
+
+	}
+
+	/**
+	 * 
+	 * Set the number of I/O threads of the asynchronous calls. Calls already
+	 * running finish on the old pool.
+	 * 
+	 * @param threads
+	 * @throws StorageException
+	 */
+	public synchronized void setIoThreads(int threads) throws StorageException {
+		if (threads < 1) {
+			throw new StorageException("I/O threads must be at least one");
 		}
+		this.ioThreads = threads;
+		if (this.io != null) {
+			this.io.shutdown();
+			this.io = null;
+		}
+	}
+
+	/**
+	 * 
+	 * @return the pool of the asynchronous calls
+	 */
+	protected synchronized ExecutorService io() {
+		if (this.io == null) {
+			this.io = Executors.newFixedThreadPool(this.ioThreads, runnable -> {
+				Thread thread = new Thread(runnable, "file-storage-io");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		return this.io;
+	}
+
+	/**
+	 * 
+	 * Run the blocking version of a call on the I/O threads. Flat files take
+	 * a read lock that has to be released by the thread that took it, and
+	 * deduplicated writes take several steps that each block, so they are
+	 * never split up.
+	 * 
+	 * @param call
+	 * @return
+	 */
+	protected <T> CompletableFuture<T> blocking(StorageFutures.StorageCall<T> call) {
+		this.asyncBlocking.incrementAndGet();
+		return StorageFutures.supply(call, this.io());
+	}
+
+	/**
+	 * 
+	 * @param path
+	 * @return the node name of a path
+	 * @throws StorageException
+	 */
+	protected String name(Collection<String> path) throws StorageException {
+		if (path == null) {
+			throw new StorageException("Path is null");
+		}
+
+		if (path.size() != 1) {
+			throw new StorageException("Path is longer than one element, currently not supported");
+		}
+
+		return path.iterator().next();
+	}
+
+	/**
+	 * 
+	 * A missing node file ends a read with null rather than a failure
+	 * 
+	 * @param future
+	 * @return
+	 */
+	protected static <T> CompletableFuture<T> missing(CompletableFuture<T> future) {
+		return future.handle((value, failure) -> {
+			if (failure == null) {
+				return value;
+			}
+			if (StorageFutures.cause(failure) instanceof NoSuchFileException) {
+				return null;
+			}
+			throw (failure instanceof CompletionException) ? (CompletionException) failure
+					: new CompletionException(failure);
+		});
+	}
+
+	protected static void close(AsynchronousFileChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			logger.warn("Closing a file channel failed", e);
+		}
+	}
+
+	/**
+	 * 
+	 * Read a file in full without waiting for it
+	 * 
+	 * @param filePath
+	 * @return the raw bytes of the file
+	 */
+	protected CompletableFuture<byte[]> readAsync(Path filePath) {
+		CompletableFuture<byte[]> ret = new CompletableFuture<byte[]>();
+		AsynchronousFileChannel channel = null;
+		try {
+			channel = AsynchronousFileChannel.open(filePath, EnumSet.of(StandardOpenOption.READ), this.io());
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException("File too large to read at once: " + filePath);
+			}
+			this.readAsync(channel, ByteBuffer.allocate((int) size), ret);
+		} catch (IOException | RuntimeException e) {
+			if (channel != null) {
+				close(channel);
+			}
+			ret.completeExceptionally(e);
+		}
+		this.asyncReads.incrementAndGet();
+		return ret;
+	}
+
+	/**
+	 * 
+	 * Read into the rest of the buffer, again and again until it is full or
+	 * the file ends, then complete the future with what was read
+	 * 
+	 * @param channel
+	 * @param buffer
+	 * @param future
+	 */
+	protected void readAsync(AsynchronousFileChannel channel, ByteBuffer buffer, CompletableFuture<byte[]> future) {
+		if (buffer.hasRemaining() == false) {
+			close(channel);
+			future.complete(buffer.array());
+			return;
+		}
+		channel.read(buffer, buffer.position(), null, new CompletionHandler<Integer, Void>() {
+
+			@Override
+			public void completed(Integer read, Void attachment) {
+				if (read < 0) {
+					close(channel);
+					future.complete(Arrays.copyOf(buffer.array(), buffer.position()));
+					return;
+				}
+				try {
+					FileStorageDAO.this.readAsync(channel, buffer, future);
+				} catch (RuntimeException e) {
+					this.failed(e, attachment);
+				}
+			}
+
+			@Override
+			public void failed(Throwable failure, Void attachment) {
+				close(channel);
+				future.completeExceptionally(failure);
+			}
+
+		});
+	}
+
+	/**
+	 * 
+	 * Write a new file in full without waiting for it, forcing it to disk
+	 * unless fsync is off, like write()
+	 * 
+	 * @param path
+	 * @param contents
+	 * @return
+	 */
+	protected CompletableFuture<Void> writeAsync(Path path, byte[] contents) {
+		CompletableFuture<Void> ret = new CompletableFuture<Void>();
+		AsynchronousFileChannel channel = null;
+		try {
+			channel = AsynchronousFileChannel.open(path,
+					EnumSet.of(StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE), this.io());
+			this.writeAsync(channel, ByteBuffer.wrap(contents), ret);
+		} catch (IOException | RuntimeException e) {
+			if (channel != null) {
+				close(channel);
+			}
+			ret.completeExceptionally(e);
+		}
+		this.asyncWrites.incrementAndGet();
+		return ret;
+	}
+
+	/**
+	 * 
+	 * Write the rest of the buffer, again and again until it is all written
+	 * 
+	 * @param channel
+	 * @param buffer
+	 * @param future
+	 */
+	protected void writeAsync(AsynchronousFileChannel channel, ByteBuffer buffer, CompletableFuture<Void> future) {
+		if (buffer.hasRemaining() == false) {
+			try {
+				if (this.fsync != FsyncPolicy.NEVER) {
+					channel.force(true);
+					this.fsyncs.incrementAndGet();
+				}
+				channel.close();
+				future.complete(null);
+			} catch (IOException e) {
+				close(channel);
+				future.completeExceptionally(e);
+			}
+			return;
+		}
+		channel.write(buffer, buffer.position(), null, new CompletionHandler<Integer, Void>() {
+
+			@Override
+			public void completed(Integer written, Void attachment) {
+				try {
+					FileStorageDAO.this.writeAsync(channel, buffer, future);
+				} catch (RuntimeException e) {
+					this.failed(e, attachment);
+				}
+			}
+
+			@Override
+			public void failed(Throwable failure, Void attachment) {
+				close(channel);
+				future.completeExceptionally(failure);
+			}
+
+		});
+	}
+
+	/**
+	 * 
+	 * Write the contents of a node file without waiting for it, the way
+	 * writeContents() does without deduplication
+	 * 
+	 * @param filePath
+	 * @param contents
+	 * @param replace
+	 * @return false if the file was not to be replaced and exists
+	 */
+	protected CompletableFuture<Boolean> writeContentsAsync(Path filePath, byte[] contents, boolean replace) {
+		Path temporary = this.temporary(filePath);
+		return StorageFutures.supply(() -> {
+			if (this.shardDepth != 0) {
+				Files.createDirectories(filePath.getParent());
+			}
+			return temporary;
+		}, this.io()).thenCompose(path -> this.writeAsync(path, contents)).thenApply(StorageFutures.unchecked(done -> {
+			try {
+				this.place(temporary, filePath, replace);
+			} catch (FileAlreadyExistsException e) {
+				return false;
+			}
+			this.renamed(filePath.getParent());
+			return true;
+		})).whenComplete((written, failure) -> {
+			try {
+				Files.deleteIfExists(temporary);
+			} catch (IOException e) {
+				logger.warn("Removing a temporary file failed", e);
+			}
+		});
+	}
+
+	@Override
+	public CompletableFuture<Collection<StorageNode>> getStorageNodesAsync() {
+		return this.blocking(() -> this.getStorageNodes());
+	}
+
+	@Override
+	public CompletableFuture<Collection<StorageNode>> getStorageNodesAsync(String after, int limit,
+			boolean metadataOnly) {
+		return this.blocking(() -> this.getStorageNodes(after, limit, metadataOnly));
+	}
+
+	@Override
+	public CompletableFuture<StorageNode> getStorageNodeAsync(Collection<String> path) {
+		logger.info("getStorageNodeAsync");
+
+		String name = null;
+		try {
+			name = this.name(path);
+		} catch (StorageException e) {
+			return StorageFutures.failed(e);
+		}
+		if (this.reserved(name)) {
+			return CompletableFuture.completedFuture(null);
+		}
+		if (this.flatFiles) {
+			return this.blocking(() -> this.getStorageNode(path));
+		}
+
+		/*
+		 * The codec is in the header, read with the rest of the node file
+		 */
+		String node = name;
+		Path filePath = this.shard(name);
+		CompletableFuture<StorageNode> ret = this.readAsync(filePath)
+				.thenApply(StorageFutures.unchecked(bytes -> new StorageNode(node, this.decode(filePath, bytes))));
+		return StorageFutures.settle(missing(ret), "getStorageNode");
+	}
+
+	@Override
+	public CompletableFuture<StorageMetadata> getStorageMetadataAsync(Collection<String> path) {
+		return this.blocking(() -> this.getStorageMetadata(path));
+	}
+
+	@Override
+	public CompletableFuture<StorageNode> createStorageNodeAsync(StorageNode node, Collection<String> path) {
+		logger.info("createStorageNodeAsync");
+
+		return this.writeNodeAsync(node, path, false).thenApply(result -> result.getNode());
+	}
+
+	@Override
+	public CompletableFuture<StorageResult> createStorageNodeIfAbsentAsync(StorageNode node, Collection<String> path) {
+		logger.info("createStorageNodeIfAbsentAsync");
+
+		return this.writeNodeAsync(node, path, false);
+	}
+
+	@Override
+	public CompletableFuture<Collection<StorageResult>> createStorageNodesAsync(Collection<StorageNode> nodes) {
+		return this.blocking(() -> this.createStorageNodes(nodes));
+	}
+
+	@Override
+	public CompletableFuture<StorageNode> updateStorageNodeAsync(StorageNode node, Collection<String> path) {
+		logger.info("updateStorageNodeAsync");
+
+		return this.writeNodeAsync(node, path, true).thenApply(result -> result.getNode());
+	}
+
+	@Override
+	public CompletableFuture<StorageResult> updateStorageNodeIfPresentAsync(StorageNode node, Collection<String> path) {
+		logger.info("updateStorageNodeIfPresentAsync");
+
+		return this.writeNodeAsync(node, path, true);
+	}
+
+	/**
+	 * 
+	 * Create or update a node without waiting for the node file to be
+	 * written
+	 * 
+	 * @param node
+	 * @param path
+	 * @param replace
+	 *            true for an update, which needs the node to exist, false for
+	 *            a create, which needs it not to
+	 * @return
+	 */
+	protected CompletableFuture<StorageResult> writeNodeAsync(StorageNode node, Collection<String> path,
+			boolean replace) {
+		String name = null;
+		try {
+			if (node == null) {
+				throw new StorageException("Node is null");
+			}
+			name = this.name(path);
+		} catch (StorageException e) {
+			return StorageFutures.failed(e);
+		}
+		if (this.reserved(name)) {
+			return CompletableFuture.completedFuture(
+					new StorageResult(name, replace ? StorageOutcome.NOT_FOUND : StorageOutcome.INVALID));
+		}
+		if ((this.flatFiles) || (this.contentFolder != null)) {
+			return this.blocking(() -> replace ? this.updateStorageNodeIfPresent(node, path)
+					: this.createStorageNodeIfAbsent(node, path));
+		}
+
+		String location = name;
+		Path filePath = this.shard(name);
+		byte[] contents = StorageChecksums.bytes(node);
+		CompletableFuture<StorageResult> ret = StorageFutures.supply(() -> {
+			/*
+			 * Make sure file does exist for an update, a create finds out
+			 * when it links the file in
+			 */
+			if ((replace) && (Files.exists(filePath) == false)) {
+				return null;
+			}
+			return this.stored(contents, StorageChecksums.checksum(contents), this.compression.encode(contents));
+		}, this.io()).thenCompose(stored -> {
+			if (stored == null) {
+				return CompletableFuture.completedFuture(new StorageResult(location, StorageOutcome.NOT_FOUND));
+			}
+			return this.writeContentsAsync(filePath, stored, replace)
+					.thenApply(StorageFutures.unchecked(written -> {
+						if (written == false) {
+							return new StorageResult(location, StorageOutcome.EXISTS);
+						}
+						this.indexed(location, (long) contents.length);
+						StorageOutcome outcome = replace ? StorageOutcome.UPDATED : StorageOutcome.CREATED;
+						return new StorageResult(location, outcome, new StorageNode(location, contents));
+					}));
+		});
+		return StorageFutures.settle(ret, replace ? "updateStorageNode" : "createStorageNode");
+	}
 
+	@Override
+	public CompletableFuture<Void> deleteStorageNodeAsync(Collection<String> path) {
+		return this.blocking(() -> {
+			this.deleteStorageNode(path);
+			return null;
+		});
+	}
+
+	@Override
+	public CompletableFuture<StorageResult> deleteStorageNodeIfPresentAsync(Collection<String> path) {
+		return this.blocking(() -> this.deleteStorageNodeIfPresent(path));
 	}
 
 }
@@ -0,0 +1,296 @@
+package com.mesosphere.challenge.service.dao;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+import org.springframework.util.StringUtils;
+
+import com.mesosphere.challenge.StorageException;
+import com.mesosphere.challenge.model.StorageMetadata;
+import com.mesosphere.challenge.model.StorageNode;
+import com.mesosphere.challenge.model.StorageResult;
+
+/**
+ * 
+ * @author john
+ *
+ *         This is the base class for DAOs that wrap another DAO, like a cache
+ *         in front of it. Every call is passed on to the wrapped DAO as it is,
+ *         subclasses override the calls they add something to. Writes tell
+ *         written() about every location they touched once the wrapped DAO
+ *         returns, whether it succeeded or not, so subclasses that only need
+ *         to know what was written override that alone.
+ *
+ *         The asynchronous calls are passed on to the asynchronous calls of
+ *         the wrapped DAO, so a DAO that does not hold the caller's thread
+ *         still does not once wrapped. Subclasses that add something to a
+ *         read add it to its asynchronous variant too, chained onto the
+ *         future. Asynchronous writes call written() when their future
+ *         completes, before the future handed back to the caller does.
+ *
+ */
+public abstract class ForwardingStorageDAO implements IStorageDAO {
+
+	/*
+	 * Version stripes, for subclasses that track writes per location
+	 */
+	protected static final int STRIPES = 256;
+
+	private final IStorageDAO delegate;
+
+	/**
+	 * 
+	 * @param delegate
+	 * @throws StorageException
+	 */
+	protected ForwardingStorageDAO(IStorageDAO delegate) throws StorageException {
+		if (delegate == null) {
+			throw new StorageException("Delegate is null");
+		}
+		this.delegate = delegate;
+	}
+
+	/**
+	 * 
+	 * @return the wrapped DAO
+	 */
+	public IStorageDAO getDelegate() {
+		return this.delegate;
+	}
+
+	protected String path(Collection<String> path) throws StorageException {
+		if (path == null) {
+			throw new StorageException("Path is null");
+		}
+		return StringUtils.arrayToDelimitedString(path.toArray(), "/");
+	}
+
+	protected int stripe(String location) {
+		int hash = location.hashCode();
+		return ((hash ^ (hash >>> 16)) & 0x7fffffff) % STRIPES;
+	}
+
+	/**
+	 * 
+	 * A location was written, or maybe written if the write failed. Does
+	 * nothing here.
+	 * 
+	 * @param location
+	 * @param stored
+	 *            false for deletes
+	 */
+	protected void written(String location, boolean stored) {
+	}
+
+	@Override
+	public Collection<StorageNode> getStorageNodes() throws StorageException {
+		return this.delegate.getStorageNodes();
+	}
+
+	@Override
+	public Collection<StorageNode> getStorageNodes(String after, int limit, boolean metadataOnly)
+			throws StorageException {
+		return this.delegate.getStorageNodes(after, limit, metadataOnly);
+	}
+
+	@Override
+	public StorageNode getStorageNode(Collection<String> path) throws StorageException {
+		return this.delegate.getStorageNode(path);
+	}
+
+	@Override
+	public StorageMetadata getStorageMetadata(Collection<String> path) throws StorageException {
+		return this.delegate.getStorageMetadata(path);
+	}
+
+	@Override
+	public IStorageContents getStorageContents(Collection<String> path) throws StorageException {
+		return this.delegate.getStorageContents(path);
+	}
+
+	@Override
+	public IStorageContents getStorageContents(Collection<String> path, Collection<String> encodings)
+			throws StorageException {
+		return this.delegate.getStorageContents(path, encodings);
+	}
+
+	@Override
+	public StorageNode createStorageNode(StorageNode node, Collection<String> path) throws StorageException {
+		String location = this.path(path);
+		try {
+			return this.delegate.createStorageNode(node, path);
+		} finally {
+			this.written(location, true);
+		}
+	}
+
+	@Override
+	public Collection<StorageResult> createStorageNodes(Collection<StorageNode> nodes) throws StorageException {
+		try {
+			return this.delegate.createStorageNodes(nodes);
+		} finally {
+			if (nodes != null) {
+				for (StorageNode node : nodes) {
+					if ((node != null) && (node.getLocation() != null)) {
+						this.written(node.getLocation(), true);
+					}
+				}
+			}
+		}
+	}
+
+	@Override
+	public StorageNode updateStorageNode(StorageNode node, Collection<String> path) throws StorageException {
+		String location = this.path(path);
+		try {
+			return this.delegate.updateStorageNode(node, path);
+		} finally {
+			this.written(location, true);
+		}
+	}
+
+	@Override
+	public void deleteStorageNode(Collection<String> path) throws StorageException {
+		String location = this.path(path);
+		try {
+			this.delegate.deleteStorageNode(path);
+		} finally {
+			this.written(location, false);
+		}
+	}
+
+	@Override
+	public StorageResult createStorageNodeIfAbsent(StorageNode node, Collection<String> path) throws StorageException {
+		String location = this.path(path);
+		try {
+			return this.delegate.createStorageNodeIfAbsent(node, path);
+		} finally {
+			this.written(location, true);
+		}
+	}
+
+	@Override
+	public StorageResult updateStorageNodeIfPresent(StorageNode node, Collection<String> path) throws StorageException {
+		String location = this.path(path);
+		try {
+			return this.delegate.updateStorageNodeIfPresent(node, path);
+		} finally {
+			this.written(location, true);
+		}
+	}
+
+	@Override
+	public StorageResult deleteStorageNodeIfPresent(Collection<String> path) throws StorageException {
+		String location = this.path(path);
+		try {
+			return this.delegate.deleteStorageNodeIfPresent(path);
+		} finally {
+			this.written(location, false);
+		}
+	}
+
+	/**
+	 * 
+	 * Run an asynchronous write of the wrapped DAO, and tell written() about
+	 * its location once it completes, whether it succeeded or not
+	 * 
+	 * @param path
+	 * @param stored
+	 * @param write
+	 * @return
+	 */
+	protected <T> CompletableFuture<T> written(Collection<String> path, boolean stored,
+			Supplier<CompletableFuture<T>> write) {
+		String location = null;
+		try {
+			location = this.path(path);
+		} catch (StorageException e) {
+			return StorageFutures.failed(e);
+		}
+		String written = location;
+		try {
+			return write.get().whenComplete((value, failure) -> this.written(written, stored));
+		} catch (RuntimeException e) {
+			this.written(written, stored);
+			return StorageFutures.failed(e);
+		}
+	}
+
+	@Override
+	public CompletableFuture<Collection<StorageNode>> getStorageNodesAsync() {
+		return this.delegate.getStorageNodesAsync();
+	}
+
+	@Override
+	public CompletableFuture<Collection<StorageNode>> getStorageNodesAsync(String after, int limit,
+			boolean metadataOnly) {
+		return this.delegate.getStorageNodesAsync(after, limit, metadataOnly);
+	}
+
+	@Override
+	public CompletableFuture<StorageNode> getStorageNodeAsync(Collection<String> path) {
+		return this.delegate.getStorageNodeAsync(path);
+	}
+
+	@Override
+	public CompletableFuture<StorageMetadata> getStorageMetadataAsync(Collection<String> path) {
+		return this.delegate.getStorageMetadataAsync(path);
+	}
+
+	@Override
+	public CompletableFuture<StorageNode> createStorageNodeAsync(StorageNode node, Collection<String> path) {
+		return this.written(path, true, () -> this.delegate.createStorageNodeAsync(node, path));
+	}
+
+	@Override
+	public CompletableFuture<Collection<StorageResult>> createStorageNodesAsync(Collection<StorageNode> nodes) {
+		return this.delegate.createStorageNodesAsync(nodes).whenComplete((value, failure) -> {
+			if (nodes != null) {
+				for (StorageNode node : nodes) {
+					if ((node != null) && (node.getLocation() != null)) {
+						this.written(node.getLocation(), true);
+					}
+				}
+			}
+		});
+	}
+
+	@Override
+	public CompletableFuture<StorageNode> updateStorageNodeAsync(StorageNode node, Collection<String> path) {
+		return this.written(path, true, () -> this.delegate.updateStorageNodeAsync(node, path));
+	}
+
+	@Override
+	public CompletableFuture<Void> deleteStorageNodeAsync(Collection<String> path) {
+		return this.written(path, false, () -> this.delegate.deleteStorageNodeAsync(path));
+	}
+
+	@Override
+	public CompletableFuture<StorageResult> createStorageNodeIfAbsentAsync(StorageNode node, Collection<String> path) {
+		return this.written(path, true, () -> this.delegate.createStorageNodeIfAbsentAsync(node, path));
+	}
+
+	@Override
+	public CompletableFuture<StorageResult> updateStorageNodeIfPresentAsync(StorageNode node,
+			Collection<String> path) {
+		return this.written(path, true, () -> this.delegate.updateStorageNodeIfPresentAsync(node, path));
+	}
+
+	@Override
+	public CompletableFuture<StorageResult> deleteStorageNodeIfPresentAsync(Collection<String> path) {
+		return this.written(path, false, () -> this.delegate.deleteStorageNodeIfPresentAsync(path));
+	}
+
+	@Override
+	public Map<String, Object> getStorageStatistics() {
+		return this.delegate.getStorageStatistics();
+	}
+
+	@Override
+	public void close() {
+		this.delegate.close();
+	}
+
+}
@@ -0,0 +1,91 @@
+package com.mesosphere.challenge.service.dao;
+
+import com.mesosphere.challenge.StorageException;
+
+/**
+ * 
+ * @author john
+ *
+ *         This interface defines how a bounded store picks what to evict. The
+ *         policy tracks the locations stored and their weight in bytes, the
+ *         store asks it for a victim for as long as the total weight is over
+ *         budget. All operations are O(1).
+ *
+ *         Policies are not thread safe, the store serializes calls.
+ *
+ */
+public interface IEvictionPolicy {
+
+	/**
+	 * 
+	 * @return the policy name, as reported in statistics
+	 */
+	String getName();
+
+	/**
+	 * 
+	 * A location was read. Unknown locations are ignored.
+	 * 
+	 * @param location
+	 */
+	void recordAccess(String location);
+
+	/**
+	 * 
+	 * A location was written, either new or with a new weight
+	 * 
+	 * @param location
+	 * @param weight
+	 */
+	void recordWrite(String location, long weight);
+
+	/**
+	 * 
+	 * A location was removed. Unknown locations are ignored.
+	 * 
+	 * @param location
+	 */
+	void recordRemove(String location);
+
+	/**
+	 * 
+	 * Pick a location to evict and forget it. Returns null if nothing is
+	 * tracked.
+	 * 
+	 * @return
+	 */
+	String evict();
+
+	/**
+	 * 
+	 * @return total weight of the tracked locations
+	 */
+	long getWeight();
+
+	/**
+	 * 
+	 * @return number of tracked locations
+	 */
+	int size();
+
+	/**
+	 * 
+	 * Look up an eviction policy by name, lru or tinylfu
+	 * 
+	 * @param name
+	 * @param maxWeight
+	 *            the budget the policy works within
+	 * @return
+	 * @throws StorageException
+	 *             if there is no such policy
+	 */
+	static IEvictionPolicy forName(String name, long maxWeight) throws StorageException {
+		if ("lru".equalsIgnoreCase(name)) {
+			return new LruEvictionPolicy();
+		} else if ("tinylfu".equalsIgnoreCase(name)) {
+			return new TinyLfuEvictionPolicy(maxWeight);
+		}
+		throw new StorageException("Unknown eviction policy: " + name);
+	}
+
+}
@@ -0,0 +1,48 @@
+package com.mesosphere.challenge.service.dao;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * 
+ * @author john
+ *
+ *         This interface defines a compression codec for node contents. The
+ *         name is stored next to the contents as the codec marker, and doubles
+ *         as the HTTP content-coding, so bytes stored with a codec the client
+ *         accepts can be sent as they are.
+ *
+ */
+public interface IStorageCodec {
+
+	/**
+	 * 
+	 * Codec name, lower case
+	 * 
+	 * @return
+	 */
+	String getName();
+
+	/**
+	 * 
+	 * Wrap a stream so that bytes written to it are encoded. Closing the
+	 * returned stream finishes the encoding and closes out.
+	 * 
+	 * @param out
+	 * @return
+	 * @throws IOException
+	 */
+	OutputStream encoder(OutputStream out) throws IOException;
+
+	/**
+	 * 
+	 * Wrap a stream of encoded bytes so that reading it decodes them
+	 * 
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	InputStream decoder(InputStream in) throws IOException;
+
+}
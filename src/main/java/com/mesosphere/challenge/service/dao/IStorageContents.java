@@ -0,0 +1,50 @@
+package com.mesosphere.challenge.service.dao;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * 
+ * @author john
+ *
+ *         This interface gives streaming access to the raw bytes of a node,
+ *         without decoding them into a String first. The DAO keeps whatever
+ *         resources it needs to read the bytes (a DB connection, an open
+ *         file) until close() is called, so callers must always close it,
+ *         preferably with try-with-resources.
+ *
+ */
+public interface IStorageContents extends Closeable {
+
+	/**
+	 * 
+	 * Number of bytes that transferTo() will write
+	 * 
+	 * @return
+	 */
+	long getLength();
+
+	/**
+	 * 
+	 * Codec the bytes that transferTo() writes are encoded with, identity
+	 * unless the caller asked for encoded contents and the DAO had them
+	 * stored that way
+	 * 
+	 * @return
+	 */
+	default String getEncoding() {
+		return StorageCodecs.IDENTITY.getName();
+	}
+
+	/**
+	 * 
+	 * Write the bytes, exactly as stored and in the encoding above, to the
+	 * given stream. Can only be called once.
+	 * 
+	 * @param out
+	 * @throws IOException
+	 */
+	void transferTo(OutputStream out) throws IOException;
+
+}
@@ -1,9 +1,14 @@
 package com.mesosphere.challenge.service.dao;
 
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 import com.mesosphere.challenge.StorageException;
+import com.mesosphere.challenge.model.StorageMetadata;
 import com.mesosphere.challenge.model.StorageNode;
+import com.mesosphere.challenge.model.StorageResult;
 
 /**
  * 
@@ -25,6 +30,24 @@ public interface IStorageDAO {
 	 */
 	Collection<StorageNode> getStorageNodes() throws StorageException;
 
+	/**
+	 * 
+	 * List one page of nodes within storage container, ordered by location.
+	 * Only nodes with a location after the given cursor are returned, pass
+	 * null to start from the beginning and the last location of a page to get
+	 * the next one. A limit of zero or less means no limit.
+	 * 
+	 * With metadataOnly set, the nodes carry location, URI and length but no
+	 * contents, and implementations should avoid reading the contents at all.
+	 * 
+	 * @param after
+	 * @param limit
+	 * @param metadataOnly
+	 * @return
+	 * @throws StorageException
+	 */
+	Collection<StorageNode> getStorageNodes(String after, int limit, boolean metadataOnly) throws StorageException;
+
 	/**
 	 * 
 	 * Get node at path within storage container
@@ -35,6 +58,49 @@ public interface IStorageDAO {
 	 */
 	StorageNode getStorageNode(Collection<String> path) throws StorageException;
 
+	/**
+	 * 
+	 * Get the metadata of the node at path within storage container, length,
+	 * checksum and last modified time, without reading the contents. Returns
+	 * null if there is no such node. This is the cheap way to check whether a
+	 * node exists.
+	 * 
+	 * @param path
+	 * @return
+	 * @throws StorageException
+	 */
+	StorageMetadata getStorageMetadata(Collection<String> path) throws StorageException;
+
+	/**
+	 * 
+	 * Open the raw contents of the node at path within storage container for
+	 * streaming. Returns null if there is no such node. The caller must close
+	 * the returned contents.
+	 * 
+	 * @param path
+	 * @return
+	 * @throws StorageException
+	 */
+	IStorageContents getStorageContents(Collection<String> path) throws StorageException;
+
+	/**
+	 * 
+	 * Like getStorageContents(path), but the caller also accepts the contents
+	 * in any of the given codecs. DAOs that store compressed contents hand
+	 * them out as stored when the codec is accepted, saving the decoding.
+	 * Check getEncoding() on the returned contents.
+	 * 
+	 * @param path
+	 * @param encodings
+	 *            codec names the caller can take, identity is always accepted
+	 * @return
+	 * @throws StorageException
+	 */
+	default IStorageContents getStorageContents(Collection<String> path, Collection<String> encodings)
+			throws StorageException {
+		return this.getStorageContents(path);
+	}
+
 	/**
 	 * 
 	 * Create node at path within storage container
@@ -46,6 +112,19 @@ public interface IStorageDAO {
 	 */
 	StorageNode createStorageNode(StorageNode node, Collection<String> path) throws StorageException;
 
+	/**
+	 * 
+	 * Create many nodes within storage container in one call. Each node
+	 * carries its own location. Like createStorageNode, a node is only
+	 * written if there is no node at its location yet. Returns one result per
+	 * input node, in the same order, with outcome CREATED, EXISTS or INVALID.
+	 * 
+	 * @param nodes
+	 * @return
+	 * @throws StorageException
+	 */
+	Collection<StorageResult> createStorageNodes(Collection<StorageNode> nodes) throws StorageException;
+
 	/**
 	 * 
 	 * Update node at path within storage container
@@ -66,4 +145,125 @@ public interface IStorageDAO {
 	 */
 	void deleteStorageNode(Collection<String> path) throws StorageException;
 
+	/**
+	 * 
+	 * Create node at path within storage container, only if there is no node
+	 * there yet. The check and the write are one atomic step, so of two
+	 * concurrent creates of the same location exactly one succeeds. Returns
+	 * outcome CREATED with the stored node, EXISTS, or INVALID for a path that
+	 * can not hold a node.
+	 * 
+	 * @param node
+	 * @param path
+	 * @return
+	 * @throws StorageException
+	 */
+	StorageResult createStorageNodeIfAbsent(StorageNode node, Collection<String> path) throws StorageException;
+
+	/**
+	 * 
+	 * Update node at path within storage container, only if there is one,
+	 * in one atomic step. Returns outcome UPDATED with the stored node, or
+	 * NOT_FOUND.
+	 * 
+	 * @param node
+	 * @param path
+	 * @return
+	 * @throws StorageException
+	 */
+	StorageResult updateStorageNodeIfPresent(StorageNode node, Collection<String> path) throws StorageException;
+
+	/**
+	 * 
+	 * Delete node at path within storage container, only if there is one,
+	 * in one atomic step. Returns outcome DELETED, or NOT_FOUND.
+	 * 
+	 * @param path
+	 * @return
+	 * @throws StorageException
+	 */
+	StorageResult deleteStorageNodeIfPresent(Collection<String> path) throws StorageException;
+
+	/**
+	 * 
+	 * The calls below are the asynchronous variants of the ones above. The
+	 * returned future completes with what the blocking call returns, or
+	 * fails with the StorageException it throws. DAOs that can wait for their
+	 * storage without holding the calling thread override them. Here they run
+	 * the blocking call and hand back a future that is already complete, so
+	 * the caller's thread waits, the same as with the blocking call.
+	 * 
+	 * @return
+	 */
+	default CompletableFuture<Collection<StorageNode>> getStorageNodesAsync() {
+		return StorageFutures.call(() -> this.getStorageNodes());
+	}
+
+	default CompletableFuture<Collection<StorageNode>> getStorageNodesAsync(String after, int limit,
+			boolean metadataOnly) {
+		return StorageFutures.call(() -> this.getStorageNodes(after, limit, metadataOnly));
+	}
+
+	default CompletableFuture<StorageNode> getStorageNodeAsync(Collection<String> path) {
+		return StorageFutures.call(() -> this.getStorageNode(path));
+	}
+
+	default CompletableFuture<StorageMetadata> getStorageMetadataAsync(Collection<String> path) {
+		return StorageFutures.call(() -> this.getStorageMetadata(path));
+	}
+
+	default CompletableFuture<StorageNode> createStorageNodeAsync(StorageNode node, Collection<String> path) {
+		return StorageFutures.call(() -> this.createStorageNode(node, path));
+	}
+
+	default CompletableFuture<Collection<StorageResult>> createStorageNodesAsync(Collection<StorageNode> nodes) {
+		return StorageFutures.call(() -> this.createStorageNodes(nodes));
+	}
+
+	default CompletableFuture<StorageNode> updateStorageNodeAsync(StorageNode node, Collection<String> path) {
+		return StorageFutures.call(() -> this.updateStorageNode(node, path));
+	}
+
+	default CompletableFuture<Void> deleteStorageNodeAsync(Collection<String> path) {
+		return StorageFutures.call(() -> {
+			this.deleteStorageNode(path);
+			return null;
+		});
+	}
+
+	default CompletableFuture<StorageResult> createStorageNodeIfAbsentAsync(StorageNode node, Collection<String> path) {
+		return StorageFutures.call(() -> this.createStorageNodeIfAbsent(node, path));
+	}
+
+	default CompletableFuture<StorageResult> updateStorageNodeIfPresentAsync(StorageNode node,
+			Collection<String> path) {
+		return StorageFutures.call(() -> this.updateStorageNodeIfPresent(node, path));
+	}
+
+	default CompletableFuture<StorageResult> deleteStorageNodeIfPresentAsync(Collection<String> path) {
+		return StorageFutures.call(() -> this.deleteStorageNodeIfPresent(path));
+	}
+
+	/**
+	 * 
+	 * Runtime statistics for this storage container, for example connection
+	 * pool usage. Keys are flat, dotted names. DAOs without anything to report
+	 * return an empty map.
+	 * 
+	 * @return
+	 */
+	default Map<String, Object> getStorageStatistics() {
+		return Collections.emptyMap();
+	}
+
+	/**
+	 * 
+	 * Release whatever the storage container holds open, like files, pools or
+	 * background threads. Spring calls this on shutdown. DAOs without
+	 * anything to release do nothing.
+	 * 
+	 */
+	default void close() {
+	}
+
 }
@@ -0,0 +1,1191 @@
+package com.mesosphere.challenge.service.dao;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+import org.springframework.util.StringUtils;
+
+import com.mesosphere.challenge.StorageException;
+import com.mesosphere.challenge.model.StorageMetadata;
+import com.mesosphere.challenge.model.StorageNode;
+import com.mesosphere.challenge.model.StorageOutcome;
+import com.mesosphere.challenge.model.StorageResult;
+import com.mesosphere.challenge.service.dao.MemoryStorageJournal.FsyncPolicy;
+
+/**
+ * 
+ * @author john
+ *
+ *         This is a DAO implementation class that appends every write to a log
+ *         of segment files, in the manner of Bitcask. Writes are sequential,
+ *         nothing on disk is ever updated in place. An in memory keydir maps
+ *         each location to the segment and offset of its latest record, with
+ *         its length, checksum and modified time, so metadata needs no disk
+ *         access and contents need a single positioned read.
+ *
+ *         Files are numbered by segment id. Writes go to the active segment
+ *         until it reaches the segment size, then it is sealed and a new one
+ *         started. Sealing writes a hint file, segment-n.hint, that holds the
+ *         keydir entries of the segment without the contents, so startup
+ *         reads hints instead of whole segments. Segments without a valid
+ *         hint, the last one after a crash for instance, are scanned, and get
+ *         their hint then.
+ *
+ *         Every record carries its length and a CRC32 like the memory journal,
+ *         and a sequence number. A scan stops at the first torn or damaged
+ *         record, which can only be the last write before a crash. The record
+ *         with the highest sequence number wins, so the order segments are
+ *         read in does not matter.
+ *
+ *         Records that were overwritten or deleted are dead. Sealed segments
+ *         whose share of dead bytes is above the compaction threshold are
+ *         rewritten in the background, keeping only the records the keydir
+ *         still points at and the deletes that may still hide an older
+ *         record. Readers that got an entry just before it was moved read it
+ *         again from its new place.
+ *
+ *         Like the MVStore DAO, null contents are stored as zero bytes.
+ *
+ */
+public class LogStructuredStorageDAO implements IStorageDAO {
+
+	protected static final Logger logger = Logger.getLogger(LogStructuredStorageDAO.class);
+
+	protected static final String SEGMENT_PREFIX = "segment-";
+	protected static final String DATA_SUFFIX = ".data";
+	protected static final String HINT_SUFFIX = ".hint";
+	protected static final String TEMPORARY_SUFFIX = ".tmp";
+
+	public static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+	public static final double DEFAULT_COMPACT_THRESHOLD = 0.5;
+	public static final long DEFAULT_COMPACT_INTERVAL = 60000;
+
+	protected static final byte PUT = 1;
+	protected static final byte DELETE = 2;
+
+	protected static final int CHECKSUM_LENGTH = 32;
+
+	/*
+	 * Record body length and CRC32 of the body
+	 */
+	protected static final int RECORD_HEADER = 8;
+
+	/*
+	 * Reads retried when a record was moved by compaction meanwhile
+	 */
+	protected static final int READ_ATTEMPTS = 8;
+
+	/**
+	 * 
+	 * A segment file. Records are only ever appended by one thread at a time,
+	 * the writer for the active segment and the compactor for its output.
+	 * 
+	 */
+	protected static class Segment {
+		final long id;
+		final Path data;
+		volatile FileChannel channel = null;
+
+		/*
+		 * Bytes of whole records, the next record goes here
+		 */
+		volatile long size = 0;
+		volatile long minSequence = Long.MAX_VALUE;
+		final AtomicLong liveBytes = new AtomicLong();
+		volatile boolean retired = false;
+
+		/*
+		 * Hint entries of the records appended so far, until sealed
+		 */
+		ByteArrayOutputStream hints = null;
+
+		protected Segment(long id, Path data) {
+			this.id = id;
+			this.data = data;
+		}
+	}
+
+	/**
+	 * 
+	 * Where the latest record of a location is, never changed once made
+	 * 
+	 */
+	protected static class Entry {
+		final Segment segment;
+		final long record;
+		final int size;
+		final long contents;
+		final int length;
+		final long sequence;
+		final long modified;
+		final byte[] checksum;
+
+		protected Entry(Segment segment, Record record) {
+			this.segment = segment;
+			this.record = record.offset;
+			this.size = record.size;
+			this.contents = record.offset + record.size - record.length;
+			this.length = record.length;
+			this.sequence = record.sequence;
+			this.modified = record.modified;
+			this.checksum = record.checksum;
+		}
+	}
+
+	/**
+	 * 
+	 * A record as read from a segment or a hint. Contents are only there when
+	 * read from a segment.
+	 * 
+	 */
+	protected static class Record {
+		byte op;
+		long sequence;
+		long modified;
+		String location;
+		byte[] checksum = null;
+		byte[] contents = null;
+		int length = 0;
+		long offset;
+		int size;
+	}
+
+	protected interface RecordConsumer {
+		void accept(Record record) throws IOException;
+	}
+
+	private final Path folder;
+	private final long segmentSize;
+	private final FsyncPolicy fsync;
+	private final double compactThreshold;
+
+	/*
+	 * Location to its latest record, sorted so that we can page through it
+	 */
+	private final ConcurrentNavigableMap<String, Entry> keydir = new ConcurrentSkipListMap<String, Entry>();
+
+	private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<Long, Segment>();
+
+	private final AtomicLong nextSegment = new AtomicLong();
+
+	/*
+	 * Guards the active segment and the sequence, writes are appended one at
+	 * a time
+	 */
+	private final Object writer = new Object();
+	private volatile Segment active = null;
+	private long nextSequence = 1;
+
+	/*
+	 * One compaction at a time
+	 */
+	private final Object compactor = new Object();
+
+	private ScheduledExecutorService background = null;
+
+	/*
+	 * Statistics
+	 */
+	private final AtomicLong appends = new AtomicLong();
+	private final AtomicLong appendedBytes = new AtomicLong();
+	private final AtomicLong fsyncs = new AtomicLong();
+	private final AtomicLong compactions = new AtomicLong();
+	private final AtomicLong reclaimedBytes = new AtomicLong();
+	private final AtomicLong movedReads = new AtomicLong();
+	private volatile long hintLoads = 0;
+	private volatile long segmentScans = 0;
+	private volatile long recoveryMillis = 0;
+
+	/**
+	 * 
+	 * Default segment size, interval fsync and compaction
+	 * 
+	 * @param folder
+	 * @throws StorageException
+	 */
+	public LogStructuredStorageDAO(String folder) throws StorageException {
+		this(folder, DEFAULT_SEGMENT_SIZE, FsyncPolicy.INTERVAL, 1000, DEFAULT_COMPACT_THRESHOLD,
+				DEFAULT_COMPACT_INTERVAL);
+	}
+
+	/**
+	 * 
+	 * @param folder
+	 *            where the segments are kept, created if missing
+	 * @param segmentSize
+	 *            bytes after which a segment is sealed
+	 * @param fsync
+	 * @param fsyncInterval
+	 *            milliseconds between forced writes with FsyncPolicy.INTERVAL
+	 * @param compactThreshold
+	 *            share of dead bytes, between zero and one, above which a
+	 *            sealed segment is compacted
+	 * @param compactInterval
+	 *            milliseconds between compactions, zero or less for none in
+	 *            the background
+	 * @throws StorageException
+	 */
+	public LogStructuredStorageDAO(String folder, long segmentSize, FsyncPolicy fsync, long fsyncInterval,
+			double compactThreshold, long compactInterval) throws StorageException {
+		logger.info("LogStructuredStorageDAO init at: " + folder);
+		if (fsync == null) {
+			throw new StorageException("Fsync policy is null");
+		}
+		this.folder = Paths.get(folder);
+		this.segmentSize = Math.max(1, segmentSize);
+		this.fsync = fsync;
+		this.compactThreshold = compactThreshold;
+		try {
+			Files.createDirectories(this.folder);
+		} catch (IOException e) {
+			throw new StorageException("LogStructuredStorageDAO failed to create " + folder, e);
+		}
+		this.recover();
+
+		if (((fsync == FsyncPolicy.INTERVAL) && (fsyncInterval > 0)) || (compactInterval > 0)) {
+			this.background = Executors.newScheduledThreadPool(2, runnable -> {
+				Thread thread = new Thread(runnable, "log-storage-background");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		if ((fsync == FsyncPolicy.INTERVAL) && (fsyncInterval > 0)) {
+			this.background.scheduleWithFixedDelay(() -> {
+				try {
+					this.force();
+				} catch (IOException e) {
+					logger.warn("Forcing the active segment to disk failed", e);
+				}
+			}, fsyncInterval, fsyncInterval, TimeUnit.MILLISECONDS);
+		}
+		if (compactInterval > 0) {
+			this.background.scheduleWithFixedDelay(() -> {
+				try {
+					this.compact();
+				} catch (StorageException | RuntimeException e) {
+					logger.warn("Compaction failed", e);
+				}
+			}, compactInterval, compactInterval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	protected Path dataPath(long id) {
+		return this.folder.resolve(String.format("%s%016d%s", SEGMENT_PREFIX, id, DATA_SUFFIX));
+	}
+
+	protected Path hintPath(long id) {
+		return this.folder.resolve(String.format("%s%016d%s", SEGMENT_PREFIX, id, HINT_SUFFIX));
+	}
+
+	/**
+	 * 
+	 * Format the path into a keydir key.
+	 * 
+	 * @param path
+	 * @return
+	 */
+	protected String path(Collection<String> path) throws StorageException {
+		if (path == null) {
+			throw new StorageException("Path is null");
+		} else if (path.isEmpty() == true) {
+			throw new StorageException("Path is empty");
+		}
+		return StringUtils.arrayToDelimitedString(path.toArray(), "/");
+	}
+
+	/**
+	 * 
+	 * Record bytes, body length and CRC32 first
+	 * 
+	 * @param record
+	 * @return
+	 */
+	protected static byte[] encode(Record record) {
+		byte[] location = record.location.getBytes(StandardCharsets.UTF_8);
+		int body = 1 + 8 + 8 + 4 + location.length + ((record.op == PUT) ? CHECKSUM_LENGTH + 4 + record.length : 0);
+		ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER + body);
+		buffer.putInt(body);
+		buffer.putInt(0);
+		buffer.put(record.op);
+		buffer.putLong(record.sequence);
+		buffer.putLong(record.modified);
+		buffer.putInt(location.length);
+		buffer.put(location);
+		if (record.op == PUT) {
+			buffer.put(record.checksum);
+			buffer.putInt(record.length);
+			buffer.put(record.contents);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(buffer.array(), RECORD_HEADER, body);
+		buffer.putInt(4, (int) crc.getValue());
+		return buffer.array();
+	}
+
+	protected static Record decode(byte[] body, long offset) {
+		ByteBuffer buffer = ByteBuffer.wrap(body);
+		Record ret = new Record();
+		ret.offset = offset;
+		ret.size = RECORD_HEADER + body.length;
+		ret.op = buffer.get();
+		ret.sequence = buffer.getLong();
+		ret.modified = buffer.getLong();
+		byte[] location = new byte[buffer.getInt()];
+		buffer.get(location);
+		ret.location = new String(location, StandardCharsets.UTF_8);
+		if (ret.op == PUT) {
+			ret.checksum = new byte[CHECKSUM_LENGTH];
+			buffer.get(ret.checksum);
+			ret.length = buffer.getInt();
+			ret.contents = new byte[ret.length];
+			buffer.get(ret.contents);
+		}
+		return ret;
+	}
+
+	/**
+	 * 
+	 * Read the records of a segment up to the first torn or damaged one
+	 * 
+	 * @param path
+	 * @param consumer
+	 * @return bytes of whole records read
+	 * @throws IOException
+	 */
+	protected long scan(Path path, RecordConsumer consumer) throws IOException {
+		long size = Files.size(path);
+		long offset = 0;
+		try (DataInputStream in = new DataInputStream(
+				new BufferedInputStream(Files.newInputStream(path), StorageStreams.BUFFER_SIZE))) {
+			CRC32 crc = new CRC32();
+			while (offset < size) {
+				byte[] body = null;
+				int checksum = 0;
+				try {
+					int length = in.readInt();
+					checksum = in.readInt();
+					if ((length <= 0) || (offset + RECORD_HEADER + length > size)) {
+						throw new EOFException();
+					}
+					body = new byte[length];
+					in.readFully(body);
+				} catch (EOFException e) {
+					logger.warn("Torn record at the end of " + path + " at offset " + offset + ", ignored");
+					break;
+				}
+				crc.reset();
+				crc.update(body);
+				if ((int) crc.getValue() != checksum) {
+					logger.warn("Damaged record in " + path + " at offset " + offset + ", rest ignored");
+					break;
+				}
+				consumer.accept(decode(body, offset));
+				offset += RECORD_HEADER + body.length;
+			}
+		}
+		return offset;
+	}
+
+	/**
+	 * 
+	 * Add a record to the hint entries of a segment being written
+	 * 
+	 * @param segment
+	 * @param record
+	 * @throws IOException
+	 */
+	protected void hint(Segment segment, Record record) throws IOException {
+		DataOutputStream out = new DataOutputStream(segment.hints);
+		out.writeByte(record.op);
+		out.writeLong(record.sequence);
+		out.writeLong(record.modified);
+		byte[] location = record.location.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(location.length);
+		out.write(location);
+		out.writeLong(record.offset);
+		out.writeInt(record.size);
+		if (record.op == PUT) {
+			out.write(record.checksum);
+			out.writeInt(record.length);
+		}
+		out.flush();
+	}
+
+	/**
+	 * 
+	 * Read the hint file of a segment
+	 * 
+	 * @param id
+	 * @return its records without contents, null if there is no valid hint
+	 * @throws IOException
+	 */
+	protected List<Record> readHint(long id) throws IOException {
+		Path path = this.hintPath(id);
+		if (Files.notExists(path)) {
+			return null;
+		}
+		byte[] bytes = Files.readAllBytes(path);
+		if (bytes.length < 4) {
+			return null;
+		}
+		CRC32 crc = new CRC32();
+		crc.update(bytes, 0, bytes.length - 4);
+		if ((int) crc.getValue() != ByteBuffer.wrap(bytes, bytes.length - 4, 4).getInt()) {
+			logger.warn("Damaged hint " + path + ", scanning its segment instead");
+			return null;
+		}
+
+		List<Record> ret = new ArrayList<Record>();
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, 0, bytes.length - 4));
+		while (in.available() > 0) {
+			Record record = new Record();
+			record.op = in.readByte();
+			record.sequence = in.readLong();
+			record.modified = in.readLong();
+			byte[] location = new byte[in.readInt()];
+			in.readFully(location);
+			record.location = new String(location, StandardCharsets.UTF_8);
+			record.offset = in.readLong();
+			record.size = in.readInt();
+			if (record.op == PUT) {
+				record.checksum = new byte[CHECKSUM_LENGTH];
+				in.readFully(record.checksum);
+				record.length = in.readInt();
+			}
+			ret.add(record);
+		}
+		return ret;
+	}
+
+	/**
+	 * 
+	 * Write the hint file of a segment, whole or not at all
+	 * 
+	 * @param id
+	 * @param hints
+	 * @throws IOException
+	 */
+	protected void writeHint(long id, byte[] hints) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(hints);
+		Path path = this.hintPath(id);
+		Path temporary = path.resolveSibling(path.getFileName() + TEMPORARY_SUFFIX);
+		try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			ByteBuffer buffer = ByteBuffer.allocate(hints.length + 4);
+			buffer.put(hints);
+			buffer.putInt((int) crc.getValue());
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			channel.force(false);
+		}
+		Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * 
+	 * Rebuild the keydir from the hints, or the segments where there are
+	 * none, then start a new active segment
+	 * 
+	 * @throws StorageException
+	 */
+	protected void recover() throws StorageException {
+		long start = System.currentTimeMillis();
+		TreeSet<Long> ids = new TreeSet<Long>();
+		try {
+			try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(this.folder)) {
+				for (Path path : directoryStream) {
+					String name = path.getFileName().toString();
+					if (name.endsWith(TEMPORARY_SUFFIX)) {
+						Files.delete(path);
+					} else if ((name.startsWith(SEGMENT_PREFIX)) && (name.endsWith(DATA_SUFFIX))) {
+						ids.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), SEGMENT_PREFIX.length() + 16)));
+					}
+				}
+			}
+
+			/*
+			 * Locations deleted, with the sequence of the delete, so that an
+			 * older record read later does not bring them back
+			 */
+			Map<String, Long> deleted = new HashMap<String, Long>();
+			long sequence = 0;
+			long records = 0;
+			for (long id : ids) {
+				Segment segment = new Segment(id, this.dataPath(id));
+				segment.channel = FileChannel.open(segment.data, StandardOpenOption.READ, StandardOpenOption.WRITE);
+				List<Record> read = this.readHint(id);
+				if (read != null) {
+					this.hintLoads++;
+				} else {
+					List<Record> scanned = new ArrayList<Record>();
+					segment.hints = new ByteArrayOutputStream();
+					this.scan(segment.data, (record) -> {
+						record.contents = null;
+						scanned.add(record);
+						this.hint(segment, record);
+					});
+					this.writeHint(id, segment.hints.toByteArray());
+					segment.hints = null;
+					read = scanned;
+					this.segmentScans++;
+				}
+				for (Record record : read) {
+					this.recover(segment, record, deleted);
+					segment.size = Math.max(segment.size, record.offset + record.size);
+					sequence = Math.max(sequence, record.sequence);
+				}
+				records += read.size();
+				this.segments.put(id, segment);
+			}
+			this.nextSequence = sequence + 1;
+			this.nextSegment.set(ids.isEmpty() ? 1 : ids.last() + 1);
+			this.active = this.open();
+
+			this.recoveryMillis = System.currentTimeMillis() - start;
+			logger.info("Recovered " + this.keydir.size() + " locations from " + records + " records in "
+					+ ids.size() + " segments in " + this.recoveryMillis + " ms, " + this.segmentScans + " scanned");
+		} catch (IOException | RuntimeException e) {
+			this.close();
+			throw new StorageException("LogStructuredStorageDAO failed to recover from " + this.folder, e);
+		}
+	}
+
+	/**
+	 * 
+	 * Apply a record to the keydir, unless a later one was applied already
+	 * 
+	 * @param segment
+	 * @param record
+	 * @param deleted
+	 */
+	protected void recover(Segment segment, Record record, Map<String, Long> deleted) {
+		segment.minSequence = Math.min(segment.minSequence, record.sequence);
+		Entry current = this.keydir.get(record.location);
+		Long delete = deleted.get(record.location);
+		long latest = Math.max((current != null) ? current.sequence : 0, (delete != null) ? delete : 0);
+		if (record.sequence <= latest) {
+			return;
+		}
+		if (current != null) {
+			current.segment.liveBytes.addAndGet(-current.size);
+		}
+		if (record.op == PUT) {
+			this.keydir.put(record.location, new Entry(segment, record));
+			segment.liveBytes.addAndGet(record.size);
+			deleted.remove(record.location);
+		} else {
+			this.keydir.remove(record.location);
+			deleted.put(record.location, record.sequence);
+		}
+	}
+
+	/**
+	 * 
+	 * Create a new segment to append to
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
+	protected Segment open() throws IOException {
+		long id = this.nextSegment.getAndIncrement();
+		Segment ret = new Segment(id, this.dataPath(id));
+		ret.channel = FileChannel.open(ret.data, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		ret.hints = new ByteArrayOutputStream();
+		this.segments.put(id, ret);
+		return ret;
+	}
+
+	/**
+	 * 
+	 * Force a segment that is no longer appended to, and write its hint. It
+	 * stays open for reads.
+	 * 
+	 * @param segment
+	 * @throws IOException
+	 */
+	protected void seal(Segment segment) throws IOException {
+		this.channel(segment).force(false);
+		this.fsyncs.incrementAndGet();
+		this.writeHint(segment.id, segment.hints.toByteArray());
+		segment.hints = null;
+	}
+
+	/**
+	 * 
+	 * The channel of a segment, opened again if an interrupted reader closed
+	 * it. Retired segments stay closed.
+	 * 
+	 * @param segment
+	 * @return
+	 * @throws IOException
+	 */
+	protected FileChannel channel(Segment segment) throws IOException {
+		FileChannel ret = segment.channel;
+		if (ret.isOpen()) {
+			return ret;
+		}
+		synchronized (segment) {
+			if ((segment.channel.isOpen() == false) && (segment.retired == false)) {
+				segment.channel = FileChannel.open(segment.data, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			}
+			return segment.channel;
+		}
+	}
+
+	/**
+	 * 
+	 * Append a record to a segment
+	 * 
+	 * @param segment
+	 * @param record
+	 * @return the keydir entry of the record, null for a delete
+	 * @throws IOException
+	 */
+	protected Entry append(Segment segment, Record record) throws IOException {
+		byte[] bytes = encode(record);
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		FileChannel channel = this.channel(segment);
+		long position = segment.size;
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+		record.offset = segment.size;
+		record.size = bytes.length;
+		segment.size += bytes.length;
+		segment.minSequence = Math.min(segment.minSequence, record.sequence);
+		this.hint(segment, record);
+		this.appends.incrementAndGet();
+		this.appendedBytes.addAndGet(bytes.length);
+		return (record.op == PUT) ? new Entry(segment, record) : null;
+	}
+
+	/**
+	 * 
+	 * Append a write to the active segment. Callers hold the writer lock.
+	 * 
+	 * @param location
+	 * @param node
+	 *            null for a delete
+	 * @return the keydir entry of the record, null for a delete
+	 * @throws IOException
+	 */
+	protected Entry write(String location, StorageNode node) throws IOException {
+		if (this.active.size >= this.segmentSize) {
+			this.seal(this.active);
+			this.active = this.open();
+		}
+		Record record = new Record();
+		record.op = (node != null) ? PUT : DELETE;
+		record.sequence = this.nextSequence++;
+		record.modified = System.currentTimeMillis();
+		record.location = location;
+		if (node != null) {
+			record.contents = StorageChecksums.bytes(node);
+			record.length = record.contents.length;
+			record.checksum = StorageChecksums.digest().digest(record.contents);
+		}
+		Entry ret = this.append(this.active, record);
+		if (this.fsync == FsyncPolicy.ALWAYS) {
+			this.channel(this.active).force(false);
+			this.fsyncs.incrementAndGet();
+		}
+		return ret;
+	}
+
+	/**
+	 * 
+	 * Point the keydir at a new entry, the record it pointed at is dead then
+	 * 
+	 * @param location
+	 * @param entry
+	 */
+	protected void put(String location, Entry entry) {
+		entry.segment.liveBytes.addAndGet(entry.size);
+		Entry old = this.keydir.put(location, entry);
+		if (old != null) {
+			old.segment.liveBytes.addAndGet(-old.size);
+		}
+	}
+
+	/**
+	 * 
+	 * Force the active segment to disk
+	 * 
+	 * @throws IOException
+	 */
+	public void force() throws IOException {
+		Segment segment = this.active;
+		if ((segment != null) && (segment.channel.isOpen())) {
+			segment.channel.force(false);
+			this.fsyncs.incrementAndGet();
+		}
+	}
+
+	/**
+	 * 
+	 * Contents of an entry, in one positioned read
+	 * 
+	 * @param entry
+	 * @return
+	 * @throws IOException
+	 */
+	protected byte[] read(Entry entry) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(entry.length);
+		FileChannel channel = this.channel(entry.segment);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, entry.contents + buffer.position()) < 0) {
+				throw new EOFException("Record of " + entry.length + " bytes cut short in " + entry.segment.data);
+			}
+		}
+		return buffer.array();
+	}
+
+	/**
+	 * 
+	 * Contents of the latest record of a location, read again from its new
+	 * place if compaction moved it away meanwhile
+	 * 
+	 * @param location
+	 * @return null if there is no such location
+	 * @throws StorageException
+	 */
+	protected byte[] read(String location) throws StorageException {
+		for (int attempt = 1;; attempt++) {
+			Entry entry = this.keydir.get(location);
+			if (entry == null) {
+				return null;
+			}
+			try {
+				return this.read(entry);
+			} catch (ClosedChannelException e) {
+				if ((entry.segment.retired == false) || (attempt >= READ_ATTEMPTS)) {
+					throw new StorageException("Read of " + location + " failed with java IOException", e);
+				}
+				this.movedReads.incrementAndGet();
+			} catch (IOException e) {
+				throw new StorageException("Read of " + location + " failed with java IOException", e);
+			}
+		}
+	}
+
+	protected StorageNode decode(String location, byte[] contents) {
+		StorageNode node = new StorageNode();
+		node.setLocation(location);
+		node.setContents(new String(contents, StandardCharsets.UTF_8));
+		return node;
+	}
+
+	/**
+	 * 
+	 * Rewrite the sealed segments that are mostly dead. Records the keydir
+	 * still points at are copied to new segments and the keydir moved over,
+	 * unless a writer got there first. A delete is kept while some other
+	 * segment may still hold an older record of its location. The old
+	 * segments are deleted once the new ones are on disk.
+	 * 
+	 * @return the number of segments compacted
+	 * @throws StorageException
+	 */
+	public int compact() throws StorageException {
+		synchronized (this.compactor) {
+			List<Segment> victims = new ArrayList<Segment>();
+			for (Segment segment : this.segments.values()) {
+				if ((segment == this.active) || (segment.hints != null) || (segment.size == 0)) {
+					continue;
+				}
+				if (1.0 - (double) segment.liveBytes.get() / segment.size >= this.compactThreshold) {
+					victims.add(segment);
+				}
+			}
+			if (victims.isEmpty()) {
+				return 0;
+			}
+
+			/*
+			 * Oldest record left outside the victims, the active segment
+			 * included
+			 */
+			long oldest = Long.MAX_VALUE;
+			for (Segment segment : this.segments.values()) {
+				if (victims.contains(segment) == false) {
+					oldest = Math.min(oldest, segment.minSequence);
+				}
+			}
+			long keptOldest = oldest;
+
+			long before = 0;
+			long after = 0;
+			List<Segment> outputs = new ArrayList<Segment>();
+			try {
+				for (Segment victim : victims) {
+					before += victim.size;
+					this.scan(victim.data, (record) -> {
+						if (record.op == PUT) {
+							Entry current = this.keydir.get(record.location);
+							if ((current == null) || (current.segment != victim) || (current.record != record.offset)) {
+								return;
+							}
+							Entry copy = this.append(this.output(outputs), record);
+							if (this.keydir.replace(record.location, current, copy)) {
+								copy.segment.liveBytes.addAndGet(copy.size);
+								victim.liveBytes.addAndGet(-current.size);
+							}
+						} else if ((this.keydir.containsKey(record.location) == false)
+								&& (keptOldest < record.sequence)) {
+							this.append(this.output(outputs), record);
+						}
+					});
+				}
+				/*
+				 * All but the last output were sealed when the next one was
+				 * started
+				 */
+				if (outputs.isEmpty() == false) {
+					this.seal(outputs.get(outputs.size() - 1));
+				}
+				for (Segment output : outputs) {
+					after += output.size;
+				}
+			} catch (IOException e) {
+				throw new StorageException("Compaction failed with java IOException", e);
+			}
+
+			for (Segment victim : victims) {
+				victim.retired = true;
+				this.segments.remove(victim.id);
+				try {
+					victim.channel.close();
+					Files.deleteIfExists(this.hintPath(victim.id));
+					Files.deleteIfExists(victim.data);
+				} catch (IOException e) {
+					logger.warn("Failed to delete compacted segment " + victim.data, e);
+				}
+			}
+			this.compactions.incrementAndGet();
+			this.reclaimedBytes.addAndGet(before - after);
+			logger.info("Compacted " + victims.size() + " segments of " + before + " bytes into " + outputs.size()
+					+ " of " + after + " bytes");
+			return victims.size();
+		}
+	}
+
+	/**
+	 * 
+	 * The compaction output to append to, a new one when the last is full
+	 * 
+	 * @param outputs
+	 * @return
+	 * @throws IOException
+	 */
+	protected Segment output(List<Segment> outputs) throws IOException {
+		Segment ret = outputs.isEmpty() ? null : outputs.get(outputs.size() - 1);
+		if ((ret == null) || (ret.size >= this.segmentSize)) {
+			if (ret != null) {
+				this.seal(ret);
+			}
+			ret = this.open();
+			outputs.add(ret);
+		}
+		return ret;
+	}
+
+	/**
+	 * 
+	 * Stop the background work, seal the active segment so that its hint is
+	 * there on the next start, and close every segment
+	 * 
+	 */
+	@Override
+	public void close() {
+		logger.info("LogStructuredStorageDAO close");
+		if (this.background != null) {
+			this.background.shutdownNow();
+		}
+		synchronized (this.compactor) {
+			synchronized (this.writer) {
+				try {
+					if ((this.active != null) && (this.active.hints != null)) {
+						this.seal(this.active);
+					}
+				} catch (IOException e) {
+					logger.warn("Sealing the active segment failed", e);
+				}
+				for (Segment segment : this.segments.values()) {
+					try {
+						segment.channel.close();
+					} catch (IOException e) {
+						logger.warn("Closing " + segment.data + " failed", e);
+					}
+				}
+			}
+		}
+	}
+
+	@Override
+	public Collection<StorageNode> getStorageNodes() throws StorageException {
+		logger.info("getStorageNodes");
+		return this.getStorageNodes(null, 0, false);
+	}
+
+	@Override
+	public Collection<StorageNode> getStorageNodes(String after, int limit, boolean metadataOnly)
+			throws StorageException {
+		logger.info("getStorageNodes: after " + after + ", limit " + limit);
+
+		Map<String, Entry> page = (after == null) ? this.keydir : this.keydir.tailMap(after, false);
+
+		Collection<StorageNode> ret = new ArrayList<StorageNode>();
+		for (Map.Entry<String, Entry> entry : page.entrySet()) {
+			if ((limit > 0) && (ret.size() >= limit)) {
+				break;
+			}
+			String location = entry.getKey();
+			if (metadataOnly) {
+				StorageNode node = new StorageNode(location, (String) null);
+				node.setLength(entry.getValue().length);
+				ret.add(node);
+				continue;
+			}
+			byte[] contents = this.read(location);
+			/*
+			 * Deleted since we got its key
+			 */
+			if (contents != null) {
+				ret.add(this.decode(location, contents));
+			}
+		}
+		return ret;
+	}
+
+	@Override
+	public StorageNode getStorageNode(Collection<String> path) throws StorageException {
+		logger.info("getStorageNode");
+
+		String location = this.path(path);
+		byte[] contents = this.read(location);
+		if (contents == null) {
+			return null;
+		}
+		return this.decode(location, contents);
+	}
+
+	@Override
+	public StorageMetadata getStorageMetadata(Collection<String> path) throws StorageException {
+		logger.info("getStorageMetadata");
+
+		String location = this.path(path);
+		Entry entry = this.keydir.get(location);
+		if (entry == null) {
+			return null;
+		}
+		return new StorageMetadata(location, (long) entry.length, StorageChecksums.hex(entry.checksum),
+				entry.modified);
+	}
+
+	@Override
+	public IStorageContents getStorageContents(Collection<String> path) throws StorageException {
+		logger.info("getStorageContents");
+
+		byte[] contents = this.read(this.path(path));
+		if (contents == null) {
+			return null;
+		}
+		return new ByteArrayStorageContents(contents);
+	}
+
+	@Override
+	public StorageNode createStorageNode(StorageNode node, Collection<String> path) throws StorageException {
+		logger.info("createStorageNode");
+
+		if (node == null) {
+			throw new StorageException("Node is null");
+		}
+
+		String location = this.path(path);
+		try {
+			synchronized (this.writer) {
+				this.put(location, this.write(location, node));
+			}
+		} catch (IOException e) {
+			throw new StorageException("createStorageNode failed with java IOException", e);
+		}
+		return node;
+	}
+
+	@Override
+	public Collection<StorageResult> createStorageNodes(Collection<StorageNode> nodes) throws StorageException {
+		logger.info("createStorageNodes");
+
+		if (nodes == null) {
+			throw new StorageException("Nodes is null");
+		}
+
+		/*
+		 * The whole batch is appended under one hold of the writer lock, and
+		 * forced once with the always policy
+		 */
+		Collection<StorageResult> ret = new ArrayList<StorageResult>(nodes.size());
+		try {
+			synchronized (this.writer) {
+				for (StorageNode node : nodes) {
+					if ((node == null) || (node.getLocation() == null)) {
+						ret.add(new StorageResult(null, StorageOutcome.INVALID));
+						continue;
+					}
+					String location = node.getLocation();
+					if (this.keydir.containsKey(location)) {
+						ret.add(new StorageResult(location, StorageOutcome.EXISTS));
+						continue;
+					}
+					this.put(location, this.write(location, node));
+					ret.add(new StorageResult(location, StorageOutcome.CREATED, node));
+				}
+			}
+		} catch (IOException e) {
+			throw new StorageException("createStorageNodes failed with java IOException", e);
+		}
+		return ret;
+	}
+
+	@Override
+	public StorageResult createStorageNodeIfAbsent(StorageNode node, Collection<String> path) throws StorageException {
+		logger.info("createStorageNodeIfAbsent");
+
+		if (node == null) {
+			throw new StorageException("Node is null");
+		}
+
+		String location = this.path(path);
+		try {
+			synchronized (this.writer) {
+				if (this.keydir.containsKey(location)) {
+					return new StorageResult(location, StorageOutcome.EXISTS);
+				}
+				this.put(location, this.write(location, node));
+			}
+		} catch (IOException e) {
+			throw new StorageException("createStorageNodeIfAbsent failed with java IOException", e);
+		}
+		return new StorageResult(location, StorageOutcome.CREATED, node);
+	}
+
+	@Override
+	public StorageNode updateStorageNode(StorageNode node, Collection<String> path) throws StorageException {
+		logger.info("updateStorageNode");
+
+		return this.updateStorageNodeIfPresent(node, path).getNode();
+	}
+
+	@Override
+	public StorageResult updateStorageNodeIfPresent(StorageNode node, Collection<String> path) throws StorageException {
+		logger.info("updateStorageNodeIfPresent");
+
+		if (node == null) {
+			throw new StorageException("Node is null");
+		}
+
+		String location = this.path(path);
+		try {
+			synchronized (this.writer) {
+				if (this.keydir.containsKey(location) == false) {
+					return new StorageResult(location, StorageOutcome.NOT_FOUND);
+				}
+				this.put(location, this.write(location, node));
+			}
+		} catch (IOException e) {
+			throw new StorageException("updateStorageNode failed with java IOException", e);
+		}
+		return new StorageResult(location, StorageOutcome.UPDATED, node);
+	}
+
+	@Override
+	public void deleteStorageNode(Collection<String> path) throws StorageException {
+		logger.info("deleteStorageNode");
+
+		this.deleteStorageNodeIfPresent(path);
+	}
+
+	@Override
+	public StorageResult deleteStorageNodeIfPresent(Collection<String> path) throws StorageException {
+		logger.info("deleteStorageNodeIfPresent");
+
+		String location = this.path(path);
+		try {
+			synchronized (this.writer) {
+				if (this.keydir.containsKey(location) == false) {
+					return new StorageResult(location, StorageOutcome.NOT_FOUND);
+				}
+				this.write(location, null);
+				Entry old = this.keydir.remove(location);
+				if (old != null) {
+					old.segment.liveBytes.addAndGet(-old.size);
+				}
+			}
+		} catch (IOException e) {
+			throw new StorageException("deleteStorageNode failed with java IOException", e);
+		}
+		return new StorageResult(location, StorageOutcome.DELETED);
+	}
+
+	@Override
+	public Map<String, Object> getStorageStatistics() {
+		Map<String, Object> ret = new LinkedHashMap<String, Object>();
+		long total = 0;
+		long live = 0;
+		for (Segment segment : this.segments.values()) {
+			total += segment.size;
+			live += segment.liveBytes.get();
+		}
+		ret.put("log.fsync", this.fsync.name().toLowerCase());
+		ret.put("log.segments", this.segments.size());
+		ret.put("log.activeSegment", (this.active != null) ? this.active.id : 0);
+		ret.put("log.keydirEntries", this.keydir.size());
+		ret.put("log.totalBytes", total);
+		ret.put("log.liveBytes", live);
+		ret.put("log.appends", this.appends.get());
+		ret.put("log.appendedBytes", this.appendedBytes.get());
+		ret.put("log.fsyncs", this.fsyncs.get());
+		ret.put("log.compactions", this.compactions.get());
+		ret.put("log.reclaimedBytes", this.reclaimedBytes.get());
+		ret.put("log.movedReads", this.movedReads.get());
+		ret.put("log.hintLoads", this.hintLoads);
+		ret.put("log.segmentScans", this.segmentScans);
+		ret.put("log.recoveryMillis", this.recoveryMillis);
+		return ret;
+	}
+
+}
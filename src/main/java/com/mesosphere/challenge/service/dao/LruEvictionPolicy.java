@@ -0,0 +1,70 @@
+package com.mesosphere.challenge.service.dao;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 
+ * @author john
+ *
+ *         Least recently used eviction. Locations are kept in access order,
+ *         the victim is the one read or written longest ago.
+ *
+ */
+public class LruEvictionPolicy implements IEvictionPolicy {
+
+	/*
+	 * Location to weight, least recently used first
+	 */
+	private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+
+	private long weight = 0;
+
+	@Override
+	public String getName() {
+		return "lru";
+	}
+
+	@Override
+	public void recordAccess(String location) {
+		this.entries.get(location);
+	}
+
+	@Override
+	public void recordWrite(String location, long weight) {
+		Long old = this.entries.put(location, weight);
+		this.weight += weight - ((old != null) ? old : 0);
+	}
+
+	@Override
+	public void recordRemove(String location) {
+		Long old = this.entries.remove(location);
+		if (old != null) {
+			this.weight -= old;
+		}
+	}
+
+	@Override
+	public String evict() {
+		Iterator<Map.Entry<String, Long>> eldest = this.entries.entrySet().iterator();
+		if (eldest.hasNext() == false) {
+			return null;
+		}
+		Map.Entry<String, Long> victim = eldest.next();
+		eldest.remove();
+		this.weight -= victim.getValue();
+		return victim.getKey();
+	}
+
+	@Override
+	public long getWeight() {
+		return this.weight;
+	}
+
+	@Override
+	public int size() {
+		return this.entries.size();
+	}
+
+}
@@ -0,0 +1,399 @@
+package com.mesosphere.challenge.service.dao;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.h2.mvstore.MVMap;
+import org.h2.mvstore.MVStore;
+import org.springframework.util.StringUtils;
+
+import com.mesosphere.challenge.StorageException;
+import com.mesosphere.challenge.model.StorageMetadata;
+import com.mesosphere.challenge.model.StorageNode;
+import com.mesosphere.challenge.model.StorageOutcome;
+import com.mesosphere.challenge.model.StorageResult;
+
+/**
+ * 
+ * @author john
+ *
+ *         This is a DAO implementation class that stores nodes directly in an
+ *         H2 MVStore key-value map, location to contents bytes, without going
+ *         through SQL. There is no statement parsing or LOB handling, a read
+ *         is a lookup in a B-tree that is cached in memory.
+ *
+ *         If there is a storagePath defined the map is kept in a file, next to
+ *         where the embedded DB would keep its file, otherwise it is kept in
+ *         memory only. Opening an existing file only reads the file header and
+ *         the latest root pages, there is no scan of the data at startup.
+ *
+ *         Each value holds the last modified time and the checksum in front of
+ *         the contents, so that a node and its metadata are always written
+ *         together in one put. Metadata lookups read the value but never
+ *         decode the contents.
+ *
+ *         Writes are committed by the MVStore background writer, every second
+ *         by default, the same way the embedded DB commits its MVStore. close()
+ *         commits anything still outstanding.
+ *
+ */
+public class MVStoreStorageDAO implements IStorageDAO {
+
+	protected static final Logger logger = Logger.getLogger(MVStoreStorageDAO.class);
+
+	protected static final String MAP_NAME = "STORAGE_NODE";
+
+	/*
+	 * Last modified time and raw SHA-256 in front of the contents
+	 */
+	protected static final int HEADER_LENGTH = 8 + 32;
+
+	protected static final String FILE_SUFFIX = ".kv.mv";
+
+	private String storagePath = null;
+	private String storageFile = null;
+
+	MVStore store = null;
+
+	/*
+	 * Location to header and contents
+	 */
+	MVMap<String, byte[]> backing = null;
+
+	/**
+	 * 
+	 * In memory store
+	 * 
+	 * @throws StorageException
+	 */
+	public MVStoreStorageDAO() throws StorageException {
+		this.storagePath = null;
+		this.storageFile = null;
+		this.init();
+	}
+
+	/**
+	 * 
+	 * File backed store
+	 * 
+	 * @param storagePath
+	 * @param storageFile
+	 * @throws StorageException
+	 */
+	public MVStoreStorageDAO(String storagePath, String storageFile) throws StorageException {
+		this.storagePath = storagePath;
+		this.storageFile = storageFile;
+		this.init();
+	}
+
+	/**
+	 * 
+	 * @throws StorageException
+	 */
+	protected void init() throws StorageException {
+		logger.info("MVStoreStorageDAO init with: ");
+		try {
+			MVStore.Builder builder = new MVStore.Builder();
+			if (this.storagePath != null) {
+				String fileName = this.storagePath + "/" + this.storageFile + FILE_SUFFIX;
+				logger.info(" -- storeFile: " + fileName);
+				builder.fileName(fileName);
+			}
+			this.store = builder.open();
+			this.backing = this.store.openMap(MAP_NAME);
+		} catch (IllegalStateException e) {
+			throw new StorageException("MVStoreStorageDAO failed to initialize", e);
+		}
+	}
+
+	/**
+	 * 
+	 * Commit outstanding writes and close the store. Spring calls this on
+	 * shutdown.
+	 * 
+	 */
+	@Override
+	public void close() {
+		logger.info("MVStoreStorageDAO close");
+		if ((this.store != null) && (this.store.isClosed() == false)) {
+			this.store.close();
+		}
+	}
+
+	/**
+	 * 
+	 * Format the path into a map key.
+	 * 
+	 * @param path
+	 * @return
+	 */
+	protected String path(Collection<String> path) throws StorageException {
+		if (path == null) {
+			throw new StorageException("Path is null");
+		} else if (path.isEmpty() == true) {
+			throw new StorageException("Path is empty");
+		}
+		return StringUtils.arrayToDelimitedString(path.toArray(), "/");
+	}
+
+	protected byte[] encode(StorageNode node) {
+		if (node.getContents() == null) {
+			return new byte[0];
+		}
+		return node.getContents().getBytes(StandardCharsets.UTF_8);
+	}
+
+	protected StorageNode decode(String location, byte[] entry) {
+		StorageNode node = new StorageNode();
+		node.setLocation(location);
+		node.setContents(new String(entry, HEADER_LENGTH, entry.length - HEADER_LENGTH, StandardCharsets.UTF_8));
+		return node;
+	}
+
+	/**
+	 * 
+	 * Map value of contents written at the given time
+	 * 
+	 * @param contents
+	 * @param modified
+	 * @return
+	 */
+	protected byte[] entry(byte[] contents, long modified) {
+		ByteBuffer ret = ByteBuffer.allocate(HEADER_LENGTH + contents.length);
+		ret.putLong(modified);
+		ret.put(StorageChecksums.digest().digest(contents));
+		ret.put(contents);
+		return ret.array();
+	}
+
+	/**
+	 * 
+	 * Map value of contents written now
+	 * 
+	 * @param node
+	 * @return
+	 */
+	protected byte[] entry(StorageNode node) {
+		return this.entry(this.encode(node), System.currentTimeMillis());
+	}
+
+	@Override
+	public Map<String, Object> getStorageStatistics() {
+		Map<String, Object> ret = new LinkedHashMap<String, Object>();
+		ret.put("mvstore.nodes", this.backing.sizeAsLong());
+		ret.put("mvstore.unsavedMemory", this.store.getUnsavedMemory());
+		ret.put("mvstore.cacheSizeUsed", this.store.getCacheSizeUsed());
+		if (this.store.getFileStore() != null) {
+			ret.put("mvstore.fillRate", this.store.getFileStore().getFillRate());
+		}
+		return ret;
+	}
+
+	@Override
+	public Collection<StorageNode> getStorageNodes() throws StorageException {
+		logger.info("getStorageNodes");
+		return this.getStorageNodes(null, 0, false);
+	}
+
+	@Override
+	public Collection<StorageNode> getStorageNodes(String after, int limit, boolean metadataOnly)
+			throws StorageException {
+		logger.info("getStorageNodes: after " + after + ", limit " + limit);
+
+		/*
+		 * The key iterator starts at the first key greater than or equal to
+		 * the cursor, so skip the cursor itself
+		 */
+		Collection<StorageNode> ret = new ArrayList<StorageNode>();
+		Iterator<String> keys = this.backing.keyIterator(after);
+		while (keys.hasNext()) {
+			if ((limit > 0) && (ret.size() >= limit)) {
+				break;
+			}
+			String location = keys.next();
+			if ((after != null) && (location.equals(after))) {
+				continue;
+			}
+			byte[] entry = this.backing.get(location);
+			if (entry == null) {
+				continue;
+			}
+			if (metadataOnly) {
+				StorageNode node = new StorageNode(location, (String) null);
+				node.setLength(entry.length - HEADER_LENGTH);
+				ret.add(node);
+			} else {
+				ret.add(this.decode(location, entry));
+			}
+		}
+		return ret;
+	}
+
+	@Override
+	public StorageNode getStorageNode(Collection<String> path) throws StorageException {
+		logger.info("getStorageNode");
+
+		String location = this.path(path);
+		byte[] entry = this.backing.get(location);
+		if (entry == null) {
+			return null;
+		}
+		return this.decode(location, entry);
+	}
+
+	@Override
+	public StorageMetadata getStorageMetadata(Collection<String> path) throws StorageException {
+		logger.info("getStorageMetadata");
+
+		String location = this.path(path);
+		byte[] entry = this.backing.get(location);
+		if (entry == null) {
+			return null;
+		}
+		ByteBuffer header = ByteBuffer.wrap(entry, 0, HEADER_LENGTH);
+		long modified = header.getLong();
+		byte[] checksum = new byte[HEADER_LENGTH - 8];
+		header.get(checksum);
+		return new StorageMetadata(location, (long) (entry.length - HEADER_LENGTH), StorageChecksums.hex(checksum),
+				modified);
+	}
+
+	@Override
+	public IStorageContents getStorageContents(Collection<String> path) throws StorageException {
+		logger.info("getStorageContents");
+
+		byte[] entry = this.backing.get(this.path(path));
+		if (entry == null) {
+			return null;
+		}
+		return new ByteArrayStorageContents(entry, HEADER_LENGTH, entry.length - HEADER_LENGTH);
+	}
+
+	@Override
+	public StorageNode createStorageNode(StorageNode node, Collection<String> path) throws StorageException {
+		logger.info("createStorageNode");
+
+		if (node == null) {
+			throw new StorageException("Node is null");
+		}
+
+		String location = this.path(path);
+		this.backing.put(location, this.entry(node));
+		return node;
+	}
+
+	@Override
+	public Collection<StorageResult> createStorageNodes(Collection<StorageNode> nodes) throws StorageException {
+		logger.info("createStorageNodes");
+
+		if (nodes == null) {
+			throw new StorageException("Nodes is null");
+		}
+
+		Collection<StorageResult> ret = new ArrayList<StorageResult>(nodes.size());
+		for (StorageNode node : nodes) {
+			if ((node == null) || (node.getLocation() == null)) {
+				ret.add(new StorageResult(null, StorageOutcome.INVALID));
+				continue;
+			}
+			if (this.backing.putIfAbsent(node.getLocation(), this.entry(node)) != null) {
+				ret.add(new StorageResult(node.getLocation(), StorageOutcome.EXISTS));
+			} else {
+				ret.add(new StorageResult(node.getLocation(), StorageOutcome.CREATED, node));
+			}
+		}
+		return ret;
+	}
+
+	@Override
+	public StorageNode updateStorageNode(StorageNode node, Collection<String> path) throws StorageException {
+		logger.info("updateStorageNode");
+
+		if (node == null) {
+			throw new StorageException("Node is null");
+		}
+
+		/*
+		 * replace() only writes if the key is present
+		 */
+		String location = this.path(path);
+		if (this.backing.replace(location, this.entry(node)) == null) {
+			return null;
+		}
+		return node;
+	}
+
+	@Override
+	public void deleteStorageNode(Collection<String> path) throws StorageException {
+		logger.info("deleteStorageNode");
+
+		if (path == null) {
+			throw new StorageException("Path is null");
+		}
+
+		if (path.size() != 1) {
+			throw new StorageException("Path is longer than one element, currently not supported");
+		}
+
+		this.backing.remove(this.path(path));
+	}
+
+	@Override
+	public StorageResult createStorageNodeIfAbsent(StorageNode node, Collection<String> path) throws StorageException {
+		logger.info("createStorageNodeIfAbsent");
+
+		if (node == null) {
+			throw new StorageException("Node is null");
+		}
+
+		/*
+		 * putIfAbsent() only writes if the key is absent
+		 */
+		String location = this.path(path);
+		if (this.backing.putIfAbsent(location, this.entry(node)) != null) {
+			return new StorageResult(location, StorageOutcome.EXISTS);
+		}
+		return new StorageResult(location, StorageOutcome.CREATED, node);
+	}
+
+	@Override
+	public StorageResult updateStorageNodeIfPresent(StorageNode node, Collection<String> path) throws StorageException {
+		logger.info("updateStorageNodeIfPresent");
+
+		if (node == null) {
+			throw new StorageException("Node is null");
+		}
+
+		String location = this.path(path);
+		if (this.backing.replace(location, this.entry(node)) == null) {
+			return new StorageResult(location, StorageOutcome.NOT_FOUND);
+		}
+		return new StorageResult(location, StorageOutcome.UPDATED, node);
+	}
+
+	@Override
+	public StorageResult deleteStorageNodeIfPresent(Collection<String> path) throws StorageException {
+		logger.info("deleteStorageNodeIfPresent");
+
+		if (path == null) {
+			throw new StorageException("Path is null");
+		}
+
+		if (path.size() != 1) {
+			throw new StorageException("Path is longer than one element, currently not supported");
+		}
+
+		String location = this.path(path);
+		if (this.backing.remove(location) == null) {
+			return new StorageResult(location, StorageOutcome.NOT_FOUND);
+		}
+		return new StorageResult(location, StorageOutcome.DELETED);
+	}
+
+}
@@ -1,15 +1,25 @@
 package com.mesosphere.challenge.service.dao;
 
-import java.util.Arrays;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Supplier;
 
 import org.apache.log4j.Logger;
 import org.springframework.util.StringUtils;
 
 import com.mesosphere.challenge.StorageException;
+import com.mesosphere.challenge.model.StorageMetadata;
 import com.mesosphere.challenge.model.StorageNode;
+import com.mesosphere.challenge.model.StorageOutcome;
+import com.mesosphere.challenge.model.StorageResult;
 
 /**
  * 
@@ -17,29 +27,257 @@ import com.mesosphere.challenge.model.StorageNode;
  *
  *         This is a DAO implementation class that stores nodes in memory.
  *
+ *         Nodes are kept in a ConcurrentSkipListMap, so point reads never
+ *         lock, and every write is a single atomic map operation on its
+ *         location.
+ *
+ *         Listings are snapshot consistent: a page reflects the map at one
+ *         point in time, never half of a write. Writers count themselves in
+ *         and out on striped counters. A listing copies its page and keeps
+ *         the copy if no write was in flight or started meanwhile, and
+ *         retries otherwise. After too many retries it holds new writers back
+ *         briefly, waits for the ones in flight, and copies. Point reads are
+ *         never held back.
+ *
  */
 public class MemoryStorageDAO implements IStorageDAO {
 
 	protected static final Logger logger = Logger.getLogger(MemoryStorageDAO.class);
 
 	/*
-	 * Simple map to keep nodes in memory
+	 * Optimistic listing attempts before writers are held back
+	 */
+	protected static final int LISTING_ATTEMPTS = 16;
+
+	/*
+	 * Writer counter stripes, and the distance between two stripes in the
+	 * counter arrays, so that every stripe has a cache line of its own
+	 */
+	protected static final int STRIPES = 64;
+	private static final int STRIDE = 16;
+
+	/*
+	 * A stored node together with its metadata, never changed once stored
+	 */
+	protected static class MemoryEntry {
+		final StorageNode node;
+		final StorageMetadata metadata;
+
+		protected MemoryEntry(String location, StorageNode node) {
+			this.node = node;
+			this.metadata = StorageChecksums.metadata(location, StorageChecksums.bytes(node));
+		}
+
+		protected MemoryEntry(StorageNode node, StorageMetadata metadata) {
+			this.node = node;
+			this.metadata = metadata;
+		}
+	}
+
+	/*
+	 * Concurrent map to keep nodes in memory, sorted by location so that we
+	 * can page through it
+	 */
+	private ConcurrentNavigableMap<String, MemoryEntry> backing = new ConcurrentSkipListMap<String, MemoryEntry>();
+
+	/*
+	 * Writes started and finished, per stripe
+	 */
+	private final AtomicLongArray started = new AtomicLongArray(STRIPES * STRIDE);
+	private final AtomicLongArray finished = new AtomicLongArray(STRIPES * STRIDE);
+
+	/*
+	 * Number of listings currently holding new writers back
 	 */
-	private Map<String, StorageNode> backing = new HashMap<String, StorageNode>();
+	private final AtomicInteger gate = new AtomicInteger();
+
+	/*
+	 * Statistics
+	 */
+	private final AtomicLong listings = new AtomicLong();
+	private final AtomicLong listingRetries = new AtomicLong();
+	private final AtomicLong listingGated = new AtomicLong();
 
 	protected String path(Collection<String> path) {
 		return StringUtils.arrayToDelimitedString(path.toArray(), "/");
 	}
 
+	/**
+	 * 
+	 * Run a write, counted in and out on the stripe of this thread. Waits
+	 * while a listing holds writers back.
+	 * 
+	 * @param write
+	 * @return
+	 */
+	protected <T> T write(Supplier<T> write) {
+		int stripe = (int) (Thread.currentThread().getId() % STRIPES) * STRIDE;
+		while (true) {
+			this.started.incrementAndGet(stripe);
+			if (this.gate.get() == 0) {
+				break;
+			}
+			/*
+			 * A listing closed the gate, back out and wait for it
+			 */
+			this.finished.incrementAndGet(stripe);
+			while (this.gate.get() != 0) {
+				Thread.yield();
+			}
+		}
+		try {
+			return write.get();
+		} finally {
+			this.finished.incrementAndGet(stripe);
+		}
+	}
+
+	/**
+	 * 
+	 * @return true if no write is in flight, also fills in the started
+	 *         counts. Finished counts are read first, so a write that
+	 *         finishes in between shows as in flight.
+	 */
+	protected boolean quiescent(long[] counts) {
+		for (int i = 0; i < STRIPES; i++) {
+			long done = this.finished.get(i * STRIDE);
+			counts[i] = this.started.get(i * STRIDE);
+			if (counts[i] != done) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * 
+	 * @return true if no write has started since the counts were taken
+	 */
+	protected boolean unchanged(long[] counts) {
+		for (int i = 0; i < STRIPES; i++) {
+			if (this.started.get(i * STRIDE) != counts[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * 
+	 * Run a copy of part of the map so that it sees the map at a single point
+	 * in time
+	 * 
+	 * @param copy
+	 * @return
+	 */
+	protected <T> T snapshot(Supplier<T> copy) {
+		this.listings.incrementAndGet();
+		long[] counts = new long[STRIPES];
+		for (int attempt = 0; attempt < LISTING_ATTEMPTS; attempt++) {
+			if (this.quiescent(counts)) {
+				T ret = copy.get();
+				if (this.unchanged(counts)) {
+					return ret;
+				}
+			}
+			this.listingRetries.incrementAndGet();
+			Thread.yield();
+		}
+
+		/*
+		 * Writers keep getting in the way, hold new ones back until the ones
+		 * in flight are done, and copy then
+		 */
+		this.listingGated.incrementAndGet();
+		this.gate.incrementAndGet();
+		try {
+			while (this.quiescent(counts) == false) {
+				Thread.yield();
+			}
+			return copy.get();
+		} finally {
+			this.gate.decrementAndGet();
+		}
+	}
+
+	/**
+	 * 
+	 * @param location
+	 * @return the stored entry, null if there is none
+	 */
+	protected MemoryEntry entry(String location) {
+		return this.backing.get(location);
+	}
+
+	/**
+	 * 
+	 * @return all stored entries, weakly consistent
+	 */
+	protected Collection<MemoryEntry> entries() {
+		return this.backing.values();
+	}
+
+	/**
+	 * 
+	 * Put back an entry, or remove it if null, without counting as a write.
+	 * Only for filling the store before it is used.
+	 * 
+	 * @param location
+	 * @param entry
+	 */
+	protected void restore(String location, MemoryEntry entry) {
+		if (entry == null) {
+			this.backing.remove(location);
+		} else {
+			this.backing.put(location, entry);
+		}
+	}
+
+	/**
+	 * 
+	 * @param location
+	 * @return the removed entry, null if there was none
+	 */
+	protected MemoryEntry remove(String location) {
+		return this.write(() -> this.backing.remove(location));
+	}
+
 	@Override
 	public Collection<StorageNode> getStorageNodes() throws StorageException {
 		logger.info("getStorageNodes");
 
-		if (this.backing.values() == null) {
-			return Arrays.asList();
-		}
+		return this.snapshot(() -> {
+			Collection<StorageNode> ret = new ArrayList<StorageNode>();
+			for (MemoryEntry entry : this.backing.values()) {
+				ret.add(entry.node);
+			}
+			return ret;
+		});
+	}
 
-		return this.backing.values();
+	@Override
+	public Collection<StorageNode> getStorageNodes(String after, int limit, boolean metadataOnly)
+			throws StorageException {
+		logger.info("getStorageNodes: after " + after + ", limit " + limit);
+
+		Map<String, MemoryEntry> page = (after == null) ? this.backing : this.backing.tailMap(after, false);
+
+		return this.snapshot(() -> {
+			Collection<StorageNode> ret = new ArrayList<StorageNode>();
+			for (Map.Entry<String, MemoryEntry> entry : page.entrySet()) {
+				if ((limit > 0) && (ret.size() >= limit)) {
+					break;
+				}
+				if (metadataOnly) {
+					StorageNode node = new StorageNode(entry.getKey(), (String) null);
+					node.setLength(entry.getValue().metadata.getLength().intValue());
+					ret.add(node);
+				} else {
+					ret.add(new StorageNode(entry.getKey(), entry.getValue().node.getContents()));
+				}
+			}
+			return ret;
+		});
 	}
 
 	@Override
@@ -50,11 +288,44 @@ public class MemoryStorageDAO implements IStorageDAO {
 			throw new StorageException("Path is null");
 		}
 
-		if (this.backing.containsKey(this.path(path)) == false) {
+		MemoryEntry entry = this.backing.get(this.path(path));
+		if (entry == null) {
 			return null;
 		}
 
-		return this.backing.get(this.path(path));
+		return entry.node;
+	}
+
+	@Override
+	public StorageMetadata getStorageMetadata(Collection<String> path) throws StorageException {
+		logger.info("getStorageMetadata");
+
+		if (path == null) {
+			throw new StorageException("Path is null");
+		}
+
+		MemoryEntry entry = this.backing.get(this.path(path));
+		if (entry == null) {
+			return null;
+		}
+
+		return entry.metadata;
+	}
+
+	@Override
+	public IStorageContents getStorageContents(Collection<String> path) throws StorageException {
+		logger.info("getStorageContents");
+
+		StorageNode node = this.getStorageNode(path);
+		if (node == null) {
+			return null;
+		}
+
+		if (node.getContents() == null) {
+			return new ByteArrayStorageContents(null);
+		}
+
+		return new ByteArrayStorageContents(node.getContents().getBytes(StandardCharsets.UTF_8));
 	}
 
 	@Override
@@ -69,9 +340,44 @@ public class MemoryStorageDAO implements IStorageDAO {
 			throw new StorageException("Path is null");
 		}
 
-		this.backing.put(this.path(path), node);
+		String location = this.path(path);
+		MemoryEntry entry = new MemoryEntry(location, node);
+		this.write(() -> this.backing.put(location, entry));
 
-		return this.backing.get(this.path(path));
+		return node;
+	}
+
+	@Override
+	public Collection<StorageResult> createStorageNodes(Collection<StorageNode> nodes) throws StorageException {
+		logger.info("createStorageNodes");
+
+		if (nodes == null) {
+			throw new StorageException("Nodes is null");
+		}
+
+		/*
+		 * Build the entries first, the whole batch is then one write as far
+		 * as listings are concerned
+		 */
+		ArrayList<MemoryEntry> entries = new ArrayList<MemoryEntry>(nodes.size());
+		for (StorageNode node : nodes) {
+			entries.add(((node == null) || (node.getLocation() == null)) ? null
+					: new MemoryEntry(node.getLocation(), node));
+		}
+
+		return this.write(() -> {
+			Collection<StorageResult> ret = new ArrayList<StorageResult>(entries.size());
+			for (MemoryEntry entry : entries) {
+				if (entry == null) {
+					ret.add(new StorageResult(null, StorageOutcome.INVALID));
+				} else if (this.backing.putIfAbsent(entry.metadata.getLocation(), entry) != null) {
+					ret.add(new StorageResult(entry.metadata.getLocation(), StorageOutcome.EXISTS));
+				} else {
+					ret.add(new StorageResult(entry.metadata.getLocation(), StorageOutcome.CREATED, entry.node));
+				}
+			}
+			return ret;
+		});
 	}
 
 	@Override
@@ -86,14 +392,14 @@ public class MemoryStorageDAO implements IStorageDAO {
 			throw new StorageException("Path is null");
 		}
 
-		if (this.backing.containsKey(this.path(path)) == false) {
-			return null;
-		}
-
-		this.backing.remove(this.path(path));
-		this.backing.put(this.path(path), node);
+		/*
+		 * Only replaces an existing entry, in one atomic step
+		 */
+		String location = this.path(path);
+		MemoryEntry entry = new MemoryEntry(location, node);
+		MemoryEntry updated = this.write(() -> this.backing.computeIfPresent(location, (key, old) -> entry));
 
-		return this.backing.get(this.path(path));
+		return (updated != null) ? node : null;
 	}
 
 	@Override
@@ -108,11 +414,76 @@ public class MemoryStorageDAO implements IStorageDAO {
 			throw new StorageException("Path is longer than one element, currently not supported");
 		}
 
-		if (this.backing.containsKey(this.path(path)) == false) {
-			return;
+		this.remove(this.path(path));
+	}
+
+	@Override
+	public StorageResult createStorageNodeIfAbsent(StorageNode node, Collection<String> path) throws StorageException {
+		logger.info("createStorageNodeIfAbsent");
+
+		if (node == null) {
+			throw new StorageException("Node is null");
 		}
 
-		this.backing.remove(this.path(path));
+		if (path == null) {
+			throw new StorageException("Path is null");
+		}
+
+		/*
+		 * Only adds an entry if there is none, in one atomic step
+		 */
+		String location = this.path(path);
+		MemoryEntry entry = new MemoryEntry(location, node);
+		MemoryEntry old = this.write(() -> this.backing.putIfAbsent(location, entry));
+
+		return (old == null) ? new StorageResult(location, StorageOutcome.CREATED, node)
+				: new StorageResult(location, StorageOutcome.EXISTS);
+	}
+
+	@Override
+	public StorageResult updateStorageNodeIfPresent(StorageNode node, Collection<String> path) throws StorageException {
+		logger.info("updateStorageNodeIfPresent");
+
+		if (node == null) {
+			throw new StorageException("Node is null");
+		}
+
+		if (path == null) {
+			throw new StorageException("Path is null");
+		}
+
+		String location = this.path(path);
+		MemoryEntry entry = new MemoryEntry(location, node);
+		MemoryEntry updated = this.write(() -> this.backing.computeIfPresent(location, (key, old) -> entry));
+
+		return (updated != null) ? new StorageResult(location, StorageOutcome.UPDATED, node)
+				: new StorageResult(location, StorageOutcome.NOT_FOUND);
+	}
+
+	@Override
+	public StorageResult deleteStorageNodeIfPresent(Collection<String> path) throws StorageException {
+		logger.info("deleteStorageNodeIfPresent");
+
+		if (path == null) {
+			throw new StorageException("Path is null");
+		}
+
+		if (path.size() != 1) {
+			throw new StorageException("Path is longer than one element, currently not supported");
+		}
+
+		String location = this.path(path);
+		return (this.remove(location) != null) ? new StorageResult(location, StorageOutcome.DELETED)
+				: new StorageResult(location, StorageOutcome.NOT_FOUND);
+	}
+
+	@Override
+	public Map<String, Object> getStorageStatistics() {
+		Map<String, Object> ret = new LinkedHashMap<String, Object>();
+		ret.put("memory.listings", this.listings.get());
+		ret.put("memory.listingRetries", this.listingRetries.get());
+		ret.put("memory.listingGated", this.listingGated.get());
+		return ret;
 	}
 
 }
@@ -0,0 +1,660 @@
+package com.mesosphere.challenge.service.dao;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+import com.mesosphere.challenge.StorageException;
+import com.mesosphere.challenge.model.StorageMetadata;
+import com.mesosphere.challenge.model.StorageNode;
+import com.mesosphere.challenge.service.dao.MemoryStorageDAO.MemoryEntry;
+
+/**
+ * 
+ * @author john
+ *
+ *         This class persists the entries of an in memory store in a folder,
+ *         as a snapshot plus a write-ahead log of the writes since.
+ *
+ *         Files are numbered by generation. The log of generation n,
+ *         wal-n.log, holds the writes made after it was opened. A snapshot of
+ *         generation n, snapshot-n-p.dat for each partition p, holds the
+ *         store as it was at some point after log n was opened, and is only
+ *         complete once snapshot-n.done exists. The store is rebuilt from the
+ *         latest complete snapshot plus all logs of that generation and later,
+ *         in order. Writes are replayed whole, so it does not matter that a
+ *         snapshot may already hold some of the writes in its own log.
+ *
+ *         Every record carries its length and a CRC32. Recovery stops reading
+ *         a log at the first torn or damaged record, which can only be the
+ *         last write before a crash.
+ *
+ *         Snapshot partitions are written and loaded in parallel, and a log
+ *         is replayed by partition in parallel too. A location always falls in
+ *         the same partition, so its writes are applied in log order.
+ *
+ */
+public class MemoryStorageJournal {
+
+	protected static final Logger logger = Logger.getLogger(MemoryStorageJournal.class);
+
+	protected static final String LOG_PREFIX = "wal-";
+	protected static final String LOG_SUFFIX = ".log";
+	protected static final String SNAPSHOT_PREFIX = "snapshot-";
+	protected static final String SNAPSHOT_SUFFIX = ".dat";
+	protected static final String SNAPSHOT_DONE_SUFFIX = ".done";
+	protected static final String TEMPORARY_SUFFIX = ".tmp";
+
+	protected static final byte PUT = 1;
+	protected static final byte DELETE = 2;
+
+	private static final byte HAS_LOCATION = 1;
+	private static final byte HAS_CONTENTS = 2;
+
+	/**
+	 * 
+	 * @author john
+	 *
+	 *         When log writes are forced to disk. Every write reaches the
+	 *         operating system before it returns, so a crash of the process
+	 *         alone never loses it.
+	 * 
+	 *         - always - Before every write returns. Survives power loss, at
+	 *         the cost of a disk flush per write.
+	 * 
+	 *         - interval - Every fsyncInterval milliseconds in the background.
+	 *         Power loss costs at most the last interval.
+	 * 
+	 *         - never - Left to the operating system.
+	 * 
+	 */
+	public enum FsyncPolicy {
+		ALWAYS, INTERVAL, NEVER;
+
+		public static FsyncPolicy forName(String name) throws StorageException {
+			for (FsyncPolicy policy : values()) {
+				if (policy.name().equalsIgnoreCase(name)) {
+					return policy;
+				}
+			}
+			throw new StorageException("Unknown fsync policy: " + name);
+		}
+	}
+
+	private final Path folder;
+	private final FsyncPolicy fsync;
+	private final int partitions;
+
+	private long generation = 0;
+	private FileChannel log = null;
+	private ScheduledExecutorService syncer = null;
+
+	/*
+	 * Statistics
+	 */
+	private final AtomicLong appends = new AtomicLong();
+	private final AtomicLong appendedBytes = new AtomicLong();
+	private final AtomicLong fsyncs = new AtomicLong();
+	private final AtomicLong snapshots = new AtomicLong();
+	private volatile long snapshotMillis = 0;
+	private volatile long recoveredRecords = 0;
+	private volatile long recoveryMillis = 0;
+
+	/**
+	 * 
+	 * @param folder
+	 *            where the journal files are kept, created if missing
+	 * @param fsync
+	 * @param fsyncInterval
+	 *            milliseconds between forced writes with FsyncPolicy.INTERVAL
+	 * @throws StorageException
+	 */
+	public MemoryStorageJournal(String folder, FsyncPolicy fsync, long fsyncInterval) throws StorageException {
+		this.folder = Paths.get(folder);
+		this.fsync = fsync;
+		this.partitions = Math.max(2, Runtime.getRuntime().availableProcessors());
+		try {
+			Files.createDirectories(this.folder);
+		} catch (IOException e) {
+			throw new StorageException("MemoryStorageJournal failed to create " + folder, e);
+		}
+		if ((fsync == FsyncPolicy.INTERVAL) && (fsyncInterval > 0)) {
+			this.syncer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "memory-journal-fsync");
+				thread.setDaemon(true);
+				return thread;
+			});
+			this.syncer.scheduleWithFixedDelay(() -> {
+				try {
+					this.force();
+				} catch (IOException e) {
+					logger.warn("Forcing the journal to disk failed", e);
+				}
+			}, fsyncInterval, fsyncInterval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	protected Path logPath(long generation) {
+		return this.folder.resolve(String.format("%s%016d%s", LOG_PREFIX, generation, LOG_SUFFIX));
+	}
+
+	protected Path snapshotPath(long generation, int partition) {
+		return this.folder.resolve(String.format("%s%016d-%03d%s", SNAPSHOT_PREFIX, generation, partition,
+				SNAPSHOT_SUFFIX));
+	}
+
+	protected Path snapshotDonePath(long generation) {
+		return this.folder.resolve(String.format("%s%016d%s", SNAPSHOT_PREFIX, generation, SNAPSHOT_DONE_SUFFIX));
+	}
+
+	protected int partition(String location) {
+		int hash = location.hashCode();
+		return ((hash ^ (hash >>> 16)) & 0x7fffffff) % this.partitions;
+	}
+
+	/**
+	 * 
+	 * Generation of every file in the folder by file name, temporary files
+	 * excluded
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
+	protected Map<String, Long> files() throws IOException {
+		Map<String, Long> ret = new TreeMap<String, Long>();
+		try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(this.folder)) {
+			for (Path path : directoryStream) {
+				String name = path.getFileName().toString();
+				if (name.endsWith(TEMPORARY_SUFFIX)) {
+					continue;
+				}
+				if (name.startsWith(LOG_PREFIX)) {
+					ret.put(name, Long.parseLong(name.substring(LOG_PREFIX.length(), LOG_PREFIX.length() + 16)));
+				} else if (name.startsWith(SNAPSHOT_PREFIX)) {
+					ret.put(name,
+							Long.parseLong(name.substring(SNAPSHOT_PREFIX.length(), SNAPSHOT_PREFIX.length() + 16)));
+				}
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * 
+	 * Rebuild the store, calling apply with each location and its entry, or
+	 * null if it was deleted. Calls for different locations come from
+	 * several threads at once. Then open a new log for the writes to come.
+	 * 
+	 * @param apply
+	 * @throws StorageException
+	 */
+	public synchronized void recover(BiConsumer<String, MemoryEntry> apply) throws StorageException {
+		long start = System.currentTimeMillis();
+		ExecutorService executor = Executors.newFixedThreadPool(this.partitions);
+		try {
+			Map<String, Long> files = this.files();
+			long snapshot = 0;
+			long latest = 0;
+			for (Map.Entry<String, Long> file : files.entrySet()) {
+				if (file.getKey().endsWith(SNAPSHOT_DONE_SUFFIX)) {
+					snapshot = Math.max(snapshot, file.getValue());
+				}
+				latest = Math.max(latest, file.getValue());
+			}
+
+			/*
+			 * All partitions of the snapshot at once, they hold different
+			 * locations
+			 */
+			List<Future<Long>> loads = new ArrayList<Future<Long>>();
+			for (Map.Entry<String, Long> file : files.entrySet()) {
+				if ((file.getValue() == snapshot) && (file.getKey().endsWith(SNAPSHOT_SUFFIX))) {
+					Path path = this.folder.resolve(file.getKey());
+					loads.add(executor.submit(() -> this.read(path, apply)));
+				}
+			}
+			long records = 0;
+			for (Future<Long> load : loads) {
+				records += load.get();
+			}
+
+			/*
+			 * Logs in order, each read once and applied by partition
+			 */
+			for (Map.Entry<String, Long> file : files.entrySet()) {
+				if ((file.getValue() >= snapshot) && (file.getKey().startsWith(LOG_PREFIX))) {
+					records += this.replay(this.folder.resolve(file.getKey()), apply, executor);
+				}
+			}
+
+			/*
+			 * Everything before the snapshot is no longer needed
+			 */
+			for (Map.Entry<String, Long> file : files.entrySet()) {
+				if (file.getValue() < snapshot) {
+					Files.deleteIfExists(this.folder.resolve(file.getKey()));
+				}
+			}
+
+			this.recoveredRecords = records;
+			this.recoveryMillis = System.currentTimeMillis() - start;
+			logger.info("Recovered " + records + " records from " + this.folder + " in " + this.recoveryMillis
+					+ " ms, snapshot generation " + snapshot);
+
+			this.open(latest + 1);
+		} catch (IOException | ExecutionException e) {
+			throw new StorageException("MemoryStorageJournal failed to recover from " + this.folder, e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new StorageException("MemoryStorageJournal interrupted while recovering", e);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * 
+	 * Replay one log, split by partition
+	 * 
+	 * @param path
+	 * @param apply
+	 * @param executor
+	 * @return number of records replayed
+	 * @throws IOException
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 */
+	protected long replay(Path path, BiConsumer<String, MemoryEntry> apply, ExecutorService executor)
+			throws IOException, InterruptedException, ExecutionException {
+		List<List<Map.Entry<String, MemoryEntry>>> split = new ArrayList<List<Map.Entry<String, MemoryEntry>>>(
+				this.partitions);
+		for (int i = 0; i < this.partitions; i++) {
+			split.add(new ArrayList<Map.Entry<String, MemoryEntry>>());
+		}
+		long ret = this.read(path, (location, entry) -> split.get(this.partition(location))
+				.add(new AbstractMap.SimpleImmutableEntry<String, MemoryEntry>(location, entry)));
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (List<Map.Entry<String, MemoryEntry>> records : split) {
+			futures.add(executor.submit(() -> {
+				for (Map.Entry<String, MemoryEntry> record : records) {
+					apply.accept(record.getKey(), record.getValue());
+				}
+			}));
+		}
+		for (Future<?> future : futures) {
+			future.get();
+		}
+		return ret;
+	}
+
+	/**
+	 * 
+	 * Read the records of a log or snapshot file up to the first torn or
+	 * damaged one. A length that is not positive, or that runs past the end
+	 * of the file, is a torn tail too: after a crash the file system may
+	 * have grown the file with zeros or garbage the write never reached.
+	 * 
+	 * @param path
+	 * @param consumer
+	 * @return number of records read
+	 * @throws IOException
+	 */
+	protected long read(Path path, BiConsumer<String, MemoryEntry> consumer) throws IOException {
+		long ret = 0;
+		long remaining = Files.size(path);
+		try (DataInputStream in = new DataInputStream(
+				new BufferedInputStream(Files.newInputStream(path), StorageStreams.BUFFER_SIZE))) {
+			CRC32 crc = new CRC32();
+			while (remaining > 0) {
+				if (remaining < 8) {
+					logger.warn("Torn record at the end of " + path + " after " + ret + " records, ignored");
+					break;
+				}
+				int length = in.readInt();
+				int checksum = in.readInt();
+				remaining -= 8;
+				if ((length <= 0) || (length > remaining)) {
+					logger.warn("Torn record at the end of " + path + " after " + ret + " records, ignored");
+					break;
+				}
+				byte[] body = new byte[length];
+				in.readFully(body);
+				remaining -= length;
+				crc.reset();
+				crc.update(body);
+				if ((int) crc.getValue() != checksum) {
+					logger.warn("Damaged record in " + path + " after " + ret + " records, rest ignored");
+					break;
+				}
+
+				/*
+				 * A body that passes the CRC but does not decode is damaged
+				 * all the same
+				 */
+				Map.Entry<String, MemoryEntry> record = null;
+				try {
+					record = this.decode(body);
+				} catch (IOException | RuntimeException e) {
+					logger.warn("Undecodable record in " + path + " after " + ret + " records, rest ignored", e);
+					break;
+				}
+				consumer.accept(record.getKey(), record.getValue());
+				ret++;
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * 
+	 * @param body
+	 * @return the location of a record, and its entry or null for a delete
+	 * @throws IOException
+	 */
+	protected Map.Entry<String, MemoryEntry> decode(byte[] body) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+		byte op = in.readByte();
+		String location = readString(in);
+		if (op == DELETE) {
+			return new AbstractMap.SimpleImmutableEntry<String, MemoryEntry>(location, null);
+		}
+		if (op != PUT) {
+			throw new IOException("Unknown record type " + op);
+		}
+		byte flags = in.readByte();
+		StorageNode node = new StorageNode();
+		if ((flags & HAS_LOCATION) != 0) {
+			node.setLocation(readString(in));
+		}
+		if ((flags & HAS_CONTENTS) != 0) {
+			node.setContents(readString(in));
+		}
+		long length = in.readLong();
+		long modified = in.readLong();
+		String checksum = in.readUTF();
+		MemoryEntry entry = new MemoryEntry(node, new StorageMetadata(location, length, checksum, modified));
+		return new AbstractMap.SimpleImmutableEntry<String, MemoryEntry>(location, entry);
+	}
+
+	protected byte[] encode(String location, MemoryEntry entry) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+				64 + ((entry != null) && (entry.node.getContents() != null) ? entry.node.getContents().length() : 0));
+		DataOutputStream out = new DataOutputStream(bytes);
+		/*
+		 * Room for length and CRC
+		 */
+		out.writeLong(0);
+		out.writeByte((entry != null) ? PUT : DELETE);
+		writeString(out, location);
+		if (entry != null) {
+			StorageNode node = entry.node;
+			out.writeByte(((node.getLocation() != null) ? HAS_LOCATION : 0)
+					| ((node.getContents() != null) ? HAS_CONTENTS : 0));
+			if (node.getLocation() != null) {
+				writeString(out, node.getLocation());
+			}
+			if (node.getContents() != null) {
+				writeString(out, node.getContents());
+			}
+			out.writeLong(entry.metadata.getLength());
+			out.writeLong(entry.metadata.getModified());
+			out.writeUTF(entry.metadata.getChecksum());
+		}
+		out.flush();
+		byte[] ret = bytes.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(ret, 8, ret.length - 8);
+		ByteBuffer header = ByteBuffer.wrap(ret);
+		header.putInt(ret.length - 8);
+		header.putInt((int) crc.getValue());
+		return ret;
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if ((length < 0) || (length > in.available())) {
+			throw new IOException("String of " + length + " bytes runs past the end of its record");
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * 
+	 * Start writing a new log
+	 * 
+	 * @param generation
+	 * @throws IOException
+	 */
+	private void open(long generation) throws IOException {
+		FileChannel log = FileChannel.open(this.logPath(generation), StandardOpenOption.CREATE_NEW,
+				StandardOpenOption.WRITE);
+		if (this.log != null) {
+			this.log.force(false);
+			this.log.close();
+		}
+		this.log = log;
+		this.generation = generation;
+	}
+
+	/**
+	 * 
+	 * Log a write, an entry or null for a delete. Callers make sure writes of
+	 * the same location are logged in the order they were applied.
+	 * 
+	 * @param location
+	 * @param entry
+	 * @throws StorageException
+	 */
+	public void append(String location, MemoryEntry entry) throws StorageException {
+		try {
+			ByteBuffer record = ByteBuffer.wrap(this.encode(location, entry));
+			synchronized (this) {
+				if (this.log == null) {
+					throw new StorageException("Journal is not open");
+				}
+				while (record.hasRemaining()) {
+					this.log.write(record);
+				}
+				if (this.fsync == FsyncPolicy.ALWAYS) {
+					this.log.force(false);
+					this.fsyncs.incrementAndGet();
+				}
+			}
+			this.appends.incrementAndGet();
+			this.appendedBytes.addAndGet(record.capacity());
+		} catch (IOException e) {
+			throw new StorageException("Journal append failed with java IOException", e);
+		}
+	}
+
+	/**
+	 * 
+	 * Force the current log to disk
+	 * 
+	 * @throws IOException
+	 */
+	public synchronized void force() throws IOException {
+		if ((this.log != null) && (this.log.isOpen())) {
+			this.log.force(false);
+			this.fsyncs.incrementAndGet();
+		}
+	}
+
+	/**
+	 * 
+	 * Switch to a new log, writes logged from now on go there. The store is
+	 * then written as the snapshot of the new generation.
+	 * 
+	 * @return the new generation
+	 * @throws StorageException
+	 */
+	public synchronized long rotate() throws StorageException {
+		try {
+			this.open(this.generation + 1);
+		} catch (IOException e) {
+			throw new StorageException("Journal rotation failed with java IOException", e);
+		}
+		return this.generation;
+	}
+
+	/**
+	 * 
+	 * Write a snapshot of the given generation, from entries taken after the
+	 * log of that generation was opened, then delete everything older
+	 * 
+	 * @param generation
+	 * @param entries
+	 * @throws StorageException
+	 */
+	public void snapshot(long generation, Collection<MemoryEntry> entries) throws StorageException {
+		long start = System.currentTimeMillis();
+		List<List<MemoryEntry>> split = new ArrayList<List<MemoryEntry>>(this.partitions);
+		for (int i = 0; i < this.partitions; i++) {
+			split.add(new ArrayList<MemoryEntry>());
+		}
+		for (MemoryEntry entry : entries) {
+			split.get(this.partition(entry.metadata.getLocation())).add(entry);
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(this.partitions);
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (int i = 0; i < this.partitions; i++) {
+				int partition = i;
+				futures.add(executor.submit(() -> {
+					this.writeSnapshot(this.snapshotPath(generation, partition), split.get(partition));
+					return null;
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+			Path done = this.snapshotDonePath(generation);
+			Path temporary = done.resolveSibling(done.getFileName() + TEMPORARY_SUFFIX);
+			Files.write(temporary, new byte[0]);
+			Files.move(temporary, done, StandardCopyOption.ATOMIC_MOVE);
+
+			for (Map.Entry<String, Long> file : this.files().entrySet()) {
+				if (file.getValue() < generation) {
+					Files.deleteIfExists(this.folder.resolve(file.getKey()));
+				}
+			}
+		} catch (IOException | ExecutionException e) {
+			throw new StorageException("Journal snapshot failed", e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new StorageException("Journal snapshot interrupted", e);
+		} finally {
+			executor.shutdown();
+		}
+		this.snapshots.incrementAndGet();
+		this.snapshotMillis = System.currentTimeMillis() - start;
+		logger.info("Snapshot of " + entries.size() + " entries, generation " + generation + ", took "
+				+ this.snapshotMillis + " ms");
+	}
+
+	private void writeSnapshot(Path path, List<MemoryEntry> entries) throws IOException {
+		Path temporary = path.resolveSibling(path.getFileName() + TEMPORARY_SUFFIX);
+		try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel),
+					StorageStreams.BUFFER_SIZE);
+			for (MemoryEntry entry : entries) {
+				out.write(this.encode(entry.metadata.getLocation(), entry));
+			}
+			out.flush();
+			channel.force(false);
+		}
+		Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * 
+	 * Stop forcing in the background, force and close the log
+	 * 
+	 */
+	public synchronized void close() {
+		if (this.syncer != null) {
+			this.syncer.shutdownNow();
+			this.syncer = null;
+		}
+		if (this.log != null) {
+			try {
+				this.log.force(false);
+				this.log.close();
+			} catch (IOException e) {
+				logger.warn("Closing the journal failed", e);
+			}
+			this.log = null;
+		}
+	}
+
+	/**
+	 * 
+	 * @return bytes in the current log
+	 */
+	protected synchronized long logBytes() {
+		try {
+			return ((this.log != null) && (this.log.isOpen())) ? this.log.size() : 0;
+		} catch (IOException e) {
+			return 0;
+		}
+	}
+
+	public Map<String, Object> getStatistics() {
+		Map<String, Object> ret = new LinkedHashMap<String, Object>();
+		ret.put("journal.fsync", this.fsync.name().toLowerCase());
+		ret.put("journal.generation", this.generation);
+		ret.put("journal.logBytes", this.logBytes());
+		ret.put("journal.appends", this.appends.get());
+		ret.put("journal.appendedBytes", this.appendedBytes.get());
+		ret.put("journal.fsyncs", this.fsyncs.get());
+		ret.put("journal.snapshots", this.snapshots.get());
+		ret.put("journal.lastSnapshotMillis", this.snapshotMillis);
+		ret.put("journal.recoveredRecords", this.recoveredRecords);
+		ret.put("journal.recoveryMillis", this.recoveryMillis);
+		return ret;
+	}
+
+}
@@ -0,0 +1,394 @@
+package com.mesosphere.challenge.service.dao;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.log4j.Logger;
+
+import com.mesosphere.challenge.StorageException;
+import com.mesosphere.challenge.model.StorageMetadata;
+import com.mesosphere.challenge.model.StorageNode;
+
+/**
+ * 
+ * @author john
+ *
+ *         This is a DAO that answers lookups of missing locations without
+ *         asking the wrapped DAO. A Bloom filter holds every stored location,
+ *         a lookup the filter rules out is a miss straight away. Misses the
+ *         filter lets through are asked of the wrapped DAO, and remembered in
+ *         a small LRU set of recent misses so that polling the same missing
+ *         location does not reach storage again.
+ *
+ *         The filter is built from a listing of the wrapped DAO on startup.
+ *         Writes add their location to it once the wrapped DAO has it, and
+ *         drop it from the recent misses. A lookup only remembers a miss if
+ *         no write of the same stripe happened while it asked the wrapped DAO.
+ *         Deleted locations stay in the filter until it is rebuilt, which
+ *         happens in the background once it holds more than it was sized for.
+ *
+ *         Writes that bypass this DAO, like another process sharing the
+ *         storage files, are not seen until the next rebuild.
+ *
+ */
+public class NegativeLookupStorageDAO extends ForwardingStorageDAO {
+
+	protected static final Logger logger = Logger.getLogger(NegativeLookupStorageDAO.class);
+
+	public static final long DEFAULT_EXPECTED_LOCATIONS = 1000000;
+	public static final double DEFAULT_FALSE_POSITIVE_RATE = 0.01;
+	public static final int DEFAULT_MISS_CACHE_SIZE = 10000;
+
+	/*
+	 * Page size of the listing a filter is built from
+	 */
+	protected static final int REBUILD_PAGE_SIZE = 1000;
+
+	private final long expectedLocations;
+	private final double falsePositiveRate;
+	private final int missCacheSize;
+
+	/*
+	 * The filter lookups use, and the one being built while a rebuild runs,
+	 * which writes add to as well
+	 */
+	private volatile StorageBloomFilter filter;
+	private volatile StorageBloomFilter building = null;
+
+	/*
+	 * Deletes since the filter was built, they count against its size too
+	 */
+	private final AtomicLong deletes = new AtomicLong();
+
+	private final AtomicBoolean rebuilding = new AtomicBoolean();
+	private final ExecutorService rebuilder = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "negative-lookup-rebuilder");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/*
+	 * Recently missed locations, least recently missed first
+	 */
+	private final LinkedHashMap<String, Boolean> misses;
+
+	/*
+	 * Write counts per stripe, read before a lookup and checked before its
+	 * miss is remembered
+	 */
+	private final AtomicLongArray versions = new AtomicLongArray(STRIPES);
+
+	/*
+	 * Statistics
+	 */
+	private final AtomicLong filterMisses = new AtomicLong();
+	private final AtomicLong missCacheHits = new AtomicLong();
+	private final AtomicLong falsePositives = new AtomicLong();
+	private final AtomicLong rejectedMisses = new AtomicLong();
+	private final AtomicLong rebuilds = new AtomicLong();
+
+	/**
+	 * 
+	 * @param delegate
+	 * @throws StorageException
+	 */
+	public NegativeLookupStorageDAO(IStorageDAO delegate) throws StorageException {
+		this(delegate, DEFAULT_EXPECTED_LOCATIONS, DEFAULT_FALSE_POSITIVE_RATE, DEFAULT_MISS_CACHE_SIZE);
+	}
+
+	/**
+	 * 
+	 * @param delegate
+	 * @param expectedLocations
+	 *            locations the filter is sized for at least, it grows with
+	 *            the store
+	 * @param falsePositiveRate
+	 * @param missCacheSize
+	 *            recent misses remembered, zero for none
+	 * @throws StorageException
+	 */
+	public NegativeLookupStorageDAO(IStorageDAO delegate, long expectedLocations, double falsePositiveRate,
+			int missCacheSize) throws StorageException {
+		super(delegate);
+		if (expectedLocations <= 0) {
+			throw new StorageException("Expected locations must be positive");
+		}
+		if ((falsePositiveRate <= 0) || (falsePositiveRate >= 1)) {
+			throw new StorageException("False positive rate must be between 0 and 1");
+		}
+		logger.info("NegativeLookupStorageDAO init with " + expectedLocations + " expected locations, rate "
+				+ falsePositiveRate + ", miss cache " + missCacheSize);
+		this.expectedLocations = expectedLocations;
+		this.falsePositiveRate = falsePositiveRate;
+		this.missCacheSize = missCacheSize;
+		this.misses = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+				return this.size() > NegativeLookupStorageDAO.this.missCacheSize;
+			}
+		};
+		this.filter = new StorageBloomFilter(expectedLocations, falsePositiveRate);
+		this.rebuild();
+	}
+
+	/**
+	 * 
+	 * Build a new filter from a listing of the wrapped DAO and swap it in.
+	 * Writes while the listing runs go to both filters, so none is lost.
+	 * 
+	 * @throws StorageException
+	 */
+	public void rebuild() throws StorageException {
+		synchronized (this.rebuilder) {
+			long start = System.currentTimeMillis();
+			long live = 0;
+			long expected = Math.max(this.expectedLocations, 2 * this.filter.getInsertions());
+			StorageBloomFilter next = new StorageBloomFilter(expected, this.falsePositiveRate);
+			this.building = next;
+			try {
+				this.deletes.set(0);
+				String after = null;
+				while (true) {
+					Collection<StorageNode> page = super.getStorageNodes(after, REBUILD_PAGE_SIZE, true);
+					for (StorageNode node : page) {
+						next.add(node.getLocation());
+						after = node.getLocation();
+					}
+					live += page.size();
+					if (page.size() < REBUILD_PAGE_SIZE) {
+						break;
+					}
+				}
+				this.filter = next;
+			} finally {
+				this.building = null;
+			}
+			this.rebuilds.incrementAndGet();
+			logger.info("Negative lookup filter rebuilt with " + live + " locations, " + next.getSize() + " bits in "
+					+ (System.currentTimeMillis() - start) + " ms");
+		}
+	}
+
+	/*
+	 * Rebuild in the background once the filter holds more than it was sized
+	 * for
+	 */
+	protected void rebuildIfSaturated() {
+		StorageBloomFilter current = this.filter;
+		if (current.getInsertions() + this.deletes.get() <= current.getExpected()) {
+			return;
+		}
+		if (this.rebuilding.compareAndSet(false, true)) {
+			this.rebuilder.submit(() -> {
+				try {
+					this.rebuild();
+				} catch (StorageException | RuntimeException e) {
+					logger.warn("Negative lookup filter rebuild failed", e);
+				} finally {
+					this.rebuilding.set(false);
+				}
+			});
+		}
+	}
+
+	/**
+	 * 
+	 * @param location
+	 * @return true if the location is known to be missing
+	 */
+	protected boolean missing(String location) {
+		if (this.filter.mightContain(location) == false) {
+			this.filterMisses.incrementAndGet();
+			return true;
+		}
+		synchronized (this.misses) {
+			if (this.misses.get(location) != null) {
+				this.missCacheHits.incrementAndGet();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * 
+	 * Remember a miss of the wrapped DAO, unless a write of the same stripe
+	 * happened since the lookup started
+	 * 
+	 * @param location
+	 * @param version
+	 */
+	protected void missed(String location, long version) {
+		this.falsePositives.incrementAndGet();
+		if (this.missCacheSize <= 0) {
+			return;
+		}
+		synchronized (this.misses) {
+			if (this.versions.get(this.stripe(location)) != version) {
+				this.rejectedMisses.incrementAndGet();
+				return;
+			}
+			this.misses.put(location, Boolean.TRUE);
+		}
+	}
+
+	@Override
+	protected void written(String location, boolean stored) {
+		if (stored) {
+			/*
+			 * Read the filter being built first, if there is none the
+			 * listing of a rebuild either has not started or is done and
+			 * swapped in
+			 */
+			StorageBloomFilter next = this.building;
+			StorageBloomFilter current = this.filter;
+			if (current.mightContain(location) == false) {
+				current.add(location);
+			}
+			if ((next != null) && (next != current)) {
+				next.add(location);
+			}
+		} else {
+			this.deletes.incrementAndGet();
+		}
+		synchronized (this.misses) {
+			this.versions.incrementAndGet(this.stripe(location));
+			this.misses.remove(location);
+		}
+		this.rebuildIfSaturated();
+	}
+
+	@Override
+	public StorageNode getStorageNode(Collection<String> path) throws StorageException {
+		String location = this.path(path);
+		if (this.missing(location)) {
+			return null;
+		}
+		long version = this.versions.get(this.stripe(location));
+		StorageNode ret = super.getStorageNode(path);
+		if (ret == null) {
+			this.missed(location, version);
+		}
+		return ret;
+	}
+
+	@Override
+	public StorageMetadata getStorageMetadata(Collection<String> path) throws StorageException {
+		String location = this.path(path);
+		if (this.missing(location)) {
+			return null;
+		}
+		long version = this.versions.get(this.stripe(location));
+		StorageMetadata ret = super.getStorageMetadata(path);
+		if (ret == null) {
+			this.missed(location, version);
+		}
+		return ret;
+	}
+
+	@Override
+	public CompletableFuture<StorageNode> getStorageNodeAsync(Collection<String> path) {
+		String location = null;
+		try {
+			location = this.path(path);
+		} catch (StorageException e) {
+			return StorageFutures.failed(e);
+		}
+		if (this.missing(location)) {
+			return CompletableFuture.completedFuture(null);
+		}
+		String looked = location;
+		long version = this.versions.get(this.stripe(location));
+		return super.getStorageNodeAsync(path).thenApply(ret -> {
+			if (ret == null) {
+				this.missed(looked, version);
+			}
+			return ret;
+		});
+	}
+
+	@Override
+	public CompletableFuture<StorageMetadata> getStorageMetadataAsync(Collection<String> path) {
+		String location = null;
+		try {
+			location = this.path(path);
+		} catch (StorageException e) {
+			return StorageFutures.failed(e);
+		}
+		if (this.missing(location)) {
+			return CompletableFuture.completedFuture(null);
+		}
+		String looked = location;
+		long version = this.versions.get(this.stripe(location));
+		return super.getStorageMetadataAsync(path).thenApply(ret -> {
+			if (ret == null) {
+				this.missed(looked, version);
+			}
+			return ret;
+		});
+	}
+
+	@Override
+	public IStorageContents getStorageContents(Collection<String> path) throws StorageException {
+		String location = this.path(path);
+		if (this.missing(location)) {
+			return null;
+		}
+		long version = this.versions.get(this.stripe(location));
+		IStorageContents ret = super.getStorageContents(path);
+		if (ret == null) {
+			this.missed(location, version);
+		}
+		return ret;
+	}
+
+	@Override
+	public IStorageContents getStorageContents(Collection<String> path, Collection<String> encodings)
+			throws StorageException {
+		String location = this.path(path);
+		if (this.missing(location)) {
+			return null;
+		}
+		long version = this.versions.get(this.stripe(location));
+		IStorageContents ret = super.getStorageContents(path, encodings);
+		if (ret == null) {
+			this.missed(location, version);
+		}
+		return ret;
+	}
+
+	@Override
+	public Map<String, Object> getStorageStatistics() {
+		Map<String, Object> ret = new LinkedHashMap<String, Object>(super.getStorageStatistics());
+		StorageBloomFilter current = this.filter;
+		ret.put("negative.filterBits", current.getSize());
+		ret.put("negative.filterHashes", current.getHashes());
+		ret.put("negative.filterExpected", current.getExpected());
+		ret.put("negative.filterInsertions", current.getInsertions());
+		ret.put("negative.filterMisses", this.filterMisses.get());
+		ret.put("negative.falsePositives", this.falsePositives.get());
+		synchronized (this.misses) {
+			ret.put("negative.missCacheEntries", this.misses.size());
+		}
+		ret.put("negative.missCacheHits", this.missCacheHits.get());
+		ret.put("negative.rejectedMisses", this.rejectedMisses.get());
+		ret.put("negative.rebuilds", this.rebuilds.get());
+		return ret;
+	}
+
+	@Override
+	public void close() {
+		this.rebuilder.shutdownNow();
+		super.close();
+	}
+
+}
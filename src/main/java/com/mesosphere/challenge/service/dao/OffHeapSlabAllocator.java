@@ -0,0 +1,314 @@
+package com.mesosphere.challenge.service.dao;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import com.mesosphere.challenge.StorageException;
+
+/**
+ * 
+ * @author john
+ *
+ *         This class hands out chunks of off-heap memory, memcached style.
+ *         Memory is taken from the system in slabs, direct ByteBuffers of a
+ *         fixed size. Chunk sizes come in classes growing by a factor of 1.25,
+ *         and each slab is carved into chunks of one class when first needed.
+ *         Freed chunks go on a free list per class and are handed out again
+ *         before a new slab is taken. Records larger than a slab get a direct
+ *         buffer of their own.
+ *
+ *         A chunk is addressed by a long, slab index in the high half and
+ *         offset in the low half, so the caller only keeps a long per record
+ *         on the heap.
+ *
+ *         Allocation and freeing are synchronized, reads and writes of chunk
+ *         contents are not. Callers must make sure nobody reads a chunk that
+ *         is being reused, see OffHeapStorageDAO.
+ *
+ *         Slabs are never given back to the system or moved to another class.
+ *
+ */
+public class OffHeapSlabAllocator {
+
+	protected static final Logger logger = Logger.getLogger(OffHeapSlabAllocator.class);
+
+	public static final int MIN_CHUNK_SIZE = 64;
+
+	public static final double GROWTH_FACTOR = 1.25;
+
+	/*
+	 * Slab of memory, either carved into chunks of one class, or holding one
+	 * large record when sizeClass is -1
+	 */
+	protected static class Slab {
+		final ByteBuffer buffer;
+		final int sizeClass;
+
+		Slab(ByteBuffer buffer, int sizeClass) {
+			this.buffer = buffer;
+			this.sizeClass = sizeClass;
+		}
+	}
+
+	/*
+	 * Stack of free chunk addresses of one class
+	 */
+	protected static class FreeList {
+		long[] addresses = new long[16];
+		int size = 0;
+
+		void push(long address) {
+			if (this.size == this.addresses.length) {
+				this.addresses = Arrays.copyOf(this.addresses, this.size * 2);
+			}
+			this.addresses[this.size++] = address;
+		}
+
+		long pop() {
+			return this.addresses[--this.size];
+		}
+	}
+
+	private final long capacity;
+	private final int slabSize;
+
+	/*
+	 * Chunk size of each class, ascending
+	 */
+	private final int[] chunkSizes;
+	private final FreeList[] freeLists;
+
+	/*
+	 * Replaced, never changed in place, so readers need no lock
+	 */
+	private volatile Slab[] slabs = new Slab[0];
+
+	/*
+	 * Slab slots of large records that have been freed
+	 */
+	private final FreeList freeSlots = new FreeList();
+
+	/*
+	 * Statistics, all guarded by this
+	 */
+	private long allocatedBytes = 0;
+	private long usedBytes = 0;
+	private long requestedBytes = 0;
+	private long chunks = 0;
+	private long failures = 0;
+
+	/**
+	 * 
+	 * @param capacity
+	 *            total off-heap bytes this allocator may take
+	 * @param slabSize
+	 *            bytes per slab, also the largest chunk
+	 * @throws StorageException
+	 */
+	public OffHeapSlabAllocator(long capacity, int slabSize) throws StorageException {
+		if (slabSize < MIN_CHUNK_SIZE) {
+			throw new StorageException("Slab size must be at least " + MIN_CHUNK_SIZE + " bytes");
+		}
+		if (capacity < slabSize) {
+			throw new StorageException("Capacity must be at least one slab");
+		}
+		this.capacity = capacity;
+		this.slabSize = slabSize;
+
+		List<Integer> sizes = new ArrayList<Integer>();
+		for (double size = MIN_CHUNK_SIZE; size < slabSize; size *= GROWTH_FACTOR) {
+			int aligned = ((int) size + 7) & ~7;
+			if ((sizes.isEmpty()) || (sizes.get(sizes.size() - 1) < aligned)) {
+				sizes.add(aligned);
+			}
+		}
+		sizes.add(slabSize);
+		this.chunkSizes = new int[sizes.size()];
+		this.freeLists = new FreeList[sizes.size()];
+		for (int i = 0; i < this.chunkSizes.length; i++) {
+			this.chunkSizes[i] = sizes.get(i);
+			this.freeLists[i] = new FreeList();
+		}
+	}
+
+	/**
+	 * 
+	 * Smallest class that fits length bytes, -1 if only a slab of its own
+	 * does
+	 * 
+	 * @param length
+	 * @return
+	 */
+	protected int sizeClass(int length) {
+		int index = Arrays.binarySearch(this.chunkSizes, length);
+		if (index >= 0) {
+			return index;
+		}
+		index = -index - 1;
+		return (index < this.chunkSizes.length) ? index : -1;
+	}
+
+	/**
+	 * 
+	 * @param length
+	 * @return address of a chunk of at least length bytes
+	 * @throws StorageException
+	 *             if the capacity has been used up
+	 */
+	public synchronized long allocate(int length) throws StorageException {
+		int sizeClass = this.sizeClass(length);
+		long address = 0;
+		if (sizeClass < 0) {
+			address = this.allocateLarge(length);
+		} else {
+			FreeList free = this.freeLists[sizeClass];
+			if (free.size == 0) {
+				this.carve(sizeClass);
+			}
+			address = free.pop();
+		}
+		this.usedBytes += this.chunkSize(address);
+		this.requestedBytes += length;
+		this.chunks++;
+		return address;
+	}
+
+	/**
+	 * 
+	 * Take a new slab for a class and put all its chunks on the free list
+	 * 
+	 * @param sizeClass
+	 * @throws StorageException
+	 */
+	private void carve(int sizeClass) throws StorageException {
+		int slot = this.slot(this.slabSize);
+		this.install(slot, new Slab(ByteBuffer.allocateDirect(this.slabSize), sizeClass));
+		int chunkSize = this.chunkSizes[sizeClass];
+		FreeList free = this.freeLists[sizeClass];
+		for (int offset = this.slabSize - (this.slabSize % chunkSize) - chunkSize; offset >= 0; offset -= chunkSize) {
+			free.push(address(slot, offset));
+		}
+	}
+
+	private long allocateLarge(int length) throws StorageException {
+		int slot = this.slot(length);
+		this.install(slot, new Slab(ByteBuffer.allocateDirect(length), -1));
+		return address(slot, 0);
+	}
+
+	/**
+	 * 
+	 * Find a slab slot for size more bytes, checking the capacity
+	 * 
+	 * @param size
+	 * @return
+	 * @throws StorageException
+	 */
+	private int slot(int size) throws StorageException {
+		if (this.allocatedBytes + size > this.capacity) {
+			this.failures++;
+			throw new StorageException("Off-heap capacity of " + this.capacity + " bytes used up");
+		}
+		this.allocatedBytes += size;
+		return (this.freeSlots.size > 0) ? (int) this.freeSlots.pop() : this.slabs.length;
+	}
+
+	private void install(int slot, Slab slab) {
+		Slab[] slabs = Arrays.copyOf(this.slabs, Math.max(this.slabs.length, slot + 1));
+		slabs[slot] = slab;
+		this.slabs = slabs;
+	}
+
+	/**
+	 * 
+	 * Give a chunk back, length must be the length it was allocated with
+	 * 
+	 * @param address
+	 * @param length
+	 */
+	public synchronized void free(long address, int length) {
+		Slab slab = this.slab(address);
+		this.usedBytes -= this.chunkSize(address);
+		this.requestedBytes -= length;
+		this.chunks--;
+		if (slab.sizeClass < 0) {
+			Slab[] slabs = Arrays.copyOf(this.slabs, this.slabs.length);
+			slabs[slot(address)] = null;
+			this.slabs = slabs;
+			this.allocatedBytes -= slab.buffer.capacity();
+			this.freeSlots.push(slot(address));
+		} else {
+			this.freeLists[slab.sizeClass].push(address);
+		}
+	}
+
+	private int chunkSize(long address) {
+		Slab slab = this.slab(address);
+		return (slab.sizeClass < 0) ? slab.buffer.capacity() : this.chunkSizes[slab.sizeClass];
+	}
+
+	protected static long address(int slot, int offset) {
+		return (((long) slot) << 32) | offset;
+	}
+
+	protected static int slot(long address) {
+		return (int) (address >>> 32);
+	}
+
+	protected static int offset(long address) {
+		return (int) address;
+	}
+
+	protected Slab slab(long address) {
+		Slab[] slabs = this.slabs;
+		int slot = slot(address);
+		return (slot < slabs.length) ? slabs[slot] : null;
+	}
+
+	/**
+	 * 
+	 * A view of the chunk at address, positioned at its start, with its own
+	 * position and limit. Null if the chunk has been freed with its slab.
+	 * 
+	 * @param address
+	 * @param length
+	 *            bytes the view should cover
+	 * @return
+	 */
+	public ByteBuffer view(long address, int length) {
+		Slab slab = this.slab(address);
+		if (slab == null) {
+			return null;
+		}
+		ByteBuffer ret = slab.buffer.duplicate();
+		ret.limit(offset(address) + length);
+		ret.position(offset(address));
+		return ret;
+	}
+
+	/**
+	 * 
+	 * Off-heap usage
+	 * 
+	 * @return
+	 */
+	public synchronized Map<String, Object> getStatistics() {
+		Map<String, Object> ret = new LinkedHashMap<String, Object>();
+		ret.put("offheap.capacity", this.capacity);
+		ret.put("offheap.slabSize", this.slabSize);
+		ret.put("offheap.sizeClasses", this.chunkSizes.length);
+		ret.put("offheap.allocatedBytes", this.allocatedBytes);
+		ret.put("offheap.usedBytes", this.usedBytes);
+		ret.put("offheap.requestedBytes", this.requestedBytes);
+		ret.put("offheap.chunks", this.chunks);
+		ret.put("offheap.allocationFailures", this.failures);
+		return ret;
+	}
+
+}
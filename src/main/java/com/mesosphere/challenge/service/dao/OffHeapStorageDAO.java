@@ -0,0 +1,562 @@
+package com.mesosphere.challenge.service.dao;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Function;
+
+import org.apache.log4j.Logger;
+import org.springframework.util.StringUtils;
+
+import com.mesosphere.challenge.StorageException;
+import com.mesosphere.challenge.model.StorageMetadata;
+import com.mesosphere.challenge.model.StorageNode;
+import com.mesosphere.challenge.model.StorageOutcome;
+import com.mesosphere.challenge.model.StorageResult;
+
+/**
+ * 
+ * @author john
+ *
+ *         This is a DAO implementation class that stores nodes in memory, but
+ *         outside of the Java heap. Contents and metadata live in slabs of
+ *         direct memory handed out by an OffHeapSlabAllocator, the heap only
+ *         holds a sorted index of location to chunk address. A large data set
+ *         therefore adds next to nothing to garbage collection pauses.
+ *
+ *         Each record is laid out as modified time (8 bytes), contents length
+ *         (4 bytes), raw SHA-256 checksum (32 bytes) and the contents as
+ *         UTF-8. Like the MVStore DAO, null contents are stored as zero bytes.
+ *
+ *         Locations hash onto striped StampedLocks. Writers fill a fresh chunk
+ *         without any lock, then swap the index entry and free the old chunk
+ *         under the write lock of the stripe. Readers copy the record out
+ *         optimistically and keep the copy if no writer of the stripe got in
+ *         the way, so a chunk that was freed and reused meanwhile is never
+ *         returned. Otherwise they read again under the read lock.
+ *
+ *         Listings are weakly consistent, every node in a page is read
+ *         consistently on its own, but writes during the listing may or may
+ *         not show.
+ *
+ */
+public class OffHeapStorageDAO implements IStorageDAO {
+
+	protected static final Logger logger = Logger.getLogger(OffHeapStorageDAO.class);
+
+	public static final long DEFAULT_CAPACITY = 256L * 1024 * 1024;
+	public static final int DEFAULT_SLAB_SIZE = 4 * 1024 * 1024;
+
+	protected static final int STRIPES = 256;
+
+	/*
+	 * Record header, modified, length and checksum
+	 */
+	protected static final int CHECKSUM_LENGTH = 32;
+	protected static final int HEADER_LENGTH = 8 + 4 + CHECKSUM_LENGTH;
+
+	/*
+	 * Rough heap cost of an index entry besides the key characters, a skip
+	 * list node, its share of index nodes, a boxed Long and a String
+	 */
+	protected static final int INDEX_ENTRY_OVERHEAD = 112;
+
+	private final OffHeapSlabAllocator allocator;
+
+	/*
+	 * Location to chunk address, sorted by location so that we can page
+	 * through it
+	 */
+	private ConcurrentNavigableMap<String, Long> index = new ConcurrentSkipListMap<String, Long>();
+
+	private final StampedLock[] locks = new StampedLock[STRIPES];
+
+	/*
+	 * Statistics
+	 */
+	private final AtomicLong keyChars = new AtomicLong();
+	private final AtomicLong optimisticReads = new AtomicLong();
+	private final AtomicLong lockedReads = new AtomicLong();
+
+	/**
+	 * 
+	 * Default capacity and slab size
+	 * 
+	 * @throws StorageException
+	 */
+	public OffHeapStorageDAO() throws StorageException {
+		this(DEFAULT_CAPACITY, DEFAULT_SLAB_SIZE);
+	}
+
+	/**
+	 * 
+	 * @param capacity
+	 *            off-heap bytes to use at most
+	 * @param slabSize
+	 *            bytes taken from the system at a time
+	 * @throws StorageException
+	 */
+	public OffHeapStorageDAO(long capacity, int slabSize) throws StorageException {
+		logger.info("OffHeapStorageDAO init with capacity " + capacity + ", slab size " + slabSize);
+		this.allocator = new OffHeapSlabAllocator(capacity, slabSize);
+		for (int i = 0; i < STRIPES; i++) {
+			this.locks[i] = new StampedLock();
+		}
+	}
+
+	/**
+	 * 
+	 * Format the path into an index key.
+	 * 
+	 * @param path
+	 * @return
+	 */
+	protected String path(Collection<String> path) throws StorageException {
+		if (path == null) {
+			throw new StorageException("Path is null");
+		} else if (path.isEmpty() == true) {
+			throw new StorageException("Path is empty");
+		}
+		return StringUtils.arrayToDelimitedString(path.toArray(), "/");
+	}
+
+	protected StampedLock lock(String location) {
+		int hash = location.hashCode();
+		return this.locks[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+	}
+
+	/**
+	 * 
+	 * Copy a record into a fresh chunk
+	 * 
+	 * @param contents
+	 * @param metadata
+	 * @return address of the chunk
+	 * @throws StorageException
+	 *             if the capacity has been used up
+	 */
+	protected long store(byte[] contents, StorageMetadata metadata) throws StorageException {
+		long address = this.allocator.allocate(HEADER_LENGTH + contents.length);
+		ByteBuffer chunk = this.allocator.view(address, HEADER_LENGTH + contents.length);
+		chunk.putLong(metadata.getModified());
+		chunk.putInt(contents.length);
+		for (int i = 0; i < CHECKSUM_LENGTH; i++) {
+			chunk.put((byte) Integer.parseInt(metadata.getChecksum().substring(i * 2, i * 2 + 2), 16));
+		}
+		chunk.put(contents);
+		return address;
+	}
+
+	/**
+	 * 
+	 * @param address
+	 * @return the header of a record, positioned at the start
+	 */
+	protected ByteBuffer header(long address) {
+		ByteBuffer header = this.allocator.view(address, HEADER_LENGTH);
+		if (header == null) {
+			throw new IllegalStateException("Chunk has been freed");
+		}
+		return header;
+	}
+
+	/**
+	 * 
+	 * @param address
+	 * @return contents length of a record
+	 */
+	protected int length(long address) {
+		ByteBuffer header = this.header(address);
+		int length = header.getInt(header.position() + 8);
+		if (length < 0) {
+			throw new IllegalStateException("Chunk has been reused");
+		}
+		return length;
+	}
+
+	protected byte[] contents(long address) {
+		int length = this.length(address);
+		ByteBuffer chunk = this.allocator.view(address, HEADER_LENGTH + length);
+		if (chunk == null) {
+			throw new IllegalStateException("Chunk has been freed");
+		}
+		byte[] ret = new byte[length];
+		chunk.position(chunk.position() + HEADER_LENGTH);
+		chunk.get(ret);
+		return ret;
+	}
+
+	protected StorageMetadata metadata(String location, long address) {
+		ByteBuffer header = this.header(address);
+		long modified = header.getLong();
+		int length = header.getInt();
+		byte[] checksum = new byte[CHECKSUM_LENGTH];
+		header.get(checksum);
+		return new StorageMetadata(location, (long) length, StorageChecksums.hex(checksum), modified);
+	}
+
+	protected StorageNode decode(String location, byte[] contents) {
+		StorageNode node = new StorageNode();
+		node.setLocation(location);
+		node.setContents(new String(contents, StandardCharsets.UTF_8));
+		return node;
+	}
+
+	/**
+	 * 
+	 * Read the record at a location, first optimistically, then under the
+	 * read lock of its stripe. The reader must copy everything it needs out
+	 * of the chunk.
+	 * 
+	 * @param location
+	 * @param reader
+	 * @return what the reader returned, null if there is no such record
+	 */
+	protected <T> T read(String location, Function<Long, T> reader) {
+		StampedLock lock = this.lock(location);
+		long stamp = lock.tryOptimisticRead();
+		if (stamp != 0) {
+			try {
+				Long address = this.index.get(location);
+				T ret = (address != null) ? reader.apply(address) : null;
+				if (lock.validate(stamp)) {
+					this.optimisticReads.incrementAndGet();
+					return ret;
+				}
+			} catch (RuntimeException e) {
+				/*
+				 * Read a chunk that was freed or reused under us, the stamp
+				 * will not validate, read again under the lock
+				 */
+			}
+		}
+
+		this.lockedReads.incrementAndGet();
+		stamp = lock.readLock();
+		try {
+			Long address = this.index.get(location);
+			return (address != null) ? reader.apply(address) : null;
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * 
+	 * Give the chunk of a record back, callers hold the write lock of its
+	 * stripe
+	 * 
+	 * @param address
+	 */
+	protected void free(long address) {
+		this.allocator.free(address, HEADER_LENGTH + this.length(address));
+	}
+
+	@Override
+	public Collection<StorageNode> getStorageNodes() throws StorageException {
+		logger.info("getStorageNodes");
+		return this.getStorageNodes(null, 0, false);
+	}
+
+	@Override
+	public Collection<StorageNode> getStorageNodes(String after, int limit, boolean metadataOnly)
+			throws StorageException {
+		logger.info("getStorageNodes: after " + after + ", limit " + limit);
+
+		Map<String, Long> page = (after == null) ? this.index : this.index.tailMap(after, false);
+
+		Collection<StorageNode> ret = new ArrayList<StorageNode>();
+		for (String location : page.keySet()) {
+			if ((limit > 0) && (ret.size() >= limit)) {
+				break;
+			}
+			StorageNode node = null;
+			if (metadataOnly) {
+				node = this.read(location, (address) -> {
+					StorageNode metadata = new StorageNode(location, (String) null);
+					metadata.setLength(this.length(address));
+					return metadata;
+				});
+			} else {
+				node = this.read(location, (address) -> this.decode(location, this.contents(address)));
+			}
+			/*
+			 * Deleted since we got its key
+			 */
+			if (node != null) {
+				ret.add(node);
+			}
+		}
+		return ret;
+	}
+
+	@Override
+	public StorageNode getStorageNode(Collection<String> path) throws StorageException {
+		logger.info("getStorageNode");
+
+		String location = this.path(path);
+		byte[] contents = this.read(location, (address) -> this.contents(address));
+		if (contents == null) {
+			return null;
+		}
+		return this.decode(location, contents);
+	}
+
+	@Override
+	public StorageMetadata getStorageMetadata(Collection<String> path) throws StorageException {
+		logger.info("getStorageMetadata");
+
+		String location = this.path(path);
+		return this.read(location, (address) -> this.metadata(location, address));
+	}
+
+	@Override
+	public IStorageContents getStorageContents(Collection<String> path) throws StorageException {
+		logger.info("getStorageContents");
+
+		byte[] contents = this.read(this.path(path), (address) -> this.contents(address));
+		if (contents == null) {
+			return null;
+		}
+		return new ByteArrayStorageContents(contents);
+	}
+
+	@Override
+	public StorageNode createStorageNode(StorageNode node, Collection<String> path) throws StorageException {
+		logger.info("createStorageNode");
+
+		if (node == null) {
+			throw new StorageException("Node is null");
+		}
+
+		String location = this.path(path);
+		byte[] contents = StorageChecksums.bytes(node);
+		long address = this.store(contents, StorageChecksums.metadata(location, contents));
+
+		StampedLock lock = this.lock(location);
+		long stamp = lock.writeLock();
+		try {
+			Long old = this.index.put(location, address);
+			if (old != null) {
+				this.free(old);
+			} else {
+				this.keyChars.addAndGet(location.length());
+			}
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+		return node;
+	}
+
+	@Override
+	public Collection<StorageResult> createStorageNodes(Collection<StorageNode> nodes) throws StorageException {
+		logger.info("createStorageNodes");
+
+		if (nodes == null) {
+			throw new StorageException("Nodes is null");
+		}
+
+		Collection<StorageResult> ret = new ArrayList<StorageResult>(nodes.size());
+		for (StorageNode node : nodes) {
+			if ((node == null) || (node.getLocation() == null)) {
+				ret.add(new StorageResult(null, StorageOutcome.INVALID));
+				continue;
+			}
+			String location = node.getLocation();
+			if (this.index.containsKey(location)) {
+				ret.add(new StorageResult(location, StorageOutcome.EXISTS));
+				continue;
+			}
+			byte[] contents = StorageChecksums.bytes(node);
+			long address = this.store(contents, StorageChecksums.metadata(location, contents));
+
+			StampedLock lock = this.lock(location);
+			long stamp = lock.writeLock();
+			try {
+				if (this.index.putIfAbsent(location, address) != null) {
+					this.free(address);
+					ret.add(new StorageResult(location, StorageOutcome.EXISTS));
+				} else {
+					this.keyChars.addAndGet(location.length());
+					ret.add(new StorageResult(location, StorageOutcome.CREATED, node));
+				}
+			} finally {
+				lock.unlockWrite(stamp);
+			}
+		}
+		return ret;
+	}
+
+	@Override
+	public StorageNode updateStorageNode(StorageNode node, Collection<String> path) throws StorageException {
+		logger.info("updateStorageNode");
+
+		if (node == null) {
+			throw new StorageException("Node is null");
+		}
+
+		String location = this.path(path);
+		if (this.index.containsKey(location) == false) {
+			return null;
+		}
+		byte[] contents = StorageChecksums.bytes(node);
+		long address = this.store(contents, StorageChecksums.metadata(location, contents));
+
+		/*
+		 * Only replaces an existing entry, it may have been deleted while the
+		 * chunk was filled
+		 */
+		StampedLock lock = this.lock(location);
+		long stamp = lock.writeLock();
+		try {
+			Long old = this.index.replace(location, address);
+			if (old == null) {
+				this.free(address);
+				return null;
+			}
+			this.free(old);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+		return node;
+	}
+
+	@Override
+	public void deleteStorageNode(Collection<String> path) throws StorageException {
+		logger.info("deleteStorageNode");
+
+		if (path == null) {
+			throw new StorageException("Path is null");
+		}
+
+		if (path.size() != 1) {
+			throw new StorageException("Path is longer than one element, currently not supported");
+		}
+
+		String location = this.path(path);
+		StampedLock lock = this.lock(location);
+		long stamp = lock.writeLock();
+		try {
+			Long old = this.index.remove(location);
+			if (old != null) {
+				this.free(old);
+				this.keyChars.addAndGet(-location.length());
+			}
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	@Override
+	public StorageResult createStorageNodeIfAbsent(StorageNode node, Collection<String> path) throws StorageException {
+		logger.info("createStorageNodeIfAbsent");
+
+		if (node == null) {
+			throw new StorageException("Node is null");
+		}
+
+		String location = this.path(path);
+		byte[] contents = StorageChecksums.bytes(node);
+		long address = this.store(contents, StorageChecksums.metadata(location, contents));
+
+		/*
+		 * Only adds an entry if there is none, the chunk goes back otherwise
+		 */
+		StampedLock lock = this.lock(location);
+		long stamp = lock.writeLock();
+		try {
+			if (this.index.putIfAbsent(location, address) != null) {
+				this.free(address);
+				return new StorageResult(location, StorageOutcome.EXISTS);
+			}
+			this.keyChars.addAndGet(location.length());
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+		return new StorageResult(location, StorageOutcome.CREATED, node);
+	}
+
+	@Override
+	public StorageResult updateStorageNodeIfPresent(StorageNode node, Collection<String> path) throws StorageException {
+		logger.info("updateStorageNodeIfPresent");
+
+		if (node == null) {
+			throw new StorageException("Node is null");
+		}
+
+		String location = this.path(path);
+		if (this.index.containsKey(location) == false) {
+			return new StorageResult(location, StorageOutcome.NOT_FOUND);
+		}
+		byte[] contents = StorageChecksums.bytes(node);
+		long address = this.store(contents, StorageChecksums.metadata(location, contents));
+
+		StampedLock lock = this.lock(location);
+		long stamp = lock.writeLock();
+		try {
+			Long old = this.index.replace(location, address);
+			if (old == null) {
+				this.free(address);
+				return new StorageResult(location, StorageOutcome.NOT_FOUND);
+			}
+			this.free(old);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+		return new StorageResult(location, StorageOutcome.UPDATED, node);
+	}
+
+	@Override
+	public StorageResult deleteStorageNodeIfPresent(Collection<String> path) throws StorageException {
+		logger.info("deleteStorageNodeIfPresent");
+
+		if (path == null) {
+			throw new StorageException("Path is null");
+		}
+
+		if (path.size() != 1) {
+			throw new StorageException("Path is longer than one element, currently not supported");
+		}
+
+		String location = this.path(path);
+		StampedLock lock = this.lock(location);
+		long stamp = lock.writeLock();
+		try {
+			Long old = this.index.remove(location);
+			if (old == null) {
+				return new StorageResult(location, StorageOutcome.NOT_FOUND);
+			}
+			this.free(old);
+			this.keyChars.addAndGet(-location.length());
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+		return new StorageResult(location, StorageOutcome.DELETED);
+	}
+
+	/**
+	 * 
+	 * Off-heap usage from the allocator, and what the index costs on the heap
+	 * 
+	 */
+	@Override
+	public Map<String, Object> getStorageStatistics() {
+		Map<String, Object> ret = new LinkedHashMap<String, Object>(this.allocator.getStatistics());
+		long entries = this.index.size();
+		ret.put("offheap.indexEntries", entries);
+		ret.put("offheap.indexHeapBytes", entries * INDEX_ENTRY_OVERHEAD + this.keyChars.get() * 2);
+		ret.put("offheap.optimisticReads", this.optimisticReads.get());
+		ret.put("offheap.lockedReads", this.lockedReads.get());
+		Runtime runtime = Runtime.getRuntime();
+		ret.put("offheap.heapUsed", runtime.totalMemory() - runtime.freeMemory());
+		return ret;
+	}
+
+}
@@ -0,0 +1,310 @@
+package com.mesosphere.challenge.service.dao;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+import com.mesosphere.challenge.StorageException;
+import com.mesosphere.challenge.model.StorageNode;
+import com.mesosphere.challenge.model.StorageOutcome;
+import com.mesosphere.challenge.model.StorageResult;
+import com.mesosphere.challenge.service.dao.MemoryStorageJournal.FsyncPolicy;
+
+/**
+ * 
+ * @author john
+ *
+ *         This is a DAO implementation class that serves nodes from memory,
+ *         like MemoryStorageDAO, and keeps them across restarts. Every write
+ *         is appended to a write-ahead log once it has been applied, and the
+ *         whole store is written as a snapshot every snapshotInterval
+ *         milliseconds, after which older logs are deleted. See
+ *         MemoryStorageJournal for the files and the fsync policies.
+ *
+ *         On startup the latest snapshot is loaded and the logs written since
+ *         are replayed, both in parallel, before the store is used.
+ *
+ *         Writes of the same location are serialized on striped locks, so
+ *         they reach the log in the order they reached the map. Reads take no
+ *         lock. A read may see a write that has not reached the disk yet.
+ *
+ */
+public class PersistentMemoryStorageDAO extends MemoryStorageDAO {
+
+	protected static final Logger logger = Logger.getLogger(PersistentMemoryStorageDAO.class);
+
+	public static final long DEFAULT_FSYNC_INTERVAL = 1000;
+	public static final long DEFAULT_SNAPSHOT_INTERVAL = 300000;
+
+	private final MemoryStorageJournal journal;
+
+	private final ReentrantLock[] locks = new ReentrantLock[STRIPES];
+
+	private ScheduledExecutorService snapshotter = null;
+
+	/*
+	 * One snapshot at a time, writes go on meanwhile
+	 */
+	private final Object snapshotLock = new Object();
+
+	/**
+	 * 
+	 * @param folder
+	 *            where snapshots and logs are kept
+	 * @param fsync
+	 * @param fsyncInterval
+	 * @param snapshotInterval
+	 *            milliseconds between snapshots, zero or less for none
+	 * @throws StorageException
+	 */
+	public PersistentMemoryStorageDAO(String folder, FsyncPolicy fsync, long fsyncInterval, long snapshotInterval)
+			throws StorageException {
+		logger.info("PersistentMemoryStorageDAO init with folder " + folder + ", fsync " + fsync);
+		for (int i = 0; i < STRIPES; i++) {
+			this.locks[i] = new ReentrantLock();
+		}
+		this.journal = new MemoryStorageJournal(folder, fsync, fsyncInterval);
+		this.journal.recover(this::restore);
+		this.scheduleSnapshots(snapshotInterval);
+	}
+
+	/**
+	 * 
+	 * Write a snapshot every interval milliseconds, replacing any earlier
+	 * schedule. An interval of zero or less stops it.
+	 * 
+	 * @param interval
+	 */
+	public synchronized void scheduleSnapshots(long interval) {
+		if (this.snapshotter != null) {
+			this.snapshotter.shutdownNow();
+			this.snapshotter = null;
+		}
+		if (interval <= 0) {
+			return;
+		}
+		this.snapshotter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "memory-snapshotter");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.snapshotter.scheduleWithFixedDelay(() -> {
+			try {
+				this.snapshot();
+			} catch (StorageException | RuntimeException e) {
+				logger.warn("Snapshot failed", e);
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * 
+	 * Write a snapshot of the store now, and drop the logs it replaces
+	 * 
+	 * @throws StorageException
+	 */
+	public void snapshot() throws StorageException {
+		synchronized (this.snapshotLock) {
+			/*
+			 * Writes logged before the rotation are all in the map by now,
+			 * so they are in the snapshot
+			 */
+			long generation = this.journal.rotate();
+			this.journal.snapshot(generation, this.entries());
+		}
+	}
+
+	/**
+	 * 
+	 * Stop snapshots and close the log. Spring calls this on shutdown.
+	 * 
+	 */
+	@Override
+	public void close() {
+		logger.info("PersistentMemoryStorageDAO close");
+		this.scheduleSnapshots(0);
+		this.journal.close();
+	}
+
+	protected int stripe(String location) {
+		int hash = location.hashCode();
+		return ((hash ^ (hash >>> 16)) & 0x7fffffff) % STRIPES;
+	}
+
+	protected ReentrantLock lock(String location) {
+		return this.locks[this.stripe(location)];
+	}
+
+	/*
+	 * Log whatever is now stored at a location, callers hold its lock
+	 */
+	protected void log(String location) throws StorageException {
+		this.journal.append(location, this.entry(location));
+	}
+
+	@Override
+	public StorageNode createStorageNode(StorageNode node, Collection<String> path) throws StorageException {
+		if (path == null) {
+			throw new StorageException("Path is null");
+		}
+
+		String location = this.path(path);
+		ReentrantLock lock = this.lock(location);
+		lock.lock();
+		try {
+			StorageNode ret = super.createStorageNode(node, path);
+			this.log(location);
+			return ret;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public Collection<StorageResult> createStorageNodes(Collection<StorageNode> nodes) throws StorageException {
+		if (nodes == null) {
+			throw new StorageException("Nodes is null");
+		}
+
+		/*
+		 * Take the locks of the whole batch, always in the same order
+		 */
+		TreeSet<Integer> stripes = new TreeSet<Integer>();
+		for (StorageNode node : nodes) {
+			if ((node != null) && (node.getLocation() != null)) {
+				stripes.add(this.stripe(node.getLocation()));
+			}
+		}
+		for (Integer stripe : stripes) {
+			this.locks[stripe].lock();
+		}
+		try {
+			Collection<StorageResult> ret = super.createStorageNodes(nodes);
+			for (StorageResult result : ret) {
+				if (result.getOutcome() == StorageOutcome.CREATED) {
+					this.log(result.getLocation());
+				}
+			}
+			return ret;
+		} finally {
+			for (Integer stripe : stripes.descendingSet()) {
+				this.locks[stripe].unlock();
+			}
+		}
+	}
+
+	@Override
+	public StorageNode updateStorageNode(StorageNode node, Collection<String> path) throws StorageException {
+		if (path == null) {
+			throw new StorageException("Path is null");
+		}
+
+		String location = this.path(path);
+		ReentrantLock lock = this.lock(location);
+		lock.lock();
+		try {
+			StorageNode ret = super.updateStorageNode(node, path);
+			if (ret != null) {
+				this.log(location);
+			}
+			return ret;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void deleteStorageNode(Collection<String> path) throws StorageException {
+		if (path == null) {
+			throw new StorageException("Path is null");
+		}
+
+		String location = this.path(path);
+		ReentrantLock lock = this.lock(location);
+		lock.lock();
+		try {
+			boolean existed = this.entry(location) != null;
+			super.deleteStorageNode(path);
+			if (existed) {
+				this.log(location);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public StorageResult createStorageNodeIfAbsent(StorageNode node, Collection<String> path) throws StorageException {
+		if (path == null) {
+			throw new StorageException("Path is null");
+		}
+
+		String location = this.path(path);
+		ReentrantLock lock = this.lock(location);
+		lock.lock();
+		try {
+			StorageResult ret = super.createStorageNodeIfAbsent(node, path);
+			if (ret.getOutcome() == StorageOutcome.CREATED) {
+				this.log(location);
+			}
+			return ret;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public StorageResult updateStorageNodeIfPresent(StorageNode node, Collection<String> path) throws StorageException {
+		if (path == null) {
+			throw new StorageException("Path is null");
+		}
+
+		String location = this.path(path);
+		ReentrantLock lock = this.lock(location);
+		lock.lock();
+		try {
+			StorageResult ret = super.updateStorageNodeIfPresent(node, path);
+			if (ret.getOutcome() == StorageOutcome.UPDATED) {
+				this.log(location);
+			}
+			return ret;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public StorageResult deleteStorageNodeIfPresent(Collection<String> path) throws StorageException {
+		if (path == null) {
+			throw new StorageException("Path is null");
+		}
+
+		String location = this.path(path);
+		ReentrantLock lock = this.lock(location);
+		lock.lock();
+		try {
+			StorageResult ret = super.deleteStorageNodeIfPresent(path);
+			if (ret.getOutcome() == StorageOutcome.DELETED) {
+				this.log(location);
+			}
+			return ret;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public Map<String, Object> getStorageStatistics() {
+		Map<String, Object> ret = new LinkedHashMap<String, Object>(super.getStorageStatistics());
+		ret.putAll(this.journal.getStatistics());
+		return ret;
+	}
+
+}
@@ -0,0 +1,128 @@
+package com.mesosphere.challenge.service.dao;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 
+ * @author john
+ *
+ *         This is a Bloom filter over locations. It answers whether a
+ *         location may have been added, with no false negatives and a false
+ *         positive rate that stays close to the one it was sized for as long
+ *         as no more than the expected number of locations are added.
+ *         Locations cannot be removed, the filter is rebuilt instead.
+ *
+ *         Each location is hashed once to 64 bits, the probe positions are
+ *         derived from two halves of that hash. Bits are set with CAS, so the
+ *         filter is thread safe and never locks.
+ *
+ */
+public class StorageBloomFilter {
+
+	private final AtomicLongArray bits;
+	private final long size;
+	private final int hashes;
+	private final long expected;
+
+	private final AtomicLong insertions = new AtomicLong();
+
+	/**
+	 * 
+	 * @param expected
+	 *            number of locations the filter is sized for
+	 * @param falsePositiveRate
+	 *            between zero and one
+	 */
+	public StorageBloomFilter(long expected, double falsePositiveRate) {
+		this.expected = Math.max(1, expected);
+		double rate = Math.min(0.5, Math.max(1e-9, falsePositiveRate));
+		long bits = (long) Math.ceil(-this.expected * Math.log(rate) / (Math.log(2) * Math.log(2)));
+		int words = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(1, (bits + 63) / 64));
+		this.bits = new AtomicLongArray(words);
+		this.size = words * 64L;
+		this.hashes = (int) Math.max(1, Math.min(16, Math.round((double) this.size / this.expected * Math.log(2))));
+	}
+
+	/*
+	 * FNV-1a over the characters, then the murmur3 finalizer to spread it
+	 */
+	protected static long hash(String location) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < location.length(); i++) {
+			hash ^= location.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+
+	/**
+	 * 
+	 * @param location
+	 */
+	public void add(String location) {
+		long hash = hash(location);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		for (int i = 1; i <= this.hashes; i++) {
+			long index = ((h1 + (long) i * h2) & Long.MAX_VALUE) % this.size;
+			int word = (int) (index >>> 6);
+			long mask = 1L << index;
+			long old = this.bits.get(word);
+			while (((old & mask) == 0) && (this.bits.compareAndSet(word, old, old | mask) == false)) {
+				old = this.bits.get(word);
+			}
+		}
+		this.insertions.incrementAndGet();
+	}
+
+	/**
+	 * 
+	 * @param location
+	 * @return false if the location was never added, true if it may have
+	 *         been
+	 */
+	public boolean mightContain(String location) {
+		long hash = hash(location);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		for (int i = 1; i <= this.hashes; i++) {
+			long index = ((h1 + (long) i * h2) & Long.MAX_VALUE) % this.size;
+			if ((this.bits.get((int) (index >>> 6)) & (1L << index)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * 
+	 * @return true once more locations were added than the filter was sized
+	 *         for
+	 */
+	public boolean isSaturated() {
+		return this.insertions.get() > this.expected;
+	}
+
+	public long getSize() {
+		return this.size;
+	}
+
+	public int getHashes() {
+		return this.hashes;
+	}
+
+	public long getExpected() {
+		return this.expected;
+	}
+
+	public long getInsertions() {
+		return this.insertions.get();
+	}
+
+}
@@ -0,0 +1,90 @@
+package com.mesosphere.challenge.service.dao;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import com.mesosphere.challenge.model.StorageMetadata;
+import com.mesosphere.challenge.model.StorageNode;
+
+/**
+ * 
+ * @author john
+ *
+ *         Checksum helpers shared by the DAOs, so that every DAO reports the
+ *         same checksum for the same contents. The checksum is SHA-256 of the
+ *         contents as stored (UTF-8), in lower case hex. Null contents are
+ *         stored as zero bytes.
+ *
+ */
+public class StorageChecksums {
+
+	public static final String ALGORITHM = "SHA-256";
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	/**
+	 * 
+	 * Bytes of the node contents as stored
+	 * 
+	 * @param node
+	 * @return
+	 */
+	public static byte[] bytes(StorageNode node) {
+		if ((node == null) || (node.getContents() == null)) {
+			return new byte[0];
+		}
+		return node.getContents().getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * 
+	 * @param contents
+	 * @return
+	 */
+	public static String checksum(byte[] contents) {
+		MessageDigest digest = digest();
+		return hex(digest.digest(contents));
+	}
+
+	/**
+	 * 
+	 * Metadata for contents written now
+	 * 
+	 * @param location
+	 * @param contents
+	 * @return
+	 */
+	public static StorageMetadata metadata(String location, byte[] contents) {
+		return new StorageMetadata(location, (long) contents.length, checksum(contents), System.currentTimeMillis());
+	}
+
+	/**
+	 * 
+	 * A fresh digest, SHA-256 is always available on the Java platform
+	 * 
+	 * @return
+	 */
+	public static MessageDigest digest() {
+		try {
+			return MessageDigest.getInstance(ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(ALGORITHM + " is not available", e);
+		}
+	}
+
+	/**
+	 * 
+	 * @param bytes
+	 * @return
+	 */
+	public static String hex(byte[] bytes) {
+		char[] ret = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			ret[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+			ret[i * 2 + 1] = HEX[bytes[i] & 0xf];
+		}
+		return new String(ret);
+	}
+
+}
@@ -0,0 +1,205 @@
+package com.mesosphere.challenge.service.dao;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.h2.compress.LZFInputStream;
+import org.h2.compress.LZFOutputStream;
+
+import com.mesosphere.challenge.StorageException;
+
+/**
+ * 
+ * @author john
+ *
+ *         The compression codecs known to the DAOs:
+ *
+ *         - identity - No compression. Also what contents without a codec
+ *         marker, written before compression existed, are read as.
+ *
+ *         - deflate - zlib wrapped deflate at the default level, the best
+ *         ratio of the lot.
+ *
+ *         - gzip - Deflate at its fastest level, in gzip framing. Every HTTP
+ *         client accepts it.
+ *
+ *         - lzf - H2's LZF, the fastest by far at a lower ratio. Only clients
+ *         that ask for lzf get it without decoding.
+ *
+ */
+public class StorageCodecs {
+
+	public static final IStorageCodec IDENTITY = new IStorageCodec() {
+
+		@Override
+		public String getName() {
+			return "identity";
+		}
+
+		@Override
+		public OutputStream encoder(OutputStream out) {
+			return out;
+		}
+
+		@Override
+		public InputStream decoder(InputStream in) {
+			return in;
+		}
+
+	};
+
+	public static final IStorageCodec DEFLATE = new IStorageCodec() {
+
+		@Override
+		public String getName() {
+			return "deflate";
+		}
+
+		@Override
+		public OutputStream encoder(OutputStream out) {
+			return new DeflaterOutputStream(out, new Deflater(Deflater.DEFAULT_COMPRESSION),
+					StorageStreams.BUFFER_SIZE) {
+
+				@Override
+				public void close() throws IOException {
+					try {
+						super.close();
+					} finally {
+						this.def.end();
+					}
+				}
+
+			};
+		}
+
+		@Override
+		public InputStream decoder(InputStream in) {
+			return new InflaterInputStream(in);
+		}
+
+	};
+
+	public static final IStorageCodec GZIP = new IStorageCodec() {
+
+		@Override
+		public String getName() {
+			return "gzip";
+		}
+
+		@Override
+		public OutputStream encoder(OutputStream out) throws IOException {
+			return new GZIPOutputStream(out, StorageStreams.BUFFER_SIZE) {
+
+				{
+					this.def.setLevel(Deflater.BEST_SPEED);
+				}
+
+			};
+		}
+
+		@Override
+		public InputStream decoder(InputStream in) throws IOException {
+			return new GZIPInputStream(in);
+		}
+
+	};
+
+	public static final IStorageCodec LZF = new IStorageCodec() {
+
+		@Override
+		public String getName() {
+			return "lzf";
+		}
+
+		@Override
+		public OutputStream encoder(OutputStream out) throws IOException {
+			return new LZFOutputStream(out);
+		}
+
+		@Override
+		public InputStream decoder(InputStream in) throws IOException {
+			return new LZFInputStream(in);
+		}
+
+	};
+
+	private static final Collection<IStorageCodec> CODECS = Collections
+			.unmodifiableList(Arrays.asList(IDENTITY, DEFLATE, GZIP, LZF));
+
+	/**
+	 * 
+	 * @return all known codecs
+	 */
+	public static Collection<IStorageCodec> codecs() {
+		return CODECS;
+	}
+
+	/**
+	 * 
+	 * Look up a codec by name, null means identity
+	 * 
+	 * @param name
+	 * @return
+	 * @throws StorageException
+	 *             if there is no such codec
+	 */
+	public static IStorageCodec forName(String name) throws StorageException {
+		if (name == null) {
+			return IDENTITY;
+		}
+		for (IStorageCodec codec : CODECS) {
+			if (codec.getName().equalsIgnoreCase(name)) {
+				return codec;
+			}
+		}
+		throw new StorageException("Unknown codec: " + name);
+	}
+
+	/**
+	 * 
+	 * @param codec
+	 * @param contents
+	 * @return
+	 * @throws IOException
+	 */
+	public static byte[] encode(IStorageCodec codec, byte[] contents) throws IOException {
+		if (codec == IDENTITY) {
+			return contents;
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, contents.length / 4));
+		try (OutputStream encoder = codec.encoder(out)) {
+			encoder.write(contents);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * 
+	 * @param codec
+	 * @param contents
+	 * @return
+	 * @throws IOException
+	 */
+	public static byte[] decode(IStorageCodec codec, byte[] contents) throws IOException {
+		if (codec == IDENTITY) {
+			return contents;
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream(contents.length * 4);
+		try (InputStream decoder = codec.decoder(new ByteArrayInputStream(contents))) {
+			StorageStreams.copy(decoder, out);
+		}
+		return out.toByteArray();
+	}
+
+}
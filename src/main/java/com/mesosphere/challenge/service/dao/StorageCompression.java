@@ -0,0 +1,148 @@
+package com.mesosphere.challenge.service.dao;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.mesosphere.challenge.StorageException;
+
+/**
+ * 
+ * @author john
+ *
+ *         This class decides how a DAO stores contents. Contents shorter than
+ *         the threshold are stored as they are, since the codec framing would
+ *         eat most of the savings. Everything else is encoded with the codec,
+ *         but kept only if it came out smaller.
+ *
+ */
+public class StorageCompression {
+
+	public static final int DEFAULT_THRESHOLD = 512;
+
+	/**
+	 * 
+	 * @author john
+	 *
+	 *         Contents as they are to be stored, with the codec they are
+	 *         stored with.
+	 * 
+	 */
+	public static class Encoded {
+
+		private final IStorageCodec codec;
+		private final byte[] bytes;
+
+		Encoded(IStorageCodec codec, byte[] bytes) {
+			this.codec = codec;
+			this.bytes = bytes;
+		}
+
+		public IStorageCodec getCodec() {
+			return this.codec;
+		}
+
+		public byte[] getBytes() {
+			return this.bytes;
+		}
+
+	}
+
+	private IStorageCodec codec = null;
+	private int threshold = DEFAULT_THRESHOLD;
+
+	/*
+	 * Statistics
+	 */
+	private final AtomicLong encoded = new AtomicLong();
+	private final AtomicLong skipped = new AtomicLong();
+	private final AtomicLong logicalBytes = new AtomicLong();
+	private final AtomicLong storedBytes = new AtomicLong();
+	private final AtomicLong encodeNanos = new AtomicLong();
+
+	/**
+	 * 
+	 * No compression
+	 * 
+	 */
+	public StorageCompression() {
+		this.codec = StorageCodecs.IDENTITY;
+	}
+
+	/**
+	 * 
+	 * @param codec
+	 * @param threshold
+	 * @throws StorageException
+	 */
+	public StorageCompression(IStorageCodec codec, int threshold) throws StorageException {
+		if (codec == null) {
+			throw new StorageException("Codec is null");
+		}
+		this.codec = codec;
+		this.threshold = threshold;
+	}
+
+	public IStorageCodec getCodec() {
+		return this.codec;
+	}
+
+	public int getThreshold() {
+		return this.threshold;
+	}
+
+	/**
+	 * 
+	 * Encode contents for storage
+	 * 
+	 * @param contents
+	 * @return
+	 * @throws StorageException
+	 */
+	public Encoded encode(byte[] contents) throws StorageException {
+		this.logicalBytes.addAndGet(contents.length);
+		if ((this.codec == StorageCodecs.IDENTITY) || (contents.length < this.threshold)) {
+			this.storedBytes.addAndGet(contents.length);
+			return new Encoded(StorageCodecs.IDENTITY, contents);
+		}
+
+		long start = System.nanoTime();
+		byte[] bytes = null;
+		try {
+			bytes = StorageCodecs.encode(this.codec, contents);
+		} catch (IOException e) {
+			throw new StorageException("Failed to encode contents with " + this.codec.getName(), e);
+		} finally {
+			this.encodeNanos.addAndGet(System.nanoTime() - start);
+		}
+
+		if (bytes.length >= contents.length) {
+			this.skipped.incrementAndGet();
+			this.storedBytes.addAndGet(contents.length);
+			return new Encoded(StorageCodecs.IDENTITY, contents);
+		}
+		this.encoded.incrementAndGet();
+		this.storedBytes.addAndGet(bytes.length);
+		return new Encoded(this.codec, bytes);
+	}
+
+	/**
+	 * 
+	 * Compression statistics for the contents encoded so far
+	 * 
+	 * @return
+	 */
+	public Map<String, Object> getStatistics() {
+		Map<String, Object> ret = new LinkedHashMap<String, Object>();
+		ret.put("compression.codec", this.codec.getName());
+		ret.put("compression.threshold", this.threshold);
+		ret.put("compression.encoded", this.encoded.get());
+		ret.put("compression.skipped", this.skipped.get());
+		ret.put("compression.logicalBytes", this.logicalBytes.get());
+		ret.put("compression.storedBytes", this.storedBytes.get());
+		ret.put("compression.encodeMillis", this.encodeNanos.get() / 1000000);
+		return ret;
+	}
+
+}
@@ -0,0 +1,178 @@
+package com.mesosphere.challenge.service.dao;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+
+import com.mesosphere.challenge.StorageException;
+
+/**
+ * 
+ * @author john
+ *
+ *         Future helpers for the asynchronous DAO calls. Storage calls throw
+ *         checked exceptions, futures carry them wrapped in a
+ *         CompletionException, these convert between the two.
+ *
+ */
+public class StorageFutures {
+
+	/**
+	 * 
+	 * A storage call that may fail with the usual checked exceptions
+	 * 
+	 * @param <T>
+	 */
+	@FunctionalInterface
+	public interface StorageCall<T> {
+
+		T call() throws IOException, StorageException;
+
+	}
+
+	/**
+	 * 
+	 * A step of a chain of futures that may fail with the usual checked
+	 * exceptions
+	 * 
+	 * @param <T>
+	 * @param <R>
+	 */
+	@FunctionalInterface
+	public interface StorageFunction<T, R> {
+
+		R apply(T value) throws IOException, StorageException;
+
+	}
+
+	/**
+	 * 
+	 * Run a call on the calling thread and hand back its outcome as a future
+	 * that is already complete
+	 * 
+	 * @param call
+	 * @return
+	 */
+	public static <T> CompletableFuture<T> call(StorageCall<T> call) {
+		try {
+			return CompletableFuture.completedFuture(call.call());
+		} catch (Exception e) {
+			return failed(e);
+		}
+	}
+
+	/**
+	 * 
+	 * Run a call on an executor
+	 * 
+	 * @param call
+	 * @param executor
+	 * @return
+	 */
+	public static <T> CompletableFuture<T> supply(StorageCall<T> call, Executor executor) {
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				return call.call();
+			} catch (IOException | StorageException e) {
+				throw new CompletionException(e);
+			}
+		}, executor);
+	}
+
+	/**
+	 * 
+	 * @param function
+	 * @return the function as one that can be passed to thenApply()
+	 */
+	public static <T, R> Function<T, R> unchecked(StorageFunction<T, R> function) {
+		return value -> {
+			try {
+				return function.apply(value);
+			} catch (IOException | StorageException e) {
+				throw new CompletionException(e);
+			}
+		};
+	}
+
+	/**
+	 * 
+	 * @param failure
+	 * @return a future that has already failed
+	 */
+	public static <T> CompletableFuture<T> failed(Throwable failure) {
+		CompletableFuture<T> ret = new CompletableFuture<T>();
+		ret.completeExceptionally(failure);
+		return ret;
+	}
+
+	/**
+	 * 
+	 * @param failure
+	 * @return what a future failed with, without the wrapping
+	 */
+	public static Throwable cause(Throwable failure) {
+		while (((failure instanceof CompletionException) || (failure instanceof ExecutionException))
+				&& (failure.getCause() != null)) {
+			failure = failure.getCause();
+		}
+		return failure;
+	}
+
+	/**
+	 * 
+	 * Make a future fail with a StorageException, the way the blocking call
+	 * would have thrown it. IOExceptions are wrapped, naming the operation.
+	 * 
+	 * @param future
+	 * @param operation
+	 * @return
+	 */
+	public static <T> CompletableFuture<T> settle(CompletableFuture<T> future, String operation) {
+		CompletableFuture<T> ret = new CompletableFuture<T>();
+		future.whenComplete((value, failure) -> {
+			if (failure == null) {
+				ret.complete(value);
+				return;
+			}
+			Throwable cause = cause(failure);
+			if (cause instanceof IOException) {
+				cause = new StorageException(operation + " failed with java IOException", (IOException) cause);
+			}
+			ret.completeExceptionally(cause);
+		});
+		return ret;
+	}
+
+	/**
+	 * 
+	 * Wait for a future, for callers that block anyway
+	 * 
+	 * @param future
+	 * @return
+	 * @throws StorageException
+	 */
+	public static <T> T join(CompletableFuture<T> future) throws StorageException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new StorageException("Interrupted while waiting for storage", e);
+		} catch (ExecutionException e) {
+			Throwable cause = cause(e);
+			if (cause instanceof StorageException) {
+				throw (StorageException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new StorageException((Exception) cause);
+		}
+	}
+
+}
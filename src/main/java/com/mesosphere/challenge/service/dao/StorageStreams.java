@@ -0,0 +1,91 @@
+package com.mesosphere.challenge.service.dao;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 
+ * @author john
+ *
+ *         Stream helpers shared by the DAOs. Copies go through one fixed size
+ *         buffer per thread, so streaming a blob costs the same amount of heap
+ *         no matter how large the blob is.
+ *
+ */
+public class StorageStreams {
+
+	public static final int BUFFER_SIZE = 64 * 1024;
+
+	private static final ThreadLocal<byte[]> buffers = ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+
+	/**
+	 * 
+	 * Copy everything from in to out, returns the number of bytes copied.
+	 * Neither stream is closed.
+	 * 
+	 * @param in
+	 * @param out
+	 * @return
+	 * @throws IOException
+	 */
+	public static long copy(InputStream in, OutputStream out) throws IOException {
+		byte[] buffer = buffers.get();
+		long count = 0;
+		int read = 0;
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+			count += read;
+		}
+		return count;
+	}
+
+	/**
+	 * 
+	 * Copy length bytes of a file from position on to out, without moving
+	 * the channel position. Neither is closed.
+	 * 
+	 * @param channel
+	 * @param position
+	 * @param length
+	 * @param out
+	 * @throws IOException
+	 *             EOFException if the file ends first
+	 */
+	public static void copy(FileChannel channel, long position, long length, OutputStream out) throws IOException {
+		byte[] buffer = buffers.get();
+		ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+		long count = 0;
+		while (count < length) {
+			wrapped.clear();
+			wrapped.limit((int) Math.min(buffer.length, length - count));
+			int read = channel.read(wrapped, position + count);
+			if (read == -1) {
+				throw new EOFException("File ended after " + count + " of " + length + " bytes");
+			}
+			out.write(buffer, 0, read);
+			count += read;
+		}
+	}
+
+	/**
+	 * 
+	 * Read the whole stream and decode it as UTF-8, keeping every byte
+	 * (including line breaks) as stored.
+	 * 
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	public static String readString(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		copy(in, out);
+		return out.toString(StandardCharsets.UTF_8.name());
+	}
+
+}
@@ -0,0 +1,291 @@
+package com.mesosphere.challenge.service.dao;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 
+ * @author john
+ *
+ *         W-TinyLFU eviction, the policy of Caffeine. New locations enter a
+ *         small LRU window, 1% of the budget, which absorbs bursts. Locations
+ *         leaving the window go to the probation segment of a segmented LRU
+ *         main area, and are promoted to its protected segment, 80% of the
+ *         main area, when read again.
+ *
+ *         When something has to go, the candidate most recently moved into
+ *         probation competes with the least recently used location in
+ *         probation, and the one read less often is evicted. How often a
+ *         location was read is estimated by a count-min sketch of 4-bit
+ *         counters, halved every ten times its width so that old popularity
+ *         fades. The sketch also counts reads of locations that are not
+ *         stored, so a popular location is admitted on its next write.
+ *
+ *         A one-off scan therefore passes through the window and probation
+ *         without pushing out what is read often.
+ *
+ */
+public class TinyLfuEvictionPolicy implements IEvictionPolicy {
+
+	public static final double WINDOW_RATIO = 0.01;
+	public static final double PROTECTED_RATIO = 0.8;
+
+	/**
+	 * 
+	 * @author john
+	 *
+	 *         Count-min sketch with four 4-bit counters per location, sixteen
+	 *         counters packed in each long.
+	 * 
+	 */
+	protected static class FrequencySketch {
+
+		private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL,
+				0xcbf29ce484222325L };
+
+		private static final long RESET_MASK = 0x7777777777777777L;
+
+		private long[] table = new long[0];
+		private int sampleSize = 0;
+		private int additions = 0;
+
+		/**
+		 * 
+		 * Grow the sketch to suit a number of locations, forgetting what was
+		 * counted so far
+		 * 
+		 * @param entries
+		 */
+		void ensureCapacity(int entries) {
+			int length = Integer.highestOneBit(Math.max(64, entries) - 1) << 1;
+			if (this.table.length >= length) {
+				return;
+			}
+			this.table = new long[length];
+			this.sampleSize = 10 * length;
+			this.additions = 0;
+		}
+
+		private long hash(String location, int i) {
+			long hash = (location.hashCode() + SEEDS[i]) * SEEDS[i];
+			return hash + (hash >>> 32);
+		}
+
+		int frequency(String location) {
+			int ret = 15;
+			for (int i = 0; i < SEEDS.length; i++) {
+				long hash = this.hash(location, i);
+				int index = (int) (hash >>> 32) & (this.table.length - 1);
+				int shift = (int) (hash & 15) << 2;
+				ret = Math.min(ret, (int) ((this.table[index] >>> shift) & 15));
+			}
+			return ret;
+		}
+
+		void increment(String location) {
+			boolean added = false;
+			for (int i = 0; i < SEEDS.length; i++) {
+				long hash = this.hash(location, i);
+				int index = (int) (hash >>> 32) & (this.table.length - 1);
+				int shift = (int) (hash & 15) << 2;
+				if (((this.table[index] >>> shift) & 15) < 15) {
+					this.table[index] += 1L << shift;
+					added = true;
+				}
+			}
+			if ((added) && (++this.additions >= this.sampleSize)) {
+				for (int i = 0; i < this.table.length; i++) {
+					this.table[i] = (this.table[i] >>> 1) & RESET_MASK;
+				}
+				this.additions /= 2;
+			}
+		}
+
+	}
+
+	private final long windowMax;
+	private final long protectedMax;
+
+	/*
+	 * Location to weight per segment, least recently used first
+	 */
+	private final LinkedHashMap<String, Long> window = new LinkedHashMap<String, Long>();
+	private final LinkedHashMap<String, Long> probation = new LinkedHashMap<String, Long>();
+	private final LinkedHashMap<String, Long> protectedSegment = new LinkedHashMap<String, Long>();
+
+	/*
+	 * The location most recently moved onto probation, null once it has left
+	 */
+	private String candidate = null;
+
+	private long windowWeight = 0;
+	private long probationWeight = 0;
+	private long protectedWeight = 0;
+
+	private final FrequencySketch sketch = new FrequencySketch();
+
+	/**
+	 * 
+	 * @param maxWeight
+	 *            the budget of the store, sizes the window and protected
+	 *            segments
+	 */
+	public TinyLfuEvictionPolicy(long maxWeight) {
+		this.windowMax = Math.max(1, (long) (maxWeight * WINDOW_RATIO));
+		this.protectedMax = (long) ((maxWeight - this.windowMax) * PROTECTED_RATIO);
+		this.sketch.ensureCapacity(64);
+	}
+
+	@Override
+	public String getName() {
+		return "tinylfu";
+	}
+
+	@Override
+	public void recordAccess(String location) {
+		this.sketch.increment(location);
+
+		Long weight = this.window.remove(location);
+		if (weight != null) {
+			this.window.put(location, weight);
+			return;
+		}
+		weight = this.protectedSegment.remove(location);
+		if (weight != null) {
+			this.protectedSegment.put(location, weight);
+			return;
+		}
+		weight = this.probation.remove(location);
+		if (weight != null) {
+			this.probationWeight -= weight;
+			this.forget(location);
+			this.protectedSegment.put(location, weight);
+			this.protectedWeight += weight;
+			this.demote();
+		}
+	}
+
+	@Override
+	public void recordWrite(String location, long weight) {
+		/*
+		 * Rewrites keep their segment, as if read
+		 */
+		if (this.window.containsKey(location)) {
+			this.windowWeight += weight - this.window.put(location, weight);
+			this.recordAccess(location);
+		} else if (this.protectedSegment.containsKey(location)) {
+			this.protectedWeight += weight - this.protectedSegment.put(location, weight);
+			this.recordAccess(location);
+		} else if (this.probation.containsKey(location)) {
+			this.probationWeight += weight - this.probation.put(location, weight);
+			this.recordAccess(location);
+		} else {
+			this.sketch.ensureCapacity(this.size() + 1);
+			this.sketch.increment(location);
+			this.window.put(location, weight);
+			this.windowWeight += weight;
+		}
+
+		/*
+		 * Overflow of the window goes on probation, where it becomes the
+		 * next candidate
+		 */
+		while ((this.windowWeight > this.windowMax) && (this.window.isEmpty() == false)) {
+			Map.Entry<String, Long> eldest = this.eldest(this.window);
+			this.windowWeight -= eldest.getValue();
+			this.probation.put(eldest.getKey(), eldest.getValue());
+			this.probationWeight += eldest.getValue();
+			this.candidate = eldest.getKey();
+		}
+	}
+
+	@Override
+	public void recordRemove(String location) {
+		Long weight = this.window.remove(location);
+		if (weight != null) {
+			this.windowWeight -= weight;
+			return;
+		}
+		weight = this.probation.remove(location);
+		if (weight != null) {
+			this.probationWeight -= weight;
+			this.forget(location);
+			return;
+		}
+		weight = this.protectedSegment.remove(location);
+		if (weight != null) {
+			this.protectedWeight -= weight;
+		}
+	}
+
+	@Override
+	public String evict() {
+		if (this.probation.isEmpty()) {
+			if (this.protectedSegment.isEmpty() == false) {
+				Map.Entry<String, Long> eldest = this.eldest(this.protectedSegment);
+				this.protectedWeight -= eldest.getValue();
+				return eldest.getKey();
+			}
+			if (this.window.isEmpty() == false) {
+				Map.Entry<String, Long> eldest = this.eldest(this.window);
+				this.windowWeight -= eldest.getValue();
+				return eldest.getKey();
+			}
+			return null;
+		}
+
+		/*
+		 * The candidate from the window against the least recently used on
+		 * probation. Without a candidate, the latter simply goes.
+		 */
+		String victim = this.probation.keySet().iterator().next();
+		String evicted = victim;
+		if ((this.candidate != null) && (this.candidate.equals(victim) == false)
+				&& (this.sketch.frequency(this.candidate) <= this.sketch.frequency(victim))) {
+			evicted = this.candidate;
+		}
+		this.probationWeight -= this.probation.remove(evicted);
+		this.forget(evicted);
+		return evicted;
+	}
+
+	/*
+	 * Move the protected overflow back on probation
+	 */
+	private void demote() {
+		while ((this.protectedWeight > this.protectedMax) && (this.protectedSegment.size() > 1)) {
+			Map.Entry<String, Long> eldest = this.eldest(this.protectedSegment);
+			this.protectedWeight -= eldest.getValue();
+			this.probation.put(eldest.getKey(), eldest.getValue());
+			this.probationWeight += eldest.getValue();
+		}
+	}
+
+	/*
+	 * Remove and return the least recently used entry of a segment
+	 */
+	private Map.Entry<String, Long> eldest(LinkedHashMap<String, Long> segment) {
+		Iterator<Map.Entry<String, Long>> iterator = segment.entrySet().iterator();
+		Map.Entry<String, Long> ret = iterator.next();
+		iterator.remove();
+		return ret;
+	}
+
+	private void forget(String location) {
+		if (location.equals(this.candidate)) {
+			this.candidate = null;
+		}
+	}
+
+	@Override
+	public long getWeight() {
+		return this.windowWeight + this.probationWeight + this.protectedWeight;
+	}
+
+	@Override
+	public int size() {
+		return this.window.size() + this.probation.size() + this.protectedSegment.size();
+	}
+
+}
@@ -0,0 +1,665 @@
+package com.mesosphere.challenge.service.benchmark;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.slf4j.LoggerFactory;
+import org.springframework.http.MediaType;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mesosphere.challenge.model.StorageNode;
+import com.mesosphere.challenge.service.controller.StorageController;
+import com.mesosphere.challenge.service.dao.EmbeddedStorageDAO;
+import com.mesosphere.challenge.service.dao.FileStorageDAO;
+import com.mesosphere.challenge.service.dao.IStorageCodec;
+import com.mesosphere.challenge.service.dao.IStorageDAO;
+import com.mesosphere.challenge.service.dao.LogStructuredStorageDAO;
+import com.mesosphere.challenge.service.dao.MVStoreStorageDAO;
+import com.mesosphere.challenge.service.dao.MemoryStorageDAO;
+import com.mesosphere.challenge.service.dao.MemoryStorageJournal.FsyncPolicy;
+import com.mesosphere.challenge.service.dao.OffHeapStorageDAO;
+import com.mesosphere.challenge.service.dao.PersistentMemoryStorageDAO;
+import com.mesosphere.challenge.service.dao.StorageCodecs;
+import com.mesosphere.challenge.service.test.StorageMockMvc;
+
+import ch.qos.logback.classic.Level;
+
+/**
+ * 
+ * @author john
+ *
+ *         Simple throughput benchmarks for the storage DAOs. These are not
+ *         unit tests and are not run by maven. Run the main method from the
+ *         IDE, or with:
+ *
+ *         mvn test-compile exec:java -Dexec.classpathScope=test
+ *         -Dexec.mainClass=com.mesosphere.challenge.service.benchmark.StorageBenchmark
+ *         -Dexec.args="batch"
+ *
+ *         Numbers are only meant for comparing implementations on the same
+ *         machine.
+ *
+ */
+public class StorageBenchmark {
+
+	/*
+	 * A benchmark body, ops is the number of operations it should perform
+	 */
+	protected interface Task {
+		void run(int ops) throws Exception;
+	}
+
+	/**
+	 * 
+	 * Run the task once to warm up, then once measured, and print ops/s.
+	 * 
+	 * @param name
+	 * @param ops
+	 * @param task
+	 * @return ops per second
+	 * @throws Exception
+	 */
+	protected static double measure(String name, int ops, Task task) throws Exception {
+		task.run(Math.max(1, ops / 10));
+		long start = System.nanoTime();
+		task.run(ops);
+		double seconds = (System.nanoTime() - start) / 1e9;
+		double rate = ops / seconds;
+		System.out.println(String.format("%-48s %10d ops %10.3f s %12.0f ops/s", name, ops, seconds, rate));
+		return rate;
+	}
+
+	protected static String payload(int size) {
+		StringBuilder ret = new StringBuilder(size);
+		for (int i = 0; i < size; i++) {
+			ret.append((char) ('a' + (i % 26)));
+		}
+		return ret.toString();
+	}
+
+	/*
+	 * Unique location prefix per run so that runs do not collide
+	 */
+	private static int run = 0;
+
+	protected static String prefix() {
+		return "bench" + (run++) + "-";
+	}
+
+	/**
+	 * 
+	 * Single POST style creates against one batch call of the same size.
+	 * 
+	 * @param dao
+	 * @param label
+	 * @throws Exception
+	 */
+	public static void batch(IStorageDAO dao, String label) throws Exception {
+		int ops = 20000;
+		String contents = payload(128);
+		double single = measure(label + " single create", ops, n -> {
+			String prefix = prefix();
+			for (int i = 0; i < n; i++) {
+				if (dao.getStorageNode(Arrays.asList(prefix + i)) == null) {
+					dao.createStorageNode(new StorageNode(contents), Arrays.asList(prefix + i));
+				}
+			}
+		});
+		double batched = measure(label + " batch create", ops, n -> {
+			String prefix = prefix();
+			List<StorageNode> nodes = new ArrayList<StorageNode>(n);
+			for (int i = 0; i < n; i++) {
+				nodes.add(new StorageNode(prefix + i, contents));
+			}
+			dao.createStorageNodes(nodes);
+		});
+		System.out.println(String.format("%-48s %10.1fx", label + " batch speedup", batched / single));
+
+		/*
+		 * Same comparison through the REST controller, which is what the
+		 * ingestion jobs see
+		 */
+		StorageController controller = new StorageController();
+		controller.setStorageConnection(dao);
+		StorageMockMvc mockMvc = new StorageMockMvc(controller);
+		ObjectMapper mapper = new ObjectMapper();
+		String body = mapper.writeValueAsString(new StorageNode(contents));
+		single = measure(label + " single POST /store/location", ops, n -> {
+			String prefix = prefix();
+			for (int i = 0; i < n; i++) {
+				mockMvc.perform(post("/store/" + prefix + i).contentType(MediaType.APPLICATION_JSON).content(body));
+			}
+		});
+		batched = measure(label + " batch POST /store", ops, n -> {
+			String prefix = prefix();
+			List<StorageNode> nodes = new ArrayList<StorageNode>(n);
+			for (int i = 0; i < n; i++) {
+				nodes.add(new StorageNode(prefix + i, contents));
+			}
+			mockMvc.perform(
+					post("/store").contentType(MediaType.APPLICATION_JSON).content(mapper.writeValueAsString(nodes)));
+		});
+		System.out.println(String.format("%-48s %10.1fx", label + " batch POST speedup", batched / single));
+	}
+
+	/**
+	 * 
+	 * File backed embedded DB in a fresh temporary folder
+	 * 
+	 * @return
+	 * @throws Exception
+	 */
+	protected static EmbeddedStorageDAO embedded() throws Exception {
+		Path folder = Files.createTempDirectory("challengebench");
+		return new EmbeddedStorageDAO(folder.toString(), "challengedb", "challenge", "challenge");
+	}
+
+	/**
+	 * 
+	 * Key-value workload, puts then point reads of random locations, and the
+	 * time to open an existing store.
+	 * 
+	 * @param dao
+	 * @param label
+	 * @throws Exception
+	 */
+	public static void keyValue(IStorageDAO dao, String label) throws Exception {
+		int ops = 50000;
+		String contents = payload(512);
+		String prefix = prefix();
+		measure(label + " put", ops, n -> {
+			for (int i = 0; i < n; i++) {
+				dao.createStorageNode(new StorageNode(contents), Arrays.asList(prefix + i));
+			}
+		});
+		Random random = new Random(42);
+		measure(label + " get", ops, n -> {
+			for (int i = 0; i < n; i++) {
+				dao.getStorageNode(Arrays.asList(prefix + random.nextInt(ops)));
+			}
+		});
+	}
+
+	/**
+	 * 
+	 * JSON-ish text, the kind of contents most blobs hold. Field values vary
+	 * so that it does not compress unrealistically well.
+	 * 
+	 * @param size
+	 * @return
+	 */
+	protected static String document(int size) {
+		Random random = new Random(size);
+		StringBuilder ret = new StringBuilder(size + 128);
+		ret.append("[");
+		while (ret.length() < size) {
+			ret.append("{\"id\":").append(random.nextInt(1000000)).append(",\"name\":\"node-")
+					.append(Integer.toHexString(random.nextInt())).append("\",\"enabled\":")
+					.append(random.nextBoolean()).append(",\"weight\":").append(random.nextDouble()).append("},");
+		}
+		return ret.append("{}]").toString();
+	}
+
+	/**
+	 * 
+	 * CPU cost of each codec against the bytes it saves, on documents of a
+	 * few sizes
+	 * 
+	 * @throws Exception
+	 */
+	public static void codecs() throws Exception {
+		for (int size : new int[] { 1024, 16 * 1024, 256 * 1024 }) {
+			byte[] contents = document(size).getBytes(StandardCharsets.UTF_8);
+			int ops = Math.max(20, 20000000 / contents.length);
+			for (IStorageCodec codec : StorageCodecs.codecs()) {
+				String label = codec.getName() + " " + (size / 1024) + "k";
+				byte[] encoded = StorageCodecs.encode(codec, contents);
+				double encode = measure(label + " encode", ops, n -> {
+					for (int i = 0; i < n; i++) {
+						StorageCodecs.encode(codec, contents);
+					}
+				});
+				double decode = measure(label + " decode", ops, n -> {
+					for (int i = 0; i < n; i++) {
+						StorageCodecs.decode(codec, encoded);
+					}
+				});
+				System.out.println(String.format("%-48s %9.1f%% %8.0f MB/s in %8.0f MB/s out", label + " stored",
+						100.0 * encoded.length / contents.length, encode * contents.length / 1e6,
+						decode * contents.length / 1e6));
+			}
+		}
+	}
+
+	/**
+	 * 
+	 * Mixed read and write load on the in memory DAO from a growing number of
+	 * threads, 90% point reads, 9% updates and 1% page listings. Scaling is
+	 * relative to one thread, and can only go as far as the cores on the
+	 * machine running it.
+	 * 
+	 * @throws Exception
+	 */
+	public static void memory() throws Exception {
+		int keys = 100000;
+		int ops = 2000000;
+		MemoryStorageDAO dao = new MemoryStorageDAO();
+		String contents = payload(256);
+		List<StorageNode> nodes = new ArrayList<StorageNode>(keys);
+		for (int i = 0; i < keys; i++) {
+			nodes.add(new StorageNode("key" + i, contents));
+		}
+		dao.createStorageNodes(nodes);
+
+		int cores = Runtime.getRuntime().availableProcessors();
+		System.out.println("memory benchmark on " + cores + " cores");
+		double single = 0;
+		for (int threads = 1; threads <= Math.max(32, cores); threads *= 2) {
+			int count = threads;
+			ExecutorService executor = Executors.newFixedThreadPool(count);
+			try {
+				double rate = measure("memory mixed, " + count + " threads", ops, n -> {
+					List<Future<?>> futures = new ArrayList<Future<?>>();
+					for (int t = 0; t < count; t++) {
+						futures.add(executor.submit(() -> {
+							ThreadLocalRandom random = ThreadLocalRandom.current();
+							for (int i = 0; i < n / count; i++) {
+								int dice = random.nextInt(100);
+								String location = "key" + random.nextInt(keys);
+								if (dice < 90) {
+									dao.getStorageNode(Arrays.asList(location));
+								} else if (dice < 99) {
+									dao.updateStorageNode(new StorageNode(contents), Arrays.asList(location));
+								} else {
+									dao.getStorageNodes(location, 20, true);
+								}
+							}
+							return null;
+						}));
+					}
+					for (Future<?> future : futures) {
+						future.get();
+					}
+				});
+				single = (count == 1) ? rate : single;
+				System.out.println(String.format("%-48s %10.1fx", "memory scaling, " + count + " threads",
+						rate / single));
+			} finally {
+				executor.shutdown();
+			}
+		}
+	}
+
+	/**
+	 * 
+	 * Heap held by the same data set in the in memory and the off-heap DAO,
+	 * and point read and update rates of both
+	 * 
+	 * @throws Exception
+	 */
+	public static void offheap() throws Exception {
+		int keys = 200000;
+		int ops = 1000000;
+		String contents = payload(1024);
+
+		long baseline = heapUsed();
+		MemoryStorageDAO memory = new MemoryStorageDAO();
+		offheapLoad(memory, keys, contents);
+		System.out.println(String.format("%-48s %10.1f MB", "memory heap held", (heapUsed() - baseline) / 1e6));
+		offheapRates("memory", memory, keys, ops, contents);
+		memory = null;
+
+		baseline = heapUsed();
+		OffHeapStorageDAO offheap = new OffHeapStorageDAO(1024L * 1024 * 1024, OffHeapStorageDAO.DEFAULT_SLAB_SIZE);
+		offheapLoad(offheap, keys, contents);
+		System.out.println(String.format("%-48s %10.1f MB", "offheap heap held", (heapUsed() - baseline) / 1e6));
+		offheapRates("offheap", offheap, keys, ops, contents);
+		System.out.println(offheap.getStorageStatistics());
+	}
+
+	/*
+	 * Distinct contents per key, so that the in memory DAO cannot share them
+	 */
+	protected static void offheapLoad(IStorageDAO dao, int keys, String contents) throws Exception {
+		for (int i = 0; i < keys; i++) {
+			dao.createStorageNode(new StorageNode(i + contents), Arrays.asList("key" + i));
+		}
+	}
+
+	protected static void offheapRates(String label, IStorageDAO dao, int keys, int ops, String contents)
+			throws Exception {
+		measure(label + " get", ops, n -> {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			for (int i = 0; i < n; i++) {
+				dao.getStorageNode(Arrays.asList("key" + random.nextInt(keys)));
+			}
+		});
+		measure(label + " update", ops / 4, n -> {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			for (int i = 0; i < n; i++) {
+				dao.updateStorageNode(new StorageNode(contents), Arrays.asList("key" + random.nextInt(keys)));
+			}
+		});
+	}
+
+	/*
+	 * Heap in use after a few rounds of garbage collection
+	 */
+	protected static long heapUsed() throws InterruptedException {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(100);
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/**
+	 * 
+	 * Write rate of the persistent memory DAO per fsync policy, and the time
+	 * to recover a snapshot plus a log tail
+	 * 
+	 * @throws Exception
+	 */
+	public static void persist() throws Exception {
+		int keys = 400000;
+		String contents = payload(1024);
+		for (FsyncPolicy fsync : Arrays.asList(FsyncPolicy.NEVER, FsyncPolicy.INTERVAL, FsyncPolicy.ALWAYS)) {
+			Path folder = Files.createTempDirectory("challengebench");
+			PersistentMemoryStorageDAO dao = new PersistentMemoryStorageDAO(folder.toString(), fsync, 1000, 0);
+			try {
+				int ops = (fsync == FsyncPolicy.ALWAYS) ? 2000 : 100000;
+				measure("persist create, fsync " + fsync.name().toLowerCase(), ops, n -> {
+					for (int i = 0; i < n; i++) {
+						dao.createStorageNode(new StorageNode(contents), Arrays.asList("key" + i));
+					}
+				});
+			} finally {
+				dao.close();
+			}
+		}
+
+		Path folder = Files.createTempDirectory("challengebench");
+		PersistentMemoryStorageDAO dao = new PersistentMemoryStorageDAO(folder.toString(), FsyncPolicy.NEVER, 0, 0);
+		for (int i = 0; i < keys; i++) {
+			dao.createStorageNode(new StorageNode(i + contents), Arrays.asList("key" + i));
+		}
+		measure("persist snapshot", keys, n -> dao.snapshot());
+		for (int i = 0; i < keys / 4; i++) {
+			dao.updateStorageNode(new StorageNode(contents + i), Arrays.asList("key" + i));
+		}
+		dao.close();
+		reopen("persist " + keys + " nodes, " + keys / 4 + " in log,",
+				() -> new PersistentMemoryStorageDAO(folder.toString(), FsyncPolicy.NEVER, 0, 0), opened -> {
+					System.out.println(opened.getStorageStatistics());
+					opened.close();
+				});
+	}
+
+	/**
+	 * 
+	 * Creates, point reads, metadata reads and updates of the log DAO against
+	 * the embedded DB and the file DAO, all with interval fsync, then the log
+	 * compaction and reopen times
+	 * 
+	 * @throws Exception
+	 */
+	public static void log() throws Exception {
+		int keys = 50000;
+		String contents = payload(1024);
+		Path folder = Files.createTempDirectory("challengebench");
+
+		EmbeddedStorageDAO embedded = new EmbeddedStorageDAO(folder.toString(), "challengedb", "challenge",
+				"challenge");
+		logRates("embedded", embedded, keys, contents);
+		embedded.close();
+
+		FileStorageDAO file = new FileStorageDAO(folder.toString(), false, 2);
+		file.setFsync(FsyncPolicy.INTERVAL, 1000);
+		logRates("file", file, keys, contents);
+		file.close();
+
+		String logFolder = folder.resolve("challengedb.log").toString();
+		LogStructuredStorageDAO log = new LogStructuredStorageDAO(logFolder, 16 * 1024 * 1024, FsyncPolicy.INTERVAL,
+				1000, LogStructuredStorageDAO.DEFAULT_COMPACT_THRESHOLD, 0);
+		logRates("log", log, keys, contents);
+		long start = System.nanoTime();
+		int compacted = log.compact();
+		System.out.println(String.format("%-48s %10.3f s", "log compact " + compacted + " segments",
+				(System.nanoTime() - start) / 1e9));
+		System.out.println(log.getStorageStatistics());
+		log.close();
+		reopen("log " + keys + " nodes,", () -> new LogStructuredStorageDAO(logFolder), opened -> {
+			System.out.println(opened.getStorageStatistics());
+			opened.close();
+		});
+	}
+
+	/**
+	 * 
+	 * Metadata pages of file storage read from the folders, then from the
+	 * listing index, and the time to build the index
+	 * 
+	 * @throws Exception
+	 */
+	public static void listing() throws Exception {
+		int keys = 100000;
+		int pages = 200;
+		Path folder = Files.createTempDirectory("challengebench");
+		FileStorageDAO dao = new FileStorageDAO(folder.toString(), false, 2);
+		try {
+			offheapLoad(dao, keys, "x");
+			for (String label : Arrays.asList("file folders", "file index")) {
+				if (label.equals("file index")) {
+					long start = System.nanoTime();
+					dao.enableListingIndex();
+					System.out.println(String.format("%-48s %10.3f s", "file index build, " + keys + " nodes",
+							(System.nanoTime() - start) / 1e9));
+				}
+				measure(label + " page of 100", pages, n -> {
+					ThreadLocalRandom random = ThreadLocalRandom.current();
+					for (int i = 0; i < n; i++) {
+						dao.getStorageNodes("key" + random.nextInt(keys), 100, true);
+					}
+				});
+			}
+		} finally {
+			dao.close();
+		}
+	}
+
+	protected static void logRates(String label, IStorageDAO dao, int keys, String contents) throws Exception {
+		measure(label + " create", keys, n -> {
+			String prefix = prefix();
+			for (int i = 0; i < n; i++) {
+				dao.createStorageNode(new StorageNode(i + contents), Arrays.asList(prefix + i));
+			}
+		});
+		offheapLoad(dao, keys, contents);
+		measure(label + " metadata", keys * 4, n -> {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			for (int i = 0; i < n; i++) {
+				dao.getStorageMetadata(Arrays.asList("key" + random.nextInt(keys)));
+			}
+		});
+		offheapRates(label, dao, keys, keys * 4, contents);
+	}
+
+	/**
+	 * 
+	 * Time to open a store that already holds data
+	 * 
+	 * @param label
+	 * @param open
+	 * @param close
+	 * @throws Exception
+	 */
+	protected static <T extends IStorageDAO> void reopen(String label, Callable<T> open, Consumer<T> close)
+			throws Exception {
+		long start = System.nanoTime();
+		T dao = open.call();
+		dao.getStorageNode(Arrays.asList("doesnotexist"));
+		System.out.println(String.format("%-48s %10.3f s", label + " open existing store",
+				(System.nanoTime() - start) / 1e9));
+		close.accept(dao);
+	}
+
+	/**
+	 * 
+	 * Reads with one in ten updates on file storage from a fixed number of
+	 * request threads, the way the servlet container runs them. Blocking, a
+	 * request thread waits out each file read and each fsync. Asynchronous,
+	 * it only starts the call and takes the next request, up to a window of
+	 * calls in flight, while the I/O threads wait. Peak is the most calls in
+	 * flight at once.
+	 * 
+	 * @throws Exception
+	 */
+	public static void async() throws Exception {
+		int keys = 20000;
+		int threads = 8;
+		String contents = payload(4096);
+		Path folder = Files.createTempDirectory("challengebench");
+		FileStorageDAO dao = new FileStorageDAO(folder.toString(), false, 2);
+		dao.setFsync(FsyncPolicy.INTERVAL, 1000);
+		try {
+			offheapLoad(dao, keys, contents);
+			asyncRates("file blocking", dao, keys, contents, threads, 0);
+			for (int ioThreads : Arrays.asList(8, 64)) {
+				dao.setIoThreads(ioThreads);
+				asyncRates("file async, " + ioThreads + " I/O threads", dao, keys, contents, threads, 256);
+			}
+		} finally {
+			dao.close();
+		}
+	}
+
+	protected static void asyncRates(String label, IStorageDAO dao, int keys, String contents, int threads,
+			int window) throws Exception {
+		ExecutorService requests = Executors.newFixedThreadPool(threads);
+		AtomicInteger pending = new AtomicInteger();
+		AtomicInteger peak = new AtomicInteger();
+		AtomicInteger failures = new AtomicInteger();
+		Semaphore permits = new Semaphore(window);
+		StorageNode node = new StorageNode(contents);
+		try {
+			measure(label + ", " + threads + " request threads", 20000, n -> {
+				peak.set(0);
+				List<Future<?>> futures = new ArrayList<Future<?>>();
+				for (int t = 0; t < threads; t++) {
+					futures.add(requests.submit(() -> {
+						ThreadLocalRandom random = ThreadLocalRandom.current();
+						for (int i = 0; i < n / threads; i++) {
+							Collection<String> path = Arrays.asList("key" + random.nextInt(keys));
+							boolean update = random.nextInt(10) == 0;
+							if (window == 0) {
+								peak.accumulateAndGet(pending.incrementAndGet(), Math::max);
+								if (update) {
+									dao.updateStorageNode(node, path);
+								} else {
+									dao.getStorageNode(path);
+								}
+								pending.decrementAndGet();
+								continue;
+							}
+							permits.acquire();
+							peak.accumulateAndGet(pending.incrementAndGet(), Math::max);
+							CompletableFuture<StorageNode> call = update ? dao.updateStorageNodeAsync(node, path)
+									: dao.getStorageNodeAsync(path);
+							call.whenComplete((ret, failure) -> {
+								if (failure != null) {
+									failures.incrementAndGet();
+								}
+								pending.decrementAndGet();
+								permits.release();
+							});
+						}
+						return null;
+					}));
+				}
+				for (Future<?> future : futures) {
+					future.get();
+				}
+				permits.acquire(window);
+				permits.release(window);
+			});
+			System.out.println(String.format("%-48s %10d peak %10d failed", label + " in flight", peak.get(),
+					failures.get()));
+		} finally {
+			requests.shutdown();
+		}
+	}
+
+	/*
+	 * Turn off per call info logging, it would otherwise dominate the numbers
+	 */
+	protected static void quiet() {
+		((ch.qos.logback.classic.Logger) LoggerFactory.getLogger(org.slf4j.Logger.ROOT_LOGGER_NAME))
+				.setLevel(Level.WARN);
+	}
+
+	public static void main(String[] args) throws Exception {
+		quiet();
+		Collection<String> which = Arrays.asList(args);
+		if (which.isEmpty() || which.contains("batch")) {
+			EmbeddedStorageDAO embedded = embedded();
+			try {
+				batch(embedded, "embedded");
+			} finally {
+				embedded.close();
+			}
+		}
+		if (which.isEmpty() || which.contains("memory")) {
+			memory();
+		}
+		if (which.isEmpty() || which.contains("offheap")) {
+			offheap();
+		}
+		if (which.isEmpty() || which.contains("persist")) {
+			persist();
+		}
+		if (which.isEmpty() || which.contains("log")) {
+			log();
+		}
+		if (which.isEmpty() || which.contains("listing")) {
+			listing();
+		}
+		if (which.isEmpty() || which.contains("async")) {
+			async();
+		}
+		if (which.isEmpty() || which.contains("codec")) {
+			codecs();
+		}
+		if (which.isEmpty() || which.contains("kv")) {
+			Path folder = Files.createTempDirectory("challengebench");
+			EmbeddedStorageDAO embedded = new EmbeddedStorageDAO(folder.toString(), "challengedb", "challenge",
+					"challenge");
+			keyValue(embedded, "embedded");
+			embedded.close();
+			reopen("embedded", () -> new EmbeddedStorageDAO(folder.toString(), "challengedb", "challenge",
+					"challenge"), EmbeddedStorageDAO::close);
+			MVStoreStorageDAO mvstore = new MVStoreStorageDAO(folder.toString(), "challengedb");
+			keyValue(mvstore, "mvstore");
+			mvstore.close();
+			reopen("mvstore", () -> new MVStoreStorageDAO(folder.toString(), "challengedb"), MVStoreStorageDAO::close);
+		}
+	}
+
+}
@@ -0,0 +1,255 @@
+package com.mesosphere.challenge.service.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.hamcrest.Matchers.containsString;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+import org.springframework.http.MediaType;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mesosphere.challenge.model.StorageMetadata;
+import com.mesosphere.challenge.model.StorageNode;
+
+/**
+ * 
+ * @author john
+ *
+ *         Controller tests that behave the same whatever DAO is behind the
+ *         controller. Subclasses set up mockMvc with their DAO before each
+ *         test.
+ *
+ */
+public abstract class AbstractStorageControllerTest {
+
+	protected StorageMockMvc mockMvc;
+
+	/**
+	 * 
+	 * GETs carry the checksum as a strong ETag, and return 304 without a
+	 * body while If-None-Match still lists it.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testConditionalGet() throws Exception {
+
+		ObjectMapper mapper = new ObjectMapper();
+		String body = mapper.writeValueAsString(new StorageNode("hello"));
+		this.mockMvc.perform(post("/store/etagblob").contentType(MediaType.APPLICATION_JSON).content(body))
+				.andExpect(status().isOk());
+
+		String etag = "\"2cf24dba5fb0a30e26e83b2ac5b9e29e1b161e5c1fa7425e73043362938b9824\"";
+		this.mockMvc.perform(get("/store/etagblob")).andExpect(status().isOk())
+				.andExpect(header().string("ETag", etag));
+		this.mockMvc.perform(get("/store/etagblob/contents")).andExpect(status().isOk())
+				.andExpect(header().string("ETag", etag));
+
+		/*
+		 * Unchanged, no body
+		 */
+		this.mockMvc.perform(get("/store/etagblob").header("If-None-Match", etag))
+				.andExpect(status().isNotModified()).andExpect(header().string("ETag", etag))
+				.andExpect(content().string(""));
+		this.mockMvc.perform(get("/store/etagblob/contents").header("If-None-Match", "\"other\", " + etag))
+				.andExpect(status().isNotModified()).andExpect(content().string(""));
+		this.mockMvc.perform(get("/store/etagblob/contents").header("If-None-Match", "*"))
+				.andExpect(status().isNotModified());
+
+		/*
+		 * Changed, the old ETag no longer matches
+		 */
+		body = mapper.writeValueAsString(new StorageNode("hello etag"));
+		this.mockMvc.perform(put("/store/etagblob").contentType(MediaType.APPLICATION_JSON).content(body))
+				.andExpect(status().isOk());
+		this.mockMvc.perform(get("/store/etagblob").header("If-None-Match", etag)).andExpect(status().isOk())
+				.andExpect(content().string(containsString("hello etag")));
+		this.mockMvc.perform(get("/store/etagblob/contents").header("If-None-Match", etag))
+				.andExpect(status().isOk()).andExpect(content().string("hello etag"));
+
+		this.mockMvc.perform(delete("/store/etagblob")).andExpect(status().isOk());
+		this.mockMvc.perform(get("/store/etagblob").header("If-None-Match", "*")).andExpect(status().isNotFound());
+
+	}
+
+	/**
+	 * 
+	 * Make sure the raw contents come back byte for byte, including line
+	 * breaks.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testGetBlobContents() throws Exception {
+
+		this.mockMvc.perform(get("/store/contentsblob/contents")).andExpect(status().isNotFound());
+
+		ObjectMapper mapper = new ObjectMapper();
+		StorageNode node = new StorageNode("line one\nline two\r\n\u00e9\n");
+		String body = mapper.writeValueAsString(node);
+
+		/*
+		 * Create blob
+		 */
+		this.mockMvc.perform(post("/store/contentsblob").contentType(MediaType.APPLICATION_JSON).content(body))
+				.andExpect(status().isOk());
+
+		/*
+		 * Get raw contents
+		 */
+		this.mockMvc.perform(get("/store/contentsblob/contents")).andExpect(status().isOk())
+				.andExpect(content().contentType(MediaType.APPLICATION_OCTET_STREAM))
+				.andExpect(content().bytes("line one\nline two\r\n\u00e9\n".getBytes(StandardCharsets.UTF_8)));
+
+		/*
+		 * Delete blob
+		 */
+		this.mockMvc.perform(delete("/store/contentsblob")).andExpect(status().isOk());
+
+	}
+
+	/**
+	 * 
+	 * Page through the listing in metadata mode, two nodes at a time.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testIndexPagination() throws Exception {
+
+		ObjectMapper mapper = new ObjectMapper();
+		for (String location : new String[] { "pagec", "pagea", "pageb" }) {
+			String body = mapper.writeValueAsString(new StorageNode("hello " + location));
+			this.mockMvc.perform(post("/store/" + location).contentType(MediaType.APPLICATION_JSON).content(body))
+					.andExpect(status().isOk());
+		}
+
+		/*
+		 * First page, in location order and without contents
+		 */
+		this.mockMvc.perform(get("/store?limit=2&after=page&metadata=true")).andExpect(status().isOk())
+				.andExpect(content().string("[{\"location\":\"pagea\",\"length\":11,\"uri\":\"/store/pagea\"},"
+						+ "{\"location\":\"pageb\",\"length\":11,\"uri\":\"/store/pageb\"}]"))
+				.andExpect(header().string("Link", "</store?limit=2&after=pageb&metadata=true>; rel=\"next\""));
+
+		/*
+		 * Second page, with contents
+		 */
+		this.mockMvc.perform(get("/store?limit=2&after=pageb")).andExpect(status().isOk())
+				.andExpect(content().string(
+						"[{\"location\":\"pagec\",\"contents\":\"hello pagec\",\"length\":11,\"uri\":\"/store/pagec\"}]"))
+				.andExpect(header().doesNotExist("Link"));
+
+		/*
+		 * Invalid limit
+		 */
+		this.mockMvc.perform(get("/store?limit=0")).andExpect(status().isBadRequest());
+
+		/*
+		 * Lengths are in UTF-8 bytes, as with the metadata of a single node,
+		 * with or without contents
+		 */
+		String body = mapper.writeValueAsString(new StorageNode("h\u00e9llo"));
+		this.mockMvc.perform(post("/store/paged").contentType(MediaType.APPLICATION_JSON).content(body))
+				.andExpect(status().isOk());
+		this.mockMvc.perform(get("/store?limit=1&after=pagec&metadata=true")).andExpect(status().isOk())
+				.andExpect(content().string("[{\"location\":\"paged\",\"length\":6,\"uri\":\"/store/paged\"}]"));
+		this.mockMvc.perform(get("/store?limit=1&after=pagec")).andExpect(status().isOk()).andExpect(content().string(
+				"[{\"location\":\"paged\",\"contents\":\"h\u00e9llo\",\"length\":6,\"uri\":\"/store/paged\"}]"));
+
+		for (String location : new String[] { "pagea", "pageb", "pagec", "paged" }) {
+			this.mockMvc.perform(delete("/store/" + location)).andExpect(status().isOk());
+		}
+
+	}
+
+	/**
+	 * 
+	 * Create several nodes in one batch, including one that already exists
+	 * and one without a location.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testCreateBlobsBatch() throws Exception {
+
+		ObjectMapper mapper = new ObjectMapper();
+		String body = mapper.writeValueAsString(new StorageNode("hello batchb"));
+		this.mockMvc.perform(post("/store/batchb").contentType(MediaType.APPLICATION_JSON).content(body))
+				.andExpect(status().isOk());
+
+		String batch = "[{\"location\":\"batcha\",\"contents\":\"hello batcha\"},"
+				+ "{\"location\":\"batchb\",\"contents\":\"hello again\"},"
+				+ "{\"contents\":\"no location\"},"
+				+ "{\"location\":\"batcha\",\"contents\":\"twice\"}]";
+
+		this.mockMvc.perform(post("/store").contentType(MediaType.APPLICATION_JSON).content(batch))
+				.andExpect(status().isOk())
+				.andExpect(content().string("[{\"location\":\"batcha\",\"outcome\":\"CREATED\",\"uri\":\"/store/batcha\"},"
+						+ "{\"location\":\"batchb\",\"outcome\":\"EXISTS\",\"uri\":\"/store/batchb\"},"
+						+ "{\"outcome\":\"INVALID\"},"
+						+ "{\"location\":\"batcha\",\"outcome\":\"EXISTS\",\"uri\":\"/store/batcha\"}]"));
+
+		this.mockMvc.perform(get("/store/batcha/contents")).andExpect(status().isOk())
+				.andExpect(content().string("hello batcha"));
+		this.mockMvc.perform(get("/store/batchb/contents")).andExpect(status().isOk())
+				.andExpect(content().string("hello batchb"));
+
+		this.mockMvc.perform(delete("/store/batcha")).andExpect(status().isOk());
+		this.mockMvc.perform(delete("/store/batchb")).andExpect(status().isOk());
+
+	}
+
+	/**
+	 * 
+	 * Metadata carries the stored length and checksum, and 404s once the
+	 * node is gone.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testGetBlobMetadata() throws Exception {
+
+		this.mockMvc.perform(get("/store/metadatablob/metadata")).andExpect(status().isNotFound());
+
+		ObjectMapper mapper = new ObjectMapper();
+		String body = mapper.writeValueAsString(new StorageNode("hello"));
+		long before = System.currentTimeMillis();
+		this.mockMvc.perform(post("/store/metadatablob").contentType(MediaType.APPLICATION_JSON).content(body))
+				.andExpect(status().isOk());
+
+		String json = this.mockMvc.perform(get("/store/metadatablob/metadata")).andExpect(status().isOk())
+				.andReturn().getResponse().getContentAsString();
+		StorageMetadata metadata = mapper.readValue(json, StorageMetadata.class);
+		assertEquals("metadatablob", metadata.getLocation());
+		assertEquals(Long.valueOf(5), metadata.getLength());
+		assertEquals("2cf24dba5fb0a30e26e83b2ac5b9e29e1b161e5c1fa7425e73043362938b9824", metadata.getChecksum());
+		assertTrue(metadata.getModified() >= before - 1000);
+
+		/*
+		 * Update changes the checksum
+		 */
+		body = mapper.writeValueAsString(new StorageNode("hello metadata"));
+		this.mockMvc.perform(put("/store/metadatablob").contentType(MediaType.APPLICATION_JSON).content(body))
+				.andExpect(status().isOk());
+		json = this.mockMvc.perform(get("/store/metadatablob/metadata")).andExpect(status().isOk()).andReturn()
+				.getResponse().getContentAsString();
+		metadata = mapper.readValue(json, StorageMetadata.class);
+		assertEquals(Long.valueOf(14), metadata.getLength());
+		assertEquals("a97b7b9226ca04c876f51783fc465f30be0c70b936d9b5663cc13e49e1d40769", metadata.getChecksum());
+
+		this.mockMvc.perform(delete("/store/metadatablob")).andExpect(status().isOk());
+		this.mockMvc.perform(get("/store/metadatablob/metadata")).andExpect(status().isNotFound());
+
+	}
+
+}
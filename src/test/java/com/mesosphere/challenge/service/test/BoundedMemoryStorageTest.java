@@ -0,0 +1,152 @@
+package com.mesosphere.challenge.service.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.junit.Test;
+
+import com.mesosphere.challenge.model.StorageNode;
+import com.mesosphere.challenge.service.dao.BoundedMemoryStorageDAO;
+import com.mesosphere.challenge.service.dao.LruEvictionPolicy;
+
+public class BoundedMemoryStorageTest {
+
+	/*
+	 * Nodes "key" + i with 96 bytes of contents weigh 100 bytes while i is
+	 * below 10
+	 */
+	private static final String CONTENTS = new String(new char[96]).replace('\0', 'x');
+
+	/**
+	 * 
+	 * LRU drops the node read longest ago, and never holds more than the
+	 * budget.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testLruEviction() throws Exception {
+		BoundedMemoryStorageDAO dao = new BoundedMemoryStorageDAO(500, new LruEvictionPolicy());
+		for (int i = 0; i < 5; i++) {
+			dao.createStorageNode(new StorageNode(CONTENTS), Arrays.asList("key" + i));
+		}
+		assertNotNull(dao.getStorageNode(Arrays.asList("key0")));
+
+		dao.createStorageNode(new StorageNode(CONTENTS), Arrays.asList("key5"));
+		assertNull(dao.getStorageNode(Arrays.asList("key1")));
+		assertNotNull(dao.getStorageNode(Arrays.asList("key0")));
+		assertNotNull(dao.getStorageNode(Arrays.asList("key5")));
+
+		Map<String, Object> statistics = dao.getStorageStatistics();
+		assertEquals("lru", statistics.get("bounded.policy"));
+		assertEquals(500L, statistics.get("bounded.weightedBytes"));
+		assertEquals(5, statistics.get("bounded.entries"));
+		assertEquals(1L, statistics.get("bounded.evictions"));
+		assertEquals(3L, statistics.get("bounded.hits"));
+		assertEquals(1L, statistics.get("bounded.misses"));
+		assertEquals(5, dao.getStorageNodes().size());
+
+		/*
+		 * Too big to ever fit
+		 */
+		dao.createStorageNode(new StorageNode(CONTENTS + CONTENTS + CONTENTS + CONTENTS + CONTENTS + CONTENTS),
+				Arrays.asList("huge"));
+		assertNull(dao.getStorageNode(Arrays.asList("huge")));
+		assertTrue((Long) dao.getStorageStatistics().get("bounded.weightedBytes") <= 500L);
+	}
+
+	/**
+	 * 
+	 * A scan of nodes read once must not push out nodes that are read all the
+	 * time, as it does with LRU.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testTinyLfuResistsScans() throws Exception {
+		BoundedMemoryStorageDAO tinyLfu = new BoundedMemoryStorageDAO(100 * 110);
+		BoundedMemoryStorageDAO lru = new BoundedMemoryStorageDAO(100 * 110, new LruEvictionPolicy());
+		for (BoundedMemoryStorageDAO dao : Arrays.asList(tinyLfu, lru)) {
+			for (int round = 0; round < 5; round++) {
+				for (int i = 0; i < 50; i++) {
+					if (dao.getStorageNode(Arrays.asList("hot" + i)) == null) {
+						dao.createStorageNode(new StorageNode(CONTENTS), Arrays.asList("hot" + i));
+					}
+				}
+			}
+			for (int i = 0; i < 1000; i++) {
+				dao.createStorageNode(new StorageNode(CONTENTS), Arrays.asList("scan" + i));
+				dao.getStorageNode(Arrays.asList("scan" + i));
+			}
+		}
+
+		int tinyLfuHot = 0;
+		int lruHot = 0;
+		for (int i = 0; i < 50; i++) {
+			tinyLfuHot += (tinyLfu.getStorageNode(Arrays.asList("hot" + i)) != null) ? 1 : 0;
+			lruHot += (lru.getStorageNode(Arrays.asList("hot" + i)) != null) ? 1 : 0;
+		}
+		assertEquals(0, lruHot);
+		assertTrue("tinylfu kept " + tinyLfuHot, tinyLfuHot >= 45);
+		assertTrue((Long) tinyLfu.getStorageStatistics().get("bounded.weightedBytes") <= 100 * 110);
+	}
+
+	/**
+	 * 
+	 * Concurrent writers, readers and deleters, the policy must agree with
+	 * the map afterwards and the budget must hold.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testConcurrentUse() throws Exception {
+		BoundedMemoryStorageDAO dao = new BoundedMemoryStorageDAO(100 * 100);
+		int threads = 8;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (int t = 0; t < threads; t++) {
+				futures.add(executor.submit(() -> {
+					ThreadLocalRandom random = ThreadLocalRandom.current();
+					for (int i = 0; i < 2000; i++) {
+						String location = "key" + random.nextInt(500);
+						int dice = random.nextInt(10);
+						if (dice < 6) {
+							dao.getStorageNode(Arrays.asList(location));
+						} else if (dice < 8) {
+							dao.createStorageNode(new StorageNode(CONTENTS), Arrays.asList(location));
+						} else if (dice < 9) {
+							dao.updateStorageNode(new StorageNode(CONTENTS + "y"), Arrays.asList(location));
+						} else {
+							dao.deleteStorageNode(Arrays.asList(location));
+						}
+					}
+					return null;
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+		Map<String, Object> statistics = dao.getStorageStatistics();
+		assertEquals(dao.getStorageNodes().size(), statistics.get("bounded.entries"));
+		assertTrue((Long) statistics.get("bounded.weightedBytes") <= 100 * 100);
+		assertEquals(threads * 2000L * 6 / 10, (Long) statistics.get("bounded.hits")
+				+ (Long) statistics.get("bounded.misses"), threads * 2000L / 10);
+	}
+
+}
@@ -0,0 +1,156 @@
+package com.mesosphere.challenge.service.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.mesosphere.challenge.StorageException;
+import com.mesosphere.challenge.model.StorageNode;
+import com.mesosphere.challenge.service.dao.CachingStorageDAO;
+import com.mesosphere.challenge.service.dao.LruEvictionPolicy;
+import com.mesosphere.challenge.service.dao.MemoryStorageDAO;
+
+public class CachingStorageTest {
+
+	private static final String CONTENTS = new String(new char[96]).replace('\0', 'x');
+
+	/*
+	 * Counts node reads, and takes its time returning them so that writes
+	 * can overtake a read in flight
+	 */
+	private static class SlowStorageDAO extends MemoryStorageDAO {
+		final AtomicInteger reads = new AtomicInteger();
+
+		@Override
+		public StorageNode getStorageNode(Collection<String> path) throws StorageException {
+			StorageNode ret = super.getStorageNode(path);
+			this.reads.incrementAndGet();
+			for (int i = 0; i < 10; i++) {
+				Thread.yield();
+			}
+			return ret;
+		}
+	}
+
+	/**
+	 * 
+	 * Reads are served from the cache after the first, and a write drops the
+	 * cached node.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testReadThroughAndInvalidation() throws Exception {
+		SlowStorageDAO backend = new SlowStorageDAO();
+		CachingStorageDAO dao = new CachingStorageDAO(backend, 10000);
+		dao.createStorageNode(new StorageNode("one"), Arrays.asList("a"));
+		for (int i = 0; i < 5; i++) {
+			assertEquals("one", dao.getStorageNode(Arrays.asList("a")).getContents());
+		}
+		assertEquals(1, backend.reads.get());
+
+		dao.updateStorageNode(new StorageNode("two"), Arrays.asList("a"));
+		assertEquals("two", dao.getStorageNode(Arrays.asList("a")).getContents());
+		assertEquals(2, backend.reads.get());
+
+		assertEquals(3L, (long) dao.getStorageMetadata(Arrays.asList("a")).getLength());
+		assertEquals(3L, dao.getStorageContents(Arrays.asList("a")).getLength());
+		dao.deleteStorageNode(Arrays.asList("a"));
+		assertNull(dao.getStorageNode(Arrays.asList("a")));
+		assertNull(dao.getStorageMetadata(Arrays.asList("a")));
+
+		Map<String, Object> statistics = dao.getStorageStatistics();
+		assertEquals(5L, statistics.get("cache.hits"));
+		assertEquals(5L, statistics.get("cache.misses"));
+		assertEquals(2L, statistics.get("cache.invalidations"));
+		assertEquals(0, statistics.get("cache.entries"));
+		assertTrue(statistics.containsKey("memory.listings"));
+	}
+
+	/**
+	 * 
+	 * The budget holds, and entries past their ttl are read again.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testBudgetAndTtl() throws Exception {
+		SlowStorageDAO backend = new SlowStorageDAO();
+		CachingStorageDAO dao = new CachingStorageDAO(backend, 500, 0, new LruEvictionPolicy());
+		for (int i = 0; i < 10; i++) {
+			dao.createStorageNode(new StorageNode(CONTENTS), Arrays.asList("key" + i));
+			dao.getStorageNode(Arrays.asList("key" + i));
+		}
+		Map<String, Object> statistics = dao.getStorageStatistics();
+		assertEquals(500L, statistics.get("cache.weightedBytes"));
+		assertEquals(5L, statistics.get("cache.evictions"));
+		assertEquals(CONTENTS, dao.getStorageNode(Arrays.asList("key0")).getContents());
+		assertEquals(11, backend.reads.get());
+
+		backend = new SlowStorageDAO();
+		dao = new CachingStorageDAO(backend, 500, 50, new LruEvictionPolicy());
+		dao.createStorageNode(new StorageNode(CONTENTS), Arrays.asList("key"));
+		dao.getStorageNode(Arrays.asList("key"));
+		dao.getStorageNode(Arrays.asList("key"));
+		assertEquals(1, backend.reads.get());
+		Thread.sleep(100);
+		dao.getStorageNode(Arrays.asList("key"));
+		assertEquals(2, backend.reads.get());
+		assertEquals(1L, dao.getStorageStatistics().get("cache.expired"));
+	}
+
+	/**
+	 * 
+	 * Readers keep loading the node while it is written. Once a write has
+	 * returned, its node must be what the cache serves, never one a reader
+	 * loaded before the write.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testNoStaleFillUnderConcurrentWrites() throws Exception {
+		CachingStorageDAO dao = new CachingStorageDAO(new SlowStorageDAO(), 100000);
+		dao.createStorageNode(new StorageNode("0"), Arrays.asList("hot"));
+		AtomicBoolean done = new AtomicBoolean();
+		int readers = 4;
+		ExecutorService executor = Executors.newFixedThreadPool(readers);
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (int t = 0; t < readers; t++) {
+				futures.add(executor.submit(() -> {
+					while (done.get() == false) {
+						dao.getStorageNode(Arrays.asList("hot"));
+					}
+					return null;
+				}));
+			}
+			try {
+				for (int i = 1; i <= 2000; i++) {
+					dao.updateStorageNode(new StorageNode(Integer.toString(i)), Arrays.asList("hot"));
+					assertEquals(Integer.toString(i), dao.getStorageNode(Arrays.asList("hot")).getContents());
+				}
+			} finally {
+				done.set(true);
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+}
@@ -0,0 +1,203 @@
+package com.mesosphere.challenge.service.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.mesosphere.challenge.StorageException;
+import com.mesosphere.challenge.model.StorageNode;
+import com.mesosphere.challenge.service.dao.CoalescingStorageDAO;
+import com.mesosphere.challenge.service.dao.MemoryStorageDAO;
+
+public class CoalescingStorageTest {
+
+	/*
+	 * Holds node reads until released, and counts them
+	 */
+	private static class GatedStorageDAO extends MemoryStorageDAO {
+		final AtomicInteger reads = new AtomicInteger();
+		volatile CountDownLatch gate = new CountDownLatch(1);
+		volatile boolean failing = false;
+		volatile boolean erroring = false;
+
+		@Override
+		public StorageNode getStorageNode(Collection<String> path) throws StorageException {
+			StorageNode ret = super.getStorageNode(path);
+			this.reads.incrementAndGet();
+			try {
+				this.gate.await(10, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (this.failing) {
+				throw new StorageException("Storage is down");
+			}
+			if (this.erroring) {
+				throw new OutOfMemoryError("Node too large");
+			}
+			return ret;
+		}
+	}
+
+	private static void awaitReads(GatedStorageDAO backend, int reads) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while ((backend.reads.get() < reads) && (System.currentTimeMillis() < deadline)) {
+			Thread.sleep(1);
+		}
+	}
+
+	/**
+	 * 
+	 * Readers of the same location share one call and one node, readers of
+	 * other locations make their own.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testConcurrentReadsShareOneCall() throws Exception {
+		GatedStorageDAO backend = new GatedStorageDAO();
+		backend.createStorageNode(new StorageNode("hot"), Arrays.asList("hot"));
+		CoalescingStorageDAO dao = new CoalescingStorageDAO(backend);
+		ExecutorService executor = Executors.newFixedThreadPool(9);
+		try {
+			List<Future<StorageNode>> futures = new ArrayList<Future<StorageNode>>();
+			futures.add(executor.submit(() -> dao.getStorageNode(Arrays.asList("hot"))));
+			awaitReads(backend, 1);
+			for (int i = 0; i < 7; i++) {
+				futures.add(executor.submit(() -> dao.getStorageNode(Arrays.asList("hot"))));
+			}
+			Future<StorageNode> other = executor.submit(() -> dao.getStorageNode(Arrays.asList("cold")));
+			awaitReads(backend, 2);
+			long deadline = System.currentTimeMillis() + 10000;
+			while (((Long) dao.getStorageStatistics().get("coalescing.coalesced") < 7)
+					&& (System.currentTimeMillis() < deadline)) {
+				Thread.sleep(1);
+			}
+			backend.gate.countDown();
+
+			StorageNode first = futures.get(0).get();
+			assertEquals("hot", first.getContents());
+			for (Future<StorageNode> future : futures) {
+				assertSame(first, future.get());
+			}
+			assertEquals(null, other.get());
+		} finally {
+			executor.shutdown();
+		}
+
+		assertEquals(2, backend.reads.get());
+		Map<String, Object> statistics = dao.getStorageStatistics();
+		assertEquals(2L, statistics.get("coalescing.calls"));
+		assertEquals(7L, statistics.get("coalescing.coalesced"));
+		assertEquals(0, statistics.get("coalescing.inFlight"));
+	}
+
+	/**
+	 * 
+	 * A read that starts after a write returned makes its own call, and
+	 * failures reach every reader of the call.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testWriteInvalidatesAndFailuresAreShared() throws Exception {
+		GatedStorageDAO backend = new GatedStorageDAO();
+		backend.createStorageNode(new StorageNode("old"), Arrays.asList("key"));
+		CoalescingStorageDAO dao = new CoalescingStorageDAO(backend);
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		try {
+			Future<StorageNode> before = executor.submit(() -> dao.getStorageNode(Arrays.asList("key")));
+			awaitReads(backend, 1);
+			dao.updateStorageNode(new StorageNode("new"), Arrays.asList("key"));
+			Future<StorageNode> after = executor.submit(() -> dao.getStorageNode(Arrays.asList("key")));
+			awaitReads(backend, 2);
+			backend.gate.countDown();
+			assertEquals("old", before.get().getContents());
+			assertEquals("new", after.get().getContents());
+			assertEquals(1L, dao.getStorageStatistics().get("coalescing.invalidations"));
+
+			backend.gate = new CountDownLatch(1);
+			backend.failing = true;
+			Future<StorageNode> leader = executor.submit(() -> dao.getStorageNode(Arrays.asList("key")));
+			awaitReads(backend, 3);
+			Future<StorageNode> follower = executor.submit(() -> dao.getStorageNode(Arrays.asList("key")));
+			long deadline = System.currentTimeMillis() + 10000;
+			while (((Long) dao.getStorageStatistics().get("coalescing.coalesced") < 1)
+					&& (System.currentTimeMillis() < deadline)) {
+				Thread.sleep(1);
+			}
+			backend.gate.countDown();
+			for (Future<StorageNode> future : Arrays.asList(leader, follower)) {
+				try {
+					future.get();
+					fail("Read should have failed");
+				} catch (ExecutionException e) {
+					assertTrue(e.getCause() instanceof StorageException);
+				}
+			}
+			assertEquals(3, backend.reads.get());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * 
+	 * An Error in the call still wakes the readers waiting on it, with a
+	 * StorageException caused by the Error.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testErrorsReachWaitingReaders() throws Exception {
+		GatedStorageDAO backend = new GatedStorageDAO();
+		backend.createStorageNode(new StorageNode("large"), Arrays.asList("key"));
+		backend.erroring = true;
+		CoalescingStorageDAO dao = new CoalescingStorageDAO(backend);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			Future<StorageNode> leader = executor.submit(() -> dao.getStorageNode(Arrays.asList("key")));
+			awaitReads(backend, 1);
+			Future<StorageNode> follower = executor.submit(() -> dao.getStorageNode(Arrays.asList("key")));
+			long deadline = System.currentTimeMillis() + 10000;
+			while (((Long) dao.getStorageStatistics().get("coalescing.coalesced") < 1)
+					&& (System.currentTimeMillis() < deadline)) {
+				Thread.sleep(1);
+			}
+			backend.gate.countDown();
+			try {
+				leader.get(10, TimeUnit.SECONDS);
+				fail("Read should have failed");
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof OutOfMemoryError);
+			}
+			try {
+				follower.get(10, TimeUnit.SECONDS);
+				fail("Read should have failed");
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof StorageException);
+				assertTrue(e.getCause().getCause() instanceof OutOfMemoryError);
+			}
+			assertEquals(0, dao.getStorageStatistics().get("coalescing.inFlight"));
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+}
@@ -0,0 +1,85 @@
+package com.mesosphere.challenge.service.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.mesosphere.challenge.StorageException;
+import com.mesosphere.challenge.service.dao.EmbeddedConnectionPool;
+
+public class EmbeddedConnectionPoolTest {
+
+	private EmbeddedConnectionPool pool;
+
+	private ExecutorService executor;
+
+	@Before
+	public void setup() throws Exception {
+		JdbcDataSource ds = new JdbcDataSource();
+		ds.setURL("jdbc:h2:mem:pooltestdb;DB_CLOSE_DELAY=-1;MVCC=TRUE");
+		this.pool = new EmbeddedConnectionPool(ds, 1, 2, 100, true);
+		this.executor = Executors.newSingleThreadExecutor();
+	}
+
+	@After
+	public void teardown() {
+		this.executor.shutdownNow();
+		this.pool.close();
+	}
+
+	@Test
+	public void testSameThreadReusesConnection() throws Exception {
+		Connection outer = this.pool.acquire();
+		Connection inner = this.pool.acquire();
+		assertSame(outer, inner);
+		assertEquals(1, this.pool.getActive());
+		this.pool.release(inner);
+		assertEquals(1, this.pool.getActive());
+		this.pool.release(outer);
+		assertEquals(0, this.pool.getActive());
+	}
+
+	@Test
+	public void testThreadsGetOwnConnections() throws Exception {
+		Connection mine = this.pool.acquire();
+		Future<Connection> other = this.executor.submit(() -> {
+			Connection connection = this.pool.acquire();
+			this.pool.release(connection);
+			return connection;
+		});
+		assertNotSame(mine, other.get());
+		this.pool.release(mine);
+	}
+
+	@Test
+	public void testAcquireTimesOutWhenSaturated() throws Exception {
+		Connection first = this.pool.acquire();
+		Connection second = this.executor.submit(() -> this.pool.acquire()).get();
+		ExecutorService third = Executors.newSingleThreadExecutor();
+		try {
+			third.submit(() -> this.pool.acquire()).get();
+			fail("Expected pool to be saturated");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof StorageException);
+			assertEquals(1L, this.pool.getStatistics().get("pool.timeouts"));
+		} finally {
+			third.shutdownNow();
+			this.pool.release(first);
+			this.executor.submit(() -> this.pool.release(second)).get();
+		}
+	}
+
+}
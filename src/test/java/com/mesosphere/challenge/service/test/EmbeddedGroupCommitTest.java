@@ -0,0 +1,177 @@
+package com.mesosphere.challenge.service.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.h2.jdbcx.JdbcDataSource;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.mesosphere.challenge.StorageException;
+import com.mesosphere.challenge.model.StorageNode;
+import com.mesosphere.challenge.service.dao.EmbeddedConnectionPool;
+import com.mesosphere.challenge.service.dao.EmbeddedGroupCommitter;
+import com.mesosphere.challenge.service.dao.EmbeddedStorageDAO;
+
+public class EmbeddedGroupCommitTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private EmbeddedStorageDAO dao;
+
+	@Before
+	public void setup() throws Exception {
+		this.dao = new EmbeddedStorageDAO(this.folder.getRoot().getAbsolutePath(), "groupdb", "challenge",
+				"challenge");
+		this.dao.enableGroupCommit(64, 5);
+	}
+
+	@After
+	public void teardown() {
+		this.dao.close();
+	}
+
+	/**
+	 * 
+	 * Many writers at once, every write must be visible once its call has
+	 * returned, and the writes should have been grouped.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testConcurrentWritesAreGrouped() throws Exception {
+		int threads = 8;
+		int writes = 50;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (int t = 0; t < threads; t++) {
+				int thread = t;
+				futures.add(executor.submit(() -> {
+					for (int i = 0; i < writes; i++) {
+						String location = "group-" + thread + "-" + i;
+						this.dao.createStorageNode(new StorageNode("hello " + location), Arrays.asList(location));
+						assertEquals("hello " + location,
+								this.dao.getStorageNode(Arrays.asList(location)).getContents());
+					}
+					return null;
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+		assertEquals(threads * writes, this.dao.getStorageNodes().size());
+
+		Map<String, Object> statistics = this.dao.getStorageStatistics();
+		assertEquals((long) (threads * writes), statistics.get("groupCommit.operations"));
+		assertTrue((Long) statistics.get("groupCommit.batches") < threads * writes);
+	}
+
+	@Test
+	public void testUpdateAndDeleteThroughGroupCommit() throws Exception {
+		assertNull(this.dao.updateStorageNode(new StorageNode("nope"), Arrays.asList("missing")));
+
+		this.dao.createStorageNode(new StorageNode("one"), Arrays.asList("node"));
+		this.dao.updateStorageNode(new StorageNode("two"), Arrays.asList("node"));
+		assertEquals("two", this.dao.getStorageNode(Arrays.asList("node")).getContents());
+
+		this.dao.deleteStorageNode(Arrays.asList("node"));
+		assertNull(this.dao.getStorageNode(Arrays.asList("node")));
+	}
+
+	/**
+	 * 
+	 * A write that throws an Error fails its own caller, and the committer
+	 * goes on with the next group.
+	 * 
+	 * @throws Exception
+	 */
+	@Test(timeout = 10000)
+	public void testErrorFailsOnlyItsWrite() throws Exception {
+		JdbcDataSource ds = new JdbcDataSource();
+		ds.setURL("jdbc:h2:mem:grouperrordb;DB_CLOSE_DELAY=-1;MVCC=TRUE");
+		EmbeddedConnectionPool pool = new EmbeddedConnectionPool(ds, 1, 2, 100, true);
+		EmbeddedGroupCommitter committer = new EmbeddedGroupCommitter(pool, 8, 1);
+		try {
+			try {
+				committer.submit(connection -> {
+					throw new AssertionError("boom");
+				});
+				fail("Expected the write to fail");
+			} catch (StorageException e) {
+				assertTrue(e.getCause() instanceof AssertionError);
+			}
+			assertEquals(Integer.valueOf(1), committer.submit(connection -> 1));
+		} finally {
+			committer.close();
+			pool.close();
+		}
+	}
+
+	/**
+	 * 
+	 * Writes submitted while and after the committer closes are failed, none
+	 * is left waiting.
+	 * 
+	 * @throws Exception
+	 */
+	@Test(timeout = 30000)
+	public void testSubmitRacingCloseNeverHangs() throws Exception {
+		JdbcDataSource ds = new JdbcDataSource();
+		ds.setURL("jdbc:h2:mem:groupclosedb;DB_CLOSE_DELAY=-1;MVCC=TRUE");
+		EmbeddedConnectionPool pool = new EmbeddedConnectionPool(ds, 1, 2, 100, true);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			for (int round = 0; round < 20; round++) {
+				EmbeddedGroupCommitter committer = new EmbeddedGroupCommitter(pool, 8, 1);
+				List<Future<?>> futures = new ArrayList<Future<?>>();
+				for (int t = 0; t < 4; t++) {
+					futures.add(executor.submit(() -> {
+						for (int i = 0; i < 100; i++) {
+							try {
+								committer.submit(connection -> null);
+							} catch (StorageException e) {
+								return null;
+							}
+						}
+						return null;
+					}));
+				}
+				committer.close();
+				for (Future<?> future : futures) {
+					future.get(5, TimeUnit.SECONDS);
+				}
+				try {
+					committer.submit(connection -> null);
+					fail("Expected the committer to be closed");
+				} catch (StorageException e) {
+					assertEquals("Group committer is closed", e.getMessage());
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+			pool.close();
+		}
+	}
+
+}
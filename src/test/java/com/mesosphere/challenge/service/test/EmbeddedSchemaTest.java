@@ -0,0 +1,106 @@
+package com.mesosphere.challenge.service.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.mesosphere.challenge.model.StorageMetadata;
+import com.mesosphere.challenge.model.StorageNode;
+import com.mesosphere.challenge.service.dao.EmbeddedSchema;
+import com.mesosphere.challenge.service.dao.EmbeddedStorageDAO;
+
+public class EmbeddedSchemaTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * 
+	 * Write a DB file the way older versions of the service did, with
+	 * duplicate rows, and make sure the DAO upgrades it in place.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testLegacyFileIsUpgraded() throws Exception {
+		String storagePath = this.folder.getRoot().getAbsolutePath();
+
+		JdbcDataSource ds = new JdbcDataSource();
+		ds.setURL("jdbc:h2:file:" + storagePath + "/legacydb");
+		ds.setUser("challenge");
+		ds.setPassword("challenge");
+		try (Connection connection = ds.getConnection(); Statement s = connection.createStatement()) {
+			s.execute("CREATE TABLE STORAGE_NODE (LOCATION VARCHAR(1024), CONTENTS BLOB)");
+			s.execute("INSERT INTO STORAGE_NODE VALUES ('dup', X'6f6c64')");
+			s.execute("INSERT INTO STORAGE_NODE VALUES ('dup', X'6e6577')");
+			s.execute("INSERT INTO STORAGE_NODE VALUES ('single', X'6f6e65')");
+		}
+
+		EmbeddedStorageDAO dao = new EmbeddedStorageDAO(storagePath, "legacydb", "challenge", "challenge");
+		try {
+			assertEquals(2, dao.getStorageNodes().size());
+			assertEquals("new", dao.getStorageNode(Arrays.asList("dup")).getContents());
+
+			/*
+			 * Metadata of rows written before the metadata columns existed is
+			 * filled in by the upgrade
+			 */
+			StorageMetadata metadata = dao.getStorageMetadata(Arrays.asList("single"));
+			assertEquals(Long.valueOf(3), metadata.getLength());
+			assertEquals("7692c3ad3540bb803c020b3aee66cd8887123234ea0c6e7143c0add73ff431ed", metadata.getChecksum());
+			assertNotNull(metadata.getModified());
+
+			/*
+			 * Create on an existing location replaces the row
+			 */
+			dao.createStorageNode(new StorageNode("newer"), Arrays.asList("dup"));
+			assertEquals(2, dao.getStorageNodes().size());
+			assertEquals("newer", dao.getStorageNode(Arrays.asList("dup")).getContents());
+
+			/*
+			 * Update of a missing location does not create it
+			 */
+			assertNull(dao.updateStorageNode(new StorageNode("nope"), Arrays.asList("missing")));
+			assertNull(dao.getStorageNode(Arrays.asList("missing")));
+		} finally {
+			dao.close();
+		}
+
+		try (Connection connection = ds.getConnection(); Statement s = connection.createStatement()) {
+			assertEquals(EmbeddedSchema.latestVersion(), EmbeddedSchema.currentVersion(connection));
+			try {
+				s.execute("INSERT INTO STORAGE_NODE (LOCATION) VALUES ('single')");
+				fail("Expected unique index on LOCATION");
+			} catch (SQLException e) {
+				// expected
+			}
+			ResultSet result = s.executeQuery("SELECT COUNT(*) FROM STORAGE_NODE");
+			result.next();
+			assertEquals(2, result.getInt(1));
+
+			/*
+			 * The contents stay in the node rows, nothing is shared until
+			 * deduplication is turned on
+			 */
+			result = s.executeQuery("SELECT COUNT(*) FROM STORAGE_NODE WHERE CONTENTS IS NOT NULL");
+			result.next();
+			assertEquals(2, result.getInt(1));
+			result = s.executeQuery("SELECT COUNT(*) FROM STORAGE_CONTENT");
+			result.next();
+			assertEquals(0, result.getInt(1));
+		}
+	}
+
+}
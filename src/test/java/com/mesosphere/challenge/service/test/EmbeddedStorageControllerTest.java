@@ -17,8 +17,6 @@ import org.springframework.http.MediaType;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 import org.springframework.test.context.web.WebAppConfiguration;
-import org.springframework.test.web.servlet.MockMvc;
-import org.springframework.test.web.servlet.setup.MockMvcBuilders;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.mesosphere.challenge.model.StorageNode;
@@ -29,7 +27,7 @@ import com.mesosphere.challenge.service.dao.EmbeddedStorageDAO;
 @WebAppConfiguration
 @ContextConfiguration({ "classpath:applicationContext.xml" })
 @Import(StorageTestConfig.class)
-public class EmbeddedStorageControllerTest {
+public class EmbeddedStorageControllerTest extends AbstractStorageControllerTest {
 
 	@InjectMocks
 	private StorageController storageController;
@@ -37,8 +35,6 @@ public class EmbeddedStorageControllerTest {
 	@InjectMocks
 	private EmbeddedStorageDAO embeddedStorageDAO;
 
-	private MockMvc mockMvc;
-
 	@Before
 	public void setup() {
 
@@ -48,7 +44,7 @@ public class EmbeddedStorageControllerTest {
 		storageController.setStorageConnection(embeddedStorageDAO);
 
 		// Setup Spring test in standalone mode
-		this.mockMvc = MockMvcBuilders.standaloneSetup(storageController).build();
+		this.mockMvc = new StorageMockMvc(storageController);
 
 	}
 
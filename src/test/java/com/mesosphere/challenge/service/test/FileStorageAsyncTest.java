@@ -0,0 +1,184 @@
+package com.mesosphere.challenge.service.test;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mesosphere.challenge.StorageException;
+import com.mesosphere.challenge.model.StorageNode;
+import com.mesosphere.challenge.service.controller.StorageController;
+import com.mesosphere.challenge.service.dao.CachingStorageDAO;
+import com.mesosphere.challenge.service.dao.CoalescingStorageDAO;
+import com.mesosphere.challenge.service.dao.FileStorageDAO;
+import com.mesosphere.challenge.service.dao.IStorageDAO;
+import com.mesosphere.challenge.service.dao.NegativeLookupStorageDAO;
+import com.mesosphere.challenge.service.dao.StorageCodecs;
+import com.mesosphere.challenge.service.dao.StorageCompression;
+import com.mesosphere.challenge.service.dao.StorageFutures;
+
+public class FileStorageAsyncTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * 
+	 * Many creates, reads and updates in flight at once on a few I/O threads
+	 * end up as the blocking calls would have left them, compressed or not,
+	 * and missing, existing and invalid nodes come back as they do there.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testAsyncReadsAndWrites() throws Exception {
+		FileStorageDAO dao = new FileStorageDAO(this.folder.getRoot().getAbsolutePath(), false, 2);
+		dao.setCompression(new StorageCompression(StorageCodecs.GZIP, 64));
+		dao.setIoThreads(2);
+		dao.enableListingIndex();
+		String large = String.join("", Collections.nCopies(200, "y"));
+		try {
+			List<CompletableFuture<StorageNode>> writes = new ArrayList<CompletableFuture<StorageNode>>();
+			for (int i = 0; i < 200; i++) {
+				String contents = ((i % 2) == 0) ? "node " + i : large + i;
+				writes.add(dao.createStorageNodeAsync(new StorageNode(contents), Arrays.asList("node" + i)));
+			}
+			for (int i = 0; i < 200; i++) {
+				assertEquals("node" + i, StorageFutures.join(writes.get(i)).getLocation());
+			}
+			assertEquals(200, dao.getStorageNodes().size());
+			assertEquals(large + 7, dao.getStorageNode(Arrays.asList("node7")).getContents());
+
+			List<CompletableFuture<StorageNode>> reads = new ArrayList<CompletableFuture<StorageNode>>();
+			for (int i = 0; i < 200; i++) {
+				reads.add(dao.getStorageNodeAsync(Arrays.asList("node" + i)));
+			}
+			for (int i = 0; i < 200; i++) {
+				String contents = ((i % 2) == 0) ? "node " + i : large + i;
+				assertEquals(contents, StorageFutures.join(reads.get(i)).getContents());
+			}
+
+			StorageNode again = new StorageNode("again");
+			assertNull(StorageFutures.join(dao.createStorageNodeAsync(again, Arrays.asList("node3"))));
+			assertEquals(large + 3, dao.getStorageNode(Arrays.asList("node3")).getContents());
+			StorageNode changed = new StorageNode("changed");
+			assertEquals("changed",
+					StorageFutures.join(dao.updateStorageNodeAsync(changed, Arrays.asList("node3"))).getContents());
+			assertEquals("changed", dao.getStorageNode(Arrays.asList("node3")).getContents());
+			assertEquals(Long.valueOf(7), dao.getStorageMetadata(Arrays.asList("node3")).getLength());
+			assertNull(StorageFutures.join(dao.updateStorageNodeAsync(changed, Arrays.asList("missing"))));
+			assertNull(StorageFutures.join(dao.getStorageNodeAsync(Arrays.asList("missing"))));
+			assertNull(StorageFutures.join(dao.getStorageNodeAsync(Arrays.asList(".meta"))));
+
+			StorageFutures.join(dao.deleteStorageNodeAsync(Arrays.asList("node4")));
+			assertNull(StorageFutures.join(dao.getStorageNodeAsync(Arrays.asList("node4"))));
+			assertEquals(199, StorageFutures.join(dao.getStorageNodesAsync(null, 0, true)).size());
+			try {
+				StorageFutures.join(dao.getStorageNodeAsync(Arrays.asList("a", "b")));
+				assertTrue("Expected a StorageException", false);
+			} catch (StorageException e) {
+				assertTrue(e.getMessage().contains("longer than one element"));
+			}
+			assertTrue((Long) dao.getStorageStatistics().get("file.async.reads") >= 200);
+			assertTrue((Long) dao.getStorageStatistics().get("file.async.writes") >= 201);
+		} finally {
+			dao.close();
+		}
+	}
+
+	/**
+	 * 
+	 * Asynchronous calls pass through the caching, negative lookup and
+	 * coalescing DAOs to the file I/O threads, and reads after asynchronous
+	 * writes see what was written.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testAsyncThroughDecorators() throws Exception {
+		FileStorageDAO dao = new FileStorageDAO(this.folder.getRoot().getAbsolutePath(), false, 2);
+		dao.setIoThreads(2);
+		IStorageDAO decorated = new CachingStorageDAO(
+				new NegativeLookupStorageDAO(new CoalescingStorageDAO(dao)), 1024 * 1024);
+		try {
+			assertNull(StorageFutures.join(decorated.getStorageNodeAsync(Arrays.asList("node"))));
+			assertEquals("node", StorageFutures
+					.join(decorated.createStorageNodeAsync(new StorageNode("first"), Arrays.asList("node")))
+					.getLocation());
+			assertEquals("first", StorageFutures.join(decorated.getStorageNodeAsync(Arrays.asList("node"))).getContents());
+			assertEquals(Long.valueOf(5),
+					StorageFutures.join(decorated.getStorageMetadataAsync(Arrays.asList("node"))).getLength());
+
+			StorageFutures.join(decorated.updateStorageNodeAsync(new StorageNode("second"), Arrays.asList("node")));
+			assertEquals("second", StorageFutures.join(decorated.getStorageNodeAsync(Arrays.asList("node"))).getContents());
+			assertEquals("second", decorated.getStorageNode(Arrays.asList("node")).getContents());
+			assertEquals(Long.valueOf(6),
+					StorageFutures.join(decorated.getStorageMetadataAsync(Arrays.asList("node"))).getLength());
+
+			StorageFutures.join(decorated.deleteStorageNodeAsync(Arrays.asList("node")));
+			assertNull(StorageFutures.join(decorated.getStorageNodeAsync(Arrays.asList("node"))));
+			assertNull(decorated.getStorageMetadata(Arrays.asList("node")));
+
+			assertTrue((Long) dao.getStorageStatistics().get("file.async.reads") >= 2);
+			assertTrue((Long) dao.getStorageStatistics().get("file.async.writes") >= 2);
+		} finally {
+			dao.close();
+		}
+	}
+
+	/**
+	 * 
+	 * The controller hands requests on file storage back to the container
+	 * and answers them once the file has been read or written.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testAsyncController() throws Exception {
+		FileStorageDAO dao = new FileStorageDAO(this.folder.getRoot().getAbsolutePath(), false, 2);
+		StorageController controller = new StorageController();
+		controller.setStorageConnection(dao);
+		MockMvc mockMvc = MockMvcBuilders.standaloneSetup(controller).build();
+		String body = new ObjectMapper().writeValueAsString(new StorageNode("async contents"));
+		try {
+			MvcResult result = mockMvc
+					.perform(post("/store/async").contentType(MediaType.APPLICATION_JSON).content(body))
+					.andExpect(request().asyncStarted()).andReturn();
+			mockMvc.perform(asyncDispatch(result)).andExpect(status().isOk())
+					.andExpect(content().string(containsString("\"location\":\"async\"")));
+
+			result = mockMvc.perform(get("/store/async")).andExpect(request().asyncStarted()).andReturn();
+			mockMvc.perform(asyncDispatch(result)).andExpect(status().isOk())
+					.andExpect(content().string(containsString("\"contents\":\"async contents\"")));
+
+			result = mockMvc.perform(put("/store/missing").contentType(MediaType.APPLICATION_JSON).content(body))
+					.andExpect(request().asyncStarted()).andReturn();
+			mockMvc.perform(asyncDispatch(result)).andExpect(status().isNotFound());
+		} finally {
+			dao.close();
+		}
+	}
+
+}
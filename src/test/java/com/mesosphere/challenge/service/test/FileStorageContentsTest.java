@@ -0,0 +1,77 @@
+package com.mesosphere.challenge.service.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import com.mesosphere.challenge.model.StorageNode;
+import com.mesosphere.challenge.service.controller.StorageController;
+import com.mesosphere.challenge.service.dao.FileStorageDAO;
+import com.mesosphere.challenge.service.dao.IStorageContents;
+
+public class FileStorageContentsTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static final String LARGE = String.join("\n", Collections.nCopies(20000, "line of a large blob"));
+
+	/**
+	 * 
+	 * Contents stored as they are come back byte for byte through the file
+	 * channel.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testTransferFromFile() throws Exception {
+		FileStorageDAO dao = new FileStorageDAO(this.folder.getRoot().getAbsolutePath());
+		dao.createStorageNode(new StorageNode(LARGE), Arrays.asList("large"));
+		try (IStorageContents contents = dao.getStorageContents(Arrays.asList("large"))) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			contents.transferTo(out);
+			assertEquals(contents.getLength(), out.size());
+			assertArrayEquals(LARGE.getBytes(StandardCharsets.UTF_8), out.toByteArray());
+		}
+	}
+
+	/**
+	 * 
+	 * Contents looked up before their node is replaced are sent as they
+	 * were, whole, by the controller as well as directly.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testReplacedWhileOpen() throws Exception {
+		FileStorageDAO dao = new FileStorageDAO(this.folder.getRoot().getAbsolutePath());
+		dao.createStorageNode(new StorageNode(LARGE), Arrays.asList("large"));
+		try (IStorageContents contents = dao.getStorageContents(Arrays.asList("large"))) {
+			dao.updateStorageNode(new StorageNode("small"), Arrays.asList("large"));
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			contents.transferTo(out);
+			assertArrayEquals(LARGE.getBytes(StandardCharsets.UTF_8), out.toByteArray());
+		}
+
+		StorageController controller = new StorageController();
+		controller.setStorageConnection(dao);
+		MockMvc mockMvc = MockMvcBuilders.standaloneSetup(controller).build();
+		MvcResult result = mockMvc.perform(get("/store/large/contents")).andExpect(status().isOk()).andReturn();
+		assertEquals("small", result.getResponse().getContentAsString());
+		assertEquals(5, Long.parseLong(result.getResponse().getHeader("Content-Length")));
+	}
+
+}
@@ -0,0 +1,134 @@
+package com.mesosphere.challenge.service.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.stream.Collectors;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.mesosphere.challenge.model.StorageNode;
+import com.mesosphere.challenge.service.dao.FileStorageDAO;
+import com.mesosphere.challenge.service.dao.StorageChecksums;
+import com.mesosphere.challenge.service.dao.StorageCodecs;
+import com.mesosphere.challenge.service.dao.StorageCompression;
+
+public class FileStorageIndexTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static List<String> names(FileStorageDAO dao, String after, int limit) throws Exception {
+		return dao.getStorageNodes(after, limit, true).stream().map(node -> node.getLocation())
+				.collect(Collectors.toList());
+	}
+
+	/*
+	 * The watcher runs on its own thread, give it some time
+	 */
+	private static void eventually(Callable<Boolean> condition) throws Exception {
+		for (int i = 0; i < 200; i++) {
+			if (condition.call()) {
+				return;
+			}
+			Thread.sleep(50);
+		}
+		assertTrue("Condition not met in time", condition.call());
+	}
+
+	/**
+	 * 
+	 * Nodes written before the index was built and after are listed in order
+	 * with their uncompressed lengths, and deletes drop out at once.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testIndexFollowsWrites() throws Exception {
+		FileStorageDAO dao = new FileStorageDAO(this.folder.getRoot().getAbsolutePath(), false, 2);
+		dao.setCompression(new StorageCompression(StorageCodecs.GZIP, 64));
+		String large = String.join("", Collections.nCopies(500, "z"));
+		try {
+			List<String> expected = new ArrayList<String>();
+			for (int i = 0; i < 300; i++) {
+				String name = String.format("node-%03d", i);
+				dao.createStorageNode(new StorageNode(name), Arrays.asList(name));
+				expected.add(name);
+			}
+			dao.createStorageNode(new StorageNode(large), Arrays.asList("large"));
+			dao.enableListingIndex();
+			assertEquals(301, dao.getStorageStatistics().get("file.index.nodes"));
+			assertEquals(true, dao.getStorageStatistics().get("file.index.ready"));
+
+			assertEquals(expected.subList(0, 50), names(dao, "large", 50));
+			assertEquals(expected.subList(100, 150), names(dao, "node-099", 50));
+			List<StorageNode> page = new ArrayList<StorageNode>(dao.getStorageNodes(null, 5, true));
+			assertEquals("large", page.get(0).getLocation());
+			assertEquals(500, (int) page.get(0).getLength());
+			page = new ArrayList<StorageNode>(dao.getStorageNodes("node-009", 1, false));
+			assertEquals("node-010", page.get(0).getContents());
+
+			dao.createStorageNode(new StorageNode(large + large), Arrays.asList("added"));
+			dao.updateStorageNode(new StorageNode("short"), Arrays.asList("large"));
+			dao.deleteStorageNode(Arrays.asList("node-000"));
+			assertEquals(Arrays.asList("added", "large", "node-001"), names(dao, null, 3));
+			page = new ArrayList<StorageNode>(dao.getStorageNodes(null, 2, true));
+			assertEquals(1000, (int) page.get(0).getLength());
+			assertEquals(5, (int) page.get(1).getLength());
+			assertEquals(301, dao.getStorageNodes().size());
+		} finally {
+			dao.close();
+		}
+	}
+
+	/**
+	 * 
+	 * Files added, replaced and removed behind the service's back show up in
+	 * listings, flat and in shard folders that did not exist yet.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testIndexSeesOutsideChanges() throws Exception {
+		for (int depth : Arrays.asList(0, 2)) {
+			Path path = this.folder.newFolder().toPath();
+			FileStorageDAO dao = new FileStorageDAO(path.toString(), false, depth);
+			try {
+				dao.createStorageNode(new StorageNode("inside"), Arrays.asList("inside"));
+				dao.enableListingIndex();
+
+				Path root = path.resolve("challengeroot");
+				Path outside = root.resolve("outside");
+				if (depth != 0) {
+					String hash = StorageChecksums.checksum("outside".getBytes(StandardCharsets.UTF_8));
+					outside = root.resolve(".shards").resolve(hash.substring(0, 2)).resolve(hash.substring(2, 4))
+							.resolve("outside");
+					Files.createDirectories(outside.getParent());
+				}
+				Files.write(outside, "abc".getBytes(StandardCharsets.UTF_8));
+				eventually(() -> names(dao, null, 0).equals(Arrays.asList("inside", "outside")));
+				assertEquals("abc", dao.getStorageNode(Arrays.asList("outside")).getContents());
+
+				Files.write(outside, "abcdef".getBytes(StandardCharsets.UTF_8));
+				eventually(() -> dao.getStorageNodes("inside", 1, true).iterator().next().getLength() == 6);
+
+				Files.delete(outside);
+				eventually(() -> names(dao, null, 0).equals(Arrays.asList("inside")));
+				assertTrue((Long) dao.getStorageStatistics().get("file.index.watchEvents") > 0);
+			} finally {
+				dao.close();
+			}
+		}
+	}
+
+}
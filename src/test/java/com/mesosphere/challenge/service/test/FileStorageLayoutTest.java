@@ -0,0 +1,160 @@
+package com.mesosphere.challenge.service.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.mesosphere.challenge.model.StorageMetadata;
+import com.mesosphere.challenge.model.StorageNode;
+import com.mesosphere.challenge.service.dao.FileStorageDAO;
+import com.mesosphere.challenge.service.dao.StorageCodecs;
+import com.mesosphere.challenge.service.dao.StorageCompression;
+
+public class FileStorageLayoutTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static List<String> names(List<StorageNode> nodes) {
+		return nodes.stream().map(node -> node.getLocation()).collect(Collectors.toList());
+	}
+
+	/**
+	 * 
+	 * Node files land in their shards, no folder holds more than a few of
+	 * them, and pages come back in order across shards.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testShardedLayout() throws Exception {
+		FileStorageDAO dao = new FileStorageDAO(this.folder.getRoot().getAbsolutePath(), false, 2);
+		try {
+			List<String> expected = new ArrayList<String>();
+			for (int i = 0; i < 500; i++) {
+				String name = String.format("node-%04d", i);
+				assertNotNull(dao.createStorageNode(new StorageNode(name), Arrays.asList(name)));
+				expected.add(name);
+			}
+			assertNull(dao.createStorageNode(new StorageNode("again"), Arrays.asList("node-0000")));
+
+			Path root = this.folder.getRoot().toPath().resolve("challengeroot");
+			try (Stream<Path> files = Files.list(root)) {
+				assertEquals(0, files.filter(path -> Files.isRegularFile(path)).count());
+			}
+			try (Stream<Path> files = Files.walk(root.resolve(".shards"))) {
+				assertEquals(500, files.filter(path -> Files.isRegularFile(path)).count());
+			}
+			try (Stream<Path> files = Files.walk(root.resolve(".meta"))) {
+				assertEquals(0, files.filter(path -> Files.isRegularFile(path)).count());
+			}
+
+			List<StorageNode> page = new ArrayList<StorageNode>(dao.getStorageNodes(null, 100, false));
+			assertEquals(expected.subList(0, 100), names(page));
+			assertEquals("node-0099", page.get(99).getContents());
+			page = new ArrayList<StorageNode>(dao.getStorageNodes("node-0449", 100, true));
+			assertEquals(expected.subList(450, 500), names(page));
+			assertEquals(500, dao.getStorageNodes().size());
+
+			dao.updateStorageNode(new StorageNode("changed"), Arrays.asList("node-0007"));
+			assertEquals("changed", dao.getStorageNode(Arrays.asList("node-0007")).getContents());
+			assertNotNull(dao.getStorageMetadata(Arrays.asList("node-0007")).getChecksum());
+			dao.deleteStorageNode(Arrays.asList("node-0007"));
+			assertNull(dao.getStorageNode(Arrays.asList("node-0007")));
+			assertEquals(499, dao.getStorageNodes().size());
+		} finally {
+			dao.close();
+		}
+	}
+
+	/**
+	 * 
+	 * A flat store reopened sharded reads and writes as before while its
+	 * node files are moved, keeps codecs and checksums, and ends up with
+	 * nothing left flat.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testMigrationWhileInUse() throws Exception {
+		String path = this.folder.getRoot().getAbsolutePath();
+		String large = String.join("\n", Collections.nCopies(100, "compressible line"));
+		FileStorageDAO flat = new FileStorageDAO(path, false);
+		flat.setCompression(new StorageCompression(StorageCodecs.GZIP, 64));
+		for (int i = 0; i < 300; i++) {
+			flat.createStorageNode(new StorageNode(large + i), Arrays.asList("flat" + i));
+		}
+		StorageMetadata before = flat.getStorageMetadata(Arrays.asList("flat7"));
+		flat.close();
+
+		FileStorageDAO dao = new FileStorageDAO(path, false, 2);
+		AtomicBoolean done = new AtomicBoolean();
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			assertEquals(true, dao.getStorageStatistics().get("file.flatFiles"));
+			assertEquals(large + 7, dao.getStorageNode(Arrays.asList("flat7")).getContents());
+			assertNull(dao.createStorageNode(new StorageNode("taken"), Arrays.asList("flat8")));
+			dao.updateStorageNode(new StorageNode("updated"), Arrays.asList("flat9"));
+			dao.createStorageNode(new StorageNode("new"), Arrays.asList("fresh"));
+
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (int t = 0; t < 2; t++) {
+				futures.add(executor.submit(() -> {
+					int i = 0;
+					while (done.get() == false) {
+						int n = 10 + (i++ % 290);
+						assertEquals(large + n, dao.getStorageNode(Arrays.asList("flat" + n)).getContents());
+						assertNotNull(dao.getStorageMetadata(Arrays.asList("flat" + n)).getChecksum());
+					}
+					return null;
+				}));
+			}
+			try {
+				assertEquals(300, dao.migrate());
+			} finally {
+				done.set(true);
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+
+			Path root = this.folder.getRoot().toPath().resolve("challengeroot");
+			try (Stream<Path> files = Stream.concat(Files.list(root), Files.list(root.resolve(".meta")))) {
+				assertEquals(0, files.filter(file -> Files.isRegularFile(file)).count());
+			}
+			assertEquals(false, dao.getStorageStatistics().get("file.flatFiles"));
+			assertEquals(0, dao.migrate());
+
+			StorageMetadata after = dao.getStorageMetadata(Arrays.asList("flat7"));
+			assertEquals(before.getChecksum(), after.getChecksum());
+			assertEquals(before.getLength(), after.getLength());
+			assertEquals("updated", dao.getStorageNode(Arrays.asList("flat9")).getContents());
+			assertEquals(301, dao.getStorageNodes().size());
+			List<StorageNode> page = new ArrayList<StorageNode>(dao.getStorageNodes("flat98", 3, false));
+			assertEquals(Arrays.asList("flat99", "fresh"), names(page));
+			assertTrue(((Long) dao.getStorageStatistics().get("file.migrated")) == 300L);
+		} finally {
+			executor.shutdown();
+			dao.close();
+		}
+	}
+
+}
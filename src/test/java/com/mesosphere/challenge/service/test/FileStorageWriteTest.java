@@ -0,0 +1,150 @@
+package com.mesosphere.challenge.service.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.mesosphere.challenge.model.StorageNode;
+import com.mesosphere.challenge.service.dao.FileStorageDAO;
+import com.mesosphere.challenge.service.dao.MemoryStorageJournal.FsyncPolicy;
+
+public class FileStorageWriteTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * 
+	 * Readers only ever see a whole node while it is replaced over and over,
+	 * of racing creators exactly one wins, and no temporary files are left.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testWritesAreNeverTorn() throws Exception {
+		for (boolean deduplicate : Arrays.asList(false, true)) {
+			FileStorageDAO dao = new FileStorageDAO(this.folder.newFolder().getAbsolutePath(), deduplicate, 1);
+			dao.setFsync(FsyncPolicy.INTERVAL, 10);
+			String a = String.join("", Collections.nCopies(50000, "a"));
+			String b = String.join("", Collections.nCopies(70000, "b"));
+			dao.createStorageNode(new StorageNode(a), Arrays.asList("hot"));
+
+			AtomicBoolean done = new AtomicBoolean();
+			ExecutorService executor = Executors.newFixedThreadPool(6);
+			try {
+				List<Future<?>> readers = new ArrayList<Future<?>>();
+				for (int t = 0; t < 2; t++) {
+					readers.add(executor.submit(() -> {
+						while (done.get() == false) {
+							String contents = dao.getStorageNode(Arrays.asList("hot")).getContents();
+							assertTrue("length " + contents.length(), contents.equals(a) || contents.equals(b));
+						}
+						return null;
+					}));
+				}
+				try {
+					for (int i = 0; i < 200; i++) {
+						String contents = (i % 2 == 0) ? b : a;
+						assertEquals(contents,
+								dao.updateStorageNode(new StorageNode(contents), Arrays.asList("hot")).getContents());
+					}
+				} finally {
+					done.set(true);
+				}
+				for (Future<?> reader : readers) {
+					reader.get();
+				}
+
+				for (int i = 0; i < 20; i++) {
+					String name = "race" + i;
+					List<Callable<StorageNode>> creators = new ArrayList<Callable<StorageNode>>();
+					for (int t = 0; t < 4; t++) {
+						String contents = "creator" + t;
+						creators.add(() -> dao.createStorageNode(new StorageNode(contents), Arrays.asList(name)));
+					}
+					int created = 0;
+					for (Future<StorageNode> future : executor.invokeAll(creators)) {
+						created += (future.get() != null) ? 1 : 0;
+					}
+					assertEquals(1, created);
+				}
+			} finally {
+				executor.shutdown();
+			}
+
+			dao.close();
+			try (Stream<Path> files = Files.walk(this.folder.getRoot().toPath())) {
+				assertEquals(0, files.filter(path -> path.getFileName().toString().startsWith(".")
+						&& Files.isRegularFile(path)).count());
+			}
+			assertTrue((Long) dao.getStorageStatistics().get("file.fsyncs") > 200L);
+			assertEquals("interval", dao.getStorageStatistics().get("file.fsync"));
+		}
+	}
+
+	/**
+	 * 
+	 * A folder that fails to force stays pending and is forced with the next
+	 * batch, and closing forces what is left instead of interrupting it.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testFailedFolderForceIsRetried() throws Exception {
+		AtomicBoolean broken = new AtomicBoolean(true);
+		List<Path> forced = Collections.synchronizedList(new ArrayList<Path>());
+		FileStorageDAO dao = new FileStorageDAO(this.folder.newFolder().getAbsolutePath(), false, 0) {
+			@Override
+			protected void force(Path folder) throws IOException {
+				if (broken.getAndSet(false)) {
+					throw new IOException("force failed");
+				}
+				super.force(folder);
+				forced.add(folder);
+			}
+		};
+		dao.setFsync(FsyncPolicy.INTERVAL, 0);
+		dao.createStorageNode(new StorageNode("hello"), Arrays.asList("durable"));
+
+		try {
+			dao.forceFolders();
+			fail("force did not fail");
+		} catch (IOException e) {
+			assertEquals("force failed", e.getMessage());
+		}
+		assertTrue(forced.isEmpty());
+
+		dao.forceFolders();
+		assertEquals(1, forced.size());
+
+		/*
+		 * Nothing left pending
+		 */
+		dao.forceFolders();
+		assertEquals(1, forced.size());
+
+		dao.createStorageNode(new StorageNode("hello"), Arrays.asList("closed"));
+		dao.setFsync(FsyncPolicy.INTERVAL, 60000);
+		dao.close();
+		assertEquals(2, forced.size());
+	}
+
+}
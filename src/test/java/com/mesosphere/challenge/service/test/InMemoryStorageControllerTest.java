@@ -4,6 +4,7 @@ import static org.springframework.test.web.servlet.request.MockMvcRequestBuilder
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 import org.junit.Before;
@@ -16,19 +17,18 @@ import org.springframework.http.MediaType;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 import org.springframework.test.context.web.WebAppConfiguration;
-import org.springframework.test.web.servlet.MockMvc;
-import org.springframework.test.web.servlet.setup.MockMvcBuilders;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.mesosphere.challenge.model.StorageNode;
 import com.mesosphere.challenge.service.controller.StorageController;
+import com.mesosphere.challenge.service.dao.IStorageDAO;
 import com.mesosphere.challenge.service.dao.MemoryStorageDAO;
 
 @RunWith(SpringJUnit4ClassRunner.class)
 @WebAppConfiguration
 @ContextConfiguration({ "classpath:applicationContext.xml" })
 @Import(StorageTestConfig.class)
-public class InMemoryStorageControllerTest {
+public class InMemoryStorageControllerTest extends AbstractStorageControllerTest {
 
 	@InjectMocks
 	private StorageController storageController;
@@ -36,19 +36,27 @@ public class InMemoryStorageControllerTest {
 	@InjectMocks
 	private MemoryStorageDAO memoryStorageDAO;
 
-	private MockMvc mockMvc;
-
 	@Before
 	public void setup() {
 
 		// Process mock annotations
 		MockitoAnnotations.initMocks(this);
 
-		storageController.setStorageConnection(memoryStorageDAO);
+		storageController.setStorageConnection(this.storageDAO());
 
 		// Setup Spring test in standalone mode
-		this.mockMvc = MockMvcBuilders.standaloneSetup(storageController).build();
+		this.mockMvc = new StorageMockMvc(storageController);
+
+	}
 
+	/**
+	 * 
+	 * The DAO the controller runs against, overridden by the suites of the
+	 * other in memory DAOs
+	 * 
+	 */
+	protected IStorageDAO storageDAO() {
+		return this.memoryStorageDAO;
 	}
 
 	@Test
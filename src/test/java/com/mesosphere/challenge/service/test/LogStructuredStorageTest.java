@@ -0,0 +1,233 @@
+package com.mesosphere.challenge.service.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.mesosphere.challenge.model.StorageMetadata;
+import com.mesosphere.challenge.model.StorageNode;
+import com.mesosphere.challenge.model.StorageOutcome;
+import com.mesosphere.challenge.model.StorageResult;
+import com.mesosphere.challenge.service.dao.IStorageContents;
+import com.mesosphere.challenge.service.dao.LogStructuredStorageDAO;
+import com.mesosphere.challenge.service.dao.MemoryStorageJournal.FsyncPolicy;
+
+public class LogStructuredStorageTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private LogStructuredStorageDAO open(String path) throws Exception {
+		return new LogStructuredStorageDAO(path, 4096, FsyncPolicy.NEVER, 0, 0.5, 0);
+	}
+
+	private List<Path> files(String path, String suffix) throws Exception {
+		try (Stream<Path> files = Files.list(this.folder.getRoot().toPath().resolve(path))) {
+			return files.filter(file -> file.getFileName().toString().endsWith(suffix)).sorted()
+					.collect(Collectors.toList());
+		}
+	}
+
+	/**
+	 * 
+	 * Nodes read back as written across many segments, metadata matches the
+	 * contents, pages come back in order, and creates of a batch do not
+	 * overwrite.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testReadsAndWrites() throws Exception {
+		LogStructuredStorageDAO dao = this.open(this.folder.newFolder("log").getAbsolutePath());
+		try {
+			for (int i = 0; i < 200; i++) {
+				String name = String.format("node-%03d", i);
+				dao.createStorageNode(new StorageNode(name + " contents"), Arrays.asList(name));
+			}
+			assertTrue(this.files("log", ".data").size() > 3);
+			assertEquals("node-042 contents", dao.getStorageNode(Arrays.asList("node-042")).getContents());
+			StorageMetadata metadata = dao.getStorageMetadata(Arrays.asList("node-042"));
+			assertEquals(Long.valueOf(17), metadata.getLength());
+			assertNotNull(metadata.getChecksum());
+			assertNull(dao.getStorageNode(Arrays.asList("missing")));
+			assertNull(dao.updateStorageNode(new StorageNode("nothing"), Arrays.asList("missing")));
+
+			List<StorageNode> page = new ArrayList<StorageNode>(dao.getStorageNodes("node-049", 2, false));
+			assertEquals("node-050", page.get(0).getLocation());
+			assertEquals("node-051 contents", page.get(1).getContents());
+			page = new ArrayList<StorageNode>(dao.getStorageNodes(null, 0, true));
+			assertEquals(200, page.size());
+			assertEquals(17, (int) page.get(3).getLength());
+
+			List<StorageResult> results = new ArrayList<StorageResult>(dao.createStorageNodes(
+					Arrays.asList(new StorageNode("node-001", "again"), new StorageNode("batch", "new"), null)));
+			assertEquals(StorageOutcome.EXISTS, results.get(0).getOutcome());
+			assertEquals(StorageOutcome.CREATED, results.get(1).getOutcome());
+			assertEquals(StorageOutcome.INVALID, results.get(2).getOutcome());
+			assertEquals("node-001 contents", dao.getStorageNode(Arrays.asList("node-001")).getContents());
+
+			dao.updateStorageNode(new StorageNode("changed"), Arrays.asList("node-007"));
+			assertEquals("changed", dao.getStorageNode(Arrays.asList("node-007")).getContents());
+			try (IStorageContents contents = dao.getStorageContents(Arrays.asList("node-007"))) {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				contents.transferTo(out);
+				assertEquals("changed", out.toString("UTF-8"));
+			}
+			dao.deleteStorageNode(Arrays.asList("node-008"));
+			assertNull(dao.getStorageNode(Arrays.asList("node-008")));
+			assertNull(dao.getStorageMetadata(Arrays.asList("node-008")));
+			assertEquals(200, dao.getStorageNodes().size());
+		} finally {
+			dao.close();
+		}
+	}
+
+	/**
+	 * 
+	 * A reopened store comes back from its hints without scanning, and one
+	 * whose last segment lost its hint and has a torn record at the end is
+	 * scanned up to it and loses only that record.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testRecovery() throws Exception {
+		String path = this.folder.newFolder("log").getAbsolutePath();
+		LogStructuredStorageDAO dao = this.open(path);
+		for (int i = 0; i < 100; i++) {
+			dao.createStorageNode(new StorageNode("contents " + i), Arrays.asList("node" + i));
+		}
+		dao.updateStorageNode(new StorageNode("updated"), Arrays.asList("node5"));
+		dao.deleteStorageNode(Arrays.asList("node6"));
+		dao.close();
+		assertEquals(this.files("log", ".data").size(), this.files("log", ".hint").size());
+
+		dao = this.open(path);
+		assertEquals(0L, dao.getStorageStatistics().get("log.segmentScans"));
+		assertTrue((Long) dao.getStorageStatistics().get("log.hintLoads") > 1L);
+		assertEquals("updated", dao.getStorageNode(Arrays.asList("node5")).getContents());
+		assertNull(dao.getStorageNode(Arrays.asList("node6")));
+		assertEquals(99, dao.getStorageNodes().size());
+		dao.createStorageNode(new StorageNode("last"), Arrays.asList("last"));
+		dao.createStorageNode(new StorageNode("torn"), Arrays.asList("torn"));
+		dao.close();
+
+		/*
+		 * As if the process died while appending the last record
+		 */
+		List<Path> data = this.files("log", ".data");
+		Path last = data.get(data.size() - 1);
+		Files.delete(last.resolveSibling(last.getFileName().toString().replace(".data", ".hint")));
+		try (FileChannel channel = FileChannel.open(last, StandardOpenOption.WRITE)) {
+			channel.truncate(channel.size() - 3);
+			channel.write(ByteBuffer.wrap(new byte[] { 1, 2 }), channel.size());
+		}
+
+		dao = this.open(path);
+		try {
+			assertEquals(1L, dao.getStorageStatistics().get("log.segmentScans"));
+			assertEquals("last", dao.getStorageNode(Arrays.asList("last")).getContents());
+			assertNull(dao.getStorageNode(Arrays.asList("torn")));
+			assertEquals("contents 99", dao.getStorageNode(Arrays.asList("node99")).getContents());
+			dao.createStorageNode(new StorageNode("again"), Arrays.asList("torn"));
+			assertEquals("again", dao.getStorageNode(Arrays.asList("torn")).getContents());
+		} finally {
+			dao.close();
+		}
+	}
+
+	/**
+	 * 
+	 * Compaction shrinks a store that was mostly overwritten, moving the
+	 * nodes still live in old segments, readers keep seeing whole nodes while
+	 * it runs, and deletes still hold after it and after a restart.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testCompaction() throws Exception {
+		String path = this.folder.newFolder("log").getAbsolutePath();
+		LogStructuredStorageDAO dao = this.open(path);
+		String large = String.join("", Collections.nCopies(300, "x"));
+		for (int i = 0; i < 60; i++) {
+			dao.createStorageNode(new StorageNode(large + i), Arrays.asList("node" + i));
+		}
+		for (int round = 0; round < 10; round++) {
+			for (int i = 1; i < 60; i += (i % 3 == 1) ? 1 : 2) {
+				dao.updateStorageNode(new StorageNode(large + i), Arrays.asList("node" + i));
+			}
+		}
+		for (int i = 0; i < 10; i++) {
+			dao.deleteStorageNode(Arrays.asList("node" + i));
+		}
+		long before = (Long) dao.getStorageStatistics().get("log.totalBytes");
+
+		AtomicBoolean done = new AtomicBoolean();
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		LogStructuredStorageDAO reading = dao;
+		try {
+			List<Future<?>> readers = new ArrayList<Future<?>>();
+			for (int t = 0; t < 2; t++) {
+				readers.add(executor.submit(() -> {
+					int i = 0;
+					while (done.get() == false) {
+						int n = 10 + (i++ % 50);
+						assertEquals(large + n, reading.getStorageNode(Arrays.asList("node" + n)).getContents());
+					}
+					return null;
+				}));
+			}
+			try {
+				assertTrue(dao.compact() > 0);
+			} finally {
+				done.set(true);
+			}
+			for (Future<?> reader : readers) {
+				reader.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+		long after = (Long) dao.getStorageStatistics().get("log.totalBytes");
+		assertTrue("before " + before + ", after " + after, after * 4 < before);
+		assertEquals(1L, dao.getStorageStatistics().get("log.compactions"));
+		assertEquals(this.files("log", ".data").size(), dao.getStorageStatistics().get("log.segments"));
+		assertEquals(this.files("log", ".data").size() - 1, this.files("log", ".hint").size());
+		assertNull(dao.getStorageNode(Arrays.asList("node3")));
+		assertEquals(50, dao.getStorageNodes().size());
+		dao.close();
+
+		dao = this.open(path);
+		try {
+			assertNull(dao.getStorageNode(Arrays.asList("node3")));
+			assertEquals(large + 33, dao.getStorageNode(Arrays.asList("node33")).getContents());
+			assertEquals(50, dao.getStorageNodes().size());
+		} finally {
+			dao.close();
+		}
+	}
+
+}
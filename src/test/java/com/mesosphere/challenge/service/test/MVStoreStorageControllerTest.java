@@ -0,0 +1,114 @@
+package com.mesosphere.challenge.service.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.springframework.context.annotation.Import;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+
+import com.mesosphere.challenge.model.StorageNode;
+import com.mesosphere.challenge.service.dao.IStorageDAO;
+import com.mesosphere.challenge.service.dao.MVStoreStorageDAO;
+import com.mesosphere.challenge.service.dao.StorageChecksums;
+
+/**
+ * 
+ * Runs the in memory suite against the MVStore DAO, plus what only the
+ * MVStore DAO does
+ * 
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@WebAppConfiguration
+@ContextConfiguration({ "classpath:applicationContext.xml" })
+@Import(StorageTestConfig.class)
+public class MVStoreStorageControllerTest extends InMemoryStorageControllerTest {
+
+	@InjectMocks
+	private MVStoreStorageDAO mvStoreStorageDAO;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Override
+	protected IStorageDAO storageDAO() {
+		return this.mvStoreStorageDAO;
+	}
+
+	/**
+	 * 
+	 * Nodes written to a file backed store must still be there after the
+	 * store has been closed and opened again.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testReopenFileStore() throws Exception {
+
+		String storagePath = this.folder.getRoot().getAbsolutePath();
+
+		MVStoreStorageDAO dao = new MVStoreStorageDAO(storagePath, "kvdb");
+		dao.createStorageNode(new StorageNode("hello reopen\n"), Arrays.asList("reopenblob"));
+		dao.close();
+
+		dao = new MVStoreStorageDAO(storagePath, "kvdb");
+		try {
+			assertEquals("hello reopen\n", dao.getStorageNode(Arrays.asList("reopenblob")).getContents());
+			assertEquals(1, dao.getStorageNodes().size());
+		} finally {
+			dao.close();
+		}
+
+	}
+
+	/**
+	 * 
+	 * Concurrent updates of one node never leave a checksum next to
+	 * contents it was not computed from.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testConcurrentUpdatesKeepChecksum() throws Exception {
+
+		MVStoreStorageDAO dao = new MVStoreStorageDAO();
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			dao.createStorageNode(new StorageNode("start"), Arrays.asList("raceblob"));
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (int t = 0; t < 4; t++) {
+				int thread = t;
+				futures.add(executor.submit(() -> {
+					for (int i = 0; i < 500; i++) {
+						dao.updateStorageNode(new StorageNode("value " + thread + " " + i), Arrays.asList("raceblob"));
+					}
+					return null;
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+			String contents = dao.getStorageNode(Arrays.asList("raceblob")).getContents();
+			assertEquals(StorageChecksums.checksum(contents.getBytes(StandardCharsets.UTF_8)),
+					dao.getStorageMetadata(Arrays.asList("raceblob")).getChecksum());
+		} finally {
+			executor.shutdown();
+			dao.close();
+		}
+
+	}
+
+}
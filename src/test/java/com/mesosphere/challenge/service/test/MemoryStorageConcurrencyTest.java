@@ -0,0 +1,115 @@
+package com.mesosphere.challenge.service.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import com.mesosphere.challenge.model.StorageNode;
+import com.mesosphere.challenge.service.dao.MemoryStorageDAO;
+
+public class MemoryStorageConcurrencyTest {
+
+	/**
+	 * 
+	 * Many threads writing their own and shared locations at once, nothing
+	 * may be lost and update must never create.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testConcurrentWrites() throws Exception {
+		MemoryStorageDAO dao = new MemoryStorageDAO();
+		int threads = 8;
+		int writes = 500;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (int t = 0; t < threads; t++) {
+				int thread = t;
+				futures.add(executor.submit(() -> {
+					for (int i = 0; i < writes; i++) {
+						String location = "own-" + thread + "-" + i;
+						dao.createStorageNode(new StorageNode("v1"), Arrays.asList(location));
+						assertEquals("v2",
+								dao.updateStorageNode(new StorageNode("v2"), Arrays.asList(location)).getContents());
+						assertNull(dao.updateStorageNode(new StorageNode("v2"), Arrays.asList("missing-" + i)));
+						dao.createStorageNode(new StorageNode("shared " + thread), Arrays.asList("shared-" + i));
+						if (i % 2 == 0) {
+							dao.deleteStorageNode(Arrays.asList(location));
+						}
+					}
+					return null;
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+		assertEquals(threads * writes / 2 + writes, dao.getStorageNodes().size());
+		assertNull(dao.getStorageNode(Arrays.asList("missing-0")));
+		assertEquals("v2", dao.getStorageNode(Arrays.asList("own-3-1")).getContents());
+		assertTrue(dao.getStorageNode(Arrays.asList("shared-7")).getContents().startsWith("shared "));
+	}
+
+	/**
+	 * 
+	 * A writer keeps bumping a generation, first on "a" and then on "z". A
+	 * listing taken at one point in time can never see "z" ahead of "a", or
+	 * more than one generation behind it.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testListingIsSnapshotConsistent() throws Exception {
+		MemoryStorageDAO dao = new MemoryStorageDAO();
+		dao.createStorageNode(new StorageNode("0"), Arrays.asList("a"));
+		dao.createStorageNode(new StorageNode("0"), Arrays.asList("z"));
+		for (int i = 0; i < 100; i++) {
+			dao.createStorageNode(new StorageNode("filler"), Arrays.asList("m" + i));
+		}
+
+		AtomicBoolean running = new AtomicBoolean(true);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<?> writer = executor.submit(() -> {
+				for (int generation = 1; running.get(); generation++) {
+					dao.updateStorageNode(new StorageNode(Integer.toString(generation)), Arrays.asList("a"));
+					dao.updateStorageNode(new StorageNode(Integer.toString(generation)), Arrays.asList("z"));
+				}
+				return null;
+			});
+
+			for (int i = 0; i < 2000; i++) {
+				Collection<StorageNode> listing = (i % 2 == 0) ? dao.getStorageNodes()
+						: dao.getStorageNodes(null, 0, false);
+				List<StorageNode> nodes = new ArrayList<StorageNode>(listing);
+				assertEquals(102, nodes.size());
+				int a = Integer.parseInt(nodes.get(0).getContents());
+				int z = Integer.parseInt(nodes.get(nodes.size() - 1).getContents());
+				assertTrue(a + " " + z, (z == a) || (z == a - 1));
+			}
+
+			running.set(false);
+			writer.get();
+		} finally {
+			running.set(false);
+			executor.shutdown();
+		}
+		assertEquals(2000L, dao.getStorageStatistics().get("memory.listings"));
+	}
+
+}
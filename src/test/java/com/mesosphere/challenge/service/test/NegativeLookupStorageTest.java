@@ -0,0 +1,165 @@
+package com.mesosphere.challenge.service.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.mesosphere.challenge.StorageException;
+import com.mesosphere.challenge.model.StorageMetadata;
+import com.mesosphere.challenge.model.StorageNode;
+import com.mesosphere.challenge.service.dao.MemoryStorageDAO;
+import com.mesosphere.challenge.service.dao.NegativeLookupStorageDAO;
+import com.mesosphere.challenge.service.dao.StorageBloomFilter;
+
+public class NegativeLookupStorageTest {
+
+	/*
+	 * Counts point lookups
+	 */
+	private static class CountingStorageDAO extends MemoryStorageDAO {
+		final AtomicInteger lookups = new AtomicInteger();
+
+		@Override
+		public StorageNode getStorageNode(Collection<String> path) throws StorageException {
+			this.lookups.incrementAndGet();
+			return super.getStorageNode(path);
+		}
+
+		@Override
+		public StorageMetadata getStorageMetadata(Collection<String> path) throws StorageException {
+			this.lookups.incrementAndGet();
+			return super.getStorageMetadata(path);
+		}
+	}
+
+	/**
+	 * 
+	 * The filter has no false negatives and about the false positive rate it
+	 * was sized for.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testBloomFilter() throws Exception {
+		StorageBloomFilter filter = new StorageBloomFilter(10000, 0.01);
+		for (int i = 0; i < 10000; i++) {
+			filter.add("stored" + i);
+		}
+		int positives = 0;
+		for (int i = 0; i < 10000; i++) {
+			assertTrue(filter.mightContain("stored" + i));
+			positives += filter.mightContain("missing" + i) ? 1 : 0;
+		}
+		assertTrue("false positives " + positives, positives < 200);
+		assertTrue(filter.isSaturated() == false);
+	}
+
+	/**
+	 * 
+	 * Nodes stored before startup are found, missing ones are answered
+	 * without a lookup, and a miss the filter lets through is only looked up
+	 * once until the location is written.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testMissesSkipStorage() throws Exception {
+		CountingStorageDAO backend = new CountingStorageDAO();
+		backend.createStorageNode(new StorageNode("before"), Arrays.asList("before"));
+		NegativeLookupStorageDAO dao = new NegativeLookupStorageDAO(backend, 1000, 0.01, 100);
+		assertEquals("before", dao.getStorageNode(Arrays.asList("before")).getContents());
+		assertEquals(1, backend.lookups.get());
+
+		for (int i = 0; i < 100; i++) {
+			assertNull(dao.getStorageNode(Arrays.asList("poll")));
+			assertNull(dao.getStorageMetadata(Arrays.asList("poll")));
+		}
+		assertTrue(backend.lookups.get() < 5);
+
+		dao.createStorageNode(new StorageNode("now"), Arrays.asList("poll"));
+		assertEquals("now", dao.getStorageNode(Arrays.asList("poll")).getContents());
+
+		/*
+		 * A deleted location stays in the filter, so it is looked up once and
+		 * then remembered as a miss
+		 */
+		dao.deleteStorageNode(Arrays.asList("poll"));
+		int lookups = backend.lookups.get();
+		for (int i = 0; i < 10; i++) {
+			assertNull(dao.getStorageMetadata(Arrays.asList("poll")));
+		}
+		assertEquals(lookups + 1, backend.lookups.get());
+		dao.createStorageNodes(Arrays.asList(new StorageNode("poll", "again")));
+		assertNotNull(dao.getStorageMetadata(Arrays.asList("poll")));
+
+		Map<String, Object> statistics = dao.getStorageStatistics();
+		assertEquals(9L, statistics.get("negative.missCacheHits"));
+		assertTrue((Long) statistics.get("negative.filterMisses") > 190L);
+	}
+
+	/**
+	 * 
+	 * Locations are found as soon as their write returns, while readers poll
+	 * for them and the filter is rebuilt again and again as it fills up.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testConcurrentWritesAndRebuilds() throws Exception {
+		NegativeLookupStorageDAO dao = new NegativeLookupStorageDAO(new MemoryStorageDAO(), 50, 0.01, 100);
+		dao.createStorageNode(new StorageNode("0"), Arrays.asList("key0"));
+		AtomicInteger written = new AtomicInteger();
+		AtomicBoolean done = new AtomicBoolean();
+		int readers = 3;
+		ExecutorService executor = Executors.newFixedThreadPool(readers);
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (int t = 0; t < readers; t++) {
+				futures.add(executor.submit(() -> {
+					while (done.get() == false) {
+						int next = written.get();
+						dao.getStorageMetadata(Arrays.asList("key" + (next + 1)));
+						assertNotNull(dao.getStorageMetadata(Arrays.asList("key" + next)));
+					}
+					return null;
+				}));
+			}
+			try {
+				for (int i = 1; i <= 2000; i++) {
+					dao.createStorageNode(new StorageNode(Integer.toString(i)), Arrays.asList("key" + i));
+					written.set(i);
+					assertNotNull(dao.getStorageNode(Arrays.asList("key" + i)));
+				}
+			} finally {
+				done.set(true);
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+		dao.rebuild();
+		for (int i = 0; i <= 2000; i++) {
+			assertNotNull(dao.getStorageMetadata(Arrays.asList("key" + i)));
+		}
+		assertTrue((Long) dao.getStorageStatistics().get("negative.rebuilds") > 2L);
+		assertTrue((Long) dao.getStorageStatistics().get("negative.filterExpected") >= 2000L);
+	}
+
+}
@@ -0,0 +1,84 @@
+package com.mesosphere.challenge.service.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import java.util.Map;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.springframework.context.annotation.Import;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mesosphere.challenge.model.StorageNode;
+import com.mesosphere.challenge.service.dao.IStorageDAO;
+import com.mesosphere.challenge.service.dao.OffHeapStorageDAO;
+
+/**
+ * 
+ * Runs the in memory suite against the off-heap DAO, plus what only the
+ * off-heap DAO reports
+ * 
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@WebAppConfiguration
+@ContextConfiguration({ "classpath:applicationContext.xml" })
+@Import(StorageTestConfig.class)
+public class OffHeapStorageControllerTest extends InMemoryStorageControllerTest {
+
+	@InjectMocks
+	private OffHeapStorageDAO offHeapStorageDAO;
+
+	@Override
+	protected IStorageDAO storageDAO() {
+		return this.offHeapStorageDAO;
+	}
+
+	/**
+	 * 
+	 * The statistics follow the index and give the chunks back on delete.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testOffHeapStatistics() throws Exception {
+
+		Map<String, Object> stats = this.statistics();
+		assertEquals(0, ((Number) stats.get("offheap.indexEntries")).longValue());
+		assertEquals(0, ((Number) stats.get("offheap.chunks")).longValue());
+
+		ObjectMapper mapper = new ObjectMapper();
+		String body = mapper.writeValueAsString(new StorageNode("hello offheap"));
+		this.mockMvc.perform(post("/store/offheapblob").contentType(MediaType.APPLICATION_JSON).content(body))
+				.andExpect(status().isOk());
+
+		stats = this.statistics();
+		assertEquals(1, ((Number) stats.get("offheap.indexEntries")).longValue());
+		assertEquals(1, ((Number) stats.get("offheap.chunks")).longValue());
+
+		this.mockMvc.perform(delete("/store/offheapblob")).andExpect(status().isOk());
+
+		stats = this.statistics();
+		assertEquals(0, ((Number) stats.get("offheap.indexEntries")).longValue());
+		assertEquals(0, ((Number) stats.get("offheap.chunks")).longValue());
+		assertEquals(0, ((Number) stats.get("offheap.usedBytes")).longValue());
+
+	}
+
+	private Map<String, Object> statistics() throws Exception {
+		String json = this.mockMvc.perform(get("/stats")).andExpect(status().isOk()).andReturn().getResponse()
+				.getContentAsString();
+		return new ObjectMapper().readValue(json, new TypeReference<Map<String, Object>>() {
+		});
+	}
+
+}
@@ -0,0 +1,130 @@
+package com.mesosphere.challenge.service.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.mesosphere.challenge.StorageException;
+import com.mesosphere.challenge.model.StorageNode;
+import com.mesosphere.challenge.service.dao.OffHeapStorageDAO;
+import com.mesosphere.challenge.service.dao.StorageChecksums;
+
+public class OffHeapStorageTest {
+
+	private static final int SLAB_SIZE = 64 * 1024;
+
+	private static String contents(int length, char c) {
+		char[] ret = new char[length];
+		Arrays.fill(ret, c);
+		return new String(ret);
+	}
+
+	/**
+	 * 
+	 * Rewriting and deleting nodes must reuse freed chunks instead of taking
+	 * more slabs.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testFreedChunksAreReused() throws Exception {
+		OffHeapStorageDAO dao = new OffHeapStorageDAO(4 * SLAB_SIZE, SLAB_SIZE);
+		for (int i = 0; i < 100; i++) {
+			dao.createStorageNode(new StorageNode(contents(100, 'a')), Arrays.asList("node" + i));
+		}
+		Object allocated = dao.getStorageStatistics().get("offheap.allocatedBytes");
+
+		for (int round = 0; round < 50; round++) {
+			for (int i = 0; i < 100; i++) {
+				dao.updateStorageNode(new StorageNode(contents(100, (char) ('b' + round % 20))),
+						Arrays.asList("node" + i));
+			}
+			dao.deleteStorageNode(Arrays.asList("node" + round));
+			dao.createStorageNode(new StorageNode(contents(100, 'z')), Arrays.asList("node" + round));
+		}
+
+		Map<String, Object> statistics = dao.getStorageStatistics();
+		assertEquals(allocated, statistics.get("offheap.allocatedBytes"));
+		assertEquals(100L, statistics.get("offheap.chunks"));
+		assertEquals(100L, statistics.get("offheap.indexEntries"));
+		assertEquals(contents(100, 'z'), dao.getStorageNode(Arrays.asList("node49")).getContents());
+		assertEquals(contents(100, (char) ('b' + 49 % 20)), dao.getStorageNode(Arrays.asList("node77")).getContents());
+	}
+
+	/**
+	 * 
+	 * Once the capacity is used up writes fail, without losing what is
+	 * stored, and deleting makes room again.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testCapacityExhaustion() throws Exception {
+		OffHeapStorageDAO dao = new OffHeapStorageDAO(2 * SLAB_SIZE, SLAB_SIZE);
+		dao.createStorageNode(new StorageNode(contents(SLAB_SIZE / 2, 'a')), Arrays.asList("a"));
+		dao.createStorageNode(new StorageNode(contents(SLAB_SIZE / 2, 'b')), Arrays.asList("b"));
+		try {
+			dao.createStorageNode(new StorageNode(contents(SLAB_SIZE / 2, 'c')), Arrays.asList("c"));
+			fail("Capacity should be used up");
+		} catch (StorageException e) {
+			// Expected
+		}
+		assertNull(dao.getStorageNode(Arrays.asList("c")));
+		assertEquals(contents(SLAB_SIZE / 2, 'b'), dao.getStorageNode(Arrays.asList("b")).getContents());
+		assertEquals(1L, dao.getStorageStatistics().get("offheap.allocationFailures"));
+
+		dao.deleteStorageNode(Arrays.asList("a"));
+		dao.createStorageNode(new StorageNode(contents(SLAB_SIZE / 2, 'c')), Arrays.asList("c"));
+		assertEquals(contents(SLAB_SIZE / 2, 'c'), dao.getStorageNode(Arrays.asList("c")).getContents());
+	}
+
+	/**
+	 * 
+	 * Contents larger than a slab get memory of their own, which is given
+	 * back when they are deleted.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testContentsLargerThanSlab() throws Exception {
+		OffHeapStorageDAO dao = new OffHeapStorageDAO(8 * SLAB_SIZE, SLAB_SIZE);
+		String large = contents(3 * SLAB_SIZE, 'x');
+		dao.createStorageNode(new StorageNode(large), Arrays.asList("large"));
+		dao.createStorageNode(new StorageNode("small"), Arrays.asList("small"));
+
+		assertEquals(large, dao.getStorageNode(Arrays.asList("large")).getContents());
+		assertEquals((long) large.length(), (long) dao.getStorageMetadata(Arrays.asList("large")).getLength());
+		assertEquals(StorageChecksums.checksum(large.getBytes()),
+				dao.getStorageMetadata(Arrays.asList("large")).getChecksum());
+		assertEquals(2, dao.getStorageNodes(null, 0, true).size());
+
+		dao.deleteStorageNode(Arrays.asList("large"));
+		assertNull(dao.getStorageNode(Arrays.asList("large")));
+		assertEquals((long) SLAB_SIZE, dao.getStorageStatistics().get("offheap.allocatedBytes"));
+		assertEquals("small", dao.getStorageNode(Arrays.asList("small")).getContents());
+	}
+
+	/**
+	 * 
+	 * Records of different lengths that share a slab each read back their
+	 * own contents.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testRecordsSharingSlab() throws Exception {
+		OffHeapStorageDAO dao = new OffHeapStorageDAO(4 * SLAB_SIZE, SLAB_SIZE);
+		dao.createStorageNode(new StorageNode("hello"), Arrays.asList("first"));
+		dao.createStorageNode(new StorageNode("hello there"), Arrays.asList("second"));
+		dao.updateStorageNode(new StorageNode("hello again"), Arrays.asList("first"));
+		assertEquals("hello again", dao.getStorageNode(Arrays.asList("first")).getContents());
+		assertEquals("hello there", dao.getStorageNode(Arrays.asList("second")).getContents());
+		assertEquals(11L, dao.getStorageContents(Arrays.asList("second")).getLength());
+	}
+
+}
@@ -0,0 +1,199 @@
+package com.mesosphere.challenge.service.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.mesosphere.challenge.model.StorageMetadata;
+import com.mesosphere.challenge.model.StorageNode;
+import com.mesosphere.challenge.service.dao.MemoryStorageJournal.FsyncPolicy;
+import com.mesosphere.challenge.service.dao.PersistentMemoryStorageDAO;
+
+public class PersistentMemoryStorageTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private PersistentMemoryStorageDAO open(FsyncPolicy fsync) throws Exception {
+		return new PersistentMemoryStorageDAO(this.folder.getRoot().getAbsolutePath(), fsync, 0, 0);
+	}
+
+	private List<String> files(String prefix) {
+		List<String> ret = new ArrayList<String>();
+		for (File file : this.folder.getRoot().listFiles()) {
+			if (file.getName().startsWith(prefix)) {
+				ret.add(file.getName());
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * 
+	 * Creates, updates and deletes are all there after a restart, with their
+	 * metadata.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testReplayLog() throws Exception {
+		PersistentMemoryStorageDAO dao = this.open(FsyncPolicy.ALWAYS);
+		for (int i = 0; i < 100; i++) {
+			dao.createStorageNode(new StorageNode("hello " + i), Arrays.asList("node" + i));
+		}
+		dao.createStorageNodes(Arrays.asList(new StorageNode("batch", "hello batch"), new StorageNode("node1", "no")));
+		dao.updateStorageNode(new StorageNode("updated"), Arrays.asList("node5"));
+		dao.deleteStorageNode(Arrays.asList("node7"));
+		StorageMetadata metadata = dao.getStorageMetadata(Arrays.asList("node5"));
+		dao.close();
+
+		dao = this.open(FsyncPolicy.ALWAYS);
+		try {
+			assertEquals(100, dao.getStorageNodes().size());
+			assertEquals("hello 1", dao.getStorageNode(Arrays.asList("node1")).getContents());
+			assertEquals("updated", dao.getStorageNode(Arrays.asList("node5")).getContents());
+			assertEquals("hello batch", dao.getStorageNode(Arrays.asList("batch")).getContents());
+			assertEquals("batch", dao.getStorageNode(Arrays.asList("batch")).getLocation());
+			assertNull(dao.getStorageNode(Arrays.asList("node7")));
+			StorageMetadata restored = dao.getStorageMetadata(Arrays.asList("node5"));
+			assertEquals(metadata.getChecksum(), restored.getChecksum());
+			assertEquals(metadata.getModified(), restored.getModified());
+			assertEquals(metadata.getLength(), restored.getLength());
+			assertEquals(103L, dao.getStorageStatistics().get("journal.recoveredRecords"));
+		} finally {
+			dao.close();
+		}
+	}
+
+	/**
+	 * 
+	 * A snapshot replaces the logs before it, writes after it still go to a
+	 * log and both are recovered.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testSnapshotAndLogTail() throws Exception {
+		PersistentMemoryStorageDAO dao = this.open(FsyncPolicy.INTERVAL);
+		for (int i = 0; i < 50; i++) {
+			dao.createStorageNode(new StorageNode("before " + i), Arrays.asList("node" + i));
+		}
+		dao.snapshot();
+		assertEquals(1, this.files("wal-").size());
+		assertEquals(1, this.files("snapshot-").stream().filter(name -> name.endsWith(".done")).count());
+
+		for (int i = 25; i < 75; i++) {
+			dao.createStorageNode(new StorageNode("after " + i), Arrays.asList("node" + i));
+		}
+		dao.deleteStorageNode(Arrays.asList("node0"));
+		dao.close();
+
+		dao = this.open(FsyncPolicy.INTERVAL);
+		try {
+			assertEquals(74, dao.getStorageNodes().size());
+			assertNull(dao.getStorageNode(Arrays.asList("node0")));
+			assertEquals("before 24", dao.getStorageNode(Arrays.asList("node24")).getContents());
+			assertEquals("after 25", dao.getStorageNode(Arrays.asList("node25")).getContents());
+			assertEquals("after 74", dao.getStorageNode(Arrays.asList("node74")).getContents());
+
+			/*
+			 * A second snapshot drops the first and both logs
+			 */
+			dao.snapshot();
+			assertEquals(1, this.files("wal-").size());
+			assertTrue(this.files("snapshot-").stream().allMatch(name -> name.contains("0004")));
+		} finally {
+			dao.close();
+		}
+	}
+
+	/**
+	 * 
+	 * A write torn by a crash is dropped, everything before it recovered.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testTornTail() throws Exception {
+		PersistentMemoryStorageDAO dao = this.open(FsyncPolicy.NEVER);
+		dao.createStorageNode(new StorageNode("one"), Arrays.asList("one"));
+		dao.createStorageNode(new StorageNode("two"), Arrays.asList("two"));
+		dao.close();
+
+		File log = new File(this.folder.getRoot(), this.files("wal-").get(0));
+		Files.write(log.toPath(), new byte[] { 0, 0, 0, 100, 1, 2, 3, 4, 1, 0 }, StandardOpenOption.APPEND);
+
+		dao = this.open(FsyncPolicy.NEVER);
+		try {
+			assertEquals(2, dao.getStorageNodes().size());
+			assertEquals("two", dao.getStorageNode(Arrays.asList("two")).getContents());
+			dao.createStorageNode(new StorageNode("three"), Arrays.asList("three"));
+		} finally {
+			dao.close();
+		}
+
+		dao = this.open(FsyncPolicy.NEVER);
+		try {
+			assertEquals(3, dao.getStorageNodes().size());
+		} finally {
+			dao.close();
+		}
+	}
+
+	/**
+	 * 
+	 * Tails a crash can leave behind other than a short write: zeros the
+	 * file system grew the file with, a length no record can have, and a
+	 * record that passes its CRC but does not decode. Each is dropped and
+	 * everything before it recovered.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testDamagedTails() throws Exception {
+		ByteBuffer undecodable = ByteBuffer.allocate(13);
+		undecodable.putInt(5).putInt(0).put(new byte[] { 9, 0, 0, 0, 0 });
+		CRC32 crc = new CRC32();
+		crc.update(undecodable.array(), 8, 5);
+		undecodable.putInt(4, (int) crc.getValue());
+
+		List<byte[]> tails = Arrays.asList(new byte[4096],
+				ByteBuffer.allocate(64).putInt(Integer.MAX_VALUE).putInt(42).array(),
+				ByteBuffer.allocate(64).putInt(-8).putInt(42).array(), undecodable.array());
+		for (byte[] tail : tails) {
+			for (File file : this.folder.getRoot().listFiles()) {
+				file.delete();
+			}
+			PersistentMemoryStorageDAO dao = this.open(FsyncPolicy.NEVER);
+			dao.createStorageNode(new StorageNode("one"), Arrays.asList("one"));
+			dao.createStorageNode(new StorageNode("two"), Arrays.asList("two"));
+			dao.close();
+
+			File log = new File(this.folder.getRoot(), this.files("wal-").get(0));
+			Files.write(log.toPath(), tail, StandardOpenOption.APPEND);
+
+			dao = this.open(FsyncPolicy.NEVER);
+			try {
+				assertEquals(2, dao.getStorageNodes().size());
+				assertEquals("two", dao.getStorageNode(Arrays.asList("two")).getContents());
+				assertEquals(2L, dao.getStorageStatistics().get("journal.recoveredRecords"));
+			} finally {
+				dao.close();
+			}
+		}
+	}
+
+}
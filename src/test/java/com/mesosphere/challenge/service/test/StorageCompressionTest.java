@@ -0,0 +1,279 @@
+package com.mesosphere.challenge.service.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MvcResult;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mesosphere.challenge.model.StorageMetadata;
+import com.mesosphere.challenge.model.StorageNode;
+import com.mesosphere.challenge.service.controller.StorageController;
+import com.mesosphere.challenge.service.dao.EmbeddedStorageDAO;
+import com.mesosphere.challenge.service.dao.FileStorageDAO;
+import com.mesosphere.challenge.service.dao.IStorageCodec;
+import com.mesosphere.challenge.service.dao.IStorageContents;
+import com.mesosphere.challenge.service.dao.IStorageDAO;
+import com.mesosphere.challenge.service.dao.StorageCodecs;
+import com.mesosphere.challenge.service.dao.StorageChecksums;
+import com.mesosphere.challenge.service.dao.StorageCompression;
+import com.mesosphere.challenge.service.dao.StorageFutures;
+
+public class StorageCompressionTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/*
+	 * Compresses well, like the JSON most blobs hold
+	 */
+	private static final String DOCUMENT = String.join(",",
+			Collections.nCopies(100, "{\"name\":\"template\",\"enabled\":true}"));
+
+	protected static byte[] transfer(IStorageContents contents) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		contents.transferTo(out);
+		assertEquals(contents.getLength(), out.size());
+		return out.toByteArray();
+	}
+
+	@Test
+	public void testCodecsRoundTrip() throws Exception {
+		byte[] contents = DOCUMENT.getBytes(StandardCharsets.UTF_8);
+		for (IStorageCodec codec : StorageCodecs.codecs()) {
+			byte[] encoded = StorageCodecs.encode(codec, contents);
+			assertArrayEquals(codec.getName(), contents, StorageCodecs.decode(codec, encoded));
+			assertEquals(codec, StorageCodecs.forName(codec.getName()));
+			if (codec != StorageCodecs.IDENTITY) {
+				assertTrue(codec.getName(), encoded.length < contents.length / 5);
+			}
+		}
+		assertEquals(StorageCodecs.IDENTITY, StorageCodecs.forName(null));
+	}
+
+	/**
+	 * 
+	 * Contents are compressed above the threshold only, read back decoded,
+	 * and handed out as stored to callers that take the codec. Contents
+	 * written before the codec changed still read.
+	 * 
+	 * @param dao
+	 * @throws Exception
+	 */
+	protected void assertCompressed(IStorageDAO dao, String codec) throws Exception {
+		dao.createStorageNode(new StorageNode("plain " + DOCUMENT), Arrays.asList("old"));
+		this.setCompression(dao, new StorageCompression(StorageCodecs.forName(codec), 64));
+
+		dao.createStorageNode(new StorageNode(DOCUMENT), Arrays.asList("big"));
+		dao.createStorageNode(new StorageNode("small"), Arrays.asList("small"));
+		assertEquals(DOCUMENT, dao.getStorageNode(Arrays.asList("big")).getContents());
+		assertEquals("small", dao.getStorageNode(Arrays.asList("small")).getContents());
+		assertEquals("plain " + DOCUMENT, dao.getStorageNode(Arrays.asList("old")).getContents());
+		assertEquals(DOCUMENT, dao.getStorageNodes(null, 0, false).iterator().next().getContents());
+		assertEquals(Long.valueOf(DOCUMENT.length()), dao.getStorageMetadata(Arrays.asList("big")).getLength());
+		assertEquals(Integer.valueOf(DOCUMENT.length()),
+				dao.getStorageNodes(null, 0, true).iterator().next().getLength());
+
+		Map<String, Object> statistics = dao.getStorageStatistics();
+		assertEquals(1L, statistics.get("compression.encoded"));
+		assertTrue((Long) statistics.get("compression.storedBytes") < (Long) statistics
+				.get("compression.logicalBytes"));
+
+		try (IStorageContents contents = dao.getStorageContents(Arrays.asList("big"))) {
+			assertEquals("identity", contents.getEncoding());
+			assertEquals(DOCUMENT, new String(transfer(contents), StandardCharsets.UTF_8));
+		}
+		try (IStorageContents contents = dao.getStorageContents(Arrays.asList("big"), Arrays.asList(codec))) {
+			assertEquals(codec, contents.getEncoding());
+			byte[] bytes = StorageCodecs.decode(StorageCodecs.forName(codec), transfer(contents));
+			assertEquals(DOCUMENT, new String(bytes, StandardCharsets.UTF_8));
+		}
+		try (IStorageContents contents = dao.getStorageContents(Arrays.asList("old"), Arrays.asList(codec))) {
+			assertEquals("identity", contents.getEncoding());
+		}
+
+		/*
+		 * Update replaces the codec along with the contents
+		 */
+		dao.updateStorageNode(new StorageNode("tiny"), Arrays.asList("big"));
+		assertEquals("tiny", dao.getStorageNode(Arrays.asList("big")).getContents());
+	}
+
+	protected void setCompression(IStorageDAO dao, StorageCompression compression) throws Exception {
+		if (dao instanceof EmbeddedStorageDAO) {
+			((EmbeddedStorageDAO) dao).setCompression(compression);
+		} else {
+			((FileStorageDAO) dao).setCompression(compression);
+		}
+	}
+
+	@Test
+	public void testEmbeddedCompression() throws Exception {
+		EmbeddedStorageDAO dao = new EmbeddedStorageDAO(this.folder.getRoot().getAbsolutePath(), "compressdb",
+				"challenge", "challenge");
+		try {
+			this.assertCompressed(dao, "deflate");
+		} finally {
+			dao.close();
+		}
+	}
+
+	@Test
+	public void testDeduplicatedEmbeddedCompression() throws Exception {
+		EmbeddedStorageDAO dao = new EmbeddedStorageDAO(this.folder.getRoot().getAbsolutePath(), "dedupcompressdb",
+				"challenge", "challenge");
+		try {
+			dao.setDeduplication(true);
+			this.assertCompressed(dao, "deflate");
+			assertTrue((Long) dao.getStorageStatistics().get("dedup.storedBytes") < DOCUMENT.length() * 2);
+		} finally {
+			dao.close();
+		}
+	}
+
+	@Test
+	public void testFileCompression() throws Exception {
+		FileStorageDAO dao = new FileStorageDAO(this.folder.getRoot().getAbsolutePath());
+		try {
+			this.assertCompressed(dao, "lzf");
+
+			/*
+			 * A file rewritten outside of the service is read as it is
+			 */
+			dao.createStorageNode(new StorageNode(DOCUMENT), Arrays.asList("external"));
+			Thread.sleep(10);
+			Files.write(this.folder.getRoot().toPath().resolve("challengeroot").resolve("external"),
+					"edited".getBytes(StandardCharsets.UTF_8));
+			assertEquals("edited", dao.getStorageNode(Arrays.asList("external")).getContents());
+		} finally {
+			dao.close();
+		}
+	}
+
+	@Test
+	public void testDeduplicatedFileCompression() throws Exception {
+		FileStorageDAO dao = new FileStorageDAO(this.folder.getRoot().getAbsolutePath(), true);
+		try {
+			this.assertCompressed(dao, "gzip");
+			dao.createStorageNode(new StorageNode(DOCUMENT), Arrays.asList("copy"));
+			assertEquals(DOCUMENT, dao.getStorageNode(Arrays.asList("copy")).getContents());
+		} finally {
+			dao.close();
+		}
+	}
+
+	/**
+	 * 
+	 * Readers racing a node rewritten with other contents and codecs always
+	 * decode one whole version, with its own checksum and length
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testFileReadsDuringUpdates() throws Exception {
+		for (boolean deduplicate : Arrays.asList(false, true)) {
+			FileStorageDAO dao = new FileStorageDAO(this.folder.newFolder().getAbsolutePath(), deduplicate);
+			AtomicBoolean done = new AtomicBoolean();
+			ExecutorService executor = Executors.newFixedThreadPool(3);
+			try {
+				List<String> versions = Arrays.asList(DOCUMENT, "small", DOCUMENT + " again");
+				List<String> checksums = new ArrayList<String>();
+				for (String version : versions) {
+					checksums.add(StorageChecksums.checksum(version.getBytes(StandardCharsets.UTF_8)));
+				}
+				dao.createStorageNode(new StorageNode(DOCUMENT), Arrays.asList("racy"));
+
+				List<Future<?>> futures = new ArrayList<Future<?>>();
+				for (int t = 0; t < 2; t++) {
+					futures.add(executor.submit(() -> {
+						while (done.get() == false) {
+							assertTrue(versions.contains(dao.getStorageNode(Arrays.asList("racy")).getContents()));
+							assertTrue(versions.contains(
+									StorageFutures.join(dao.getStorageNodeAsync(Arrays.asList("racy"))).getContents()));
+							try (IStorageContents contents = dao.getStorageContents(Arrays.asList("racy"))) {
+								assertTrue(versions.contains(new String(transfer(contents), StandardCharsets.UTF_8)));
+							}
+							StorageMetadata metadata = dao.getStorageMetadata(Arrays.asList("racy"));
+							int version = checksums.indexOf(metadata.getChecksum());
+							assertTrue(version >= 0);
+							assertEquals(Long.valueOf(versions.get(version).length()), metadata.getLength());
+						}
+						return null;
+					}));
+				}
+				List<IStorageCodec> codecs = Arrays.asList(StorageCodecs.GZIP, StorageCodecs.DEFLATE, StorageCodecs.LZF);
+				try {
+					for (int i = 0; i < 300; i++) {
+						dao.setCompression(new StorageCompression(codecs.get(i % codecs.size()), 64));
+						dao.updateStorageNode(new StorageNode(versions.get(i % versions.size())),
+								Arrays.asList("racy"));
+					}
+				} finally {
+					done.set(true);
+				}
+				for (Future<?> future : futures) {
+					future.get();
+				}
+			} finally {
+				executor.shutdown();
+				dao.close();
+			}
+		}
+	}
+
+	/**
+	 * 
+	 * Accept-Encoding with the stored codec gets the stored bytes
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testContentsPassthrough() throws Exception {
+		EmbeddedStorageDAO dao = new EmbeddedStorageDAO(this.folder.getRoot().getAbsolutePath(), "passthroughdb",
+				"challenge", "challenge");
+		try {
+			dao.setCompression(new StorageCompression(StorageCodecs.GZIP, 64));
+			StorageController controller = new StorageController();
+			controller.setStorageConnection(dao);
+			StorageMockMvc mockMvc = new StorageMockMvc(controller);
+			String body = new ObjectMapper().writeValueAsString(new StorageNode(DOCUMENT));
+			mockMvc.perform(post("/store/gzipblob").contentType(MediaType.APPLICATION_JSON).content(body))
+					.andExpect(status().isOk());
+
+			MvcResult result = mockMvc.perform(get("/store/gzipblob/contents").header("Accept-Encoding", "br, gzip"))
+					.andExpect(status().isOk()).andExpect(header().string("Content-Encoding", "gzip")).andReturn();
+			byte[] bytes = result.getResponse().getContentAsByteArray();
+			assertTrue(bytes.length < DOCUMENT.length() / 5);
+			assertEquals(DOCUMENT, new String(StorageCodecs.decode(StorageCodecs.GZIP, bytes), StandardCharsets.UTF_8));
+
+			result = mockMvc.perform(get("/store/gzipblob/contents").header("Accept-Encoding", "gzip;q=0, deflate"))
+					.andExpect(status().isOk()).andExpect(header().doesNotExist("Content-Encoding")).andReturn();
+			assertEquals(DOCUMENT, result.getResponse().getContentAsString());
+		} finally {
+			dao.close();
+		}
+	}
+
+}
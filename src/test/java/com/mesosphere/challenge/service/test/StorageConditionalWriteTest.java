@@ -0,0 +1,313 @@
+package com.mesosphere.challenge.service.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.hamcrest.Matchers.containsString;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.http.MediaType;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mesosphere.challenge.StorageException;
+import com.mesosphere.challenge.model.StorageNode;
+import com.mesosphere.challenge.model.StorageOutcome;
+import com.mesosphere.challenge.model.StorageResult;
+import com.mesosphere.challenge.service.controller.StorageController;
+import com.mesosphere.challenge.service.dao.BoundedMemoryStorageDAO;
+import com.mesosphere.challenge.service.dao.CachingStorageDAO;
+import com.mesosphere.challenge.service.dao.EmbeddedStorageDAO;
+import com.mesosphere.challenge.service.dao.FileStorageDAO;
+import com.mesosphere.challenge.service.dao.ForwardingStorageDAO;
+import com.mesosphere.challenge.service.dao.IStorageDAO;
+import com.mesosphere.challenge.service.dao.LogStructuredStorageDAO;
+import com.mesosphere.challenge.service.dao.MVStoreStorageDAO;
+import com.mesosphere.challenge.service.dao.MemoryStorageDAO;
+import com.mesosphere.challenge.service.dao.MemoryStorageJournal.FsyncPolicy;
+import com.mesosphere.challenge.service.dao.NegativeLookupStorageDAO;
+import com.mesosphere.challenge.service.dao.OffHeapStorageDAO;
+import com.mesosphere.challenge.service.dao.PersistentMemoryStorageDAO;
+import com.mesosphere.challenge.service.dao.StorageChecksums;
+import com.mesosphere.challenge.service.dao.StorageFutures;
+
+public class StorageConditionalWriteTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private List<IStorageDAO> daos() throws Exception {
+		List<IStorageDAO> ret = new ArrayList<IStorageDAO>();
+		ret.add(new MemoryStorageDAO());
+		ret.add(new BoundedMemoryStorageDAO(100000));
+		ret.add(new PersistentMemoryStorageDAO(this.folder.newFolder().getAbsolutePath(), FsyncPolicy.NEVER, 0, 0));
+		ret.add(new OffHeapStorageDAO(4 * 64 * 1024, 64 * 1024));
+		ret.add(new MVStoreStorageDAO(this.folder.newFolder().getAbsolutePath(), "conditionaldb"));
+		ret.add(new EmbeddedStorageDAO(this.folder.newFolder().getAbsolutePath(), "conditionaldb", "challenge",
+				"challenge"));
+		ret.add(new LogStructuredStorageDAO(this.folder.newFolder().getAbsolutePath(), 4096, FsyncPolicy.NEVER, 0,
+				0.5, 0));
+		ret.add(new FileStorageDAO(this.folder.newFolder().getAbsolutePath(), false, 2));
+		ret.add(new FileStorageDAO(this.folder.newFolder().getAbsolutePath(), true));
+		ret.add(new CachingStorageDAO(new MemoryStorageDAO(), 10000));
+		ret.add(new NegativeLookupStorageDAO(new MemoryStorageDAO(), 1000, 0.01, 100));
+		return ret;
+	}
+
+	/**
+	 * 
+	 * Every DAO tells created from existing, updated from missing and deleted
+	 * from missing, and reads afterwards agree with the outcome.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testOutcomes() throws Exception {
+		for (IStorageDAO dao : this.daos()) {
+			String name = dao.getClass().getSimpleName();
+			try {
+				List<String> path = Arrays.asList("node");
+				StorageResult result = dao.updateStorageNodeIfPresent(new StorageNode("v0"), path);
+				assertEquals(name, StorageOutcome.NOT_FOUND, result.getOutcome());
+				assertNull(name, dao.getStorageNode(path));
+
+				result = dao.createStorageNodeIfAbsent(new StorageNode("v1"), path);
+				assertEquals(name, StorageOutcome.CREATED, result.getOutcome());
+				assertEquals(name, "v1", result.getNode().getContents());
+				result = dao.createStorageNodeIfAbsent(new StorageNode("v2"), path);
+				assertEquals(name, StorageOutcome.EXISTS, result.getOutcome());
+				assertNull(name, result.getNode());
+				assertEquals(name, "v1", dao.getStorageNode(path).getContents());
+
+				result = dao.updateStorageNodeIfPresent(new StorageNode("v3"), path);
+				assertEquals(name, StorageOutcome.UPDATED, result.getOutcome());
+				assertEquals(name, "v3", dao.getStorageNode(path).getContents());
+				assertEquals(name, Long.valueOf(2), dao.getStorageMetadata(path).getLength());
+
+				assertEquals(name, StorageOutcome.DELETED, dao.deleteStorageNodeIfPresent(path).getOutcome());
+				assertEquals(name, StorageOutcome.NOT_FOUND, dao.deleteStorageNodeIfPresent(path).getOutcome());
+				assertNull(name, dao.getStorageNode(path));
+				assertNull(name, dao.getStorageMetadata(path));
+
+				result = StorageFutures.join(dao.createStorageNodeIfAbsentAsync(new StorageNode("v4"), path));
+				assertEquals(name, StorageOutcome.CREATED, result.getOutcome());
+				assertEquals(name, "v4", dao.getStorageNode(path).getContents());
+				assertEquals(name, 1, dao.getStorageNodes().size());
+			} finally {
+				dao.close();
+			}
+		}
+	}
+
+	/**
+	 * 
+	 * Of many threads creating the same location at once exactly one
+	 * creates it, and of many deleting it exactly one deletes it.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testConcurrentCreates() throws Exception {
+		int threads = 8;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			for (IStorageDAO dao : this.daos()) {
+				String name = dao.getClass().getSimpleName();
+				try {
+					for (int round = 0; round < 20; round++) {
+						List<String> path = Arrays.asList("race-" + round);
+						CountDownLatch start = new CountDownLatch(1);
+						List<Future<StorageResult>> creates = new ArrayList<Future<StorageResult>>();
+						for (int t = 0; t < threads; t++) {
+							StorageNode node = new StorageNode("writer " + t);
+							creates.add(executor.submit(() -> {
+								start.await();
+								return dao.createStorageNodeIfAbsent(node, path);
+							}));
+						}
+						start.countDown();
+						int created = 0;
+						String winner = null;
+						for (Future<StorageResult> create : creates) {
+							StorageResult result = create.get();
+							if (result.getOutcome() == StorageOutcome.CREATED) {
+								created++;
+								winner = result.getNode().getContents();
+							} else {
+								assertEquals(name, StorageOutcome.EXISTS, result.getOutcome());
+							}
+						}
+						assertEquals(name, 1, created);
+						assertEquals(name, winner, dao.getStorageNode(path).getContents());
+
+						CountDownLatch again = new CountDownLatch(1);
+						List<Future<StorageResult>> deletes = new ArrayList<Future<StorageResult>>();
+						for (int t = 0; t < threads; t++) {
+							deletes.add(executor.submit(() -> {
+								again.await();
+								return dao.deleteStorageNodeIfPresent(path);
+							}));
+						}
+						again.countDown();
+						int deleted = 0;
+						for (Future<StorageResult> delete : deletes) {
+							if (delete.get().getOutcome() == StorageOutcome.DELETED) {
+								deleted++;
+							}
+						}
+						assertEquals(name, 1, deleted);
+					}
+				} finally {
+					dao.close();
+				}
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * 
+	 * Batches racing single creates of the same locations report every
+	 * location they did not create as existing, rather than failing, and each
+	 * location is created exactly once.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testConcurrentBatchCreates() throws Exception {
+		int threads = 8;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			for (IStorageDAO dao : this.daos()) {
+				String name = dao.getClass().getSimpleName();
+				try {
+					for (int round = 0; round < 20; round++) {
+						List<String> locations = new ArrayList<String>();
+						for (int i = 0; i < 10; i++) {
+							locations.add("batch-" + round + "-" + i);
+						}
+						CountDownLatch start = new CountDownLatch(1);
+						List<Future<List<StorageResult>>> creates = new ArrayList<Future<List<StorageResult>>>();
+						for (int t = 0; t < threads; t++) {
+							int writer = t;
+							creates.add(executor.submit(() -> {
+								start.await();
+								List<StorageResult> ret = new ArrayList<StorageResult>();
+								if (writer % 2 == 0) {
+									List<StorageNode> nodes = new ArrayList<StorageNode>();
+									for (String location : locations) {
+										nodes.add(new StorageNode(location, "writer " + writer));
+									}
+									ret.addAll(dao.createStorageNodes(nodes));
+								} else {
+									for (String location : locations) {
+										ret.add(dao.createStorageNodeIfAbsent(new StorageNode("writer " + writer),
+												Arrays.asList(location)));
+									}
+								}
+								return ret;
+							}));
+						}
+						start.countDown();
+						Map<String, Integer> created = new HashMap<String, Integer>();
+						for (Future<List<StorageResult>> create : creates) {
+							for (StorageResult result : create.get()) {
+								if (result.getOutcome() == StorageOutcome.CREATED) {
+									created.merge(result.getLocation(), 1, Integer::sum);
+								} else {
+									assertEquals(name, StorageOutcome.EXISTS, result.getOutcome());
+								}
+							}
+						}
+						for (String location : locations) {
+							assertEquals(name + " " + location, Integer.valueOf(1), created.get(location));
+						}
+					}
+				} finally {
+					dao.close();
+				}
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * 
+	 * POST, PUT and DELETE answer from the outcome of a single DAO call
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testController() throws Exception {
+		StorageController controller = new StorageController();
+		controller.setStorageConnection(new MemoryStorageDAO());
+		StorageMockMvc mockMvc = new StorageMockMvc(controller);
+		String body = new ObjectMapper().writeValueAsString(new StorageNode("contents"));
+
+		mockMvc.perform(put("/store/node").contentType(MediaType.APPLICATION_JSON).content(body))
+				.andExpect(status().isNotFound());
+		mockMvc.perform(post("/store/node").contentType(MediaType.APPLICATION_JSON).content(body))
+				.andExpect(status().isOk());
+		mockMvc.perform(post("/store/node").contentType(MediaType.APPLICATION_JSON).content(body))
+				.andExpect(status().isBadRequest());
+		mockMvc.perform(put("/store/node").contentType(MediaType.APPLICATION_JSON).content(body))
+				.andExpect(status().isOk());
+		mockMvc.perform(delete("/store/node")).andExpect(status().isOk());
+		mockMvc.perform(delete("/store/node")).andExpect(status().isNotFound());
+	}
+
+	/**
+	 * 
+	 * The ETag of a GET belongs to the body sent with it, even when a write
+	 * lands just before the node is read
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testControllerETagOfBody() throws Exception {
+		MemoryStorageDAO dao = new MemoryStorageDAO();
+		dao.createStorageNode(new StorageNode("hello"), Arrays.asList("node"));
+		StorageController controller = new StorageController();
+		controller.setStorageConnection(new ForwardingStorageDAO(dao) {
+			@Override
+			public CompletableFuture<StorageNode> getStorageNodeAsync(Collection<String> path) {
+				try {
+					dao.updateStorageNode(new StorageNode("hello etag"), path);
+				} catch (StorageException e) {
+					return StorageFutures.failed(e);
+				}
+				return super.getStorageNodeAsync(path);
+			}
+		});
+		StorageMockMvc mockMvc = new StorageMockMvc(controller);
+
+		String etag = "\"" + StorageChecksums.checksum("hello etag".getBytes(StandardCharsets.UTF_8)) + "\"";
+		mockMvc.perform(get("/store/node")).andExpect(status().isOk()).andExpect(header().string("ETag", etag))
+				.andExpect(content().string(containsString("\"contents\":\"hello etag\"")));
+		mockMvc.perform(get("/store/node").header("If-None-Match", etag)).andExpect(status().isNotModified())
+				.andExpect(header().string("ETag", etag));
+	}
+
+}
@@ -0,0 +1,260 @@
+package com.mesosphere.challenge.service.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.mesosphere.challenge.model.StorageMetadata;
+import com.mesosphere.challenge.model.StorageNode;
+import com.mesosphere.challenge.model.StorageOutcome;
+import com.mesosphere.challenge.model.StorageResult;
+import com.mesosphere.challenge.service.dao.EmbeddedStorageDAO;
+import com.mesosphere.challenge.service.dao.FileStorageDAO;
+import com.mesosphere.challenge.service.dao.StorageChecksums;
+
+public class StorageDeduplicationTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * 
+	 * Identical contents are stored once, and stay stored until the last
+	 * node pointing at them is gone and the collector has run.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testEmbeddedContentsAreStoredOnce() throws Exception {
+		EmbeddedStorageDAO dao = new EmbeddedStorageDAO(this.folder.getRoot().getAbsolutePath(), "dedupdb",
+				"challenge", "challenge");
+		dao.setDeduplication(true);
+		try {
+			dao.createStorageNode(new StorageNode("template"), Arrays.asList("a"));
+			dao.createStorageNode(new StorageNode("template"), Arrays.asList("b"));
+			List<StorageNode> nodes = new ArrayList<StorageNode>();
+			for (int i = 0; i < 3; i++) {
+				StorageNode node = new StorageNode("template");
+				node.setLocation("batch-" + i);
+				nodes.add(node);
+			}
+			for (StorageResult result : dao.createStorageNodes(nodes)) {
+				assertEquals(StorageOutcome.CREATED, result.getOutcome());
+			}
+
+			Map<String, Object> statistics = dao.getStorageStatistics();
+			assertEquals(1L, statistics.get("dedup.contents"));
+			assertEquals(5L, statistics.get("dedup.references"));
+			assertEquals(8L, statistics.get("dedup.storedBytes"));
+			assertEquals(40L, statistics.get("dedup.logicalBytes"));
+			assertEquals("template", dao.getStorageNode(Arrays.asList("batch-2")).getContents());
+
+			/*
+			 * Moving every node off the contents leaves them unreferenced
+			 */
+			dao.updateStorageNode(new StorageNode("changed"), Arrays.asList("a"));
+			dao.createStorageNode(new StorageNode("changed"), Arrays.asList("b"));
+			for (int i = 0; i < 3; i++) {
+				dao.deleteStorageNode(Arrays.asList("batch-" + i));
+			}
+			statistics = dao.getStorageStatistics();
+			assertEquals(2L, statistics.get("dedup.contents"));
+			assertEquals(2L, statistics.get("dedup.references"));
+			assertEquals(2, dao.getStorageNodes().size());
+
+			assertEquals(1, dao.collectContents());
+			assertEquals(0, dao.collectContents());
+			statistics = dao.getStorageStatistics();
+			assertEquals(1L, statistics.get("dedup.contents"));
+			assertEquals("changed", dao.getStorageNode(Arrays.asList("a")).getContents());
+			assertEquals("changed", dao.getStorageNode(Arrays.asList("b")).getContents());
+
+			/*
+			 * Nodes without contents point at nothing
+			 */
+			dao.createStorageNode(new StorageNode((String) null), Arrays.asList("empty"));
+			assertNull(dao.getStorageNode(Arrays.asList("empty")).getContents());
+			assertNull(dao.getStorageMetadata(Arrays.asList("empty")).getChecksum());
+			assertEquals(1L, dao.getStorageStatistics().get("dedup.contents"));
+		} finally {
+			dao.close();
+		}
+	}
+
+	/**
+	 * 
+	 * Writers racing to store the same new contents all succeed, and the
+	 * contents end up stored once with every reference counted.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testEmbeddedConcurrentIdenticalWrites() throws Exception {
+		EmbeddedStorageDAO dao = new EmbeddedStorageDAO(this.folder.getRoot().getAbsolutePath(), "racedb",
+				"challenge", "challenge");
+		dao.setDeduplication(true);
+		int threads = 8;
+		int writes = 25;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (int t = 0; t < threads; t++) {
+				int thread = t;
+				futures.add(executor.submit(() -> {
+					for (int i = 0; i < writes; i++) {
+						dao.createStorageNode(new StorageNode("same " + i),
+								Arrays.asList("race-" + thread + "-" + i));
+					}
+					return null;
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+
+			Map<String, Object> statistics = dao.getStorageStatistics();
+			assertEquals((long) writes, statistics.get("dedup.contents"));
+			assertEquals((long) (threads * writes), statistics.get("dedup.references"));
+			assertEquals(threads * writes, dao.getStorageNodes().size());
+		} finally {
+			executor.shutdown();
+			dao.close();
+		}
+	}
+
+	/**
+	 * 
+	 * Nodes written with deduplication off keep their own contents, and nodes
+	 * of both kinds are read and rewritten whichever way it is set.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testEmbeddedDeduplicationToggle() throws Exception {
+		EmbeddedStorageDAO dao = new EmbeddedStorageDAO(this.folder.getRoot().getAbsolutePath(), "toggledb",
+				"challenge", "challenge");
+		try {
+			dao.createStorageNode(new StorageNode("template"), Arrays.asList("inline"));
+			dao.createStorageNode(new StorageNode(""), Arrays.asList("blank"));
+			assertFalse(dao.getStorageStatistics().containsKey("dedup.contents"));
+
+			dao.setDeduplication(true);
+			dao.createStorageNode(new StorageNode("template"), Arrays.asList("a"));
+			dao.createStorageNode(new StorageNode("template"), Arrays.asList("b"));
+			assertEquals(1L, dao.getStorageStatistics().get("dedup.contents"));
+			assertEquals(2L, dao.getStorageStatistics().get("dedup.references"));
+			assertEquals("template", dao.getStorageNode(Arrays.asList("inline")).getContents());
+			assertEquals("", dao.getStorageNode(Arrays.asList("blank")).getContents());
+
+			/*
+			 * Rewriting a shared node without deduplication releases its
+			 * reference
+			 */
+			dao.setDeduplication(false);
+			dao.updateStorageNode(new StorageNode("template"), Arrays.asList("a"));
+			dao.deleteStorageNode(Arrays.asList("b"));
+			assertEquals(1, dao.collectContents());
+			assertEquals("template", dao.getStorageNode(Arrays.asList("a")).getContents());
+			assertEquals("template", dao.getStorageNode(Arrays.asList("inline")).getContents());
+			assertEquals(3, dao.getStorageNodes().size());
+		} finally {
+			dao.close();
+		}
+	}
+
+	/**
+	 * 
+	 * Deduplicated node files are hard links to one stored copy, replaced
+	 * rather than written in place.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testFileContentsAreLinked() throws Exception {
+		FileStorageDAO dao = new FileStorageDAO(this.folder.getRoot().getAbsolutePath(), true);
+		try {
+			Path root = this.folder.getRoot().toPath().resolve("challengeroot");
+			dao.createStorageNode(new StorageNode("template"), Arrays.asList("a"));
+			dao.createStorageNode(new StorageNode("template"), Arrays.asList("b"));
+			assertNull(dao.createStorageNode(new StorageNode("template"), Arrays.asList("b")));
+			assertEquals(3, Files.getAttribute(root.resolve("a"), "unix:nlink"));
+			assertTrue(Files.isSameFile(root.resolve("a"), root.resolve("b")));
+
+			Map<String, Object> statistics = dao.getStorageStatistics();
+			assertEquals(1L, statistics.get("dedup.contents"));
+			assertEquals(Files.size(root.resolve("a")), statistics.get("dedup.storedBytes"));
+			assertEquals(2, dao.getStorageNodes().size());
+
+			/*
+			 * Updating one node must not change the other
+			 */
+			dao.updateStorageNode(new StorageNode("changed"), Arrays.asList("a"));
+			assertEquals("changed", dao.getStorageNode(Arrays.asList("a")).getContents());
+			assertEquals("template", dao.getStorageNode(Arrays.asList("b")).getContents());
+			assertEquals(Long.valueOf(7), dao.getStorageMetadata(Arrays.asList("a")).getLength());
+			assertEquals(0, dao.collectContents());
+
+			dao.deleteStorageNode(Arrays.asList("b"));
+			assertEquals(1, dao.collectContents());
+			assertEquals(1L, dao.getStorageStatistics().get("dedup.contents"));
+
+			/*
+			 * Collected contents are stored again on the next write
+			 */
+			dao.createStorageNode(new StorageNode("template"), Arrays.asList("c"));
+			assertEquals("template", dao.getStorageNode(Arrays.asList("c")).getContents());
+			assertEquals(2L, dao.getStorageStatistics().get("dedup.contents"));
+		} finally {
+			dao.close();
+		}
+	}
+
+	/**
+	 * 
+	 * A node linked to contents stored before its last write, with the
+	 * sidecar of that write left behind as after a crash, still reports the
+	 * checksum of the contents it has.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testFileStaleSidecar() throws Exception {
+		FileStorageDAO dao = new FileStorageDAO(this.folder.getRoot().getAbsolutePath(), true);
+		try {
+			Path root = this.folder.getRoot().toPath().resolve("challengeroot");
+			Path sidecar = root.resolve(".meta").resolve("a");
+			dao.createStorageNode(new StorageNode("older"), Arrays.asList("b"));
+			Thread.sleep(10);
+			dao.createStorageNode(new StorageNode("newer"), Arrays.asList("a"));
+			byte[] left = Files.readAllBytes(sidecar);
+			long written = dao.getStorageMetadata(Arrays.asList("a")).getModified();
+
+			dao.updateStorageNode(new StorageNode("older"), Arrays.asList("a"));
+			Files.write(sidecar, left);
+			StorageMetadata metadata = dao.getStorageMetadata(Arrays.asList("a"));
+			assertEquals(StorageChecksums.checksum("older".getBytes(StandardCharsets.UTF_8)), metadata.getChecksum());
+			assertEquals(Long.valueOf(5), metadata.getLength());
+			assertTrue(metadata.getModified() < written);
+			assertEquals("older", dao.getStorageNode(Arrays.asList("a")).getContents());
+		} finally {
+			dao.close();
+		}
+	}
+
+}
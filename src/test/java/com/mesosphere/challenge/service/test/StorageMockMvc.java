@@ -0,0 +1,38 @@
+package com.mesosphere.challenge.service.test;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.RequestBuilder;
+import org.springframework.test.web.servlet.ResultActions;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+/**
+ * 
+ * @author john
+ *
+ *         MockMvc in standalone mode for the storage controllers. MockMvc
+ *         stops at the start of an asynchronous request, this waits for the
+ *         handler's future and dispatches the result, as the servlet container
+ *         would, so tests check the response the client gets.
+ *
+ */
+public class StorageMockMvc {
+
+	private final MockMvc mockMvc;
+
+	public StorageMockMvc(Object... controllers) {
+		this.mockMvc = MockMvcBuilders.standaloneSetup(controllers).build();
+	}
+
+	public ResultActions perform(RequestBuilder request) throws Exception {
+		ResultActions ret = this.mockMvc.perform(request);
+		MvcResult result = ret.andReturn();
+		if (result.getRequest().isAsyncStarted()) {
+			return this.mockMvc.perform(asyncDispatch(result));
+		}
+		return ret;
+	}
+
+}